@@ -25,6 +25,7 @@ import javax.swing.*;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Future;
 import java.util.function.IntConsumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -255,6 +256,18 @@ public class IndexFeeder extends ReferenceFeeder {
         throw new FeedFailureException("Failed to feed for an unknown reason. Is the feeder inserted?");
     }
 
+    @Override
+    public Future<?> feedAhead(Nozzle nozzle) throws Exception {
+        // Finding and initializing the feeder is left to the regular feed.
+        if (slotAddress == null || !initialized) {
+            return null;
+        }
+        return submitFeedAhead(getDataActuator(), () -> {
+            feed(nozzle);
+            return null;
+        });
+    }
+
     @Override
     public String getPropertySheetHolderTitle() {
         String classSimpleName = getClass().getSimpleName();
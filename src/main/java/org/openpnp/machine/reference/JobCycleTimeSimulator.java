@@ -0,0 +1,499 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+import org.openpnp.model.AbstractModelObject;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Job;
+import org.openpnp.model.Length;
+import org.openpnp.model.Location;
+import org.openpnp.model.Motion;
+import org.openpnp.model.Part;
+import org.openpnp.model.Placement;
+import org.openpnp.spi.Axis;
+import org.openpnp.spi.Camera;
+import org.openpnp.spi.Feeder;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.HeadMountable;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.PnpJobPlanner;
+import org.openpnp.spi.PnpJobPlanner.PlannedPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement.Status;
+import org.openpnp.spi.base.AbstractPnpJobProcessor;
+import org.openpnp.util.Utils2D;
+import org.openpnp.util.VisionUtils;
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Root;
+
+/**
+ * Estimates the cycle time of a job without using the machine.
+ *
+ * The job is planned with the job processor's planner, exactly like the ReferencePnpJobProcessor
+ * does, and each cycle is then played through the nozzle tip change, pick, align and place steps
+ * against a virtual clock. Moves go through safe Z, like MovableUtils.moveToLocationAtSafeZ(), and
+ * their durations are taken from the Motion profiles computed with the machine's axis limits, i.e.
+ * the same profiles the motion planner would execute. Vision, feeding, vacuum valve switching and
+ * nozzle tip changes are accounted for by the configurable times, plus the pick and place dwell
+ * times configured on the nozzles and nozzle tips.
+ *
+ * The planner sees the simulated nozzle tip changes, starting from the nozzle tips that are
+ * currently loaded on the machine, so it plans each cycle from the simulated state.
+ */
+@Root
+public class JobCycleTimeSimulator extends AbstractModelObject {
+    /**
+     * Time in seconds for one bottom vision alignment.
+     */
+    @Attribute(required = false)
+    protected double visionTime = 0.3;
+
+    /**
+     * Time in seconds for one fiducial vision pass.
+     */
+    @Attribute(required = false)
+    protected double fiducialTime = 0.5;
+
+    /**
+     * Time in seconds for switching the vacuum valve, on pick and on place.
+     */
+    @Attribute(required = false)
+    protected double vacuumDwellTime = 0.02;
+
+    /**
+     * Time in seconds for one feed.
+     */
+    @Attribute(required = false)
+    protected double feedTime = 0.3;
+
+    /**
+     * Time in seconds for one nozzle tip change.
+     */
+    @Attribute(required = false)
+    protected double nozzleTipChangeTime = 8;
+
+    /**
+     * The simulated time of one placement, by step.
+     */
+    public static class PlacementTime {
+        private final JobPlacement jobPlacement;
+        private double nozzleTipChange;
+        private double pick;
+        private double align;
+        private double place;
+
+        public PlacementTime(JobPlacement jobPlacement) {
+            this.jobPlacement = jobPlacement;
+        }
+
+        public JobPlacement getJobPlacement() {
+            return jobPlacement;
+        }
+
+        public double getNozzleTipChange() {
+            return nozzleTipChange;
+        }
+
+        public double getPick() {
+            return pick;
+        }
+
+        public double getAlign() {
+            return align;
+        }
+
+        public double getPlace() {
+            return place;
+        }
+
+        public double getTotal() {
+            return nozzleTipChange + pick + align + place;
+        }
+    }
+
+    /**
+     * The result of a simulation. All times are in seconds.
+     */
+    public static class Report {
+        private final List<PlacementTime> placementTimes = new ArrayList<>();
+        private final Map<BoardLocation, Double> boardTimes = new LinkedHashMap<>();
+        private double totalTime;
+
+        public List<PlacementTime> getPlacementTimes() {
+            return placementTimes;
+        }
+
+        /**
+         * @return The time spent per board, including its fiducial checks.
+         */
+        public Map<BoardLocation, Double> getBoardTimes() {
+            return boardTimes;
+        }
+
+        public double getTotalTime() {
+            return totalTime;
+        }
+
+        public double getComponentsPerHour() {
+            return totalTime > 0 ? placementTimes.size() * 3600 / totalTime : 0;
+        }
+
+        private void addBoardTime(BoardLocation boardLocation, double time) {
+            boardTimes.merge(boardLocation, time, Double::sum);
+        }
+
+        /**
+         * Write the per placement time breakdown as CSV, followed by the time per board and the
+         * total time.
+         *
+         * @param writer
+         */
+        public void writeCsv(Writer writer) {
+            PrintWriter out = new PrintWriter(writer);
+            out.println("Board,Placement,Part,NozzleTipChange,Pick,Align,Place,Total");
+            for (PlacementTime placementTime : placementTimes) {
+                JobPlacement jobPlacement = placementTime.getJobPlacement();
+                out.println(String.format(Locale.US, "%s,%s,%s,%.3f,%.3f,%.3f,%.3f,%.3f",
+                        jobPlacement.getBoardLocation().getBoard().getName(),
+                        jobPlacement.getPlacement().getId(),
+                        jobPlacement.getPartId(),
+                        placementTime.getNozzleTipChange(),
+                        placementTime.getPick(),
+                        placementTime.getAlign(),
+                        placementTime.getPlace(),
+                        placementTime.getTotal()));
+            }
+            out.println();
+            out.println("Board,Time");
+            for (Map.Entry<BoardLocation, Double> entry : boardTimes.entrySet()) {
+                out.println(String.format(Locale.US, "%s,%.3f",
+                        entry.getKey().getBoard().getName(), entry.getValue()));
+            }
+            out.println(String.format(Locale.US, "Total,%.3f", totalTime));
+            out.flush();
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d placements in %.1fs, %.0f CPH",
+                    placementTimes.size(), totalTime, getComponentsPerHour());
+        }
+    }
+
+    /**
+     * The virtual machine clock and axes location.
+     */
+    protected class Clock {
+        private final Head head;
+        private AxesLocation location;
+        private double time;
+
+        public Clock(Machine machine, Head head) {
+            this.head = head;
+            this.location = new AxesLocation(machine);
+        }
+
+        public double getTime() {
+            return time;
+        }
+
+        public void dwell(double seconds) {
+            time += seconds;
+        }
+
+        public void moveTo(HeadMountable hm, AxesLocation target, double speed) {
+            target = location.put(target);
+            if (!target.matches(location)) {
+                Motion motion = new Motion(hm, location, target,
+                        head.getMaxPartSpeed() * speed);
+                time += motion.getTime();
+                location = target;
+            }
+        }
+
+        /**
+         * Move the HeadMountable to the location, all the nozzles going through safe Z first,
+         * unless it only moves in Z.
+         */
+        public void moveToLocationAtSafeZ(HeadMountable hm, Location location, double speed)
+                throws Exception {
+            AxesLocation target = hm.toRaw(hm.toHeadLocation(location));
+            AxesLocation travel = target.byType(Axis.Type.X, Axis.Type.Y, Axis.Type.Rotation);
+            if (!this.location.put(travel).matches(this.location)) {
+                // Moves in X, Y or C, all the nozzles go to safe Z, then travel at safe Z.
+                AxesLocation safeZ = new AxesLocation();
+                for (Nozzle nozzle : head.getNozzles()) {
+                    safeZ = safeZ.put(getSafeZ(nozzle, location));
+                }
+                moveTo(hm, safeZ, speed);
+                moveTo(hm, travel.put(getSafeZ(hm, location)), speed);
+            }
+            moveTo(hm, target, speed);
+        }
+
+        private AxesLocation getSafeZ(HeadMountable hm, Location location) throws Exception {
+            Length safeZ = hm.getEffectiveSafeZ();
+            if (safeZ == null) {
+                return new AxesLocation();
+            }
+            safeZ = safeZ.convertToUnits(location.getUnits());
+            return hm.toRaw(hm.toHeadLocation(location.derive(null, null, safeZ.getValue(), null)))
+                    .byType(Axis.Type.Z);
+        }
+    }
+
+    /**
+     * Simulate the job with the job processor's settings and planner. The job is not modified.
+     *
+     * @param jobProcessor
+     * @param job
+     * @return The report.
+     * @throws Exception
+     */
+    public Report simulate(ReferencePnpJobProcessor jobProcessor, Job job) throws Exception {
+        return simulate(jobProcessor, job, null);
+    }
+
+    /**
+     * Simulate the job with the job processor's settings and planner. The job is not modified.
+     * The simulation can be cancelled by interrupting the thread.
+     *
+     * @param jobProcessor
+     * @param job
+     * @param progress Called with the number of simulated placements and the total number of
+     *        placements after each cycle, or null.
+     * @return The report.
+     * @throws InterruptedException if the thread was interrupted.
+     * @throws Exception
+     */
+    public Report simulate(ReferencePnpJobProcessor jobProcessor, Job job,
+            BiConsumer<Integer, Integer> progress) throws Exception {
+        Machine machine = Configuration.get().getMachine();
+        Head head = machine.getDefaultHead();
+        Report report = new Report();
+        Clock clock = new Clock(machine, head);
+        double speed = machine.getSpeed();
+
+        simulateFiducialChecks(job, head, clock, report, speed);
+
+        List<JobPlacement> jobPlacements = jobProcessor.createJobPlacements(job);
+        PnpJobPlanner planner = jobProcessor.getPlanner();
+        PnpJobPlanningIndex planningIndex = new PnpJobPlanningIndex(head, jobPlacements,
+                jobProcessor.getJobOrderComparator());
+        int total = planningIndex.getPendingCount();
+        try {
+            while (!planningIndex.isEmpty()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException("Simulation cancelled.");
+                }
+                List<PlannedPlacement> plannedPlacements = planningIndex.plan(planner, head);
+                if (plannedPlacements.isEmpty()) {
+                    throw new Exception("Planner failed to plan any placements.");
+                }
+                Map<PlannedPlacement, PlacementTime> cycle = new LinkedHashMap<>();
+                for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                    plannedPlacement.jobPlacement.setStatus(Status.Processing);
+                    cycle.put(plannedPlacement, new PlacementTime(plannedPlacement.jobPlacement));
+                }
+
+                for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                    if (planningIndex.getLoadedNozzleTip(plannedPlacement.nozzle) != plannedPlacement.nozzleTip) {
+                        // The planner plans the next cycles with the simulated nozzle tip.
+                        planningIndex.setLoadedNozzleTip(plannedPlacement.nozzle, plannedPlacement.nozzleTip);
+                        clock.dwell(nozzleTipChangeTime);
+                        cycle.get(plannedPlacement).nozzleTipChange = nozzleTipChangeTime;
+                    }
+                }
+
+                for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                    double t0 = clock.getTime();
+                    simulatePick(machine, clock, plannedPlacement, speed);
+                    cycle.get(plannedPlacement).pick = clock.getTime() - t0;
+                }
+
+                for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                    double t0 = clock.getTime();
+                    simulateAlign(machine, clock, plannedPlacement, speed);
+                    cycle.get(plannedPlacement).align = clock.getTime() - t0;
+                }
+
+                for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                    double t0 = clock.getTime();
+                    simulatePlace(clock, plannedPlacement, speed);
+                    PlacementTime placementTime = cycle.get(plannedPlacement);
+                    placementTime.place = clock.getTime() - t0;
+                    plannedPlacement.jobPlacement.setStatus(Status.Complete);
+                    report.placementTimes.add(placementTime);
+                    report.addBoardTime(plannedPlacement.jobPlacement.getBoardLocation(),
+                            placementTime.getTotal());
+                }
+                if (progress != null) {
+                    progress.accept(report.placementTimes.size(), total);
+                }
+            }
+        }
+        finally {
+            planningIndex.dispose();
+        }
+        report.totalTime = clock.getTime();
+        return report;
+    }
+
+    protected void simulateFiducialChecks(Job job, Head head, Clock clock, Report report, double speed)
+            throws Exception {
+        Camera camera = head.getDefaultCamera();
+        for (BoardLocation boardLocation : job.getBoardLocations()) {
+            if (!boardLocation.isEnabled() || !boardLocation.isCheckFiducials()) {
+                continue;
+            }
+            double t0 = clock.getTime();
+            for (Placement placement : boardLocation.getBoard().getPlacements()) {
+                if (placement.getType() != Placement.Type.Fiducial
+                        || !placement.isEnabled()
+                        || placement.getSide() != boardLocation.getSide()) {
+                    continue;
+                }
+                Location location = Utils2D.calculateBoardPlacementLocation(boardLocation,
+                        placement.getLocation());
+                clock.moveToLocationAtSafeZ(camera, location, speed);
+                clock.dwell(fiducialTime);
+            }
+            report.addBoardTime(boardLocation, clock.getTime() - t0);
+        }
+    }
+
+    protected void simulatePick(Machine machine, Clock clock, PlannedPlacement plannedPlacement,
+            double speed) throws Exception {
+        Nozzle nozzle = plannedPlacement.nozzle;
+        Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+        Feeder feeder = AbstractPnpJobProcessor.findFeeder(machine, part);
+        clock.dwell(feedTime);
+        clock.moveToLocationAtSafeZ(nozzle, feeder.getPickLocation(), speed);
+        clock.dwell(vacuumDwellTime + getPickDwellTime(plannedPlacement));
+    }
+
+    protected void simulateAlign(Machine machine, Clock clock, PlannedPlacement plannedPlacement,
+            double speed) throws Exception {
+        Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+        if (AbstractPnpJobProcessor.findPartAligner(machine, part) == null) {
+            return;
+        }
+        Location location = VisionUtils.getBottomVisionCamera().getLocation()
+                .add(new Location(part.getHeight().getUnits(), 0, 0, part.getHeight().getValue(), 0));
+        clock.moveToLocationAtSafeZ(plannedPlacement.nozzle, location, speed * part.getSpeed());
+        clock.dwell(visionTime);
+    }
+
+    protected void simulatePlace(Clock clock, PlannedPlacement plannedPlacement, double speed)
+            throws Exception {
+        JobPlacement jobPlacement = plannedPlacement.jobPlacement;
+        Part part = jobPlacement.getPlacement().getPart();
+        Location location = Utils2D.calculateBoardPlacementLocation(jobPlacement.getBoardLocation(),
+                jobPlacement.getPlacement().getLocation());
+        location = location.add(new Location(part.getHeight().getUnits(),
+                0, 0, part.getHeight().getValue(), 0));
+        clock.moveToLocationAtSafeZ(plannedPlacement.nozzle, location, speed * part.getSpeed());
+        clock.dwell(vacuumDwellTime + getPlaceDwellTime(plannedPlacement));
+    }
+
+    private double getPickDwellTime(PlannedPlacement plannedPlacement) {
+        int milliseconds = 0;
+        if (plannedPlacement.nozzle instanceof ReferenceNozzle) {
+            milliseconds += ((ReferenceNozzle) plannedPlacement.nozzle).getPickDwellMilliseconds();
+        }
+        if (plannedPlacement.nozzleTip instanceof ReferenceNozzleTip) {
+            milliseconds += ((ReferenceNozzleTip) plannedPlacement.nozzleTip).getPickDwellMilliseconds();
+        }
+        return milliseconds / 1000.0;
+    }
+
+    private double getPlaceDwellTime(PlannedPlacement plannedPlacement) {
+        int milliseconds = 0;
+        if (plannedPlacement.nozzle instanceof ReferenceNozzle) {
+            milliseconds += ((ReferenceNozzle) plannedPlacement.nozzle).getPlaceDwellMilliseconds();
+        }
+        if (plannedPlacement.nozzleTip instanceof ReferenceNozzleTip) {
+            milliseconds += ((ReferenceNozzleTip) plannedPlacement.nozzleTip).getPlaceDwellMilliseconds();
+        }
+        return milliseconds / 1000.0;
+    }
+
+    public double getVisionTime() {
+        return visionTime;
+    }
+
+    public void setVisionTime(double visionTime) {
+        Object oldValue = this.visionTime;
+        this.visionTime = visionTime;
+        firePropertyChange("visionTime", oldValue, visionTime);
+    }
+
+    public double getFiducialTime() {
+        return fiducialTime;
+    }
+
+    public void setFiducialTime(double fiducialTime) {
+        Object oldValue = this.fiducialTime;
+        this.fiducialTime = fiducialTime;
+        firePropertyChange("fiducialTime", oldValue, fiducialTime);
+    }
+
+    public double getVacuumDwellTime() {
+        return vacuumDwellTime;
+    }
+
+    public void setVacuumDwellTime(double vacuumDwellTime) {
+        Object oldValue = this.vacuumDwellTime;
+        this.vacuumDwellTime = vacuumDwellTime;
+        firePropertyChange("vacuumDwellTime", oldValue, vacuumDwellTime);
+    }
+
+    public double getFeedTime() {
+        return feedTime;
+    }
+
+    public void setFeedTime(double feedTime) {
+        Object oldValue = this.feedTime;
+        this.feedTime = feedTime;
+        firePropertyChange("feedTime", oldValue, feedTime);
+    }
+
+    public double getNozzleTipChangeTime() {
+        return nozzleTipChangeTime;
+    }
+
+    public void setNozzleTipChangeTime(double nozzleTipChangeTime) {
+        Object oldValue = this.nozzleTipChangeTime;
+        this.nozzleTipChangeTime = nozzleTipChangeTime;
+        firePropertyChange("nozzleTipChangeTime", oldValue, nozzleTipChangeTime);
+    }
+}
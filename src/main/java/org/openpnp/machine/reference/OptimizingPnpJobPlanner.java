@@ -0,0 +1,484 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Function;
+
+import org.openpnp.machine.reference.PnpJobPlanningIndex.IndexedPnpJobPlanner;
+import org.openpnp.model.AbstractModelObject;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.BoardPlacementTransform;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+import org.openpnp.model.Part;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.NozzleTip;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement;
+import org.openpnp.spi.base.AbstractPnpJobProcessor;
+import org.openpnp.util.Utils2D;
+import org.openpnp.util.VisionUtils;
+import org.pmw.tinylog.Logger;
+import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.Root;
+
+/**
+ * A planner that scores candidate cycles with a simple time cost model and searches the
+ * remaining job placements for the cheapest cycle.
+ *
+ * The cost of a cycle is estimated as the travel time from the current head location to each
+ * feeder pick location in turn, then past the bottom camera (if any of the parts are aligned),
+ * and then to each placement location, plus a fixed time for each nozzle tip change and each
+ * bottom vision capture. Travel time is estimated from the larger of the X and Y distances,
+ * because the axes move simultaneously.
+ *
+ * The search greedily assigns the cheapest (nozzle, nozzle tip, placement) combination to the
+ * cycle until all nozzles are used. The first trial is purely greedy, further trials randomly
+ * choose among the best few combinations on each assignment, and the cheapest resulting cycle
+ * wins. Only the first lookAhead placements of the (job order sorted) list are considered, which
+ * bounds both the planning time and how far the planner may deviate from the job order.
+ *
+ * In deterministic mode the trials use a fixed random seed, so the same job on the same machine
+ * state is always planned the same way.
+ */
+@Root
+public class OptimizingPnpJobPlanner extends AbstractModelObject implements IndexedPnpJobPlanner {
+    /**
+     * Number of best combinations a randomized trial chooses from on each assignment.
+     */
+    private static final int TRIAL_CHOICES = 3;
+
+    @Attribute(required = false)
+    protected double travelSpeed = 250.0;
+
+    @Attribute(required = false)
+    protected double moveOverheadTime = 0.15;
+
+    @Attribute(required = false)
+    protected double nozzleTipChangeTime = 8.0;
+
+    @Attribute(required = false)
+    protected double bottomVisionTime = 0.5;
+
+    @Attribute(required = false)
+    protected int lookAhead = 100;
+
+    @Attribute(required = false)
+    protected int searchTrials = 8;
+
+    @Attribute(required = false)
+    protected boolean deterministic = true;
+
+    @Attribute(required = false)
+    protected long randomSeed = 0;
+
+    /**
+     * A candidate assignment of a job placement to a nozzle and nozzle tip, with the locations
+     * the cost model needs resolved once per plan.
+     */
+    protected static class Candidate {
+        final Nozzle nozzle;
+        final NozzleTip nozzleTip;
+        final JobPlacement jobPlacement;
+        final Location pickLocation;
+        final Location placementLocation;
+        final boolean aligned;
+
+        Candidate(Nozzle nozzle, NozzleTip nozzleTip, JobPlacement jobPlacement,
+                Location pickLocation, Location placementLocation, boolean aligned) {
+            this.nozzle = nozzle;
+            this.nozzleTip = nozzleTip;
+            this.jobPlacement = jobPlacement;
+            this.pickLocation = pickLocation;
+            this.placementLocation = placementLocation;
+            this.aligned = aligned;
+        }
+    }
+
+    /**
+     * Locations and properties resolved once per call to plan(), so the search does not query
+     * feeders and boards over and over.
+     */
+    protected class PlanningContext {
+        final Machine machine;
+        final Location startLocation;
+        final Location bottomCameraLocation;
+        final Map<Part, Location> pickLocations = new HashMap<>();
+        final Map<Part, Boolean> aligned = new HashMap<>();
+        final Map<JobPlacement, Location> placementLocations = new HashMap<>();
+        final Function<Nozzle, NozzleTip> loadedNozzleTips;
+
+        PlanningContext(Head head, Function<Nozzle, NozzleTip> loadedNozzleTips) {
+            machine = head.getMachine();
+            this.loadedNozzleTips = loadedNozzleTips;
+            Location location = null;
+            try {
+                location = head.getNozzles().get(0).getLocation();
+            }
+            catch (Exception e) {
+                Logger.trace(e);
+            }
+            startLocation = mm(location);
+            location = null;
+            try {
+                location = VisionUtils.getBottomVisionCamera().getLocation();
+            }
+            catch (Exception e) {
+                Logger.trace(e);
+            }
+            bottomCameraLocation = mm(location);
+        }
+
+        Location getPickLocation(Part part) {
+            if (!pickLocations.containsKey(part)) {
+                Location location = null;
+                try {
+                    location = AbstractPnpJobProcessor.findFeeder(machine, part).getPickLocation();
+                }
+                catch (Exception e) {
+                    Logger.trace(e);
+                }
+                pickLocations.put(part, mm(location));
+            }
+            return pickLocations.get(part);
+        }
+
+        boolean isAligned(Part part) {
+            return aligned.computeIfAbsent(part,
+                    p -> AbstractPnpJobProcessor.findPartAligner(machine, p) != null);
+        }
+
+        Location getPlacementLocation(JobPlacement jobPlacement) {
+            return placementLocations.computeIfAbsent(jobPlacement,
+                    jp -> mm(Utils2D.calculateBoardPlacementLocation(jp.getBoardLocation(),
+                            jp.getPlacement().getLocation())));
+        }
+
+        /**
+         * Resolve the placement locations of the given job placements up front, transforming
+         * the placements of each board in one batch.
+         */
+        void resolvePlacementLocations(List<JobPlacement> jobPlacements) {
+            Map<BoardLocation, List<JobPlacement>> byBoardLocation = new LinkedHashMap<>();
+            for (JobPlacement jobPlacement : jobPlacements) {
+                if (!placementLocations.containsKey(jobPlacement)) {
+                    byBoardLocation.computeIfAbsent(jobPlacement.getBoardLocation(),
+                            bl -> new ArrayList<>()).add(jobPlacement);
+                }
+            }
+            for (Map.Entry<BoardLocation, List<JobPlacement>> entry : byBoardLocation.entrySet()) {
+                List<JobPlacement> boardPlacements = entry.getValue();
+                int count = boardPlacements.size();
+                double[] x = new double[count];
+                double[] y = new double[count];
+                double[] rotation = new double[count];
+                for (int i = 0; i < count; i++) {
+                    Location location = mm(boardPlacements.get(i).getPlacement().getLocation());
+                    x[i] = location.getX();
+                    y[i] = location.getY();
+                    rotation[i] = location.getRotation();
+                }
+                BoardPlacementTransform transform =
+                        entry.getKey().getCompiledPlacementTransform();
+                transform.transform(x, y, rotation, count);
+                for (int i = 0; i < count; i++) {
+                    placementLocations.put(boardPlacements.get(i), new Location(
+                            LengthUnit.Millimeters, x[i], y[i], transform.getZ(), rotation[i]));
+                }
+            }
+        }
+
+        Candidate createCandidate(Nozzle nozzle, NozzleTip nozzleTip, JobPlacement jobPlacement) {
+            Part part = jobPlacement.getPlacement().getPart();
+            return new Candidate(nozzle, nozzleTip, jobPlacement, getPickLocation(part),
+                    getPlacementLocation(jobPlacement), isAligned(part));
+        }
+    }
+
+    @Override
+    public List<PlannedPlacement> plan(Head head, List<JobPlacement> jobPlacements) {
+        return plan(new PlanningContext(head, Nozzle::getNozzleTip), head, jobPlacements);
+    }
+
+    protected List<PlannedPlacement> plan(PlanningContext context, Head head,
+            List<JobPlacement> jobPlacements) {
+        Random random = deterministic ? new Random(randomSeed) : new Random();
+        List<NozzleTip> nozzleTips = new ArrayList<>(head.getMachine().getNozzleTips());
+
+        List<JobPlacement> window = jobPlacements.subList(0,
+                Math.min(jobPlacements.size(), Math.max(1, lookAhead)));
+        context.resolvePlacementLocations(window);
+        List<Candidate> best = search(context, head.getNozzles(), window, nozzleTips, random);
+        if (best.isEmpty() && window.size() < jobPlacements.size()) {
+            // Nothing in the look-ahead window could be planned, fall back to the whole list.
+            context.resolvePlacementLocations(jobPlacements);
+            best = search(context, head.getNozzles(), jobPlacements, nozzleTips, random);
+        }
+
+        List<PlannedPlacement> plannedPlacements = new ArrayList<>();
+        for (Candidate candidate : best) {
+            plannedPlacements.add(new PlannedPlacement(candidate.nozzle, candidate.nozzleTip,
+                    candidate.jobPlacement));
+            jobPlacements.remove(candidate.jobPlacement);
+        }
+        return plannedPlacements;
+    }
+
+    /**
+     * Only the look-ahead window is taken from the index, so the planning time does not depend on
+     * the job size.
+     */
+    @Override
+    public List<PlannedPlacement> plan(Head head, PnpJobPlanningIndex index) {
+        PlanningContext context = new PlanningContext(head, index::getLoadedNozzleTip);
+        List<PlannedPlacement> plannedPlacements =
+                plan(context, head, index.getPendingJobPlacements(Math.max(1, lookAhead)));
+        if (plannedPlacements.isEmpty()) {
+            // Nothing in the look-ahead window could be planned, fall back to the whole list.
+            plannedPlacements = plan(context, head, index.getPendingJobPlacements());
+        }
+        return plannedPlacements;
+    }
+
+    /**
+     * Run the configured number of trials and return the best cycle found. A cycle with more
+     * placements always beats one with fewer, otherwise the lower estimated time wins.
+     */
+    protected List<Candidate> search(PlanningContext context, List<Nozzle> nozzles,
+            List<JobPlacement> jobPlacements, List<NozzleTip> nozzleTips, Random random) {
+        List<Candidate> best = new ArrayList<>();
+        double bestCost = Double.POSITIVE_INFINITY;
+        for (int trial = 0; trial < Math.max(1, searchTrials); trial++) {
+            List<Candidate> cycle = buildCycle(context, nozzles, jobPlacements, nozzleTips,
+                    trial == 0 ? null : random);
+            double cost = getCycleCost(context, cycle);
+            if (cycle.size() > best.size() || (cycle.size() == best.size() && cost < bestCost)) {
+                best = cycle;
+                bestCost = cost;
+            }
+        }
+        Logger.debug("Optimizing planner estimated cycle time {}s for {} placements.", bestCost,
+                best.size());
+        return best;
+    }
+
+    /**
+     * Build one cycle by repeatedly appending the combination with the lowest incremental cost.
+     * If random is null the cheapest combination is always taken, otherwise one of the
+     * TRIAL_CHOICES cheapest is taken at random.
+     */
+    protected List<Candidate> buildCycle(PlanningContext context, List<Nozzle> nozzles,
+            List<JobPlacement> jobPlacements, List<NozzleTip> nozzleTips, Random random) {
+        List<Candidate> cycle = new ArrayList<>();
+        Set<Nozzle> freeNozzles = new LinkedHashSet<>(nozzles);
+        Set<NozzleTip> usedNozzleTips = new HashSet<>();
+        Set<JobPlacement> usedJobPlacements = new HashSet<>();
+        int choices = (random == null) ? 1 : TRIAL_CHOICES;
+
+        while (!freeNozzles.isEmpty()) {
+            double baseCost = getCycleCost(context, cycle);
+            List<Candidate> bestCandidates = new ArrayList<>();
+            List<Double> bestCosts = new ArrayList<>();
+            for (Nozzle nozzle : freeNozzles) {
+                for (JobPlacement jobPlacement : jobPlacements) {
+                    if (usedJobPlacements.contains(jobPlacement)) {
+                        continue;
+                    }
+                    org.openpnp.model.Package pkg =
+                            jobPlacement.getPlacement().getPart().getPackage();
+                    for (NozzleTip nozzleTip : nozzleTips) {
+                        if (usedNozzleTips.contains(nozzleTip)
+                                || !pkg.getCompatibleNozzleTips().contains(nozzleTip)
+                                || !nozzle.getCompatibleNozzleTips().contains(nozzleTip)) {
+                            continue;
+                        }
+                        Candidate candidate = context.createCandidate(nozzle, nozzleTip, jobPlacement);
+                        cycle.add(candidate);
+                        double cost = getCycleCost(context, cycle) - baseCost;
+                        cycle.remove(cycle.size() - 1);
+                        // Keep the cheapest few, in order. Ties keep the earlier combination,
+                        // which preserves the job order.
+                        int i = bestCosts.size();
+                        while (i > 0 && cost < bestCosts.get(i - 1)) {
+                            i--;
+                        }
+                        if (i < choices) {
+                            bestCandidates.add(i, candidate);
+                            bestCosts.add(i, cost);
+                            if (bestCandidates.size() > choices) {
+                                bestCandidates.remove(choices);
+                                bestCosts.remove(choices);
+                            }
+                        }
+                    }
+                }
+            }
+            if (bestCandidates.isEmpty()) {
+                break;
+            }
+            Candidate candidate = bestCandidates.get(
+                    random == null ? 0 : random.nextInt(bestCandidates.size()));
+            cycle.add(candidate);
+            freeNozzles.remove(candidate.nozzle);
+            usedNozzleTips.add(candidate.nozzleTip);
+            usedJobPlacements.add(candidate.jobPlacement);
+        }
+        return cycle;
+    }
+
+    /**
+     * Estimate the time in seconds to execute the given cycle in the order given: nozzle tip
+     * changes, picks, bottom vision, places.
+     */
+    protected double getCycleCost(PlanningContext context, List<Candidate> cycle) {
+        double time = 0;
+        Location location = context.startLocation;
+        for (Candidate candidate : cycle) {
+            if (context.loadedNozzleTips.apply(candidate.nozzle) != candidate.nozzleTip) {
+                time += nozzleTipChangeTime;
+            }
+            time += getTravelTime(location, candidate.pickLocation);
+            location = candidate.pickLocation;
+        }
+        int alignedCount = 0;
+        for (Candidate candidate : cycle) {
+            if (candidate.aligned) {
+                alignedCount++;
+            }
+        }
+        if (alignedCount > 0) {
+            time += getTravelTime(location, context.bottomCameraLocation);
+            time += alignedCount * bottomVisionTime;
+            location = context.bottomCameraLocation;
+        }
+        for (Candidate candidate : cycle) {
+            time += getTravelTime(location, candidate.placementLocation);
+            location = candidate.placementLocation;
+        }
+        return time;
+    }
+
+    /**
+     * Estimate the travel time in seconds between two locations in Millimeters. Unknown
+     * locations only cost the move overhead.
+     */
+    protected double getTravelTime(Location from, Location to) {
+        if (from == null || to == null) {
+            return moveOverheadTime;
+        }
+        double distance = Math.max(Math.abs(to.getX() - from.getX()),
+                Math.abs(to.getY() - from.getY()));
+        return moveOverheadTime + distance / Math.max(travelSpeed, 1e-3);
+    }
+
+    private static Location mm(Location location) {
+        return location == null ? null : location.convertToUnits(LengthUnit.Millimeters);
+    }
+
+    public double getTravelSpeed() {
+        return travelSpeed;
+    }
+
+    public void setTravelSpeed(double travelSpeed) {
+        Object oldValue = this.travelSpeed;
+        this.travelSpeed = travelSpeed;
+        firePropertyChange("travelSpeed", oldValue, travelSpeed);
+    }
+
+    public double getMoveOverheadTime() {
+        return moveOverheadTime;
+    }
+
+    public void setMoveOverheadTime(double moveOverheadTime) {
+        Object oldValue = this.moveOverheadTime;
+        this.moveOverheadTime = moveOverheadTime;
+        firePropertyChange("moveOverheadTime", oldValue, moveOverheadTime);
+    }
+
+    public double getNozzleTipChangeTime() {
+        return nozzleTipChangeTime;
+    }
+
+    public void setNozzleTipChangeTime(double nozzleTipChangeTime) {
+        Object oldValue = this.nozzleTipChangeTime;
+        this.nozzleTipChangeTime = nozzleTipChangeTime;
+        firePropertyChange("nozzleTipChangeTime", oldValue, nozzleTipChangeTime);
+    }
+
+    public double getBottomVisionTime() {
+        return bottomVisionTime;
+    }
+
+    public void setBottomVisionTime(double bottomVisionTime) {
+        Object oldValue = this.bottomVisionTime;
+        this.bottomVisionTime = bottomVisionTime;
+        firePropertyChange("bottomVisionTime", oldValue, bottomVisionTime);
+    }
+
+    public int getLookAhead() {
+        return lookAhead;
+    }
+
+    public void setLookAhead(int lookAhead) {
+        Object oldValue = this.lookAhead;
+        this.lookAhead = lookAhead;
+        firePropertyChange("lookAhead", oldValue, lookAhead);
+    }
+
+    public int getSearchTrials() {
+        return searchTrials;
+    }
+
+    public void setSearchTrials(int searchTrials) {
+        Object oldValue = this.searchTrials;
+        this.searchTrials = searchTrials;
+        firePropertyChange("searchTrials", oldValue, searchTrials);
+    }
+
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+
+    public void setDeterministic(boolean deterministic) {
+        Object oldValue = this.deterministic;
+        this.deterministic = deterministic;
+        firePropertyChange("deterministic", oldValue, deterministic);
+    }
+
+    public long getRandomSeed() {
+        return randomSeed;
+    }
+
+    public void setRandomSeed(long randomSeed) {
+        Object oldValue = this.randomSeed;
+        this.randomSeed = randomSeed;
+        firePropertyChange("randomSeed", oldValue, randomSeed);
+    }
+}
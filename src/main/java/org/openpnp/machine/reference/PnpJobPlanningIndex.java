@@ -0,0 +1,417 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.openpnp.model.Part;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.spi.NozzleTip;
+import org.openpnp.spi.PnpJobPlanner;
+import org.openpnp.spi.PnpJobPlanner.PlannedPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement.Status;
+
+/**
+ * A planning index over the JobPlacements of a job, built once when the job starts, so that
+ * planning a cycle does not have to scan all the placements of the job.
+ *
+ * Packages, nozzles and nozzle tips get dense integer ids and their compatibility is stored as
+ * BitSets over the nozzle tip ids. JobPlacements are ranked in job order and, for each nozzle
+ * tip, the ranks of the pending placements that can be handled by that nozzle tip are kept in a
+ * bucket BitSet. The index listens to the status of the JobPlacements, so the buckets are
+ * updated as placements are planned, completed or errored.
+ *
+ * Each bucket keeps a cursor below which no bit is set. Placements are mostly taken from the
+ * front of the job order, so looking up the first pending placement for a nozzle tip is
+ * amortized constant time, independent of the job size.
+ *
+ * The job order is re-sorted when the height of a part changes, e.g. when it is probed during the
+ * job, so the part height job order still applies to the remaining placements. The compatibility
+ * is captured when the index is built, i.e. changes to packages or nozzles during the job are not
+ * reflected until the next job start.
+ */
+public class PnpJobPlanningIndex {
+    /**
+     * A planner that can plan directly from the index, instead of from the list of all the
+     * pending placements.
+     */
+    public interface IndexedPnpJobPlanner extends PnpJobPlanner {
+        public List<PlannedPlacement> plan(Head head, PnpJobPlanningIndex index);
+    }
+
+
+    private final Map<Nozzle, Integer> nozzleIds = new HashMap<>();
+    private final Map<NozzleTip, Integer> nozzleTipIds = new HashMap<>();
+    private final Map<org.openpnp.model.Package, Integer> packageIds = new HashMap<>();
+    private final Map<JobPlacement, Integer> ranks = new IdentityHashMap<>();
+
+    private final NozzleTip[] nozzleTips;
+    private final List<JobPlacement> jobOrder;
+    private final Comparator<JobPlacement> jobOrderComparator;
+    private final Set<Part> parts = new LinkedHashSet<>();
+    private final JobPlacement[] jobPlacements;
+    private final int[] packageIdsByRank;
+
+    /**
+     * Compatible nozzle tip ids per nozzle id.
+     */
+    private final BitSet[] nozzleCompatibility;
+
+    /**
+     * Compatible nozzle tip ids per package id.
+     */
+    private final List<BitSet> packageCompatibility = new ArrayList<>();
+
+    /**
+     * Pending placement ranks, overall and per nozzle tip id.
+     */
+    private final BitSet pending;
+    private final BitSet[] buckets;
+
+    /**
+     * Lowest rank that may still be set, overall and per nozzle tip id.
+     */
+    private int pendingCursor;
+    private final int[] bucketCursors;
+
+    /**
+     * Set when a part height changed, so the job order must be sorted again.
+     */
+    private volatile boolean sortPending;
+
+    /**
+     * The nozzle tips the planners see loaded on the nozzles, where they differ from the machine.
+     */
+    private final Map<Nozzle, NozzleTip> loadedNozzleTips = new HashMap<>();
+
+    private final PropertyChangeListener statusListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            if ("status".equals(evt.getPropertyName())) {
+                Integer rank = ranks.get(evt.getSource());
+                if (rank != null) {
+                    setPending(rank, evt.getNewValue() == Status.Pending);
+                }
+            }
+        }
+    };
+
+    private final PropertyChangeListener heightListener = new PropertyChangeListener() {
+        @Override
+        public void propertyChange(PropertyChangeEvent evt) {
+            // Parts can be edited from any thread, the sort is left to the planning thread.
+            sortPending = true;
+        }
+    };
+
+    /**
+     * Build the index with the JobPlacements in the given order.
+     *
+     * @param head The head whose nozzles will be planned.
+     * @param jobPlacements The JobPlacements of the job, in job order.
+     */
+    public PnpJobPlanningIndex(Head head, List<JobPlacement> jobPlacements) {
+        this(head, jobPlacements, null);
+    }
+
+    /**
+     * Build the index.
+     *
+     * @param head The head whose nozzles will be planned.
+     * @param jobPlacements The JobPlacements of the job.
+     * @param jobOrderComparator The job order, or null to keep the order of jobPlacements. The
+     *        JobPlacements are sorted again by sort(), if a part height changed.
+     */
+    public PnpJobPlanningIndex(Head head, List<JobPlacement> jobPlacements,
+            Comparator<JobPlacement> jobOrderComparator) {
+        List<NozzleTip> machineNozzleTips = head.getMachine().getNozzleTips();
+        nozzleTips = machineNozzleTips.toArray(new NozzleTip[0]);
+        for (int id = 0; id < nozzleTips.length; id++) {
+            nozzleTipIds.put(nozzleTips[id], id);
+        }
+
+        List<Nozzle> nozzles = head.getNozzles();
+        nozzleCompatibility = new BitSet[nozzles.size()];
+        for (int id = 0; id < nozzles.size(); id++) {
+            Nozzle nozzle = nozzles.get(id);
+            nozzleIds.put(nozzle, id);
+            nozzleCompatibility[id] = toNozzleTipIds(nozzle.getCompatibleNozzleTips());
+        }
+
+        this.jobOrder = new ArrayList<>(jobPlacements);
+        this.jobOrderComparator = jobOrderComparator;
+        this.jobPlacements = new JobPlacement[jobOrder.size()];
+        packageIdsByRank = new int[this.jobPlacements.length];
+        pending = new BitSet(this.jobPlacements.length);
+        buckets = new BitSet[nozzleTips.length];
+        bucketCursors = new int[nozzleTips.length];
+        for (int id = 0; id < nozzleTips.length; id++) {
+            buckets[id] = new BitSet(this.jobPlacements.length);
+        }
+        rank();
+        for (JobPlacement jobPlacement : this.jobPlacements) {
+            jobPlacement.addPropertyChangeListener("status", statusListener);
+            Part part = jobPlacement.getPlacement().getPart();
+            if (part != null && parts.add(part)) {
+                part.addPropertyChangeListener("height", heightListener);
+            }
+        }
+    }
+
+    /**
+     * Rank the JobPlacements in job order and index the pending ones.
+     */
+    private void rank() {
+        List<JobPlacement> sorted = new ArrayList<>(jobOrder);
+        if (jobOrderComparator != null) {
+            // Sorted from the original order, so ties are resolved as if sorted when the job started.
+            sorted.sort(jobOrderComparator);
+        }
+        pending.clear();
+        pendingCursor = 0;
+        for (int id = 0; id < buckets.length; id++) {
+            buckets[id].clear();
+            bucketCursors[id] = 0;
+        }
+        for (int rank = 0; rank < jobPlacements.length; rank++) {
+            JobPlacement jobPlacement = sorted.get(rank);
+            jobPlacements[rank] = jobPlacement;
+            ranks.put(jobPlacement, rank);
+            packageIdsByRank[rank] = getOrCreatePackageId(jobPlacement);
+            if (jobPlacement.getStatus() == Status.Pending) {
+                setPending(rank, true);
+            }
+        }
+    }
+
+    /**
+     * Sort the job order again, if a part height changed since the index was built or last sorted.
+     * This must be called before planning a cycle, never while planning, so the ranks stay valid
+     * throughout planning.
+     *
+     * @return true if the job order was sorted again.
+     */
+    public boolean sort() {
+        if (!sortPending || jobOrderComparator == null) {
+            return false;
+        }
+        sortPending = false;
+        rank();
+        return true;
+    }
+
+    /**
+     * Plan the next cycle, sorting the job order first if needed. Planners that implement
+     * IndexedPnpJobPlanner plan from the index, others from the list of the pending placements.
+     *
+     * @param planner
+     * @param head
+     * @return The planned placements.
+     */
+    public List<PlannedPlacement> plan(PnpJobPlanner planner, Head head) {
+        sort();
+        if (planner instanceof IndexedPnpJobPlanner) {
+            return ((IndexedPnpJobPlanner) planner).plan(head, this);
+        }
+        return planner.plan(head, getPendingJobPlacements());
+    }
+
+    /**
+     * Stop listening to the JobPlacements. The index must not be used afterwards.
+     */
+    public void dispose() {
+        for (JobPlacement jobPlacement : jobPlacements) {
+            jobPlacement.removePropertyChangeListener("status", statusListener);
+        }
+        for (Part part : parts) {
+            part.removePropertyChangeListener("height", heightListener);
+        }
+    }
+
+    private BitSet toNozzleTipIds(Iterable<NozzleTip> compatibleNozzleTips) {
+        BitSet bits = new BitSet(nozzleTips.length);
+        for (NozzleTip nozzleTip : compatibleNozzleTips) {
+            Integer id = nozzleTipIds.get(nozzleTip);
+            if (id != null) {
+                bits.set(id);
+            }
+        }
+        return bits;
+    }
+
+    private int getOrCreatePackageId(JobPlacement jobPlacement) {
+        Part part = jobPlacement.getPlacement().getPart();
+        if (part == null || part.getPackage() == null) {
+            return -1;
+        }
+        org.openpnp.model.Package pkg = part.getPackage();
+        Integer id = packageIds.get(pkg);
+        if (id == null) {
+            id = packageCompatibility.size();
+            packageIds.put(pkg, id);
+            packageCompatibility.add(toNozzleTipIds(pkg.getCompatibleNozzleTips()));
+        }
+        return id;
+    }
+
+    private void setPending(int rank, boolean isPending) {
+        int packageId = packageIdsByRank[rank];
+        BitSet compatible = (packageId < 0) ? new BitSet() : packageCompatibility.get(packageId);
+        pending.set(rank, isPending);
+        if (isPending) {
+            pendingCursor = Math.min(pendingCursor, rank);
+        }
+        for (int id = compatible.nextSetBit(0); id >= 0; id = compatible.nextSetBit(id + 1)) {
+            buckets[id].set(rank, isPending);
+            if (isPending) {
+                bucketCursors[id] = Math.min(bucketCursors[id], rank);
+            }
+        }
+    }
+
+    /**
+     * @return The nozzle tip that the planners should consider loaded on the nozzle. This is the
+     *         one loaded on the machine, unless set by setLoadedNozzleTip().
+     */
+    public NozzleTip getLoadedNozzleTip(Nozzle nozzle) {
+        if (loadedNozzleTips.containsKey(nozzle)) {
+            return loadedNozzleTips.get(nozzle);
+        }
+        return nozzle.getNozzleTip();
+    }
+
+    /**
+     * Plan as if the nozzle tip was loaded on the nozzle, without changing the machine, e.g. to
+     * simulate a job.
+     */
+    public void setLoadedNozzleTip(Nozzle nozzle, NozzleTip nozzleTip) {
+        loadedNozzleTips.put(nozzle, nozzleTip);
+    }
+
+    /**
+     * @return The id of the nozzle, or -1 if it is not indexed.
+     */
+    public int getNozzleId(Nozzle nozzle) {
+        Integer id = nozzleIds.get(nozzle);
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * @return The id of the nozzle tip, or -1 if it is not indexed.
+     */
+    public int getNozzleTipId(NozzleTip nozzleTip) {
+        Integer id = nozzleTipIds.get(nozzleTip);
+        return id == null ? -1 : id;
+    }
+
+    public NozzleTip getNozzleTip(int nozzleTipId) {
+        return nozzleTips[nozzleTipId];
+    }
+
+    public int getNozzleTipCount() {
+        return nozzleTips.length;
+    }
+
+    /**
+     * @return The rank of the JobPlacement in job order, or -1 if it is not indexed.
+     */
+    public int getRank(JobPlacement jobPlacement) {
+        Integer rank = ranks.get(jobPlacement);
+        return rank == null ? -1 : rank;
+    }
+
+    public JobPlacement getJobPlacement(int rank) {
+        return jobPlacements[rank];
+    }
+
+    public boolean isCompatible(Nozzle nozzle, NozzleTip nozzleTip) {
+        int nozzleId = getNozzleId(nozzle);
+        int nozzleTipId = getNozzleTipId(nozzleTip);
+        return nozzleId >= 0 && nozzleTipId >= 0 && nozzleCompatibility[nozzleId].get(nozzleTipId);
+    }
+
+    public boolean isCompatible(int rank, int nozzleTipId) {
+        int packageId = packageIdsByRank[rank];
+        return packageId >= 0 && packageCompatibility.get(packageId).get(nozzleTipId);
+    }
+
+    /**
+     * @return The rank of the first pending JobPlacement at or after fromRank, or -1 if none.
+     */
+    public int nextPending(int fromRank) {
+        int rank = pending.nextSetBit(Math.max(fromRank, pendingCursor));
+        if (fromRank <= pendingCursor) {
+            pendingCursor = (rank < 0) ? jobPlacements.length : rank;
+        }
+        return rank;
+    }
+
+    /**
+     * @return The rank of the first pending JobPlacement at or after fromRank that can be handled
+     *         by the given nozzle tip, or -1 if none.
+     */
+    public int nextPending(int nozzleTipId, int fromRank) {
+        int cursor = bucketCursors[nozzleTipId];
+        int rank = buckets[nozzleTipId].nextSetBit(Math.max(fromRank, cursor));
+        if (fromRank <= cursor) {
+            bucketCursors[nozzleTipId] = (rank < 0) ? jobPlacements.length : rank;
+        }
+        return rank;
+    }
+
+    public int getPendingCount() {
+        return pending.cardinality();
+    }
+
+    public boolean isEmpty() {
+        return nextPending(0) < 0;
+    }
+
+    /**
+     * @return All the pending JobPlacements, in job order.
+     */
+    public List<JobPlacement> getPendingJobPlacements() {
+        return getPendingJobPlacements(Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return The first maxCount pending JobPlacements, in job order.
+     */
+    public List<JobPlacement> getPendingJobPlacements(int maxCount) {
+        List<JobPlacement> list = new ArrayList<>();
+        for (int rank = nextPending(0); rank >= 0 && list.size() < maxCount;
+                rank = nextPending(rank + 1)) {
+            list.add(jobPlacements[rank]);
+        }
+        return list;
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.openpnp.model.Part;
+import org.openpnp.spi.Feeder;
+import org.openpnp.spi.Nozzle;
+import org.openpnp.util.LatencyHistogram;
+
+/**
+ * Timing instrumentation of a job. Durations are recorded into LatencyHistograms by operation,
+ * e.g. "Pick" or "Pick.Feed", and additionally by operation and nozzle, feeder and part, e.g.
+ * "Pick.Feed[feeder=F1]".
+ *
+ * Typical use:
+ *
+ * <pre>
+ * long t = timings.start();
+ * feeder.feed(nozzle);
+ * timings.record("Pick.Feed", t, nozzle, feeder, part);
+ * </pre>
+ */
+public class PnpJobTimings {
+    private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Operation> operations = new ConcurrentHashMap<>();
+    private final Map<Class<?>, Operation> stepOperations = new ConcurrentHashMap<>();
+
+    /**
+     * The histograms of an operation. The keys of the histograms by nozzle, feeder and part are
+     * only built the first time, so recording does not allocate.
+     */
+    private class Operation {
+        private final String name;
+        private final LatencyHistogram histogram;
+        private final Map<Nozzle, LatencyHistogram> byNozzle = new ConcurrentHashMap<>();
+        private final Map<Feeder, LatencyHistogram> byFeeder = new ConcurrentHashMap<>();
+        private final Map<Part, LatencyHistogram> byPart = new ConcurrentHashMap<>();
+
+        Operation(String name) {
+            this.name = name;
+            this.histogram = getHistogram(name);
+        }
+
+        void record(long nanos, Nozzle nozzle, Feeder feeder, Part part) {
+            histogram.record(nanos);
+            if (nozzle != null) {
+                LatencyHistogram h = byNozzle.get(nozzle);
+                if (h == null) {
+                    h = getHistogram(name + "[nozzle=" + nozzle.getName() + "]");
+                    byNozzle.put(nozzle, h);
+                }
+                h.record(nanos);
+            }
+            if (feeder != null) {
+                LatencyHistogram h = byFeeder.get(feeder);
+                if (h == null) {
+                    h = getHistogram(name + "[feeder=" + feeder.getName() + "]");
+                    byFeeder.put(feeder, h);
+                }
+                h.record(nanos);
+            }
+            if (part != null) {
+                LatencyHistogram h = byPart.get(part);
+                if (h == null) {
+                    h = getHistogram(name + "[part=" + part.getId() + "]");
+                    byPart.put(part, h);
+                }
+                h.record(nanos);
+            }
+        }
+    }
+
+    public long start() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Record the time since t0 for the operation.
+     *
+     * @param operation
+     * @param t0 The start time as obtained by start().
+     */
+    public void record(String operation, long t0) {
+        record(operation, t0, null, null, null);
+    }
+
+    /**
+     * Record the time since t0 for the operation, and by the given nozzle, feeder and part, those
+     * that are not null.
+     *
+     * @param operation
+     * @param t0 The start time as obtained by start().
+     * @param nozzle
+     * @param feeder
+     * @param part
+     */
+    public void record(String operation, long t0, Nozzle nozzle, Feeder feeder, Part part) {
+        long nanos = System.nanoTime() - t0;
+        getOperation(operation).record(nanos, nozzle, feeder, part);
+    }
+
+    /**
+     * Record the time since t0 for the step, with the simple name of its class as the operation.
+     *
+     * @param step
+     * @param t0 The start time as obtained by start().
+     */
+    public void record(Class<?> step, long t0) {
+        record(step, t0, null, null, null);
+    }
+
+    /**
+     * Record the time since t0 for the step, with the simple name of its class as the operation,
+     * and by the given nozzle, feeder and part, those that are not null.
+     *
+     * @param step
+     * @param t0 The start time as obtained by start().
+     * @param nozzle
+     * @param feeder
+     * @param part
+     */
+    public void record(Class<?> step, long t0, Nozzle nozzle, Feeder feeder, Part part) {
+        long nanos = System.nanoTime() - t0;
+        Operation operation = stepOperations.get(step);
+        if (operation == null) {
+            operation = getOperation(step.getSimpleName());
+            stepOperations.put(step, operation);
+        }
+        operation.record(nanos, nozzle, feeder, part);
+    }
+
+    private Operation getOperation(String name) {
+        Operation operation = operations.get(name);
+        if (operation == null) {
+            operation = operations.computeIfAbsent(name, Operation::new);
+        }
+        return operation;
+    }
+
+    protected LatencyHistogram getHistogram(String key) {
+        return histograms.computeIfAbsent(key, k -> new LatencyHistogram());
+    }
+
+    /**
+     * @return The histograms by key, sorted.
+     */
+    public Map<String, LatencyHistogram> getHistograms() {
+        return new TreeMap<>(histograms);
+    }
+
+    public void reset() {
+        stepOperations.clear();
+        operations.clear();
+        histograms.clear();
+    }
+
+    /**
+     * Write the aggregates as CSV, times in milliseconds.
+     *
+     * @param writer
+     */
+    public void writeCsv(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("Key,Count,Total,Mean,Min,P50,P90,P99,Max");
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            out.println(String.format(Locale.US, "\"%s\",%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f",
+                    entry.getKey().replace("\"", "\"\""),
+                    h.getCount(),
+                    toMilliseconds(h.getSum()),
+                    h.getMean() / 1e6,
+                    toMilliseconds(h.getMin()),
+                    toMilliseconds(h.getPercentile(50)),
+                    toMilliseconds(h.getPercentile(90)),
+                    toMilliseconds(h.getPercentile(99)),
+                    toMilliseconds(h.getMax())));
+        }
+        out.flush();
+    }
+
+    /**
+     * Write the aggregates as JSON, an object with one member per key, times in milliseconds.
+     *
+     * @param writer
+     */
+    public void writeJson(Writer writer) {
+        PrintWriter out = new PrintWriter(writer);
+        out.println("{");
+        String separator = "";
+        for (Map.Entry<String, LatencyHistogram> entry : getHistograms().entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            out.print(separator);
+            out.print(String.format(Locale.US,
+                    "  \"%s\": {\"count\": %d, \"total\": %.3f, \"mean\": %.3f, \"min\": %.3f, "
+                            + "\"p50\": %.3f, \"p90\": %.3f, \"p99\": %.3f, \"max\": %.3f}",
+                    entry.getKey().replace("\\", "\\\\").replace("\"", "\\\""),
+                    h.getCount(),
+                    toMilliseconds(h.getSum()),
+                    h.getMean() / 1e6,
+                    toMilliseconds(h.getMin()),
+                    toMilliseconds(h.getPercentile(50)),
+                    toMilliseconds(h.getPercentile(90)),
+                    toMilliseconds(h.getPercentile(99)),
+                    toMilliseconds(h.getMax())));
+            separator = ",\n";
+        }
+        out.println();
+        out.println("}");
+        out.flush();
+    }
+
+    private static double toMilliseconds(long nanos) {
+        return nanos / 1e6;
+    }
+}
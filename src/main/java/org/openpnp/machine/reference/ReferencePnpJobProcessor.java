@@ -19,21 +19,35 @@
 
 package org.openpnp.machine.reference;
 
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
 import java.text.DecimalFormat;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Comparator;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 
 import org.openpnp.gui.support.Wizard;
+import org.openpnp.machine.reference.PnpJobPlanningIndex.IndexedPnpJobPlanner;
+import org.openpnp.machine.reference.vision.ReferenceBottomVision;
 import org.openpnp.machine.reference.wizards.ReferencePnpJobProcessorConfigurationWizard;
 import org.openpnp.model.BoardLocation;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Job;
+import org.openpnp.model.JobProgressJournal;
 import org.openpnp.model.Length;
 import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
@@ -47,6 +61,7 @@ import org.openpnp.spi.Machine;
 import org.openpnp.spi.Nozzle;
 import org.openpnp.spi.NozzleTip;
 import org.openpnp.spi.PartAlignment;
+import org.openpnp.spi.PartAlignment.PartAlignmentOffset;
 import org.openpnp.spi.PnpJobPlanner;
 import org.openpnp.spi.PnpJobPlanner.PlannedPlacement;
 import org.openpnp.spi.PnpJobProcessor.JobPlacement.Status;
@@ -66,21 +81,51 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     interface Step {
         public Step step() throws JobProcessorException;
     }
-    
+
     public enum JobOrderHint {
         PartHeight,
         Part
     }
 
+    public enum AlignMode {
+        /**
+         * Align the parts one after the other, each waiting for its vision result.
+         */
+        Sequential,
+        /**
+         * Capture the parts on all the nozzles in one trip over the bottom camera and analyze the
+         * images in the background.
+         */
+        SinglePass
+    }
+
     @Attribute(required = false)
     protected JobOrderHint jobOrder = JobOrderHint.PartHeight;
 
     @Attribute(required = false)
     protected int maxVisionRetries = 3;
 
+    @Attribute(required = false)
+    protected boolean feedAhead = false;
+
+    @Attribute(required = false)
+    protected AlignMode alignMode = AlignMode.Sequential;
+
+    @Attribute(required = false)
+    protected boolean batchFiducialCheck = false;
+
+    @Attribute(required = false)
+    protected boolean exportTimings = false;
+
+    @Attribute(required = false)
+    protected boolean journalProgress = true;
+
     @Element(required = false)
     public PnpJobPlanner planner = new SimplePnpJobPlanner();
 
+    @Element(required = false)
+    protected JobCycleTimeSimulator simulator = new JobCycleTimeSimulator();
+
     protected Job job;
 
     protected Machine machine;
@@ -89,6 +134,31 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
 
     protected List<JobPlacement> jobPlacements = new ArrayList<>();
 
+    protected PnpJobPlanningIndex planningIndex;
+
+    /**
+     * The next cycle, planned ahead while the current cycle is aligning and placing, so its
+     * feeders can feed ahead.
+     */
+    protected List<PlannedPlacement> nextPlannedPlacements;
+
+    /**
+     * The feed ahead completion handles, by Feeder.
+     */
+    protected Map<Feeder, Future<?>> feedAheads = new HashMap<>();
+
+    /**
+     * The timings of the current or last job.
+     */
+    protected PnpJobTimings timings = new PnpJobTimings();
+
+    /**
+     * The progress journal of the current job, or null if not journaled.
+     */
+    protected JobProgressJournal journal;
+
+    private static ExecutorService alignmentExecutor;
+
     private Step currentStep = null;
     
     long startTime;
@@ -110,7 +180,13 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     public synchronized boolean next() throws JobProcessorException {
         this.fireJobState(Configuration.get().getMachine().getSignalers(), AbstractJobProcessor.State.RUNNING);
         try {
-            currentStep = currentStep.step();
+            Step step = currentStep;
+            long t = timings.start();
+            currentStep = step.step();
+            if (!(step instanceof PlannedPlacementStep)) {
+                // Planned placement steps record their own, by placement.
+                timings.record(step.getClass(), t);
+            }
         }
         catch (Exception e) {
             this.fireJobState(Configuration.get().getMachine().getSignalers(), AbstractJobProcessor.State.ERROR);
@@ -150,11 +226,29 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
      * @throws Exception
      */
     protected class PreFlight implements Step {
+        /**
+         * The enabled feeders, by part id.
+         */
+        private Map<String, List<Feeder>> feedersByPartId;
+
+        /**
+         * The number of pending placements, by part id.
+         */
+        private Map<String, Integer> pendingCountByPartId;
+
         public Step step() throws JobProcessorException {
             startTime = System.currentTimeMillis();
             totalPartsPlaced = 0;
             
             jobPlacements.clear();
+            nextPlannedPlacements = null;
+            timings.reset();
+            feedAheads.clear();
+            journal = (journalProgress && job.getFile() != null) ? new JobProgressJournal(job) : null;
+            if (planningIndex != null) {
+                planningIndex.dispose();
+                planningIndex = null;
+            }
 
             // Create some shortcuts for things that won't change during the run
             machine = Configuration.get().getMachine();
@@ -167,6 +261,8 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             
             checkSetupErrors();
             
+            buildPlanningIndex();
+            
             prepMachine();
             
             prepFeeders();
@@ -179,42 +275,57 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         private void checkSetupErrors() throws JobProcessorException {
             fireTextStatus("Checking job for setup errors.");
 
-            for (BoardLocation boardLocation : job.getBoardLocations()) {
-                // Only check enabled boards
-                if (!boardLocation.isEnabled()) {
-                    continue;
-                }
-                
+            List<BoardLocation> boardLocations = job.getBoardLocations().stream()
+                    // Only check enabled boards
+                    .filter(boardLocation -> boardLocation.isEnabled())
+                    .collect(Collectors.toList());
+
+            for (BoardLocation boardLocation : boardLocations) {
                 checkDuplicateRefs(boardLocation);
-                
-                for (Placement placement : boardLocation.getBoard().getPlacements()) {
-                    // Ignore placements that aren't placements
-                    if (placement.getType() != Placement.Type.Placement) {
-                        continue;
-                    }
-                    
-                    if (!placement.isEnabled()) {
-                        continue;
-                    }
-                    
-                    // Ignore placements that are placed already
-                    if (boardLocation.getPlaced(placement.getId())) {
-                        continue;
-                    }
+            }
 
-                    // Ignore placements that aren't on the side of the board we're processing.
-                    if (placement.getSide() != boardLocation.getSide()) {
-                        continue;
-                    }
+            jobPlacements.addAll(createJobPlacements(job));
 
-                    JobPlacement jobPlacement = new JobPlacement(boardLocation, placement);
+            buildPartIndex();
 
-                    checkJobPlacement(jobPlacement);
+            // Check each placement for its part, but each distinct part only once. The checks run
+            // serially, as they lazily initialize the model, e.g. Package.getCompatibleNozzleTips().
+            Set<Part> parts = new LinkedHashSet<>();
+            for (JobPlacement jobPlacement : jobPlacements) {
+                checkJobPlacement(jobPlacement);
+                parts.add(jobPlacement.getPlacement().getPart());
+            }
+            for (Part part : parts) {
+                checkPart(part);
+            }
+        }
 
-                    jobPlacements.add(jobPlacement);
+        /**
+         * Index the enabled feeders and the pending placements by part id, so the setup checks 
+         * and the feeder preparation don't have to match every feeder against every placement.
+         */
+        private void buildPartIndex() {
+            feedersByPartId = new LinkedHashMap<>();
+            for (Feeder feeder : machine.getFeeders()) {
+                if (feeder.isEnabled() && feeder.getPart() != null) {
+                    feedersByPartId.computeIfAbsent(feeder.getPart().getId(), 
+                            partId -> new ArrayList<>()).add(feeder);
+                }
+            }
+            pendingCountByPartId = new HashMap<>();
+            for (JobPlacement jobPlacement : jobPlacements) {
+                if (jobPlacement.getStatus() == Status.Pending 
+                        && jobPlacement.getPlacement().getPart() != null) {
+                    pendingCountByPartId.merge(jobPlacement.getPartId(), 1, Integer::sum);
                 }
             }
         }
+
+        private void buildPlanningIndex() {
+            // The index keeps the placements in job order, and sorts them again if part heights
+            // change during the job.
+            planningIndex = new PnpJobPlanningIndex(head, jobPlacements, getJobOrderComparator());
+        }
         
         private void checkJobPlacement(JobPlacement jobPlacement) throws JobProcessorException {
             BoardLocation boardLocation = jobPlacement.getBoardLocation();
@@ -225,9 +336,9 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                 throw new JobProcessorException(placement, String.format("Part not found for board %s, placement %s.",
                         boardLocation.getBoard().getName(), placement.getId()));
             }
-            
-            Part part = placement.getPart();
-            
+        }
+
+        private void checkPart(Part part) throws JobProcessorException {
             // Make sure the part has a package assigned
             if (part.getPackage() == null) {
                 throw new JobProcessorException(part, String.format("No package set for part %s.",
@@ -235,12 +346,17 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             }
 
             // Make sure there is at least one compatible nozzle tip available
-            validatePartNozzleTip(head, placement.getPart());
+            validatePartNozzleTip(head, part);
 
             // Make sure there is at least one compatible and enabled feeder available
-            findFeeder(machine, placement.getPart());
+            boolean hasFeeder = feedersByPartId.getOrDefault(part.getId(), new ArrayList<>())
+                    .stream()
+                    .anyMatch(feeder -> feeder.getPart() == part);
+            if (!hasFeeder) {
+                throw new JobProcessorException(part, "No compatible, enabled feeder found for part " + part.getId());
+            }
         }
-        
+
         private void validatePartNozzleTip(Head head, Part part) throws JobProcessorException {
             /**
              * 1. Make a list of NozzleTips that can be loaded into at least one Nozzle.
@@ -300,22 +416,20 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         private void prepFeeders() throws JobProcessorException {
             // Everything still looks good, so prepare the feeders.
             fireTextStatus("Preparing feeders.");
-            Machine machine = Configuration.get().getMachine();
             List<Feeder> feederVisitList = new ArrayList<>();
             List<Feeder> feederNoVisitList = new ArrayList<>();
             // Get all the feeders that are used in the pending placements.
-            for (Feeder feeder : machine.getFeeders()) {
-                if (feeder.isEnabled() && feeder.getPart() != null) {
-                    for (JobPlacement placement : getPendingJobPlacements()) {
-                        if (placement.getPartId().equals(feeder.getPart().getId())) {
-                            if (feeder.getJobPreparationLocation() != null) {
-                                // only feeders with location added to the visit list
-                                feederVisitList.add(feeder);
-                            }
-                            // always also add them to the general (second pass) prep list
-                            feederNoVisitList.add(feeder);
-                        }
+            for (Map.Entry<String, List<Feeder>> entry : feedersByPartId.entrySet()) {
+                if (pendingCountByPartId.getOrDefault(entry.getKey(), 0) == 0) {
+                    continue;
+                }
+                for (Feeder feeder : entry.getValue()) {
+                    if (feeder.getJobPreparationLocation() != null) {
+                        // only feeders with location added to the visit list
+                        feederVisitList.add(feeder);
                     }
+                    // always also add them to the general (second pass) prep list
+                    feederNoVisitList.add(feeder);
                 }
             }
             
@@ -384,6 +498,10 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         public Step step() throws JobProcessorException {
             FiducialLocator locator = Configuration.get().getMachine().getFiducialLocator();
             
+            if (batchFiducialCheck) {
+                return batchFiducialCheck(locator);
+            }
+
             if (job.isUsingPanel() && job.getPanels().get(0).isCheckFiducials()){
                 Panel p = job.getPanels().get(0);
                 
@@ -400,6 +518,34 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             
             return new BoardLocationFiducialCheck();
         }
+
+        /**
+         * Check the panel and all the boards in one pass, so the fiducials are visited in one
+         * tour instead of one tour per board.
+         */
+        private Step batchFiducialCheck(FiducialLocator locator) throws JobProcessorException {
+            BoardLocation panelBoardLocation = null;
+            if (job.isUsingPanel() && job.getPanels().get(0).isCheckFiducials()) {
+                panelBoardLocation = job.getBoardLocations().get(0);
+            }
+            List<BoardLocation> boardLocations = job.getBoardLocations().stream()
+                    .filter(boardLocation -> boardLocation.isEnabled() && boardLocation.isCheckFiducials())
+                    .collect(Collectors.toList());
+            if (panelBoardLocation != null || !boardLocations.isEmpty()) {
+                fireTextStatus("Fiducial check for %d boards.", boardLocations.size());
+                try {
+                    locator.locateBoards(panelBoardLocation, boardLocations);
+                }
+                catch (JobProcessorException e) {
+                    // Reported against the board that failed.
+                    throw e;
+                }
+                catch (Exception e) {
+                    throw new JobProcessorException(job, e);
+                }
+            }
+            return new Plan();
+        }
     }
     
     protected class BoardLocationFiducialCheck implements Step {
@@ -439,29 +585,22 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         public Step step() throws JobProcessorException {
             fireTextStatus("Planning placements.");
 
-            List<JobPlacement> jobPlacements;
-
-            if (jobOrder.equals(JobOrderHint.Part)) {
-                // Get the list of unfinished placements and sort them by part.
-                    jobPlacements = getPendingJobPlacements().stream()
-                            .sorted(Comparator.comparing(JobPlacement::getPartId))
-                            .collect(Collectors.toList());
-            } 
-            else {
-                // Get the list of unfinished placements and sort them by part height.
-                    jobPlacements = getPendingJobPlacements().stream()
-                            .sorted(Comparator
-                                .comparing(JobPlacement::getPartHeight)
-                                .thenComparing(JobPlacement::getPartId))
-                            .collect(Collectors.toList());
-            }
-
-            if (jobPlacements.isEmpty()) {
+            // The planning index holds the unfinished placements in job order.
+            if (planningIndex.isEmpty()) {
                 return new Finish();
             }
 
             long t = System.currentTimeMillis();
-            List<PlannedPlacement> plannedPlacements = planner.plan(head, jobPlacements);
+            List<PlannedPlacement> plannedPlacements;
+            if (nextPlannedPlacements != null && nextPlannedPlacements.stream()
+                    .allMatch(p -> p.jobPlacement.getStatus() == Status.Pending)) {
+                // Planned ahead for feed ahead, and still valid.
+                plannedPlacements = nextPlannedPlacements;
+            }
+            else {
+                plannedPlacements = planningIndex.plan(planner, head);
+            }
+            nextPlannedPlacements = null;
             Logger.debug("Planner complete in {}ms: {}", (System.currentTimeMillis() - t), plannedPlacements);
 
             if (plannedPlacements.isEmpty()) {
@@ -556,9 +695,14 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         @Override
         public Step stepImpl(PlannedPlacement plannedPlacement) throws JobProcessorException {
             if (plannedPlacement == null) {
+                feedAheadNextCycle();
                 return new Align(plannedPlacements);
             }
             
+            long t = timings.start();
+            awaitFeedAheads();
+            timings.record("Pick.FeedAheadWait", t);
+            
             final Nozzle nozzle = plannedPlacement.nozzle;
             final JobPlacement jobPlacement = plannedPlacement.jobPlacement;
             final Placement placement = jobPlacement.getPlacement();
@@ -604,7 +748,16 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                  * Exception so that we can continue the loop.
                  */
                 try {
-                    feed(feeder, nozzle);
+                    // If the feeder successfully fed ahead, the part is already there.
+                    if (feedAheads.remove(feeder) == null) {
+                        t = timings.start();
+                        try {
+                            feed(feeder, nozzle);
+                        }
+                        finally {
+                            timings.record("Pick.Feed", t, nozzle, feeder, part);
+                        }
+                    }
                 }
                 catch (JobProcessorException jpe) {
                     lastException = jpe;
@@ -618,7 +771,9 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                  * and should maybe be done at the end of the cycle, rather than here. Maybe it just
                  * gets removed completely.
                  */
+                t = timings.start();
                 checkPartOff(nozzle, part);
+                timings.record("Pick.PartOffCheck", t, nozzle, null, null);
 
                 try {
                     feederPickRetry(nozzle, feeder, placement, part);
@@ -642,6 +797,37 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             throw lastException;
         }
         
+        /**
+         * All the parts of this cycle are picked, so plan the next cycle now and ask its feeders
+         * to feed ahead, while this cycle is aligning and placing. Feeders that cannot feed ahead
+         * will be fed as usual when picking.
+         */
+        private void feedAheadNextCycle() {
+            if (!feedAhead) {
+                return;
+            }
+            nextPlannedPlacements = planningIndex.plan(planner, head);
+            for (PlannedPlacement plannedPlacement : nextPlannedPlacements) {
+                Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+                try {
+                    Feeder feeder = findFeeder(machine, part);
+                    if (feedAheads.containsKey(feeder)) {
+                        // Only the first pick from a feeder can be fed ahead.
+                        continue;
+                    }
+                    Future<?> future = feeder.feedAhead(plannedPlacement.nozzle);
+                    if (future != null) {
+                        Logger.debug("Feed ahead {} on {}.", feeder.getName(), part.getId());
+                        feedAheads.put(feeder, future);
+                    }
+                }
+                catch (Exception e) {
+                    // Not fatal, the regular feed will handle it.
+                    Logger.warn(e);
+                }
+            }
+        }
+        
         private void feed(Feeder feeder, Nozzle nozzle) throws JobProcessorException {
             Exception lastException = null;
             for (int i = 0; i < 1 + feeder.getFeedRetryCount(); i++) {
@@ -685,7 +871,9 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                 try {
                     pick(nozzle, feeder, placement, part);
                     postPick(feeder, nozzle);
+                    long t = timings.start();
                     checkPartOn(nozzle);
+                    timings.record("Pick.PartOnCheck", t, nozzle, null, null);
                     return;
                 }
                 catch (Exception e) {
@@ -701,10 +889,14 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                         placement.getId());
                 
                 // Move to pick location.
+                long t = timings.start();
                 nozzle.moveToPickLocation(feeder);
+                timings.record("Pick.Move", t, nozzle, feeder, null);
 
                 // Pick
+                t = timings.start();
                 nozzle.pick(part);
+                timings.record("Pick.Vacuum", t, nozzle, null, part);
 
                 // Retract
                 nozzle.moveToSafeZ();
@@ -742,6 +934,12 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
     }
 
     protected class Align extends PlannedPlacementStep {
+        /**
+         * The background analysis of the single pass captures, by PlannedPlacement. Placements
+         * that are not in here are aligned sequentially.
+         */
+        private Map<PlannedPlacement, Future<PartAlignmentOffset>> pendingAlignments;
+
         public Align(List<PlannedPlacement> plannedPlacements) {
             super(plannedPlacements);
         }
@@ -765,12 +963,151 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                 return this;
             }
 
-            align(plannedPlacement, partAlignment);
+            if (pendingAlignments == null) {
+                pendingAlignments = new HashMap<>();
+                if (alignMode == AlignMode.SinglePass) {
+                    long t = timings.start();
+                    captureAll();
+                    timings.record("Align.CaptureAll", t);
+                }
+            }
+
+            long t = timings.start();
+            Future<PartAlignmentOffset> pendingAlignment = pendingAlignments.remove(plannedPlacement);
+            if (pendingAlignment == null || !completeAlignment(plannedPlacement, pendingAlignment)) {
+                align(plannedPlacement, partAlignment);
+            }
+            timings.record("Align.Vision", t, nozzle, null, part);
             
+            t = timings.start();
             checkPartOn(nozzle);
+            timings.record("Align.PartOnCheck", t, nozzle, null, null);
 
             return this;
         }
+
+        /**
+         * Move the parts on all the nozzles over the bottom camera in one trip and capture them,
+         * leaving the analysis to the background. The nozzles are visited in nearest neighbor order
+         * of the head positions over the camera. Parts that cannot be captured this way are left 
+         * to the sequential alignment.
+         * 
+         * The Vision.PartAlignment.Before script runs for each capture and the matching 
+         * Vision.PartAlignment.After runs when the analysis is complete or, with null offsets, 
+         * when the capture fails.
+         */
+        private void captureAll() throws JobProcessorException {
+            List<PlannedPlacement> route = new ArrayList<>();
+            Map<PlannedPlacement, Location> headLocations = new HashMap<>();
+            for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                if (plannedPlacement.jobPlacement.getStatus() != Status.Processing) {
+                    continue;
+                }
+                Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+                if (!(findPartAligner(machine, part) instanceof ReferenceBottomVision)) {
+                    continue;
+                }
+                try {
+                    Location location = VisionUtils.getBottomVisionCamera().getLocation();
+                    if (plannedPlacement.nozzle instanceof ReferenceHeadMountable) {
+                        location = location.subtract(
+                                ((ReferenceHeadMountable) plannedPlacement.nozzle).getHeadOffsets());
+                    }
+                    headLocations.put(plannedPlacement, location);
+                    route.add(plannedPlacement);
+                }
+                catch (Exception e) {
+                    // No bottom camera, leave it to the sequential alignment to report.
+                    return;
+                }
+            }
+            if (route.size() < 2) {
+                return;
+            }
+            for (int i = 1; i < route.size(); i++) {
+                Location previous = headLocations.get(route.get(i - 1));
+                int nearest = i;
+                for (int j = i + 1; j < route.size(); j++) {
+                    if (previous.getLinearDistanceTo(headLocations.get(route.get(j))) 
+                            < previous.getLinearDistanceTo(headLocations.get(route.get(nearest)))) {
+                        nearest = j;
+                    }
+                }
+                route.add(i, route.remove(nearest));
+            }
+
+            for (PlannedPlacement plannedPlacement : route) {
+                final Nozzle nozzle = plannedPlacement.nozzle;
+                final JobPlacement jobPlacement = plannedPlacement.jobPlacement;
+                final Placement placement = jobPlacement.getPlacement();
+                final Part part = placement.getPart();
+                final ReferenceBottomVision bottomVision = 
+                        (ReferenceBottomVision) findPartAligner(machine, part);
+                fireTextStatus("Capturing %s for %s.", part.getId(), placement.getId());
+                boolean scriptedBefore = false;
+                boolean submitted = false;
+                try {
+                    Map<String, Object> globals = new HashMap<>();
+                    globals.put("part", part);
+                    globals.put("nozzle", nozzle);
+                    Configuration.get().getScripting().on("Vision.PartAlignment.Before", globals);
+                    scriptedBefore = true;
+                    ReferenceBottomVision.Capture capture = bottomVision.captureForOffsets(part,
+                            jobPlacement.getBoardLocation(), placement.getLocation(), nozzle);
+                    if (capture != null) {
+                        pendingAlignments.put(plannedPlacement, getAlignmentExecutor()
+                                .submit(() -> bottomVision.analyzeCapture(capture)));
+                        submitted = true;
+                    }
+                }
+                catch (Exception e) {
+                    Logger.warn("Capturing {} failed, aligning sequentially: {}", part.getId(), 
+                            e.getMessage());
+                }
+                if (scriptedBefore && !submitted) {
+                    scriptAlignmentAfter(plannedPlacement, null);
+                }
+            }
+        }
+
+        /**
+         * Take the result of the background analysis.
+         * 
+         * @return true if the alignment completed, false if it must be retried sequentially.
+         */
+        private boolean completeAlignment(PlannedPlacement plannedPlacement, 
+                Future<PartAlignmentOffset> pendingAlignment) throws JobProcessorException {
+            final Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+            PartAlignmentOffset offsets = null;
+            boolean completed = false;
+            try {
+                offsets = pendingAlignment.get();
+                plannedPlacement.alignmentOffsets = offsets;
+                Logger.debug("Align {} with {}, offsets {}", part, plannedPlacement.nozzle, offsets);
+                completed = true;
+            }
+            catch (Exception e) {
+                Logger.warn("Aligning {} from capture failed, aligning sequentially: {}", 
+                        part.getId(), e.getMessage());
+            }
+            scriptAlignmentAfter(plannedPlacement, offsets);
+            return completed;
+        }
+
+        private void scriptAlignmentAfter(PlannedPlacement plannedPlacement, 
+                PartAlignmentOffset offsets) throws JobProcessorException {
+            final Part part = plannedPlacement.jobPlacement.getPlacement().getPart();
+            try {
+                Map<String, Object> globals = new HashMap<>();
+                globals.put("part", part);
+                globals.put("nozzle", plannedPlacement.nozzle);
+                globals.put("offsets", offsets);
+                Configuration.get().getScripting().on("Vision.PartAlignment.After", globals);
+            }
+            catch (Exception e) {
+                throw new JobProcessorException(part, e);
+            }
+        }
         
         private void align(PlannedPlacement plannedPlacement, PartAlignment partAlignment) throws JobProcessorException {
             final Nozzle nozzle = plannedPlacement.nozzle;
@@ -837,17 +1174,24 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             
             scriptBeforeAssembly(plannedPlacement, placementLocation);
 
+            long t = timings.start();
             checkPartOn(nozzle);
+            timings.record("Place.PartOnCheck", t, nozzle, null, null);
             
             place(nozzle, part, placement, placementLocation);
             
+            t = timings.start();
             checkPartOff(nozzle, part);
+            timings.record("Place.PartOffCheck", t, nozzle, null, null);
             
             // Mark the placement as finished
             jobPlacement.setStatus(Status.Complete);
             
             // Mark the placement as "placed"
             boardLocation.setPlaced(jobPlacement.getPlacement().getId(), true);
+            if (journal != null) {
+                journal.placed(boardLocation, jobPlacement.getPlacement());
+            }
             
             totalPartsPlaced++;
             
@@ -861,10 +1205,14 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             
             try {
                 // Move to the placement location
-               nozzle.moveToPlacementLocation(placementLocation, part);
+                long t = timings.start();
+                nozzle.moveToPlacementLocation(placementLocation, part);
+                timings.record("Place.Move", t, nozzle, null, part);
 
                 // Place the part
+                t = timings.start();
                 nozzle.place();
+                timings.record("Place.Vacuum", t, nozzle, null, null);
 
                 // Retract
                 nozzle.moveToSafeZ();
@@ -1023,10 +1371,37 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         }
     }
 
+    /**
+     * Write the job timings as CSV and JSON into the jobtimings folder of the configuration 
+     * directory. Failure to do so is logged but does not fail the job.
+     */
+    protected void exportTimings() {
+        try {
+            File directory = new File(Configuration.get().getConfigurationDirectory(), "jobtimings");
+            directory.mkdirs();
+            String name = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+            try (Writer writer = new FileWriter(new File(directory, name + ".csv"))) {
+                timings.writeCsv(writer);
+            }
+            try (Writer writer = new FileWriter(new File(directory, name + ".json"))) {
+                timings.writeJson(writer);
+            }
+            Logger.info("Job timings exported to {}", new File(directory, name + ".csv/.json"));
+        }
+        catch (Exception e) {
+            Logger.warn("Exporting job timings failed: {}", e.getMessage());
+        }
+    }
+
     protected class Cleanup implements Step {
         public Step step() throws JobProcessorException {
             fireTextStatus("Cleaning up.");
             
+            // Don't leave any feed ahead running, but the fed parts are lost.
+            awaitFeedAheads();
+            feedAheads.clear();
+            nextPlannedPlacements = null;
+            
             try {
                 // Safe Z the machine
                 head.moveToSafeZ();
@@ -1071,6 +1446,10 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             Logger.info("Job finished {} parts in {} sec. This is {} CPH", totalPartsPlaced,
                     df.format(dtSec), df.format(totalPartsPlaced / (dtSec / 3600.0)));
 
+            if (exportTimings) {
+                exportTimings();
+            }
+
             try {
                 HashMap<String, Object> params = new HashMap<>();
                 params.put("job", job);
@@ -1122,10 +1501,79 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         }).collect(Collectors.toList());
     }
 
+    /**
+     * Wait for all the outstanding feed aheads to complete. Failed ones are removed, so the
+     * regular feed will be used instead. This must be done before any other feeder is used.
+     */
+    protected void awaitFeedAheads() {
+        for (Iterator<Map.Entry<Feeder, Future<?>>> iterator = feedAheads.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Feeder, Future<?>> entry = iterator.next();
+            try {
+                entry.getValue().get();
+            }
+            catch (Exception e) {
+                Logger.warn("Feed ahead failed on {}, falling back to regular feed: {}", 
+                        entry.getKey().getName(), e.getMessage());
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Create the JobPlacements for the placements of the job that still need to be placed, i.e.
+     * the enabled, unplaced placements of the enabled boards, on the side being processed.
+     * 
+     * @param job
+     * @return The JobPlacements in board order.
+     */
+    protected List<JobPlacement> createJobPlacements(Job job) {
+        List<JobPlacement> jobPlacements = new ArrayList<>();
+        for (BoardLocation boardLocation : job.getBoardLocations()) {
+            // Only process enabled boards
+            if (!boardLocation.isEnabled()) {
+                continue;
+            }
+            for (Placement placement : boardLocation.getBoard().getPlacements()) {
+                // Ignore placements that aren't placements
+                if (placement.getType() != Placement.Type.Placement) {
+                    continue;
+                }
+                
+                if (!placement.isEnabled()) {
+                    continue;
+                }
+                
+                // Ignore placements that are placed already
+                if (boardLocation.getPlaced(placement.getId())) {
+                    continue;
+                }
+
+                // Ignore placements that aren't on the side of the board we're processing.
+                if (placement.getSide() != boardLocation.getSide()) {
+                    continue;
+                }
+
+                jobPlacements.add(new JobPlacement(boardLocation, placement));
+            }
+        }
+        return jobPlacements;
+    }
+
     protected boolean isJobComplete() {
         return getPendingJobPlacements().isEmpty();
     }
     
+    protected Comparator<JobPlacement> getJobOrderComparator() {
+        if (jobOrder.equals(JobOrderHint.Part)) {
+            // Sort by part.
+            return Comparator.comparing(JobPlacement::getPartId);
+        }
+        // Sort by part height.
+        return Comparator
+                .comparing(JobPlacement::getPartHeight)
+                .thenComparing(JobPlacement::getPartId);
+    }
+    
     @Override
     public Wizard getConfigurationWizard() {
         return new ReferencePnpJobProcessorConfigurationWizard(this);
@@ -1147,6 +1595,84 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
         this.maxVisionRetries = maxVisionRetries;
     }
 
+    public boolean isFeedAhead() {
+        return feedAhead;
+    }
+
+    public void setFeedAhead(boolean feedAhead) {
+        this.feedAhead = feedAhead;
+    }
+
+    public AlignMode getAlignMode() {
+        return alignMode;
+    }
+
+    public void setAlignMode(AlignMode alignMode) {
+        this.alignMode = alignMode;
+    }
+
+    protected static synchronized ExecutorService getAlignmentExecutor() {
+        if (alignmentExecutor == null) {
+            alignmentExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "Alignment");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return alignmentExecutor;
+    }
+
+    public PnpJobPlanner getPlanner() {
+        return planner;
+    }
+
+    public void setPlanner(PnpJobPlanner planner) {
+        this.planner = planner;
+    }
+
+    public boolean isBatchFiducialCheck() {
+        return batchFiducialCheck;
+    }
+
+    public void setBatchFiducialCheck(boolean batchFiducialCheck) {
+        this.batchFiducialCheck = batchFiducialCheck;
+    }
+
+    /**
+     * @return The timings of the current or last job.
+     */
+    public PnpJobTimings getTimings() {
+        return timings;
+    }
+
+    public boolean isExportTimings() {
+        return exportTimings;
+    }
+
+    public void setExportTimings(boolean exportTimings) {
+        this.exportTimings = exportTimings;
+    }
+
+    public boolean isJournalProgress() {
+        return journalProgress;
+    }
+
+    public void setJournalProgress(boolean journalProgress) {
+        this.journalProgress = journalProgress;
+    }
+
+    public JobCycleTimeSimulator getSimulator() {
+        return simulator;
+    }
+
+    public List<Class<? extends PnpJobPlanner>> getCompatiblePlannerClasses() {
+        List<Class<? extends PnpJobPlanner>> l = new ArrayList<>();
+        l.add(SimplePnpJobPlanner.class);
+        l.add(TrivialPnpJobPlanner.class);
+        l.add(OptimizingPnpJobPlanner.class);
+        return l;
+    }
+
     protected abstract class PlannedPlacementStep implements Step {
         protected final List<PlannedPlacement> plannedPlacements;
         private Set<PlannedPlacement> completed = new HashSet<>();
@@ -1189,12 +1715,17 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                     })
                     .findFirst()
                     .orElse(null);
+            long t = timings.start();
             try {
                 Step result = stepImpl(plannedPlacement);
                 completed.add(plannedPlacement);
                 return result;
             }
             catch (JobProcessorException e) {
+                if (journal != null) {
+                    journal.errored(plannedPlacement.jobPlacement.getBoardLocation(),
+                            plannedPlacement.jobPlacement.getPlacement(), e);
+                }
                 switch (plannedPlacement.jobPlacement.getPlacement().getErrorHandling()) {
                     case Alert:
                         throw e;
@@ -1205,6 +1736,12 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
                         throw new Error("Unhandled Error Handling case " + plannedPlacement.jobPlacement.getPlacement().getErrorHandling());
                 }
             }
+            finally {
+                if (plannedPlacement != null) {
+                    timings.record(getClass(), t, plannedPlacement.nozzle, null, 
+                            plannedPlacement.jobPlacement.getPlacement().getPart());
+                }
+            }
         }
     }
     
@@ -1313,7 +1850,7 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
      * tips for the cycle.
      */
     @Root
-    public static class SimplePnpJobPlanner implements PnpJobPlanner {
+    public static class SimplePnpJobPlanner implements IndexedPnpJobPlanner {
         @Override
         public List<PlannedPlacement> plan(Head head, List<JobPlacement> jobPlacements) {
             /**
@@ -1376,6 +1913,106 @@ public class ReferencePnpJobProcessor extends AbstractPnpJobProcessor {
             return plannedPlacements;
         }
         
+        /**
+         * Same as plan(Head, List) but looks the placements up in the planning index buckets
+         * instead of scanning the list, so the cost per cycle does not depend on the job size.
+         * The results are identical.
+         */
+        @Override
+        public List<PlannedPlacement> plan(Head head, PnpJobPlanningIndex index) {
+            List<PlannedPlacement> plannedPlacements = new ArrayList<>();
+            List<Nozzle> nozzles = new ArrayList<>(head.getNozzles());
+            List<NozzleTip> nozzleTips = new ArrayList<>(head.getMachine().getNozzleTips());
+            
+            /**
+             * The index only learns about planned placements once the Plan step sets their
+             * status, so we keep track of the ones planned in this cycle ourselves.
+             */
+            Set<JobPlacement> plannedJobPlacements = new HashSet<>();
+
+            for (Nozzle nozzle : new ArrayList<>(nozzles)) {
+                PlannedPlacement plannedPlacement = planWithoutNozzleTipChange(nozzle, index, plannedJobPlacements);
+                if (plannedPlacement != null) {
+                    plannedPlacements.add(plannedPlacement);
+                    plannedJobPlacements.add(plannedPlacement.jobPlacement);
+                    nozzles.remove(plannedPlacement.nozzle);
+                    nozzleTips.remove(plannedPlacement.nozzleTip);
+                }
+            }
+            
+            for (Nozzle nozzle : new ArrayList<>(nozzles)) {
+                PlannedPlacement plannedPlacement = planWithNozzleTipChange(nozzle, index, plannedJobPlacements, nozzleTips);
+                if (plannedPlacement != null) {
+                    plannedPlacements.add(plannedPlacement);
+                    plannedJobPlacements.add(plannedPlacement.jobPlacement);
+                    nozzles.remove(plannedPlacement.nozzle);
+                    nozzleTips.remove(plannedPlacement.nozzleTip);
+                }
+            }
+
+            plannedPlacements.sort(Comparator.comparing(plannedPlacement -> {
+                return plannedPlacement.nozzle.getName();
+            }));
+
+            return plannedPlacements;
+        }
+        
+        /**
+         * Find the first pending job placement in the bucket of the given nozzle tip that is not
+         * already planned in this cycle.
+         * @return The rank of the job placement or -1 if there is none.
+         */
+        protected int firstUnplanned(PnpJobPlanningIndex index, int nozzleTipId, 
+                Set<JobPlacement> plannedJobPlacements) {
+            for (int rank = index.nextPending(nozzleTipId, 0); rank >= 0; 
+                    rank = index.nextPending(nozzleTipId, rank + 1)) {
+                if (!plannedJobPlacements.contains(index.getJobPlacement(rank))) {
+                    return rank;
+                }
+            }
+            return -1;
+        }
+        
+        protected PlannedPlacement planWithoutNozzleTipChange(Nozzle nozzle, 
+                PnpJobPlanningIndex index, Set<JobPlacement> plannedJobPlacements) {
+            NozzleTip nozzleTip = index.getLoadedNozzleTip(nozzle);
+            if (nozzleTip == null) {
+                return null;
+            }
+            int nozzleTipId = index.getNozzleTipId(nozzleTip);
+            if (nozzleTipId < 0) {
+                return null;
+            }
+            int rank = firstUnplanned(index, nozzleTipId, plannedJobPlacements);
+            if (rank < 0) {
+                return null;
+            }
+            return new PlannedPlacement(nozzle, nozzleTip, index.getJobPlacement(rank));
+        }
+        
+        protected PlannedPlacement planWithNozzleTipChange(Nozzle nozzle, 
+                PnpJobPlanningIndex index, Set<JobPlacement> plannedJobPlacements, 
+                List<NozzleTip> nozzleTips) {
+            // The earliest job placement over all the usable nozzle tips wins, with ties going
+            // to the first nozzle tip in the list, just like the list based planning above.
+            int bestRank = -1;
+            NozzleTip bestNozzleTip = null;
+            for (NozzleTip nozzleTip : nozzleTips) {
+                if (!index.isCompatible(nozzle, nozzleTip)) {
+                    continue;
+                }
+                int rank = firstUnplanned(index, index.getNozzleTipId(nozzleTip), plannedJobPlacements);
+                if (rank >= 0 && (bestRank < 0 || rank < bestRank)) {
+                    bestRank = rank;
+                    bestNozzleTip = nozzleTip;
+                }
+            }
+            if (bestRank < 0) {
+                return null;
+            }
+            return new PlannedPlacement(nozzle, bestNozzleTip, index.getJobPlacement(bestRank));
+        }
+        
         /**
          * Try to find a planning solution for the given nozzle that does not require
          * a nozzle tip change. This essentially just checks if there are any job placements
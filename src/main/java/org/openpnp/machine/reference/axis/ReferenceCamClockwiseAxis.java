@@ -59,7 +59,7 @@ public class ReferenceCamClockwiseAxis extends AbstractSingleTransformedAxis {
         double transformedCoordinate = location.getCoordinate(this);
         double rawCoordinate = getCounterClockwiseAxis().toRawCoordinate(transformedCoordinate, true);
         // store the transformed input axis (we're skipping the counter-clock axis)
-        location = location.put(new AxesLocation(getCounterClockwiseAxis().getInputAxis(), rawCoordinate));
+        location = location.put(getCounterClockwiseAxis().getInputAxis(), rawCoordinate);
         // recurse
         return getCounterClockwiseAxis().getInputAxis().toRaw(location, options);
     }
@@ -74,6 +74,6 @@ public class ReferenceCamClockwiseAxis extends AbstractSingleTransformedAxis {
         // get the input of the input (we're skipping the counter-clock axis)
         double rawCoordinate = location.getCoordinate(getCounterClockwiseAxis().getInputAxis());
         double transformedCoordinate  = getCounterClockwiseAxis().toTransformedCoordinate(rawCoordinate, true);
-        return location.put(new AxesLocation(this, transformedCoordinate));
+        return location.put(this, transformedCoordinate);
     }
 }
@@ -76,6 +76,12 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
     @Element(required = false)
     private Length camWheelGap = new Length(0, LengthUnit.Millimeters);
 
+    /**
+     * The cam radius and the combined wheel radius and gap in AxesLocation units, null if invalidated 
+     * by a settings change.
+     */
+    private volatile double [] compiledCam;
+
     public ReferenceCamCounterClockwiseAxis() {
         super();
     }
@@ -93,16 +99,34 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
         double transformedCoordinate = location.getCoordinate(this);
         double rawCoordinate = toRawCoordinate(transformedCoordinate, false);
         // store the new coordinate
-        location = location.put(new AxesLocation(inputAxis, rawCoordinate));
+        location = location.put(inputAxis, rawCoordinate);
         // recurse
         return inputAxis.toRaw(location, options);
     }
 
+    /**
+     * @return The cam radius, wheel radius and wheel gap in AxesLocation units, compiled once per settings change.
+     */
+    protected double [] getCompiledCam() {
+        double [] cam = compiledCam;
+        if (cam == null) {
+            cam = new double [] {
+                    camRadius.convertToUnits(AxesLocation.getUnits()).getValue(),
+                    camWheelRadius.convertToUnits(AxesLocation.getUnits()).getValue(),
+                    camWheelGap.convertToUnits(AxesLocation.getUnits()).getValue()
+            };
+            compiledCam = cam;
+        }
+        return cam;
+    }
+
+    protected void invalidateKinematics() {
+        compiledCam = null;
+    }
+
     protected double toRawCoordinate(double transformedCoordinate, boolean clockwise) throws Exception {
-        double rawCoordinate = (transformedCoordinate 
-                - camWheelRadius.convertToUnits(AxesLocation.getUnits()).getValue() 
-                - camWheelGap.convertToUnits(AxesLocation.getUnits()).getValue()) 
-                / camRadius.convertToUnits(AxesLocation.getUnits()).getValue();
+        double [] cam = getCompiledCam();
+        double rawCoordinate = (transformedCoordinate - cam[1] - cam[2]) / cam[0];
         if (rawCoordinate <= -SINUS_CUTOFF) {
             rawCoordinate = (rawCoordinate + SINUS_CUTOFF)/EXTENSION_SLOPE - ANGLE_CUTOFF;  
         }
@@ -133,7 +157,7 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
         location = inputAxis.toTransformed(location, options);
         double rawCoordinate = location.getCoordinate(inputAxis);
         double transformedCoordinate  = toTransformedCoordinate(rawCoordinate, false);
-        return location.put(new AxesLocation(this, transformedCoordinate));
+        return location.put(this, transformedCoordinate);
     }
 
     protected double toTransformedCoordinate(double rawCoordinate, boolean clockwise) {
@@ -153,10 +177,9 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
         else {
             transformedCoordinate = Math.sin(Math.toRadians(transformedCoordinate));
         }
-        transformedCoordinate *= camRadius.convertToUnits(AxesLocation.getUnits()).getValue();
-        transformedCoordinate += 
-                camWheelRadius.convertToUnits(AxesLocation.getUnits()).getValue() 
-                + camWheelGap.convertToUnits(AxesLocation.getUnits()).getValue();
+        double [] cam = getCompiledCam();
+        transformedCoordinate *= cam[0];
+        transformedCoordinate += cam[1] + cam[2];
         return transformedCoordinate;
     }
 
@@ -166,6 +189,7 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
 
     public void setCamRadius(Length camRadius) {
         this.camRadius = camRadius;
+        invalidateKinematics();
     }
 
     public double getCamArmsAngle() {
@@ -182,6 +206,7 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
 
     public void setCamWheelRadius(Length camWheelRadius) {
         this.camWheelRadius = camWheelRadius;
+        invalidateKinematics();
     }
 
     public Length getCamWheelGap() {
@@ -190,6 +215,7 @@ public class ReferenceCamCounterClockwiseAxis extends AbstractSingleTransformedA
 
     public void setCamWheelGap(Length camWheelGap) {
         this.camWheelGap = camWheelGap;
+        invalidateKinematics();
     }
     
 }
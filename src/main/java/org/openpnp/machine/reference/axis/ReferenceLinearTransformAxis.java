@@ -21,7 +21,7 @@
 
 package org.openpnp.machine.reference.axis;
 
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openpnp.ConfigurationListener;
 import org.openpnp.gui.support.Wizard;
@@ -76,6 +76,25 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
     @Attribute(required = false)
     private boolean compensation = false;
 
+    /**
+     * Bumped whenever the settings of this axis change. The inverse transform of a group depends on 
+     * the settings of all the axes in the group, so it is validated against the versions of all of them.
+     * A change to any other axis leaves the compiled kinematics valid.
+     */
+    private final AtomicInteger settingsVersion = new AtomicInteger();
+
+    /**
+     * The offset in AxesLocation units, compiled for the settingsVersion.
+     */
+    private double compiledOffset;
+    private volatile int compiledOffsetVersion = -1;
+
+    /**
+     * The inverted Affine Transforms of the last group this axis solved in toRaw(), without 
+     * and with static compensation suppressed. 
+     */
+    private final CompiledInverse [] compiledInverses = new CompiledInverse[2];
+
     public ReferenceLinearTransformAxis() {
         Configuration.get().addListener(new ConfigurationListener.Adapter() {
 
@@ -85,10 +104,18 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
                 inputAxisY = (AbstractAxis) configuration.getMachine().getAxis(inputAxisYId);
                 inputAxisZ = (AbstractAxis) configuration.getMachine().getAxis(inputAxisZId);
                 inputAxisRotation = (AbstractAxis) configuration.getMachine().getAxis(inputAxisRotationId);
+                invalidateKinematics();
             }
         });
     }
 
+    /**
+     * Invalidate the compiled kinematics of this axis and of the groups it is part of, after settings changed.
+     */
+    protected void invalidateKinematics() {
+        settingsVersion.incrementAndGet();
+    }
+
     public AbstractAxis getPrimaryInputAxis() {
         switch (type) {
             case X:
@@ -121,6 +148,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
         Object oldValue = this.inputAxisX;
         this.inputAxisX = inputAxisX;
         this.inputAxisXId = (inputAxisX == null) ? null : inputAxisX.getId();
+        invalidateKinematics();
         firePropertyChange("inputAxisX", oldValue, inputAxisX);
     }
     public AbstractAxis getInputAxisY() {
@@ -130,6 +158,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
         Object oldValue = this.inputAxisY;
         this.inputAxisY = inputAxisY;
         this.inputAxisYId = (inputAxisY == null) ? null : inputAxisY.getId();
+        invalidateKinematics();
         firePropertyChange("inputAxisY", oldValue, inputAxisY);
     }
     public AbstractAxis getInputAxisZ() {
@@ -139,6 +168,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
         Object oldValue = this.inputAxisZ;
         this.inputAxisZ = inputAxisZ;
         this.inputAxisZId = (inputAxisZ == null) ? null : inputAxisZ.getId();
+        invalidateKinematics();
         firePropertyChange("inputAxisZ", oldValue, inputAxisZ);
     }
     public AbstractAxis getInputAxisRotation() {
@@ -148,6 +178,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
         Object oldValue = this.inputAxisRotation;
         this.inputAxisRotation = inputAxisRotation;
         this.inputAxisRotationId = (inputAxisRotation == null) ? null : inputAxisRotation.getId();
+        invalidateKinematics();
         firePropertyChange("inputAxisRotation", oldValue, inputAxisRotation);
     }
 
@@ -157,6 +188,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setFactorX(double factorX) {
         this.factorX = factorX;
+        invalidateKinematics();
     }
 
     public double getFactorY() {
@@ -165,6 +197,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setFactorY(double factorY) {
         this.factorY = factorY;
+        invalidateKinematics();
     }
 
     public double getFactorZ() {
@@ -173,6 +206,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setFactorZ(double factorZ) {
         this.factorZ = factorZ;
+        invalidateKinematics();
     }
 
     public double getFactorRotation() {
@@ -181,6 +215,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setFactorRotation(double factorRotation) {
         this.factorRotation = factorRotation;
+        invalidateKinematics();
     }
 
     public Length getOffset() {
@@ -189,6 +224,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setOffset(Length offset) {
         this.offset = offset;
+        invalidateKinematics();
     }
 
     public boolean isCompensation() {
@@ -197,6 +233,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
 
     public void setCompensation(boolean compensation) {
         this.compensation = compensation;
+        invalidateKinematics();
     }
 
     public double[] getLinearTransform() throws Exception {
@@ -217,14 +254,31 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
                         inputAxisY != null ? factorY : 0.0,
                                 inputAxisZ != null ? factorZ : 0.0,
                                         inputAxisRotation != null ? factorRotation : 0.0,
-                                                offset.convertToUnits(AxesLocation.getUnits()).getValue(),
+                                                getCompiledOffset(),
         };
     }
 
+    protected double getCompiledOffset() {
+        int version = settingsVersion.get();
+        if (compiledOffsetVersion != version) {
+            compiledOffset = offset.convertToUnits(AxesLocation.getUnits()).getValue();
+            compiledOffsetVersion = version;
+        }
+        return compiledOffset;
+    }
+
+    private static boolean isCompensationSuppressed(LocationOption... options) {
+        for (LocationOption option : options) {
+            if (option == LocationOption.SuppressStaticCompensation) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-    private static double [] getLinearTransform(ReferenceLinearTransformAxis axis, double [] unit, LocationOption... options) throws Exception {
+    private static double [] getLinearTransform(ReferenceLinearTransformAxis axis, double [] unit, boolean suppressCompensation) throws Exception {
         if (axis != null) { 
-            if (axis.compensation == false || !Arrays.asList(options).contains(LocationOption.SuppressStaticCompensation)) {
+            if (axis.compensation == false || !suppressCompensation) {
                 return axis.getLinearTransform();
             }
             else {
@@ -255,14 +309,13 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
         double y = location.getCoordinate(inputAxisY);
         double z = location.getCoordinate(inputAxisZ);
         double rotation = location.getCoordinate(inputAxisRotation);
-        if (compensation == false || !Arrays.asList(options).contains(LocationOption.SuppressStaticCompensation)) {
-            double offset = this.offset.convertToUnits(AxesLocation.getUnits()).getValue();
-            return location.put(new AxesLocation(this, 
+        if (compensation == false || !isCompensationSuppressed(options)) {
+            return location.put(this, 
                     x * factorX
                     + y * factorY
                     + z * factorZ
                     + rotation * factorRotation
-                    + offset));
+                    + getCompiledOffset());
         }
         else {
             // Compensation suppressed, just return the typed axis (unit transform).
@@ -284,7 +337,7 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
                     coordinate = 0.0;
                     break;
             }
-            return location.put(new AxesLocation(this, coordinate));
+            return location.put(this, coordinate);
         }
     }
 
@@ -315,32 +368,32 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
                 consolidateInputAxes(axis, linearAxes[i].inputAxisRotation, Axis.Type.Rotation, inputAxes);
             }
         }
-        // Query each axis for its Affine Transform vector.
-        double  [][] affineTransform = new double [][] {
-            ReferenceLinearTransformAxis.getLinearTransform(linearAxes[0], new double [] { 1, 0, 0, 0, 0}, options),
-            ReferenceLinearTransformAxis.getLinearTransform(linearAxes[1], new double [] { 0, 1, 0, 0, 0}, options),
-            ReferenceLinearTransformAxis.getLinearTransform(linearAxes[2], new double [] { 0, 0, 1, 0, 0}, options),
-            ReferenceLinearTransformAxis.getLinearTransform(linearAxes[3], new double [] { 0, 0, 0, 1, 0}, options),
-            { 0, 0, 0, 0, 1 }
-        };
-
-        // Compute the inverse.
-        double [][] invertedAffineTransform = Matrix.inverse(affineTransform);
+        // Get the inverted Affine Transform, compiled for the group. 
+        boolean suppressCompensation = isCompensationSuppressed(options);
+        CompiledInverse compiled = compiledInverses[suppressCompensation ? 1 : 0];
+        if (compiled == null || !compiled.isValid(linearAxes)) {
+            compiled = new CompiledInverse(linearAxes, suppressCompensation);
+            compiledInverses[suppressCompensation ? 1 : 0] = compiled;
+        }
+        double [][] invertedAffineTransform = compiled.invertedAffineTransform;
         // Get the transformed vector by querying the linear axes' coordinates.
-        double [][] transformedVector = new double [][] {
-            { ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[0], inputAxes[0]) },
-            { ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[1], inputAxes[1]) },
-            { ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[2], inputAxes[2]) },
-            { ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[3], inputAxes[3]) },
-            { 1 }
+        double [] transformedVector = new double [] {
+            ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[0], inputAxes[0]),
+            ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[1], inputAxes[1]),
+            ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[2], inputAxes[2]),
+            ReferenceLinearTransformAxis.getLinearCoordinate(location, linearAxes[3], inputAxes[3]),
+            1
         };
-        // Calculate the raw vector by applying the inverted Affine Transform.
-        double [][] rawVector = Matrix.multiply(invertedAffineTransform, transformedVector);
-        // Place the consolidated result in the location
-        location = location.put(new AxesLocation(inputAxes[0], rawVector[0][0]));
-        location = location.put(new AxesLocation(inputAxes[1], rawVector[1][0]));
-        location = location.put(new AxesLocation(inputAxes[2], rawVector[2][0]));
-        location = location.put(new AxesLocation(inputAxes[3], rawVector[3][0]));
+        // Calculate the raw vector by applying the inverted Affine Transform and place the 
+        // consolidated result in the location.
+        for (int i = 0; i < 4; i++) {
+            double [] row = invertedAffineTransform[i];
+            double sum = 0;
+            for (int k = 0; k < 5; k++) {
+                sum += row[k] * transformedVector[k];
+            }
+            location = location.put(inputAxes[i], sum);
+        }
         // Recurse input axes to raw.
         location = AbstractTransformedAxis.toRaw(inputAxes[0], location, options);
         location = AbstractTransformedAxis.toRaw(inputAxes[1], location, options);
@@ -364,4 +417,54 @@ public class ReferenceLinearTransformAxis extends AbstractTransformedAxis {
     public Wizard getConfigurationWizard() {
         return new ReferenceLinearTransformAxisConfigurationWizard((AbstractMachine)Configuration.get().getMachine(), this);
     }
+
+    /**
+     * The inverted Affine Transform of a group of ReferenceLinearTransformAxis, compiled for the settings 
+     * versions of the axes in the group.
+     */
+    private static class CompiledInverse {
+        final ReferenceLinearTransformAxis [] linearAxes;
+        final int [] versions;
+        final double [][] invertedAffineTransform;
+
+        CompiledInverse(ReferenceLinearTransformAxis [] linearAxes, boolean suppressCompensation) 
+                throws Exception {
+            this.linearAxes = linearAxes.clone();
+            // Take the versions before the settings, so a concurrent change invalidates the result.
+            this.versions = getVersions(linearAxes);
+            // Query each axis for its Affine Transform vector.
+            double  [][] affineTransform = new double [][] {
+                ReferenceLinearTransformAxis.getLinearTransform(linearAxes[0], new double [] { 1, 0, 0, 0, 0}, suppressCompensation),
+                ReferenceLinearTransformAxis.getLinearTransform(linearAxes[1], new double [] { 0, 1, 0, 0, 0}, suppressCompensation),
+                ReferenceLinearTransformAxis.getLinearTransform(linearAxes[2], new double [] { 0, 0, 1, 0, 0}, suppressCompensation),
+                ReferenceLinearTransformAxis.getLinearTransform(linearAxes[3], new double [] { 0, 0, 0, 1, 0}, suppressCompensation),
+                { 0, 0, 0, 0, 1 }
+            };
+            // Compute the inverse.
+            invertedAffineTransform = Matrix.inverse(affineTransform);
+        }
+
+        static int [] getVersions(ReferenceLinearTransformAxis [] linearAxes) {
+            int [] versions = new int [linearAxes.length];
+            for (int i = 0; i < linearAxes.length; i++) {
+                if (linearAxes[i] != null) {
+                    versions[i] = linearAxes[i].settingsVersion.get();
+                }
+            }
+            return versions;
+        }
+
+        boolean isValid(ReferenceLinearTransformAxis [] linearAxes) {
+            for (int i = 0; i < linearAxes.length; i++) {
+                if (this.linearAxes[i] != linearAxes[i]) {
+                    return false;
+                }
+                if (linearAxes[i] != null 
+                        && versions[i] != linearAxes[i].settingsVersion.get()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
 }
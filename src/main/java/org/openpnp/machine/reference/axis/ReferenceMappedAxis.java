@@ -52,6 +52,11 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
     @Element(required = false)
     private Length mapOutput1 = new Length(1.0, LengthUnit.Millimeters);
 
+    /**
+     * The mapping compiled into AxesLocation units, null if invalidated by a settings change.
+     */
+    private volatile double [] compiledMapping;
+
     @Override
     public Wizard getConfigurationWizard() {
         return new ReferenceMappedAxisConfigurationWizard((AbstractMachine)Configuration.get().getMachine(), this);
@@ -69,6 +74,27 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
         return dividend / divisor;
     }
 
+    /**
+     * @return The scale, input0 and output0 of the mapping in AxesLocation units, compiled once
+     * per settings change.
+     */
+    protected double [] getCompiledMapping() {
+        double [] mapping = compiledMapping;
+        if (mapping == null) {
+            mapping = new double [] {
+                    getScale(),
+                    mapInput0.convertToUnits(AxesLocation.getUnits()).getValue(),
+                    mapOutput0.convertToUnits(AxesLocation.getUnits()).getValue()
+            };
+            compiledMapping = mapping;
+        }
+        return mapping;
+    }
+
+    protected void invalidateKinematics() {
+        compiledMapping = null;
+    }
+
     @Override
     public AxesLocation toTransformed(AxesLocation location, LocationOption... options) {
         if (inputAxis == null) {
@@ -77,11 +103,11 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
         location = inputAxis.toTransformed(location, options);
         // To transformed, i.e. forward mapped transform:
         double coordinate = location.getCoordinate(inputAxis);
-        double scale = getScale();
-        coordinate = coordinate - mapInput0.convertToUnits(AxesLocation.getUnits()).getValue();
-        coordinate = coordinate * scale; 
-        coordinate = coordinate + mapOutput0.convertToUnits(AxesLocation.getUnits()).getValue(); 
-        return location.put(new AxesLocation(this, coordinate));
+        double [] mapping = getCompiledMapping();
+        coordinate = coordinate - mapping[1];
+        coordinate = coordinate * mapping[0]; 
+        coordinate = coordinate + mapping[2]; 
+        return location.put(this, coordinate);
     }
 
     @Override
@@ -93,12 +119,12 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
 
         // To raw, i.e. reversed mapped transform:
         double coordinate = location.getCoordinate(this);
-        double scale = getScale();
-        coordinate = coordinate - mapOutput0.convertToUnits(AxesLocation.getUnits()).getValue();
-        coordinate = coordinate / scale; 
-        coordinate = coordinate + mapInput0.convertToUnits(AxesLocation.getUnits()).getValue(); 
+        double [] mapping = getCompiledMapping();
+        coordinate = coordinate - mapping[2];
+        coordinate = coordinate / mapping[0]; 
+        coordinate = coordinate + mapping[1]; 
         //  store the new coordinate
-        location = location.put(new AxesLocation(inputAxis, coordinate));
+        location = location.put(inputAxis, coordinate);
         // recurse
         return inputAxis.toRaw(location, options);
     }
@@ -109,6 +135,7 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
 
     public void setMapInput0(Length mapInput0) {
         this.mapInput0 = mapInput0;
+        invalidateKinematics();
     }
 
     public Length getMapOutput0() {
@@ -117,6 +144,7 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
 
     public void setMapOutput0(Length mapOutput0) {
         this.mapOutput0 = mapOutput0;
+        invalidateKinematics();
     }
 
     public Length getMapInput1() {
@@ -125,6 +153,7 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
 
     public void setMapInput1(Length mapInput1) {
         this.mapInput1 = mapInput1;
+        invalidateKinematics();
     }
 
     public Length getMapOutput1() {
@@ -133,5 +162,6 @@ public class ReferenceMappedAxis extends AbstractSingleTransformedAxis {
 
     public void setMapOutput1(Length mapOutput1) {
         this.mapOutput1 = mapOutput1;
+        invalidateKinematics();
     }
 }
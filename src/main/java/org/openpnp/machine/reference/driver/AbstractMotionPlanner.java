@@ -22,10 +22,9 @@
 package org.openpnp.machine.reference.driver;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
-import java.util.TreeMap;
 
 import javax.swing.Action;
 import javax.swing.Icon;
@@ -40,11 +39,15 @@ import org.openpnp.machine.reference.axis.ReferenceVirtualAxis;
 import org.openpnp.model.AbstractModelObject;
 import org.openpnp.model.AxesLocation;
 import org.openpnp.model.Configuration;
+import org.openpnp.model.InterpolationStepCache;
 import org.openpnp.model.Length;
 import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Motion;
 import org.openpnp.model.Motion.MotionOption;
 import org.openpnp.model.Motion.MoveToCommand;
+import org.openpnp.model.MotionHistory;
+import org.openpnp.model.MotionProfileCache;
+import org.openpnp.model.MotionProfileSolverPool;
 import org.openpnp.spi.Actuator;
 import org.openpnp.spi.Axis;
 import org.openpnp.spi.Axis.Type;
@@ -59,6 +62,7 @@ import org.openpnp.util.NanosecondTime;
 import org.openpnp.util.Utils2D;
 import org.pmw.tinylog.Logger;
 import org.simpleframework.xml.Attribute;
+import org.simpleframework.xml.core.Commit;
 
 /**
  * The AbstractMotionPlanner does all the boring legwork for a typical MotionPlanner and provides the basis for 
@@ -80,14 +84,190 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
     @Attribute(required=false)
     private double maximumPlanHistory = 60; // s
 
+    @Attribute(required=false)
+    private int maximumPlanHistoryMotions = 10000;
+
+    @Attribute(required=false)
+    private boolean profileCacheEnabled = true;
+
+    @Attribute(required=false)
+    private int profileCacheSize = MotionProfileCache.defaultCapacity;
+
+    @Attribute(required=false)
+    private boolean interpolationCacheEnabled = true;
+
+    @Attribute(required=false)
+    private int interpolationCacheSize = InterpolationStepCache.defaultCapacity;
+
+    @Attribute(required=false)
+    private boolean parallelSolvingEnabled = false;
+
+    @Attribute(required=false)
+    private int parallelSolvingThreshold = MotionProfileSolverPool.defaultThreshold;
+
+    @Attribute(required=false)
+    private int parallelSolvingThreads = MotionProfileSolverPool.defaultThreads;
+
     private ReferenceMachine machine;
 
     protected LinkedList<Motion> motionCommands = new LinkedList<>();
-    protected TreeMap<Double, Motion> motionPlan = new TreeMap<Double, Motion>();
+    protected MotionHistory motionPlan = new MotionHistory(maximumPlanHistoryMotions, maximumPlanHistory);
 
     private AxesLocation lastDirectionalBacklashOffset = new AxesLocation();
     private List<Driver> lastPlannedDrivers = new ArrayList<Driver>(); 
 
+    @Commit
+    public void commit() {
+        motionPlan = new MotionHistory(maximumPlanHistoryMotions, maximumPlanHistory);
+        applyProfileCacheSettings();
+        applyInterpolationCacheSettings();
+        applyParallelSolvingSettings();
+    }
+
+    /**
+     * Apply the settings to the shared MotionProfileCache, which MotionProfile.solve() consults before
+     * solving a profile.
+     */
+    protected void applyProfileCacheSettings() {
+        MotionProfileCache cache = MotionProfileCache.getInstance();
+        cache.setCapacity(profileCacheSize);
+        cache.setEnabled(profileCacheEnabled);
+    }
+
+    public boolean isProfileCacheEnabled() {
+        return profileCacheEnabled;
+    }
+
+    /**
+     * Enable or disable the cache of solved motion profiles. Disable it to diagnose the solver, 
+     * i.e. to have every profile solved.
+     * 
+     * @param profileCacheEnabled
+     */
+    public void setProfileCacheEnabled(boolean profileCacheEnabled) {
+        Object oldValue = this.profileCacheEnabled;
+        this.profileCacheEnabled = profileCacheEnabled;
+        firePropertyChange("profileCacheEnabled", oldValue, profileCacheEnabled);
+        applyProfileCacheSettings();
+    }
+
+    public int getProfileCacheSize() {
+        return profileCacheSize;
+    }
+
+    public void setProfileCacheSize(int profileCacheSize) {
+        Object oldValue = this.profileCacheSize;
+        this.profileCacheSize = profileCacheSize;
+        firePropertyChange("profileCacheSize", oldValue, profileCacheSize);
+        applyProfileCacheSettings();
+    }
+
+    /**
+     * @return The MotionProfileCache with its hit and miss statistics.
+     */
+    public MotionProfileCache getProfileCache() {
+        return MotionProfileCache.getInstance();
+    }
+
+    /**
+     * Apply the settings to the shared InterpolationStepCache, which Motion.interpolatedMoveToCommandIterator() 
+     * consults before interpolating a move.
+     */
+    protected void applyInterpolationCacheSettings() {
+        InterpolationStepCache cache = InterpolationStepCache.getInstance();
+        cache.setCapacity(interpolationCacheSize);
+        cache.setEnabled(interpolationCacheEnabled);
+    }
+
+    public boolean isInterpolationCacheEnabled() {
+        return interpolationCacheEnabled;
+    }
+
+    /**
+     * Enable or disable the cache of interpolation step tables. Disable it to diagnose the interpolation, 
+     * i.e. to have every move interpolated.
+     * 
+     * @param interpolationCacheEnabled
+     */
+    public void setInterpolationCacheEnabled(boolean interpolationCacheEnabled) {
+        Object oldValue = this.interpolationCacheEnabled;
+        this.interpolationCacheEnabled = interpolationCacheEnabled;
+        firePropertyChange("interpolationCacheEnabled", oldValue, interpolationCacheEnabled);
+        applyInterpolationCacheSettings();
+    }
+
+    public int getInterpolationCacheSize() {
+        return interpolationCacheSize;
+    }
+
+    public void setInterpolationCacheSize(int interpolationCacheSize) {
+        Object oldValue = this.interpolationCacheSize;
+        this.interpolationCacheSize = interpolationCacheSize;
+        firePropertyChange("interpolationCacheSize", oldValue, interpolationCacheSize);
+        applyInterpolationCacheSettings();
+    }
+
+    /**
+     * @return The InterpolationStepCache with its hit and miss statistics.
+     */
+    public InterpolationStepCache getInterpolationCache() {
+        return InterpolationStepCache.getInstance();
+    }
+
+    /**
+     * Apply the settings to the shared MotionProfileSolverPool, which solves the independent axis profiles 
+     * of uncoordinated moves.
+     */
+    protected void applyParallelSolvingSettings() {
+        MotionProfileSolverPool pool = MotionProfileSolverPool.getInstance();
+        pool.setThreshold(parallelSolvingThreshold);
+        pool.setThreads(parallelSolvingThreads);
+        pool.setEnabled(parallelSolvingEnabled);
+    }
+
+    public boolean isParallelSolvingEnabled() {
+        return parallelSolvingEnabled;
+    }
+
+    /**
+     * Enable or disable solving the independent axis profiles of a move concurrently. Only pays off on 
+     * machines with many axes.
+     * 
+     * @param parallelSolvingEnabled
+     */
+    public void setParallelSolvingEnabled(boolean parallelSolvingEnabled) {
+        Object oldValue = this.parallelSolvingEnabled;
+        this.parallelSolvingEnabled = parallelSolvingEnabled;
+        firePropertyChange("parallelSolvingEnabled", oldValue, parallelSolvingEnabled);
+        applyParallelSolvingSettings();
+    }
+
+    public int getParallelSolvingThreshold() {
+        return parallelSolvingThreshold;
+    }
+
+    /**
+     * @param parallelSolvingThreshold The minimum number of axis profiles to solve concurrently. Below it, 
+     * the profiles are solved one after another. 
+     */
+    public void setParallelSolvingThreshold(int parallelSolvingThreshold) {
+        Object oldValue = this.parallelSolvingThreshold;
+        this.parallelSolvingThreshold = parallelSolvingThreshold;
+        firePropertyChange("parallelSolvingThreshold", oldValue, parallelSolvingThreshold);
+        applyParallelSolvingSettings();
+    }
+
+    public int getParallelSolvingThreads() {
+        return parallelSolvingThreads;
+    }
+
+    public void setParallelSolvingThreads(int parallelSolvingThreads) {
+        Object oldValue = this.parallelSolvingThreads;
+        this.parallelSolvingThreads = parallelSolvingThreads;
+        firePropertyChange("parallelSolvingThreads", oldValue, parallelSolvingThreads);
+        applyParallelSolvingSettings();
+    }
+
     @Override
     public synchronized void home() throws Exception {
         // Reset lastDirectionalBacklashOffset (we don't actually know it after homing, but it will be known after the first move).
@@ -310,12 +490,13 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
                     backlashCompensatedNewLocation,
                     optionFlags);
 
-            // Second move to the actual target at backlashCompensatedSpeed. 
+            // Second move to the actual target at backlashCompensatedSpeed. Marked as the approach, so a sub-class 
+            // can blend it.
             addMotion(hm, 
                     backlashCompensatedSpeed,
                     backlashCompensatedNewLocation, 
                     newLocation, 
-                    optionFlags);
+                    optionFlags | MotionOption.BacklashApproach.flag());
         }
         else {
             addMotion(hm, speed, 
@@ -356,15 +537,26 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
         // The motion commands are reset.
         motionCommands = new LinkedList<>();
 
+        executeMotionPlan(executionPlan, completionType);
+    }
+
+    /**
+     * Plan and then execute the given motion commands, which have been taken from the pending motion commands. 
+     * 
+     * @param executionPlan
+     * @param completionType
+     * @throws Exception
+     */
+    protected synchronized void executeMotionPlan(List<Motion> executionPlan, CompletionType completionType) throws Exception {
         // Apply any optimization to the execution plan. This is where advanced MotionPlanner sub-classes will shine.
         optimizeExecutionPlan(executionPlan, completionType);
 
         // Now execute the plan against the drivers.
         // We also record it into the real-time motionPlan to enable motion prediction and simulation. 
         double t = NanosecondTime.getRuntimeSeconds();
-        if (motionPlan.isEmpty() == false && motionPlan.lastKey() > t) {
+        if (motionPlan.isEmpty() == false && motionPlan.getLastTime() > t) {
             // Append to a plan that is still running. 
-            t = motionPlan.lastKey();
+            t = motionPlan.getLastTime();
         }
         ReferenceMachine machine = (ReferenceMachine) Configuration.get().getMachine();
         List<Head> movedHeads = new ArrayList<>();
@@ -373,7 +565,7 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
             if (!plannedMotion.hasOption(MotionOption.Stillstand)) {
                 // Put into timed plan.
                 double dt = plannedMotion.getTime();
-                // Note, all-virtual moves can have dt == 0.0, so we take a nano-second, to make sure a new Map entry is created 
+                // Note, all-virtual moves can have dt == 0.0, so we take a nano-second, to make sure a new entry is created 
                 // in the motionPlan.
                 t += Math.max(dt, 1e-9);  
                 plannedMotion.setPlannedTime1(t);
@@ -422,8 +614,11 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
         // Note, this loop will be empty if the motion is empty, i.e. if it only contains VirtualAxis movement.
         boolean firstDriver = true;
         for (Driver driver : motionSegment.getAxesDrivers(machine)) {
-            for (Motion.MoveToCommand moveToCommand : plannedMotion
-                    .interpolatedMoveToCommands(driver, isInterpolationRetiming())) {
+            // The commands are created one by one, as the driver takes them.
+            Iterator<Motion.MoveToCommand> moveToCommands = plannedMotion
+                    .interpolatedMoveToCommandIterator(driver, isInterpolationRetiming());
+            while (moveToCommands.hasNext()) {
+                Motion.MoveToCommand moveToCommand = moveToCommands.next();
                 driver.moveTo(hm, moveToCommand);
                 try {
                     recordDiagnostics(plannedMotion, moveToCommand, driver, firstAfterCoordination, firstDriver);
@@ -528,19 +723,18 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
 
     @Override
     public synchronized Motion getMomentaryMotion(double time) {
-        Map.Entry<Double, Motion> entry1 = motionPlan.higherEntry(time);
-        if (entry1 != null) {
+        Motion motion1 = motionPlan.getHigher(time);
+        if (motion1 != null) {
             // Return the motion.
-            Motion motion = entry1.getValue();
-            return motion;
+            return motion1;
         }
         else {
             // Plan empty or machine stopped before this time.  
-            entry1 = motionPlan.lastEntry();
+            motion1 = motionPlan.getLast();
             AxesLocation currentLocation; 
-            if (entry1 != null) {
+            if (motion1 != null) {
                 // Machine stopped before this time, take the last exit location.
-                currentLocation = entry1.getValue().getLocation1();
+                currentLocation = motion1.getLocation1();
             }
             else {
                 // Nothing in the plan (yet), just get the current axes location.
@@ -644,9 +838,7 @@ public abstract class AbstractMotionPlanner extends AbstractModelObject implemen
 
     @Override
     public synchronized void clearMotionPlanOlderThan(double time) {
-        while (motionPlan.isEmpty() == false && motionPlan.firstKey() < time) {
-            motionPlan.remove(motionPlan.firstKey());
-        }
+        motionPlan.clearOlderThan(time);
     }
 
     public boolean isInterpolationRetiming() {
@@ -28,7 +28,9 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -167,6 +169,10 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
         @ElementList(required = false, inline = true, entry = "text", data = true)
         public ArrayList<String> commands = new ArrayList<>();
 
+        private GcodeTemplate template;
+
+        private GcodeResponseMatcher responseMatcher;
+
         public Command(String headMountableId, CommandType type, String text) {
             this.headMountableId = headMountableId;
             this.type = type;
@@ -181,12 +187,40 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                 String[] commands = text.split("\n");
                 this.commands.addAll(Arrays.asList(commands));
             }
+            template = null;
+            responseMatcher = null;
         }
 
         public String getCommand() {
             return Joiner.on('\n').join(commands);
         }
 
+        /**
+         * @return The command compiled as a template. It is compiled on first use and again after the command
+         * has been set.
+         */
+        public GcodeTemplate getTemplate() {
+            GcodeTemplate template = this.template;
+            if (template == null) {
+                template = GcodeTemplate.compile(getCommand());
+                this.template = template;
+            }
+            return template;
+        }
+
+        /**
+         * @return The command compiled as a response regex. It is compiled on first use and again after the 
+         * command has been set.
+         */
+        public GcodeResponseMatcher getResponseMatcher() {
+            GcodeResponseMatcher responseMatcher = this.responseMatcher;
+            if (responseMatcher == null) {
+                responseMatcher = GcodeResponseMatcher.compile(getCommand());
+                this.responseMatcher = responseMatcher;
+            }
+            return responseMatcher;
+        }
+
         private Command() {
 
         }
@@ -313,6 +347,12 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
     protected LinkedBlockingQueue<Line> receivedConfirmationsQueue = new LinkedBlockingQueue<>();
 
     protected Line errorResponse;
+
+    /**
+     * The response matchers of the regexes passed to receiveResponses() etc., by regex. 
+     */
+    private final Map<String, GcodeResponseMatcher> responseMatchers = new ConcurrentHashMap<>();
+    private static final int maxResponseMatchers = 64;
     private boolean motionPending;
 
     private PrintWriter gcodeLogger;
@@ -428,13 +468,15 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
     public void home(Machine machine) throws Exception {
         // Home is sent with an infinite timeout since it's tough to tell how long it will
         // take.
-        String command = getCommand(null, CommandType.HOME_COMMAND);
-        // legacy head support
-        Head head = machine.getDefaultHead();
-        command = substituteVariable(command, "Id", head.getId()); 
-        command = substituteVariable(command, "Name", head.getName());
+        GcodeTemplate.Substitution command = getCommandSubstitution(null, CommandType.HOME_COMMAND);
         long timeout = -1;
-        sendGcode(command, timeout);
+        if (command != null) {
+            // legacy head support
+            Head head = machine.getDefaultHead();
+            command.set("Id", head.getId()); 
+            command.set("Name", head.getName());
+            sendGcode(command.toString(), timeout);
+        }
 
         // Check home complete response against user's regex
         String homeCompleteRegex = getCommand(null, CommandType.HOME_COMPLETE_REGEX);
@@ -474,17 +516,17 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
     public void setGlobalOffsets(Machine machine, AxesLocation axesLocation)
             throws Exception {
         // Compose the command
-        String command = getCommand(null, CommandType.SET_GLOBAL_OFFSETS_COMMAND);
+        GcodeTemplate.Substitution command = getCommandSubstitution(null, CommandType.SET_GLOBAL_OFFSETS_COMMAND);
         if (command != null) {
             // legacy head support
             Head head = machine.getDefaultHead();
-            command = substituteVariable(command, "Id", head.getId());
-            command = substituteVariable(command, "Name", head.getName());
+            command.set("Id", head.getId());
+            command.set("Name", head.getName());
             boolean isEmpty = true;
             for (String variable : getAxisVariables((ReferenceMachine) machine)) {
                 ControllerAxis axis = axesLocation.getAxisByVariable(this, variable);
                 if (axis != null) {
-                    if (hasVariable(command, variable)) {
+                    if (command.hasVariable(variable)) {
                         double coordinate;
                         if (axis.getType() == Type.Rotation) {
                             // Never convert rotation to driver units.
@@ -493,9 +535,8 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                         else {
                             coordinate = axesLocation.getCoordinate(axis, getUnits());
                         }
-                        command = substituteVariable(command, variable, coordinate);
-                        command = substituteVariable(command, variable+"L", 
-                                axis.getLetter());
+                        command.set(variable, coordinate);
+                        command.set(variable+"L", axis.getLetter());
                         // Store the new driver coordinate on the axis.
                         axis.setDriverCoordinate(coordinate);
                         isEmpty = false;
@@ -507,31 +548,29 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                     }
                 }
                 else {
-                    command = substituteVariable(command, variable, null);
-                    command = substituteVariable(command, variable+"L", null); 
+                    command.set(variable, null);
+                    command.set(variable+"L", null); 
                 }
             }
             if (!isEmpty) {
                 // If no axes are included, the G92 command must not be executed, because it would otherwise reset all
                 // axes to zero in some controllers! 
-                sendGcode(command, -1);
+                sendGcode(command.toString(), -1);
             }
         }
         else {
             // Try the legacy POST_VISION_HOME_COMMAND
-            String postVisionHomeCommand = getCommand(null, CommandType.POST_VISION_HOME_COMMAND);
+            GcodeTemplate.Substitution postVisionHomeCommand = getCommandSubstitution(null, CommandType.POST_VISION_HOME_COMMAND);
             ControllerAxis axisX = axesLocation.getAxisByVariable(this, "X");
             ControllerAxis axisY = axesLocation.getAxisByVariable(this, "Y");
             if (postVisionHomeCommand != null 
                     && axisX != null
                     && axisY != null) { 
                 // X, Y, are mapped to this driver, legacy support enabled
-                postVisionHomeCommand = substituteVariable(postVisionHomeCommand, "X", 
-                        axesLocation.getCoordinate(axisX, getUnits()));
-                postVisionHomeCommand = substituteVariable(postVisionHomeCommand, "Y", 
-                        axesLocation.getCoordinate(axisY, getUnits()));
+                postVisionHomeCommand.set("X", axesLocation.getCoordinate(axisX, getUnits()));
+                postVisionHomeCommand.set("Y", axesLocation.getCoordinate(axisY, getUnits()));
                 // Execute the command
-                sendGcode(postVisionHomeCommand, -1);
+                sendGcode(postVisionHomeCommand.toString(), -1);
                 // Store the new current coordinate on the axis.
                 axisX.setDriverCoordinate(axesLocation.getCoordinate(axisX, getUnits()));
                 axisY.setDriverCoordinate(axesLocation.getCoordinate(axisY, getUnits()));
@@ -617,6 +656,52 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
         return c.getCommand();
     }
 
+    public GcodeTemplate getCommandTemplate(HeadMountable hm, CommandType type) {
+        Command c = getCommand(hm, type, true);
+        if (c == null) {
+            return null;
+        }
+        return c.getTemplate();
+    }
+
+    public GcodeResponseMatcher getResponseMatcher(HeadMountable hm, CommandType type) {
+        Command c = getCommand(hm, type, true);
+        if (c == null) {
+            return null;
+        }
+        return c.getResponseMatcher();
+    }
+
+    /**
+     * @param regex
+     * @return The response matcher of the regex, compiled on first use.
+     */
+    protected GcodeResponseMatcher getResponseMatcher(String regex) {
+        GcodeResponseMatcher responseMatcher = responseMatchers.get(regex);
+        if (responseMatcher == null) {
+            if (responseMatchers.size() >= maxResponseMatchers) {
+                // Regexes typed in the console etc. must not accumulate.
+                responseMatchers.clear();
+            }
+            responseMatcher = GcodeResponseMatcher.compile(regex);
+            responseMatchers.put(regex, responseMatcher);
+        }
+        return responseMatcher;
+    }
+
+    /**
+     * @param hm
+     * @param type
+     * @return A new substitution of the command template, or null if the command is not set.
+     */
+    protected GcodeTemplate.Substitution getCommandSubstitution(HeadMountable hm, CommandType type) {
+        GcodeTemplate template = getCommandTemplate(hm, type);
+        if (template == null) {
+            return null;
+        }
+        return template.substitution();
+    }
+
     public void setCommand(HeadMountable hm, CommandType type, String text) {
         Command c = getCommand(hm, type, false);
         if (text == null || text.trim().length() == 0) {
@@ -651,8 +736,8 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
             movedAxesLocation.getLengthCoordinate(axis).convertToUnits(getUnits()).getValue() - axis.getDriverCoordinate()).third;
 
         // Start composing the command, will decide later, whether we actually send it.
-        String command = getCommand(hm, CommandType.MOVE_TO_COMMAND);
-        if (command == null) {
+        GcodeTemplate template = getCommandTemplate(hm, CommandType.MOVE_TO_COMMAND);
+        if (template == null) {
             if (movedAxesLocation.isEmpty()) {
                 return;
             }
@@ -664,16 +749,17 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                 throw new Exception(getName()+" MOVE_TO_COMMAND missing, please use Issues & Solutions to propose proper G-code commands.");
             }
         }
-        if (hasVariable(command, "BacklashFeedRate")) {
+        if (template.hasVariable("BacklashFeedRate")) {
             throw new Exception(getName()+" configuration upgrade needed: Please remove the extra backlash compensation move from your MOVE_TO_COMMAND. "
                     +"Backlash compensation is now done outside of the drivers and configured on the axes.");
         }
 
-        command = substituteVariable(command, "Id", hm.getId());
-        command = substituteVariable(command, "Name", hm.getName());
-        command = substituteVariable(command, "FeedRate", feedRate);
-        command = substituteVariable(command, "Acceleration", acceleration);
-        command = substituteVariable(command, "Jerk", jerk);
+        GcodeTemplate.Substitution command = template.substitution();
+        command.set("Id", hm.getId());
+        command.set("Name", hm.getName());
+        command.set("FeedRate", feedRate);
+        command.set("Acceleration", acceleration);
+        command.set("Jerk", jerk);
 
         ReferenceMachine machine = (ReferenceMachine) hm.getHead().getMachine();
         // Get a map of the axes of ...
@@ -700,7 +786,7 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                 // position change after all. 
                 // Note, there is no need for separate backlash compensation variables, as these are always 
                 // substituted alongside. 
-                if (hasVariable(command, variable+"F")) {
+                if (command.hasVariable(variable+"F")) {
                     // Force it! Must get it from the mappedAxes. If the mappedAxes do not have it, it is 
                     // still suppressed (this never happens when using letter variables). 
                     axis = mappedAxes.getAxisByVariable(this, variable);
@@ -721,15 +807,15 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                 double previousCoordinate = axis.getDriverCoordinate(); 
                 int direction = ((Double)coordinate).compareTo(previousCoordinate);
                 // Substitute the axis variables.
-                command = substituteVariable(command, variable, coordinate);
-                command = substituteVariable(command, variable+"F", coordinate);
-                command = substituteVariable(command, variable+"L", axis.getLetter());
-                if (hasVariable(command, "BacklashOffset"+variable)) {
+                command.set(variable, coordinate);
+                command.set(variable+"F", coordinate);
+                command.set(variable+"L", axis.getLetter());
+                if (command.hasVariable("BacklashOffset"+variable)) {
                     throw new Exception(getName()+" configuration upgrade needed: Please remove the extra backlash compensation move from your MOVE_TO_COMMAND. "
                             +"Backlash compensation is now done outside of the drivers.");
                 }
-                command = substituteVariable(command, variable+"Decreasing", direction < 0 ? true : null);
-                command = substituteVariable(command, variable+"Increasing", direction > 0 ? true : null);
+                command.set(variable+"Decreasing", direction < 0 ? true : null);
+                command.set(variable+"Increasing", direction > 0 ? true : null);
                 if (isSupportingPreMove() && axis instanceof ReferenceControllerAxis) {
                     // Check for a pre-move command.
                     String preMoveCommand = ((ReferenceControllerAxis) axis).getPreMoveCommand();
@@ -741,27 +827,27 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
                 // Axis specific jerk limits are needed on TinyG.
                 double axisDistance = coordinate - previousCoordinate;
                 double axisJerk = (jerk != null ? jerk : 0)*Math.abs(axisDistance)/driverDistance;
-                command = substituteVariable(command, variable+"Jerk", axisJerk > 1 ? axisJerk : null);
-                command = substituteVariable(command, variable+"JerkMupm3", axisJerk > 4.63 ? axisJerk*1e-6*Math.pow(60, 3) : null); // TinyG: Megaunits/min^3 
+                command.set(variable+"Jerk", axisJerk > 1 ? axisJerk : null);
+                command.set(variable+"JerkMupm3", axisJerk > 4.63 ? axisJerk*1e-6*Math.pow(60, 3) : null); // TinyG: Megaunits/min^3 
                 // Store the new driver coordinate on the axis.
                 axis.setDriverCoordinate(coordinate);
             }
             else {
                 // Delete the unused axis variables.
-                command = substituteVariable(command, variable, null);
-                command = substituteVariable(command, variable+"F", null);
-                command = substituteVariable(command, variable+"L", null); 
-                command = substituteVariable(command, "BacklashOffset"+variable, null);
-                command = substituteVariable(command, variable+"Decreasing", null);
-                command = substituteVariable(command, variable+"Increasing", null);
-                command = substituteVariable(command, variable+"Jerk", null);
-                command = substituteVariable(command, variable+"JerkMupm3", null);  
+                command.set(variable, null);
+                command.set(variable+"F", null);
+                command.set(variable+"L", null); 
+                command.set("BacklashOffset"+variable, null);
+                command.set(variable+"Decreasing", null);
+                command.set(variable+"Increasing", null);
+                command.set(variable+"Jerk", null);
+                command.set(variable+"JerkMupm3", null);  
             }
         }
         if (doesMove) {
             // We do actually send the command.
             motionPending = true;
-            sendGcode(command);
+            sendGcode(command.toString());
         }
     }
 
@@ -815,8 +901,9 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
     }
 
     private boolean containsMatch(List<Line> responses, String regex) {
+        GcodeResponseMatcher responseMatcher = getResponseMatcher(regex);
         for (Line response : responses) {
-            if (response.line.matches(regex)) {
+            if (responseMatcher.matches(response.line)) {
                 return true;
             }
         }
@@ -825,41 +912,50 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
 
     @Override
     public void actuate(Actuator actuator, boolean on) throws Exception {
-        String command = getCommand(actuator, CommandType.ACTUATE_BOOLEAN_COMMAND);
-        command = substituteVariable(command, "Id", actuator.getId());
-        command = substituteVariable(command, "Name", actuator.getName());
+        GcodeTemplate.Substitution command = getCommandSubstitution(actuator, CommandType.ACTUATE_BOOLEAN_COMMAND);
+        if (command == null) {
+            return;
+        }
+        command.set("Id", actuator.getId());
+        command.set("Name", actuator.getName());
         if (actuator instanceof ReferenceActuator) {
-            command = substituteVariable(command, "Index", ((ReferenceActuator)actuator).getIndex());
+            command.set("Index", ((ReferenceActuator)actuator).getIndex());
         }
-        command = substituteVariable(command, "BooleanValue", on);
-        command = substituteVariable(command, "True", on ? on : null);
-        command = substituteVariable(command, "False", on ? null : on);
-        sendGcode(command);
+        command.set("BooleanValue", on);
+        command.set("True", on ? on : null);
+        command.set("False", on ? null : on);
+        sendGcode(command.toString());
     }
 
     @Override
     public void actuate(Actuator actuator, double value) throws Exception {
-        String command = getCommand(actuator, CommandType.ACTUATE_DOUBLE_COMMAND);
-        command = substituteVariable(command, "Id", actuator.getId());
-        command = substituteVariable(command, "Name", actuator.getName());
+        GcodeTemplate.Substitution command = getCommandSubstitution(actuator, CommandType.ACTUATE_DOUBLE_COMMAND);
+        if (command == null) {
+            return;
+        }
+        command.set("Id", actuator.getId());
+        command.set("Name", actuator.getName());
         if (actuator instanceof ReferenceActuator) {
-            command = substituteVariable(command, "Index", ((ReferenceActuator)actuator).getIndex());
+            command.set("Index", ((ReferenceActuator)actuator).getIndex());
         }
-        command = substituteVariable(command, "DoubleValue", value);
-        command = substituteVariable(command, "IntegerValue", (int) value);
-        sendGcode(command);
+        command.set("DoubleValue", value);
+        command.set("IntegerValue", (int) value);
+        sendGcode(command.toString());
     }
 
     @Override
     public void actuate(Actuator actuator, String value) throws Exception {
-        String command = getCommand(actuator, CommandType.ACTUATE_STRING_COMMAND);
-        command = substituteVariable(command, "Id", actuator.getId());
-        command = substituteVariable(command, "Name", actuator.getName());
+        GcodeTemplate.Substitution command = getCommandSubstitution(actuator, CommandType.ACTUATE_STRING_COMMAND);
+        if (command == null) {
+            return;
+        }
+        command.set("Id", actuator.getId());
+        command.set("Name", actuator.getName());
         if (actuator instanceof ReferenceActuator) {
-            command = substituteVariable(command, "Index", ((ReferenceActuator)actuator).getIndex());
+            command.set("Index", ((ReferenceActuator)actuator).getIndex());
         }
-        command = substituteVariable(command, "StringValue", value);
-        sendGcode(command);
+        command.set("StringValue", value);
+        sendGcode(command.toString());
     }
 
     @Override
@@ -869,32 +965,32 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
          * not fire and forget. In this case, we need to know if the command was serviced or not
          * and throw an Exception if not.
          */
-        String command = getCommand(actuator, CommandType.ACTUATOR_READ_COMMAND);
+        GcodeTemplate.Substitution command = getCommandSubstitution(actuator, CommandType.ACTUATOR_READ_COMMAND);
         String regex = getCommand(actuator, CommandType.ACTUATOR_READ_REGEX);
         if (command != null && regex != null) {
-            command = substituteVariable(command, "Id", actuator.getId());
-            command = substituteVariable(command, "Name", actuator.getName());
+            command.set("Id", actuator.getId());
+            command.set("Name", actuator.getName());
             if (actuator instanceof ReferenceActuator) {
-                command = substituteVariable(command, "Index", ((ReferenceActuator)actuator).getIndex());
+                command.set("Index", ((ReferenceActuator)actuator).getIndex());
             }
             if (parameter != null) {
                 if (parameter instanceof Double) { // Backwards compatibility
                     Double doubleParameter = (Double) parameter;
-                    command = substituteVariable(command, "DoubleValue", doubleParameter);
-                    command = substituteVariable(command, "IntegerValue", (int) doubleParameter.doubleValue());
+                    command.set("DoubleValue", doubleParameter);
+                    command.set("IntegerValue", (int) doubleParameter.doubleValue());
                 }
 
-                command = substituteVariable(command, "Value", parameter);
+                command.set("Value", parameter);
             }
-            sendGcode(command);
+            sendGcode(command.toString());
             List<Line> responses = receiveResponses(regex, timeoutMilliseconds, (r) -> {
                 throw new Exception(String.format("Actuator \"%s\" read error: No matching responses found.", actuator.getName()));
             });
 
-            Pattern pattern = Pattern.compile(regex);
+            GcodeResponseMatcher responseMatcher = getResponseMatcher(regex);
             for (Line line : responses) {
-                Matcher matcher = pattern.matcher(line.getLine());
-                if (matcher.matches()) {
+                Matcher matcher = responseMatcher.match(line.getLine());
+                if (matcher != null) {
                     Logger.trace("actuatorRead response: {}", line);
                     try {
                         return matcher.group("Value");
@@ -1086,10 +1182,9 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
         if (responses == null) {
             return null;   
         }
-        Pattern pattern = Pattern.compile(regex);
+        GcodeResponseMatcher responseMatcher = getResponseMatcher(regex);
         for (Line line : responses) {
-            Matcher matcher = pattern.matcher(line.getLine());
-            if (matcher.matches()) {
+            if (responseMatcher.matches(line.getLine())) {
                 return line.getLine();
             }
         }
@@ -1243,32 +1338,30 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
      * @param line
      */
     protected void processResponse(Line line) {
-        String regex = getCommand(null, CommandType.COMMAND_CONFIRM_REGEX);
-        if (regex != null && line.getLine().matches(regex)) {
+        GcodeResponseMatcher responseMatcher = getResponseMatcher(null, CommandType.COMMAND_CONFIRM_REGEX);
+        if (responseMatcher != null && responseMatcher.matches(line.getLine())) {
             receivedConfirmationsQueue.add(line);
         }
-        regex = getCommand(null, CommandType.COMMAND_ERROR_REGEX);
-        if (regex != null && line.getLine().matches(regex)) {
+        responseMatcher = getResponseMatcher(null, CommandType.COMMAND_ERROR_REGEX);
+        if (responseMatcher != null && responseMatcher.matches(line.getLine())) {
             errorResponse = line;
         }
         processPositionReport(line);
     }
 
     protected boolean processPositionReport(Line line) {
-        String regex = getCommand(null, CommandType.POSITION_REPORT_REGEX); 
-        if (regex == null) {
+        GcodeResponseMatcher responseMatcher = getResponseMatcher(null, CommandType.POSITION_REPORT_REGEX); 
+        if (responseMatcher == null) {
             return false;
         }
 
-        if (!line.getLine().matches(regex)) {
+        Matcher matcher = responseMatcher.match(line.getLine());
+        if (matcher == null) {
             return false;
         }
 
         Logger.trace("Position report: {}", line);
         ReferenceMachine machine = ((ReferenceMachine) Configuration.get().getMachine());
-        Matcher matcher =
-                Pattern.compile(regex).matcher(line.getLine());
-        matcher.matches();
         AxesLocation position = AxesLocation.zero;
         for (ControllerAxis axis : new AxesLocation(machine).getAxes(this)) {
             try {
@@ -1310,24 +1403,6 @@ public class GcodeDriver extends AbstractReferenceDriver implements Named {
         return TextUtils.substituteVar(command, name, value);
     }
 
-    /**
-     * Find matches of variables in the format {Name:Format} and return true if present.
-     */
-    static protected boolean hasVariable(String command, String name) {
-        if (command == null) {
-            return false;
-        }
-        Matcher matcher = Pattern.compile("\\{(\\w+)(?::(.+?))?\\}").matcher(command);
-        while (matcher.find()) {
-            String n = matcher.group(1);
-            if (!n.equals(name)) {
-                continue;
-            }
-            return true;
-        }
-        return false;
-    }
-
 
 
     @Override
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference.driver;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A response regex, compiled once, matched against whole response lines like String.matches().
+ *
+ * The common controller responses are matched by plain literal regexes such as "^ok.*" (Marlin,
+ * Smoothieware, grbl, Duet) or "^error:.*". These are recognized when compiling and then matched
+ * as a prefix, infix or the whole line, without running the regex. Any other regex is matched with
+ * a Matcher that each thread reuses.
+ *
+ * The response matcher is immutable and can be shared.
+ */
+public class GcodeResponseMatcher {
+    private enum Match {
+        Regex,
+        Equals,
+        Prefix,
+        Contains
+    }
+
+    private final String regex;
+    private final Pattern pattern;
+    private final Match match;
+    private final String literal;
+    private final ThreadLocal<Matcher> matchers;
+
+    private GcodeResponseMatcher(String regex) {
+        this.regex = regex;
+        this.pattern = Pattern.compile(regex);
+        String literal = regex;
+        boolean leading = false;
+        boolean trailing = false;
+        if (literal.startsWith("^")) {
+            literal = literal.substring(1);
+        }
+        else if (literal.startsWith(".*")) {
+            literal = literal.substring(2);
+            leading = true;
+        }
+        if (literal.endsWith(".*") && !literal.endsWith("\\.*")) {
+            literal = literal.substring(0, literal.length() - 2);
+            trailing = true;
+        }
+        else if (literal.endsWith("$") && !literal.endsWith("\\$")) {
+            literal = literal.substring(0, literal.length() - 1);
+        }
+        if (!literal.isEmpty() && isLiteral(literal) && !hasLineTerminator(literal, 0, literal.length())
+                && (trailing || !leading)) {
+            this.literal = literal;
+            this.match = (leading ? Match.Contains : trailing ? Match.Prefix : Match.Equals);
+        }
+        else {
+            this.literal = null;
+            this.match = Match.Regex;
+        }
+        this.matchers = ThreadLocal.withInitial(() -> pattern.matcher(""));
+    }
+
+    /**
+     * @param regex
+     * @return The compiled response matcher, or null if regex is null.
+     * @throws java.util.regex.PatternSyntaxException if the regex is invalid.
+     */
+    public static GcodeResponseMatcher compile(String regex) {
+        if (regex == null) {
+            return null;
+        }
+        return new GcodeResponseMatcher(regex);
+    }
+
+    private static boolean isLiteral(String text) {
+        for (int i = 0; i < text.length(); i++) {
+            if ("\\^$.|?*+()[]{}".indexOf(text.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param text
+     * @param begin
+     * @param end
+     * @return true if the text range has a line terminator, that the regex "." would not match.
+     */
+    private static boolean hasLineTerminator(String text, int begin, int end) {
+        for (int i = begin; i < end; i++) {
+            char ch = text.charAt(i);
+            if (ch == '\n' || ch == '\r' || ch == '\u0085' || ch == '\u2028' || ch == '\u2029') {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getRegex() {
+        return regex;
+    }
+
+    public Pattern getPattern() {
+        return pattern;
+    }
+
+    /**
+     * @param line
+     * @return true if the whole line matches the regex.
+     */
+    public boolean matches(String line) {
+        switch (match) {
+            case Equals:
+                return line.equals(literal);
+            case Prefix:
+                return line.startsWith(literal)
+                        && !hasLineTerminator(line, literal.length(), line.length());
+            case Contains:
+                return line.contains(literal)
+                        && !hasLineTerminator(line, 0, line.length());
+            default:
+                return matchers.get().reset(line).matches();
+        }
+    }
+
+    /**
+     * Match the whole line and return the Matcher to get the groups. The Matcher is reused by the
+     * calling thread, so it must be consumed before the next match.
+     *
+     * @param line
+     * @return The Matcher or null if the line does not match.
+     */
+    public Matcher match(String line) {
+        if (match != Match.Regex && !matches(line)) {
+            return null;
+        }
+        Matcher matcher = matchers.get().reset(line);
+        return matcher.matches() ? matcher : null;
+    }
+
+    @Override
+    public String toString() {
+        return regex;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.machine.reference.driver;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A G-code command template, compiled once into a sequence of literal text and variable slots. The
+ * variables have the form {Name} or {Name:Format}, where Format is a String.format() format with the
+ * value as its only argument, as in TextUtils.substituteVar().
+ *
+ * A Substitution collects the values of the variables and renders the command in a single pass.
+ * The formats are parsed when compiling, the common %.Nf, %s and %d specifiers are then rendered
+ * directly, any others through String.format().
+ *
+ * The template is immutable and can be shared. A Substitution is meant to be used by one thread.
+ */
+public class GcodeTemplate {
+    private final String text;
+    /**
+     * The literal text parts, null where the part is a variable slot.
+     */
+    private final String [] literals;
+    /**
+     * The variable slots, null where the part is literal text.
+     */
+    private final Slot [] slots;
+    /**
+     * The index of each distinct variable name.
+     */
+    private final Map<String, Integer> variables;
+
+    private GcodeTemplate(String text, String [] literals, Slot [] slots, Map<String, Integer> variables) {
+        this.text = text;
+        this.literals = literals;
+        this.slots = slots;
+        this.variables = variables;
+    }
+
+    /**
+     * Compile the template text.
+     *
+     * @param text
+     * @return The compiled template, or null if text is null.
+     */
+    public static GcodeTemplate compile(String text) {
+        if (text == null) {
+            return null;
+        }
+        List<String> literals = new ArrayList<>();
+        List<Slot> slots = new ArrayList<>();
+        Map<String, Integer> variables = new HashMap<>();
+        StringBuilder literal = new StringBuilder();
+        int length = text.length();
+        int i = 0;
+        while (i < length) {
+            char ch = text.charAt(i);
+            if (ch == '{') {
+                // Same syntax as the pattern \{(\w+)(?::(.+?))?\}
+                int nameEnd = i + 1;
+                while (nameEnd < length && isWordCharacter(text.charAt(nameEnd))) {
+                    nameEnd++;
+                }
+                int end = -1;
+                String format = null;
+                if (nameEnd > i + 1 && nameEnd < length) {
+                    if (text.charAt(nameEnd) == '}') {
+                        end = nameEnd + 1;
+                    }
+                    else if (text.charAt(nameEnd) == ':') {
+                        // The format takes at least one character, up to the first closing brace on the same line.
+                        for (int k = nameEnd + 1; k < length && text.charAt(k) != '\n'; k++) {
+                            if (k > nameEnd + 1 && text.charAt(k) == '}') {
+                                format = text.substring(nameEnd + 1, k);
+                                end = k + 1;
+                                break;
+                            }
+                        }
+                    }
+                }
+                if (end > 0) {
+                    if (literal.length() > 0) {
+                        literals.add(literal.toString());
+                        slots.add(null);
+                        literal.setLength(0);
+                    }
+                    String name = text.substring(i + 1, nameEnd);
+                    Integer index = variables.get(name);
+                    if (index == null) {
+                        index = variables.size();
+                        variables.put(name, index);
+                    }
+                    literals.add(null);
+                    slots.add(new Slot(index, text.substring(i, end), format));
+                    i = end;
+                    continue;
+                }
+            }
+            literal.append(ch);
+            i++;
+        }
+        if (literal.length() > 0) {
+            literals.add(literal.toString());
+            slots.add(null);
+        }
+        return new GcodeTemplate(text,
+                literals.toArray(new String[literals.size()]),
+                slots.toArray(new Slot[slots.size()]),
+                variables);
+    }
+
+    private static boolean isWordCharacter(char ch) {
+        return (ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9') || ch == '_';
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @param name
+     * @return true if the template has the variable.
+     */
+    public boolean hasVariable(String name) {
+        return variables.containsKey(name);
+    }
+
+    /**
+     * @return A new Substitution with none of the variables set.
+     */
+    public Substitution substitution() {
+        return new Substitution();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+
+    /**
+     * Collects the values of the variables. Like substituting the variables one after the other, the first
+     * value set for a variable is the one that is used, a null value removes the variable, and variables that
+     * are never set are left in the command as they are.
+     */
+    public class Substitution {
+        private final Object [] values = new Object[variables.size()];
+        private final boolean [] set = new boolean[variables.size()];
+
+        private Substitution() {
+        }
+
+        /**
+         * @param name
+         * @return true if the template has the variable.
+         */
+        public boolean hasVariable(String name) {
+            return GcodeTemplate.this.hasVariable(name);
+        }
+
+        /**
+         * Set the value of the variable, unless already set.
+         *
+         * @param name
+         * @param value The value or null to remove the variable.
+         * @return this, for chaining.
+         */
+        public Substitution set(String name, Object value) {
+            Integer index = variables.get(name);
+            if (index != null && !set[index]) {
+                set[index] = true;
+                values[index] = value;
+            }
+            return this;
+        }
+
+        /**
+         * @return The command with the variables substituted.
+         */
+        @Override
+        public String toString() {
+            StringBuilder command = new StringBuilder(text.length() + 32);
+            for (int i = 0; i < slots.length; i++) {
+                Slot slot = slots[i];
+                if (slot == null) {
+                    command.append(literals[i]);
+                }
+                else if (!set[slot.index]) {
+                    command.append(slot.text);
+                }
+                else if (values[slot.index] != null) {
+                    slot.format.appendTo(command, values[slot.index]);
+                }
+            }
+            return command.toString();
+        }
+    }
+
+    private static class Slot {
+        final int index;
+        /**
+         * The original text of the variable, to leave it in place if not set.
+         */
+        final String text;
+        final FormatSpecifier format;
+
+        Slot(int index, String text, String format) {
+            this.index = index;
+            this.text = text;
+            this.format = FormatSpecifier.parse(format == null ? "%s" : format);
+        }
+    }
+
+    /**
+     * A format with a single specifier, split into the text before and after it.
+     */
+    private static class FormatSpecifier {
+        final String format;
+        final String prefix;
+        final String suffix;
+        /**
+         * The conversion 'f', 's' or 'd', or 0 if the format must be rendered by String.format().
+         */
+        final char conversion;
+        final int precision;
+
+        private FormatSpecifier(String format, String prefix, String suffix, char conversion, int precision) {
+            this.format = format;
+            this.prefix = prefix;
+            this.suffix = suffix;
+            this.conversion = conversion;
+            this.precision = precision;
+        }
+
+        static FormatSpecifier parse(String format) {
+            int percent = format.indexOf('%');
+            if (percent >= 0) {
+                int i = percent + 1;
+                int precision = -1;
+                if (i < format.length() && format.charAt(i) == '.') {
+                    int digits = ++i;
+                    while (i < format.length() && Character.isDigit(format.charAt(i)) && i - digits < 2) {
+                        i++;
+                    }
+                    if (i > digits) {
+                        precision = Integer.parseInt(format.substring(digits, i));
+                    }
+                    else {
+                        i = -1;
+                    }
+                }
+                if (i > 0 && i < format.length()) {
+                    char conversion = format.charAt(i);
+                    String suffix = format.substring(i + 1);
+                    if (suffix.indexOf('%') < 0
+                            && (conversion == 'f' || (precision < 0 && (conversion == 's' || conversion == 'd')))) {
+                        return new FormatSpecifier(format, format.substring(0, percent), suffix,
+                                conversion, precision < 0 ? 6 : precision);
+                    }
+                }
+            }
+            return new FormatSpecifier(format, null, null, (char) 0, 0);
+        }
+
+        void appendTo(StringBuilder command, Object value) {
+            switch (conversion) {
+                case 'f':
+                    if ((value instanceof Double || value instanceof Float)
+                            && Double.isFinite(((Number) value).doubleValue())) {
+                        double v = ((Number) value).doubleValue();
+                        command.append(prefix);
+                        if (Math.copySign(1.0, v) < 0) {
+                            command.append('-');
+                        }
+                        // Same rounding as Formatter, i.e. half-up from the shortest decimal representation.
+                        command.append(new BigDecimal(Double.toString(Math.abs(v)))
+                                .setScale(precision, RoundingMode.HALF_UP)
+                                .toPlainString());
+                        command.append(suffix);
+                        return;
+                    }
+                    break;
+                case 's':
+                    if (value instanceof String || value instanceof Boolean || value instanceof Number) {
+                        command.append(prefix);
+                        command.append(value);
+                        command.append(suffix);
+                        return;
+                    }
+                    break;
+                case 'd':
+                    if (value instanceof Integer || value instanceof Long) {
+                        command.append(prefix);
+                        command.append(((Number) value).longValue());
+                        command.append(suffix);
+                        return;
+                    }
+                    break;
+            }
+            command.append(String.format((Locale) null, format, value));
+        }
+    }
+}
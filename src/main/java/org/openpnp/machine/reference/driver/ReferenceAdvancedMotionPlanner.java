@@ -22,25 +22,36 @@
 package org.openpnp.machine.reference.driver;
 
 import java.awt.Color;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
 
+import javax.swing.SwingUtilities;
 import javax.swing.UIManager;
 
 import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.gui.support.Wizard;
+import org.openpnp.machine.reference.axis.ReferenceControllerAxis;
 import org.openpnp.machine.reference.driver.wizards.ReferenceAdvancedMotionPlannerConfigurationWizard;
 import org.openpnp.machine.reference.driver.wizards.ReferenceAdvancedMotionPlannerDiagnosticsWizard;
 import org.openpnp.model.AbstractMotionPath;
 import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Length;
 import org.openpnp.model.LengthUnit;
 import org.openpnp.model.Location;
 import org.openpnp.model.Motion;
 import org.openpnp.model.Motion.MotionOption;
 import org.openpnp.model.Motion.MoveToCommand;
+import org.openpnp.model.MotionDiagnosticsRecorder;
 import org.openpnp.model.MotionProfile;
+import org.openpnp.model.MotionProfile.ProfileOption;
 import org.openpnp.model.Solutions;
 import org.openpnp.model.Solutions.Severity;
 import org.openpnp.spi.Axis;
@@ -50,6 +61,7 @@ import org.openpnp.spi.HeadMountable;
 import org.openpnp.util.MovableUtils;
 import org.openpnp.util.NanosecondTime;
 import org.openpnp.util.SimpleGraph;
+import org.pmw.tinylog.Logger;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
 
@@ -71,6 +83,40 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
     @Attribute(required = false)
     private boolean showApproximation = true;
 
+    /**
+     * Maximum number of moves in a look-ahead window, 0 for unlimited.
+     */
+    @Attribute(required = false)
+    private int lookAheadMoves = 0;
+    /**
+     * Maximum time horizon of a look-ahead window in seconds, 0 for unlimited.
+     */
+    @Attribute(required = false)
+    private double lookAheadTime = 0;
+
+    /**
+     * Moves committed by commitLookAheadWindows() without a corner. They were already solved together with the 
+     * moves that follow them, so they must not be solved again when executed.
+     */
+    private Set<Motion> frozenMotions = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    /**
+     * Blend the Z moves of Safe Z sequences into the travel move, see addMotion().
+     */
+    @Attribute(required = false)
+    private boolean safeZBlending = false;
+    /**
+     * How far below (or above) the Safe Zone the nozzle may be, while travelling. This is the keep-out envelope 
+     * of blended motion.  
+     */
+    @Element(required = false)
+    private Length blendingClearance = new Length(2, LengthUnit.Millimeters);
+    /**
+     * Blend the final approach of one-sided backlash compensation into the preceding move, see addMotion().
+     */
+    @Attribute(required = false)
+    private boolean backlashBlending = false;
+
     @Element(required = false)
     Location startLocation = new Location(LengthUnit.Millimeters);
     @Element(required = false)
@@ -110,10 +156,13 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
     private Double recordingT0;
     private Map<Driver, Double> recordingT = new HashMap<>();
     private AxesLocation recordingLocation0 = AxesLocation.zero;
+    private final MotionDiagnosticsRecorder diagnosticsRecorder = 
+            new MotionDiagnosticsRecorder(MotionDiagnosticsRecorder.defaultCapacity);
+    private final Object renderingLock = new Object();
 
     private Double moveTimePlanned;
     private Double moveTimeActual;
-    private Double recordingMoveTimePlanned;
+    private double recordingMoveTimePlanned;
     private boolean interpolationFailed;
     private boolean recordingInterpolationFailed;
     private boolean recordingMotionLocked;
@@ -143,6 +192,60 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
         this.interpolationRetiming = interpolationRetiming;
     }
 
+    public int getLookAheadMoves() {
+        return lookAheadMoves;
+    }
+
+    public void setLookAheadMoves(int lookAheadMoves) {
+        Object oldValue = this.lookAheadMoves;
+        this.lookAheadMoves = lookAheadMoves;
+        firePropertyChange("lookAheadMoves", oldValue, lookAheadMoves);
+    }
+
+    public double getLookAheadTime() {
+        return lookAheadTime;
+    }
+
+    public void setLookAheadTime(double lookAheadTime) {
+        Object oldValue = this.lookAheadTime;
+        this.lookAheadTime = lookAheadTime;
+        firePropertyChange("lookAheadTime", oldValue, lookAheadTime);
+    }
+
+    public boolean isLookAheadLimited() {
+        return lookAheadMoves > 0 || lookAheadTime > 0;
+    }
+
+    public boolean isSafeZBlending() {
+        return safeZBlending;
+    }
+
+    public void setSafeZBlending(boolean safeZBlending) {
+        Object oldValue = this.safeZBlending;
+        this.safeZBlending = safeZBlending;
+        firePropertyChange("safeZBlending", oldValue, safeZBlending);
+    }
+
+    public Length getBlendingClearance() {
+        return blendingClearance;
+    }
+
+    public void setBlendingClearance(Length blendingClearance) {
+        Object oldValue = this.blendingClearance;
+        this.blendingClearance = blendingClearance;
+        firePropertyChange("blendingClearance", oldValue, blendingClearance);
+    }
+
+    public boolean isBacklashBlending() {
+        return backlashBlending;
+    }
+
+    public void setBacklashBlending(boolean backlashBlending) {
+        Object oldValue = this.backlashBlending;
+        this.backlashBlending = backlashBlending;
+        firePropertyChange("backlashBlending", oldValue, backlashBlending);
+    }
+
     public boolean isDiagnosticsEnabled() {
         return diagnosticsEnabled;
     }
@@ -151,7 +254,14 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
         this.diagnosticsEnabled = diagnosticsEnabled;
     }
 
+    /**
+     * @return The motion graph of the last published diagnostics recording. The graph is only
+     * rendered here, on demand, not while recording.
+     */
     public SimpleGraph getMotionGraph() {
+        if (diagnosticsRecorder.isPublished()) {
+            renderMotionGraph();
+        }
         return motionGraph;
     }
 
@@ -322,6 +432,148 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                             CompletionType.CommandJog 
                             : CompletionType.WaitForStillstand);
         }
+        else if (isLookAheadLimited()) {
+            commitLookAheadWindows();
+        }
+    }
+
+    /**
+     * Splits the execution plan into look-ahead windows. A window is closed at the first corner (see 
+     * AbstractMotionPath.isCorner()) after it has reached lookAheadMoves or the lookAheadTime horizon. 
+     * The motion comes to still-stand in a corner, therefore the windows can be solved separately, with 
+     * the same result as solving the whole plan, but with a bounded effort per window. 
+     * 
+     * Note, without a corner the window cannot be closed, it then extends to the end of the plan. With continuous 
+     * motion, commitLookAheadWindows() freezes the head of such a window instead, see getFreezableMoves().
+     * 
+     * @param executionPlan
+     * @return The windows, as views of the execution plan.
+     */
+    protected List<List<Motion>> getLookAheadWindows(List<Motion> executionPlan) {
+        List<List<Motion>> windows = new ArrayList<>();
+        if (!isLookAheadLimited()) {
+            windows.add(executionPlan);
+            return windows;
+        }
+        int begin = 0;
+        double time = 0;
+        MotionProfile[] prevProfiles = null;
+        boolean prevJog = false;
+        int i = 0;
+        for (Motion motion : executionPlan) {
+            MotionProfile[] profiles = motion.getAxesProfiles();
+            // Never cut after a jog, as the solver leaves the exit of a jog open, if it is the last move.
+            if (prevProfiles != null && !prevJog
+                    && ((lookAheadMoves > 0 && i - begin >= lookAheadMoves)
+                            || (lookAheadTime > 0 && time >= lookAheadTime))
+                    && AbstractMotionPath.isCorner(prevProfiles, profiles)) {
+                windows.add(executionPlan.subList(begin, i));
+                begin = i;
+                time = 0;
+            }
+            // The time of the move on its own, as solved when it was created.
+            time += motion.getTime();
+            prevProfiles = profiles;
+            prevJog = motion.hasOption(MotionOption.JogMotion);
+            i++;
+        }
+        if (begin < i) {
+            windows.add(executionPlan.subList(begin, i));
+        }
+        return windows;
+    }
+
+    /**
+     * Commits the complete look-ahead windows of the pending motion commands, i.e. plans and executes them
+     * right away. Subsequent moves cannot change these windows anymore, so they are frozen, and the pending
+     * motion commands stay bounded, while continuous motion is queued. 
+     * 
+     * The last window is not closed by a corner. If it has grown to twice the look-ahead limit, e.g. in a chain 
+     * of blended moves or Safe Zone travel, it is solved, and its head up to the limit is frozen and committed 
+     * as solved. The remaining moves keep the solved junction velocity and acceleration as their entry 
+     * conditions, so subsequent solving is limited to them and the moves added later.
+     * 
+     * @throws Exception
+     */
+    protected synchronized void commitLookAheadWindows() throws Exception {
+        List<List<Motion>> windows = getLookAheadWindows(motionCommands);
+        // All but the last window are closed by a corner. 
+        List<Motion> committed = new ArrayList<>();
+        for (int w = 0; w < windows.size() - 1; w++) {
+            committed.addAll(windows.get(w));
+        }
+        List<Motion> pending = windows.get(windows.size() - 1);
+        int frozen = getFreezableMoves(pending);
+        if (frozen > 0) {
+            solveLookAheadWindow(pending);
+            List<Motion> frozenHead = pending.subList(0, frozen);
+            frozenMotions.addAll(frozenHead);
+            committed.addAll(frozenHead);
+            pending = pending.subList(frozen, pending.size());
+            // The remaining moves now begin the path. Their entry is the solved junction, rather than a crop
+            // of the profile spanning the frozen moves.
+            for (MotionProfile profile : pending.get(0).getAxesProfiles()) {
+                profile.clearOption(ProfileOption.CroppedEntry);
+            }
+        }
+        if (!committed.isEmpty()) {
+            motionCommands = new LinkedList<>(pending);
+            executeMotionPlan(committed, CompletionType.CommandStillstand);
+        }
+    }
+
+    /**
+     * Determines how many moves at the begin of a look-ahead window that is not closed by a corner can be frozen. 
+     * This is only done once the window has reached twice the lookAheadMoves or the lookAheadTime horizon, so 
+     * the moves remaining after the frozen head still reach the horizon. The head is cut at the first junction 
+     * after the horizon, that can be cut without changing the remaining moves:
+     * <ul>
+     * <li>Never after a jog, as the solver leaves the exit of a jog open, if it is the last move.</li>
+     * <li>Never before a coordinated move that follows an uncoordinated move, as the solver crops it at the 
+     * entry, which would then be solved from still-stand again.</li>
+     * </ul>
+     * 
+     * @param window
+     * @return The number of moves that can be frozen, or 0 if none.
+     */
+    protected int getFreezableMoves(List<Motion> window) {
+        int size = window.size();
+        double windowTime = 0;
+        for (Motion motion : window) {
+            windowTime += motion.getTime();
+        }
+        if (!((lookAheadMoves > 0 && size >= 2*lookAheadMoves)
+                || (lookAheadTime > 0 && windowTime >= 2*lookAheadTime))) {
+            return 0;
+        }
+        double time = 0;
+        Motion prevMotion = null;
+        int i = 0;
+        for (Motion motion : window) {
+            if (prevMotion != null
+                    && ((lookAheadMoves > 0 && i >= lookAheadMoves)
+                            || (lookAheadTime > 0 && time >= lookAheadTime))
+                    && !prevMotion.hasOption(MotionOption.JogMotion)
+                    && !(MotionProfile.isCoordinated(motion.getAxesProfiles())
+                            && !MotionProfile.isCoordinated(prevMotion.getAxesProfiles()))) {
+                return i;
+            }
+            time += motion.getTime();
+            prevMotion = motion;
+            i++;
+        }
+        return 0;
+    }
+
+    /**
+     * Solves the moves of a look-ahead window as one path. 
+     * 
+     * @param window
+     * @throws Exception
+     */
+    protected void solveLookAheadWindow(List<Motion> window) throws Exception {
+        PlannerPath path = new PlannerPath(window);
+        path.solve();
     }
 
     protected class PlannerPath extends AbstractMotionPath {
@@ -329,7 +581,8 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
 
         public PlannerPath(List<Motion> executionPlan) {
             super();
-            this.executionPlan = executionPlan;
+            // The solver accesses the moves by index, the plan may be a LinkedList.
+            this.executionPlan = new ArrayList<>(executionPlan);
         }
 
         @Override
@@ -343,10 +596,31 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
         }
     }
 
+    /**
+     * Adds the motion, with the uncoordinated flags, if it is in the Safe Zone. 
+     * 
+     * With Safe Z blending, the typical Z-up, travel, Z-down sequence of moveToLocationAtSafeZ() is blended:
+     * The Z-up move only goes as far as the blending clearance below the Safe Zone, the travel move takes the Z 
+     * axis the rest of the way up, i.e. the travel starts before Z has reached Safe Z. Likewise the travel move 
+     * already takes the Z axis down to the blending clearance, before the Z-down move. If both ends are blended, 
+     * the travel is split in the middle, at Safe Z. The blended travel moves are limited to the blending clearance.
+     * 
+     * Blending only happens, if the previous move of the same HeadMountable is still pending, i.e. with continuous
+     * motion.   
+     * 
+     * With backlash blending, the final approach of one-sided backlash compensation is kept coordinated, even in 
+     * the Safe Zone. The path solver then blends the uncoordinated move to the backlash compensation waypoint 
+     * into the approach, i.e. the axes reverse on the fly, instead of coming to a full stop at the waypoint. The 
+     * approach itself still happens in a straight line from the compensation side. 
+     */
     @Override
     protected Motion addMotion(HeadMountable hm, double speed, AxesLocation location0,
             AxesLocation location1, int options) {
-        if (allowUncoordinated) {
+        // Keep a blended backlash approach coordinated, so the path solver blends it with the uncoordinated move 
+        // to the waypoint.
+        boolean blendedBacklashApproach = backlashBlending 
+                && MotionOption.BacklashApproach.isSetIn(options);
+        if (allowUncoordinated && !blendedBacklashApproach) {
             if (location0.isInSafeZone()
                     && location1.isInSafeZone()) {
                 // Both locations are in the Save Zone. Add the uncoordinated flags.
@@ -356,16 +630,189 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                         //| MotionOption.SynchronizeEarlyBird.flag()
                         //| MotionOption.SynchronizeLastMinute.flag()
                         ;
+                if (safeZBlending) {
+                    // Travel in the Safe Zone. If it follows a Z-up move, start it at the blending clearance. 
+                    Motion previous = getPendingMotion(hm, location0);
+                    if (previous != null && !previous.hasOption(MotionOption.UncoordinatedMotion)) {
+                        AxesLocation clearanceLocation = getBlendingClearanceLocation(previous.getLocation0(), location0);
+                        if (clearanceLocation != null) {
+                            motionCommands.removeLast();
+                            super.addMotion(hm, previous.getNominalSpeed(), 
+                                    previous.getLocation0(), clearanceLocation, previous.getOptions());
+                            location0 = clearanceLocation;
+                            options |= MotionOption.SafeZBlending.flag();
+                        }
+                    }
+                }
+            }
+            else if (safeZBlending && location0.isInSafeZone()) {
+                // Leaving the Safe Zone. If it follows a travel, end that at the blending clearance.
+                Motion previous = getPendingMotion(hm, location0);
+                if (previous != null && previous.hasOption(MotionOption.UncoordinatedMotion)) {
+                    AxesLocation clearanceLocation = getBlendingClearanceLocation(location1, location0);
+                    if (clearanceLocation != null) {
+                        motionCommands.removeLast();
+                        AxesLocation travelLocation0 = previous.getLocation0();
+                        int travelOptions = previous.getOptions() | MotionOption.SafeZBlending.flag();
+                        if (previous.hasOption(MotionOption.SafeZBlending)) {
+                            // Already blended on entry, go up to Safe Z half-way.
+                            AxesLocation midLocation = travelLocation0.add(location0).multiply(0.5)
+                                    .put(location0.byType(Axis.Type.Z));
+                            super.addMotion(hm, previous.getNominalSpeed(), 
+                                    travelLocation0, midLocation, travelOptions);
+                            travelLocation0 = midLocation;
+                        }
+                        super.addMotion(hm, previous.getNominalSpeed(), 
+                                travelLocation0, clearanceLocation, travelOptions);
+                        location0 = clearanceLocation;
+                    }
+                }
             }
         }
         return super.addMotion(hm, speed, location0, location1, options);
     }
 
+    /**
+     * @param hm
+     * @param location1
+     * @return The last pending motion, if it is a plain move of the HeadMountable that ends at location1, 
+     * otherwise null. 
+     */
+    protected Motion getPendingMotion(HeadMountable hm, AxesLocation location1) {
+        Motion previous = motionCommands.peekLast();
+        if (previous != null 
+                && previous.getHeadMountable() == hm
+                && !previous.hasOption(MotionOption.JogMotion)
+                && !previous.hasOption(MotionOption.Stillstand)
+                && previous.getLocation1().matches(location1)) {
+            return previous;
+        }
+        return null;
+    }
+
+    /**
+     * Get the location, where a Z move between outsideLocation and insideLocation crosses the blending clearance. 
+     * 
+     * @param outsideLocation The end of the Z move outside the Safe Zone. 
+     * @param insideLocation The end of the Z move inside the Safe Zone.
+     * @return The location at the blending clearance, or null if this is not a pure Z move or if the outside 
+     * location is not beyond the blending clearance.
+     */
+    protected AxesLocation getBlendingClearanceLocation(AxesLocation outsideLocation, AxesLocation insideLocation) {
+        AxesLocation segment = outsideLocation.motionSegmentTo(insideLocation);
+        if (segment.isEmpty()) {
+            return null;
+        }
+        AxesLocation clearanceLocation = insideLocation;
+        for (ControllerAxis axis : segment.getControllerAxes()) {
+            if (axis.getType() != Axis.Type.Z 
+                    || !(axis instanceof ReferenceControllerAxis)) {
+                return null;
+            }
+            double [] limits = getBlendingClearanceLimits((ReferenceControllerAxis) axis);
+            double outside = outsideLocation.getCoordinate(axis);
+            double clearance;
+            if (outside < limits[0]) {
+                clearance = limits[0];
+            }
+            else if (outside > limits[1]) {
+                clearance = limits[1];
+            }
+            else {
+                return null;
+            }
+            clearanceLocation = clearanceLocation.put(axis, clearance);
+        }
+        return clearanceLocation;
+    }
+
+    /**
+     * @param axis
+     * @return The lower and upper limit of the keep-out envelope of the axis, i.e. its Safe Zone extended by the 
+     * blending clearance.
+     */
+    protected double [] getBlendingClearanceLimits(ReferenceControllerAxis axis) {
+        double clearance = blendingClearance.convertToUnits(AxesLocation.getUnits()).getValue();
+        return new double [] {
+                axis.isSafeZoneLowEnabled() ? 
+                        axis.getSafeZoneLow().convertToUnits(AxesLocation.getUnits()).getValue() - clearance 
+                        : Double.NEGATIVE_INFINITY,
+                axis.isSafeZoneHighEnabled() ? 
+                        axis.getSafeZoneHigh().convertToUnits(AxesLocation.getUnits()).getValue() + clearance 
+                        : Double.POSITIVE_INFINITY
+        };
+    }
+
     @Override
     protected void optimizeExecutionPlan(List<Motion> executionPlan,
             CompletionType completionType) throws Exception {
-        PlannerPath path = new PlannerPath(executionPlan);
-        path.solve();
+        for (List<Motion> window : getLookAheadWindows(executionPlan)) {
+            List<Motion> unfrozen = new ArrayList<>(window.size());
+            for (Motion motion : window) {
+                if (!frozenMotions.remove(motion)) {
+                    unfrozen.add(motion);
+                }
+            }
+            if (!unfrozen.isEmpty()) {
+                solveLookAheadWindow(unfrozen);
+            }
+        }
+        validateBlending(executionPlan);
+    }
+
+    /**
+     * Validates that the solved Safe Zone travel stays within the keep-out envelope, whenever the other axes 
+     * are moving. 
+     * 
+     * The profiles of blended motion are allowed to reach their end points below the Safe Zone, so their own 
+     * location limits do not tell whether the envelope is kept. Instead, the solved path is sampled in time. At 
+     * every sample where any other axis has velocity, the Z axes must be within the Safe Zone extended by the 
+     * blending clearance. Pure Z moves are not restricted.   
+     * 
+     * @param executionPlan
+     * @throws Exception
+     */
+    protected void validateBlending(List<Motion> executionPlan) throws Exception {
+        final double tolerance = 0.001;
+        final double velocityTolerance = 1e-6;
+        final int samples = 32;
+        for (Motion motion : executionPlan) {
+            if (!motion.hasOption(MotionOption.SafeZBlending) 
+                    && !motion.hasOption(MotionOption.UncoordinatedMotion)) {
+                continue;
+            }
+            double time = motion.getTime();
+            for (int i = 0; i <= samples; i++) {
+                double t = time*i/samples;
+                AxesLocation velocity = motion.getMomentaryVelocity(t);
+                boolean travelling = false;
+                for (ControllerAxis axis : velocity.getControllerAxes()) {
+                    if (axis.getType() != Axis.Type.Z 
+                            && Math.abs(velocity.getCoordinate(axis)) > velocityTolerance) {
+                        travelling = true;
+                        break;
+                    }
+                }
+                if (!travelling) {
+                    continue;
+                }
+                AxesLocation location = motion.getMomentaryLocation(t);
+                for (ControllerAxis axis : location.getControllerAxes()) {
+                    if (axis.getType() == Axis.Type.Z
+                            && axis instanceof ReferenceControllerAxis) {
+                        double [] limits = getBlendingClearanceLimits((ReferenceControllerAxis) axis);
+                        double z = location.getCoordinate(axis);
+                        if (z < limits[0] - tolerance || z > limits[1] + tolerance) {
+                            throw new Exception("Safe Zone travel of "+axis.getName()+" violates the keep-out envelope: "
+                                    +String.format(Locale.US, "%.3f", z)+" at "
+                                    +String.format(Locale.US, "%.3f", t)+"s of "
+                                    +String.format(Locale.US, "%.3f", time)+"s, outside "
+                                    +limits[0]+" .. "+limits[1]);
+                        }
+                    }
+                }
+            }
+        }
     }
 
     protected void startNewMotionGraph() {
@@ -474,194 +921,228 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
     protected void recordDiagnostics(Motion plannedMotion, MoveToCommand moveToCommand, Driver driver, boolean firstAfterCoordination, boolean firstDriver) {
         super.recordDiagnostics(plannedMotion, moveToCommand, driver, firstAfterCoordination, firstDriver);
         if (diagnosticsEnabled) {
-            final double tick = 1e-7;
-            final double dt = Math.min(0.001, plannedMotion.getTime()/1000 + 1e-6); // 1ms or 1/1000 of whole motion 
-            if (recordingMotionGraph == null) {
-                startNewMotionGraph();
-                recordingT0 = plannedMotion.getPlannedTime0();
-                recordingInterpolationFailed = false;
-                recordingMoveTimePlanned = 0.0;
-            }
-            Double timeStart = moveToCommand.getTimeStart();
-            double planTime0 = plannedMotion.getPlannedTime0() - recordingT0;
-            if (firstAfterCoordination && firstDriver && timeStart == 0) {
-                for (Driver driver0 : getMachine().getDrivers()) {
-                    recordingT.put(driver0, planTime0);
+            // Only take the sample, the graph is rendered on demand.
+            diagnosticsRecorder.record(plannedMotion, moveToCommand, driver, firstAfterCoordination, firstDriver);
+            if (moveToCommand.getTimeStart() == 0 && firstDriver) {
+                recordingMoveTimePlanned += plannedMotion.getTime();
+                if (plannedMotion.hasOption(MotionOption.InterpolationFailed)) {
+                    recordingInterpolationFailed = true;
                 }
-                recordingLocation0 = plannedMotion.getLocation0();
             }
-            AxesLocation segment = moveToCommand.getLocation0().motionSegmentTo(moveToCommand.getMovedAxesLocation());
+        }
+    }
 
-            // Calculate the factor from this single lead Axis to the rate along the relevant axes 
-            // (either linear or rotational axes, according to RS274NGC).  
-            double distance = segment.getRS274NGCMetric(driver, 
-                    (axis) -> segment.getCoordinate(axis));
-            double factorRS274NGC = (distance != 0 ? 1/distance : 1);
+    /**
+     * Render the published diagnostics recording into the motion graph.
+     * 
+     * @return true if a new motion graph was rendered.
+     */
+    protected boolean renderMotionGraph() {
+        synchronized (renderingLock) {
+            try {
+                recordingMotionGraph = null;
+                if (diagnosticsRecorder.replay(this::renderDiagnostics)
+                        && recordingMotionGraph != null
+                        && rearrangeGraph()) {
+                    motionGraph = recordingMotionGraph;
+                    return true;
+                }
+            }
+            catch (Exception e) {
+                Logger.error("Motion diagnostics rendering failed: {}", e);
+            }
+            finally {
+                recordingMotionGraph = null;
+            }
+            return false;
+        }
+    }
 
-            Double d = moveToCommand.getTimeDuration(); 
-            AxesLocation recordingLocation1 = recordingLocation0.put(moveToCommand.getMovedAxesLocation());
-            if (showApproximation ) {
-                for (ControllerAxis axis : plannedMotion.getLocation1().getAxes(driver)) {
-                    MotionProfile profile = plannedMotion.getAxesProfiles()[plannedMotion.getAxisIndex(axis)];
-                    if (recordingMotionGraph.getRow(axis.getName(), "s'").size() > 0 
-                            || ! profile.isEmpty()) {
-                        double t = recordingT.get(driver);
-                        SimpleGraph.DataRow sRow = recordingMotionGraph.getRow(axis.getName(), "s'");
-                        SimpleGraph.DataRow vRow = recordingMotionGraph.getRow(axis.getName()+" V", "V'");
-                        SimpleGraph.DataRow aRow = recordingMotionGraph.getRow(axis.getName()+" a", "a'");
-                        if (d != null) {
-                            d -= 3*tick;// subtract one tick to make it unique.
-                            Double v = moveToCommand.getFeedRatePerSecond();
-                            Double v0 = moveToCommand.getV0();
-                            Double v1 = moveToCommand.getV1();
-                            Double a = moveToCommand.getAccelerationPerSecond2();
-                            if (v0 != null && v1 != null && a != null) {
-                                // Approximated constant acceleration move. Reconstruct Profile.
-                                double s0 = recordingLocation0.getCoordinate(axis);
-                                double s1 = recordingLocation1.getCoordinate(axis);
-                                double factor = (s1 - s0)*factorRS274NGC;
-                                v0 *= factor;
-                                v1 *= factor;
-                                a *= factor;
-                                if (t == 0) {
-                                    sRow.recordDataPoint(t, s0);
+    /**
+     * Render one recorded sample into the recording motion graph. 
+     */
+    protected void renderDiagnostics(Motion plannedMotion, MoveToCommand moveToCommand, Driver driver, boolean firstAfterCoordination, boolean firstDriver) {
+        final double tick = 1e-7;
+        final double dt = Math.min(0.001, plannedMotion.getTime()/1000 + 1e-6); // 1ms or 1/1000 of whole motion 
+        if (recordingMotionGraph == null) {
+            startNewMotionGraph();
+            recordingT0 = plannedMotion.getPlannedTime0();
+        }
+        Double timeStart = moveToCommand.getTimeStart();
+        double planTime0 = plannedMotion.getPlannedTime0() - recordingT0;
+        if (firstAfterCoordination && firstDriver && timeStart == 0) {
+            for (Driver driver0 : getMachine().getDrivers()) {
+                recordingT.put(driver0, planTime0);
+            }
+            recordingLocation0 = plannedMotion.getLocation0();
+        }
+        AxesLocation segment = moveToCommand.getLocation0().motionSegmentTo(moveToCommand.getMovedAxesLocation());
+
+        // Calculate the factor from this single lead Axis to the rate along the relevant axes 
+        // (either linear or rotational axes, according to RS274NGC).  
+        double distance = segment.getRS274NGCMetric(driver, 
+                (axis) -> segment.getCoordinate(axis));
+        double factorRS274NGC = (distance != 0 ? 1/distance : 1);
+
+        Double d = moveToCommand.getTimeDuration(); 
+        AxesLocation recordingLocation1 = recordingLocation0.put(moveToCommand.getMovedAxesLocation());
+        if (showApproximation ) {
+            for (ControllerAxis axis : plannedMotion.getLocation1().getAxes(driver)) {
+                MotionProfile profile = plannedMotion.getAxesProfiles()[plannedMotion.getAxisIndex(axis)];
+                if (recordingMotionGraph.getRow(axis.getName(), "s'").size() > 0 
+                        || ! profile.isEmpty()) {
+                    double t = recordingT.get(driver);
+                    SimpleGraph.DataRow sRow = recordingMotionGraph.getRow(axis.getName(), "s'");
+                    SimpleGraph.DataRow vRow = recordingMotionGraph.getRow(axis.getName()+" V", "V'");
+                    SimpleGraph.DataRow aRow = recordingMotionGraph.getRow(axis.getName()+" a", "a'");
+                    if (d != null) {
+                        d -= 3*tick;// subtract one tick to make it unique.
+                        Double v = moveToCommand.getFeedRatePerSecond();
+                        Double v0 = moveToCommand.getV0();
+                        Double v1 = moveToCommand.getV1();
+                        Double a = moveToCommand.getAccelerationPerSecond2();
+                        if (v0 != null && v1 != null && a != null) {
+                            // Approximated constant acceleration move. Reconstruct Profile.
+                            double s0 = recordingLocation0.getCoordinate(axis);
+                            double s1 = recordingLocation1.getCoordinate(axis);
+                            double factor = (s1 - s0)*factorRS274NGC;
+                            v0 *= factor;
+                            v1 *= factor;
+                            a *= factor;
+                            if (t == 0) {
+                                sRow.recordDataPoint(t, s0);
+                            }
+                            sRow.recordDataPoint(t+d, s1);
+                            boolean done = false;
+                            if (v != null && plannedMotion.getTime() == moveToCommand.getTimeDuration()) { 
+                                // Single trapezoidal move
+                                v *= factor;
+                                double t0 = (v-v0)/a;
+                                double t1 = (v-v1)/a;
+                                double tMid = d-t0-t1;
+                                if (tMid < tick) {
+                                    if (t0 > t1) {
+                                        t0 = Math.max(0, d-t1-tick*3);
+                                    } else {
+                                        t1 = Math.max(0, d-t0-tick*3);
+                                    }
+                                    tMid = d-t0-t1;
                                 }
-                                sRow.recordDataPoint(t+d, s1);
-                                boolean done = false;
-                                if (v != null && plannedMotion.getTime() == moveToCommand.getTimeDuration()) { 
-                                    // Single trapezoidal move
-                                    v *= factor;
-                                    double t0 = (v-v0)/a;
-                                    double t1 = (v-v1)/a;
-                                    double tMid = d-t0-t1;
-                                    if (tMid < tick) {
-                                        if (t0 > t1) {
-                                            t0 = Math.max(0, d-t1-tick*3);
-                                        } else {
-                                            t1 = Math.max(0, d-t0-tick*3);
-                                        }
-                                        tMid = d-t0-t1;
+                                if ((t0 > 2*tick || t1 > 2*tick) && tMid >= 0) {
+                                    // Valid Trapezoidal.
+                                    vRow.recordDataPoint(t+t0, v);
+                                    vRow.recordDataPoint(t+d-t1, v);
+                                    if (t0 > tick*2) {
+                                        aRow.recordDataPoint(t, a);
+                                        aRow.recordDataPoint(t+t0-tick, a);
+                                    }
+                                    if (tMid > tick*4) {
+                                        aRow.recordDataPoint(t+t0, 0);
+                                        aRow.recordDataPoint(t+d-t1, 0);
+                                    }
+                                    if (t1 > tick*2) {
+                                        aRow.recordDataPoint(t+d-t1+tick, -a);
+                                        aRow.recordDataPoint(t+d, -a);
                                     }
-                                    if ((t0 > 2*tick || t1 > 2*tick) && tMid >= 0) {
-                                        // Valid Trapezoidal.
-                                        vRow.recordDataPoint(t+t0, v);
-                                        vRow.recordDataPoint(t+d-t1, v);
-                                        if (t0 > tick*2) {
-                                            aRow.recordDataPoint(t, a);
-                                            aRow.recordDataPoint(t+t0-tick, a);
-                                        }
-                                        if (tMid > tick*4) {
-                                            aRow.recordDataPoint(t+t0, 0);
-                                            aRow.recordDataPoint(t+d-t1, 0);
-                                        }
-                                        if (t1 > tick*2) {
-                                            aRow.recordDataPoint(t+d-t1+tick, -a);
-                                            aRow.recordDataPoint(t+d, -a);
-                                        }
-                                        // s Forward
-                                        for (double ts = dt; ts <= t0; ts += dt) {
-                                            double sm = s0 + v0*ts + 1./2*a*Math.pow(ts, 2);
-                                            sRow.recordDataPoint(t+ts, sm);
-                                        }
-                                        // s Backward
-                                        for (double ts = dt; ts <= t1; ts += dt) {
-                                            double sm = s1 - v1*ts - 1./2*a*Math.pow(ts, 2);
-                                            sRow.recordDataPoint(t+d-ts, sm);
-                                        }
-                                        done = true;
+                                    // s Forward
+                                    for (double ts = dt; ts <= t0; ts += dt) {
+                                        double sm = s0 + v0*ts + 1./2*a*Math.pow(ts, 2);
+                                        sRow.recordDataPoint(t+ts, sm);
                                     }
+                                    // s Backward
+                                    for (double ts = dt; ts <= t1; ts += dt) {
+                                        double sm = s1 - v1*ts - 1./2*a*Math.pow(ts, 2);
+                                        sRow.recordDataPoint(t+d-ts, sm);
+                                    }
+                                    done = true;
                                 }
-                                if (! done) {
-                                    if (d > 0) {
-                                        // One-sided ramp.
-                                        // Acceleration is deduced from v0, v1 rather than from the given acceleration.
-                                        a = (v1 - v0)/d;
-                                        // s Ramp
-                                        for (double ts = dt; ts < d; ts += dt) {
-                                            double sm = s0 + v0*ts + 1./2*a*Math.pow(ts, 2);
-                                            sRow.recordDataPoint(t+ts, sm);
-                                        }
-                                        aRow.recordDataPoint(t, a);
-                                        aRow.recordDataPoint(t+d, a);
+                            }
+                            if (! done) {
+                                if (d > 0) {
+                                    // One-sided ramp.
+                                    // Acceleration is deduced from v0, v1 rather than from the given acceleration.
+                                    a = (v1 - v0)/d;
+                                    // s Ramp
+                                    for (double ts = dt; ts < d; ts += dt) {
+                                        double sm = s0 + v0*ts + 1./2*a*Math.pow(ts, 2);
+                                        sRow.recordDataPoint(t+ts, sm);
                                     }
+                                    aRow.recordDataPoint(t, a);
+                                    aRow.recordDataPoint(t+d, a);
+                                }
 //                                    else {
 //                                        aRow.recordDataPoint(t, 0);
 //                                        aRow.recordDataPoint(t+d, 0);
 //                                    }
-                                }
-                                vRow.recordDataPoint(t, v0);
-                                vRow.recordDataPoint(t+d, v1);
-                            }
-                            // Nick to zero
-                            aRow.recordDataPoint(t-tick, 0);
-                            aRow.recordDataPoint(t+d+tick, 0);
-                        }
-                        else if (timeStart == 0 && driver.getMotionControlType().isUnpredictable()) {
-                            // No approximation possible due to driver setting. Just connect s and show limits to illustrate.
-                            d = plannedMotion.getTime()-3*tick;
-                            sRow.recordDataPoint(t, profile.getMomentaryLocation(0));
-                            sRow.recordDataPoint(t+d, profile.getMomentaryLocation(d));
-                            if (vRow.size() == 0) {
-                                vRow.recordDataPoint(t+d*0.45, profile.getVelocityMax());
-                                vRow.recordDataPoint(t+d*0.55, profile.getVelocityMax());
-                            }
-                            if (! profile.isConstantAcceleration()) {
-                                if (aRow.size() == 0) {
-                                    aRow.recordDataPoint(t+d*0.2, profile.getAccelerationMax());
-                                    aRow.recordDataPoint(t+d*0.3, profile.getAccelerationMax());
-                                }
                             }
-                            // Nick to zero
-                            aRow.recordDataPoint(t-tick, 0);
-                            aRow.recordDataPoint(t+d+tick, 0);
+                            vRow.recordDataPoint(t, v0);
+                            vRow.recordDataPoint(t+d, v1);
                         }
+                        // Nick to zero
+                        aRow.recordDataPoint(t-tick, 0);
+                        aRow.recordDataPoint(t+d+tick, 0);
                     }
-                }
-                // Remember were we were.
-                if (moveToCommand.getTimeDuration() != null) {
-                    recordingT.put(driver, recordingT.get(driver) + moveToCommand.getTimeDuration());
-                }
-                recordingLocation0 = recordingLocation1; 
-            }
-
-            if (timeStart == 0 && firstDriver) {
-                // First interpolation command: Show the planned/non-interpolated motion.
-                double tm = planTime0;
-                double dm = plannedMotion.getTime() - 3*tick;
-                AxesLocation segmentAll = plannedMotion.getLocation0().motionSegmentTo(plannedMotion.getLocation1());
-                for (ControllerAxis axis : plannedMotion.getLocation1().getControllerAxes()) {
-                    if (segmentAll.contains(axis) || recordingMotionGraph.getRow(axis.getName(), "s").size() > 0) {
-                        MotionProfile profile = plannedMotion.getAxesProfiles()[plannedMotion.getAxisIndex(axis)];
-                        SimpleGraph.DataRow sRow = recordingMotionGraph.getRow(axis.getName(), "s");
-                        SimpleGraph.DataRow vRow = recordingMotionGraph.getRow(axis.getName()+" V", "V");
-                        SimpleGraph.DataRow aRow = recordingMotionGraph.getRow(axis.getName()+" a", "a");
-                        SimpleGraph.DataRow jRow = null;
-                        if (!profile.isConstantAcceleration()) {
-                            jRow = recordingMotionGraph.getRow(axis.getName()+" j", "j");
+                    else if (timeStart == 0 && driver.getMotionControlType().isUnpredictable()) {
+                        // No approximation possible due to driver setting. Just connect s and show limits to illustrate.
+                        d = plannedMotion.getTime()-3*tick;
+                        sRow.recordDataPoint(t, profile.getMomentaryLocation(0));
+                        sRow.recordDataPoint(t+d, profile.getMomentaryLocation(d));
+                        if (vRow.size() == 0) {
+                            vRow.recordDataPoint(t+d*0.45, profile.getVelocityMax());
+                            vRow.recordDataPoint(t+d*0.55, profile.getVelocityMax());
                         }
-                        for (double ts = 0; ts <= dm; ts += dt) {
-                            double s = profile.getMomentaryLocation(ts);
-                            double v = profile.getMomentaryVelocity(ts);
-                            double a = profile.getMomentaryAcceleration(ts);
-                            sRow.recordDataPoint(tm + ts, s);
-                            vRow.recordDataPoint(tm + ts, v);
-                            aRow.recordDataPoint(tm + ts, a);
-                            if (jRow != null) {
-                                double j = profile.getMomentaryJerk(ts);
-                                jRow.recordDataPoint(tm + ts, j);
+                        if (! profile.isConstantAcceleration()) {
+                            if (aRow.size() == 0) {
+                                aRow.recordDataPoint(t+d*0.2, profile.getAccelerationMax());
+                                aRow.recordDataPoint(t+d*0.3, profile.getAccelerationMax());
                             }
                         }
-                        aRow.recordDataPoint(tm - tick, 0);
-                        aRow.recordDataPoint(tm + dm + tick, 0);
+                        // Nick to zero
+                        aRow.recordDataPoint(t-tick, 0);
+                        aRow.recordDataPoint(t+d+tick, 0);
+                    }
+                }
+            }
+            // Remember were we were.
+            if (moveToCommand.getTimeDuration() != null) {
+                recordingT.put(driver, recordingT.get(driver) + moveToCommand.getTimeDuration());
+            }
+            recordingLocation0 = recordingLocation1; 
+        }
+
+        if (timeStart == 0 && firstDriver) {
+            // First interpolation command: Show the planned/non-interpolated motion.
+            double tm = planTime0;
+            double dm = plannedMotion.getTime() - 3*tick;
+            AxesLocation segmentAll = plannedMotion.getLocation0().motionSegmentTo(plannedMotion.getLocation1());
+            for (ControllerAxis axis : plannedMotion.getLocation1().getControllerAxes()) {
+                if (segmentAll.contains(axis) || recordingMotionGraph.getRow(axis.getName(), "s").size() > 0) {
+                    MotionProfile profile = plannedMotion.getAxesProfiles()[plannedMotion.getAxisIndex(axis)];
+                    SimpleGraph.DataRow sRow = recordingMotionGraph.getRow(axis.getName(), "s");
+                    SimpleGraph.DataRow vRow = recordingMotionGraph.getRow(axis.getName()+" V", "V");
+                    SimpleGraph.DataRow aRow = recordingMotionGraph.getRow(axis.getName()+" a", "a");
+                    SimpleGraph.DataRow jRow = null;
+                    if (!profile.isConstantAcceleration()) {
+                        jRow = recordingMotionGraph.getRow(axis.getName()+" j", "j");
+                    }
+                    for (double ts = 0; ts <= dm; ts += dt) {
+                        double s = profile.getMomentaryLocation(ts);
+                        double v = profile.getMomentaryVelocity(ts);
+                        double a = profile.getMomentaryAcceleration(ts);
+                        sRow.recordDataPoint(tm + ts, s);
+                        vRow.recordDataPoint(tm + ts, v);
+                        aRow.recordDataPoint(tm + ts, a);
                         if (jRow != null) {
-                            jRow.recordDataPoint(tm - tick, 0);
-                            jRow.recordDataPoint(tm + dm + tick, 0);
+                            double j = profile.getMomentaryJerk(ts);
+                            jRow.recordDataPoint(tm + ts, j);
                         }
                     }
-                }
-                recordingMoveTimePlanned += plannedMotion.getTime();
-                if (plannedMotion.hasOption(MotionOption.InterpolationFailed)) {
-                    recordingInterpolationFailed = true;
+                    aRow.recordDataPoint(tm - tick, 0);
+                    aRow.recordDataPoint(tm + dm + tick, 0);
+                    if (jRow != null) {
+                        jRow.recordDataPoint(tm - tick, 0);
+                        jRow.recordDataPoint(tm + dm + tick, 0);
+                    }
                 }
             }
         }
@@ -671,14 +1152,21 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
     protected void publishDiagnostics() {
         if (!recordingMotionLocked) {
             super.publishDiagnostics();
-            if (rearrangeGraph()) {
+            if (diagnosticsRecorder.publish()) {
                 setMoveTimePlanned(recordingMoveTimePlanned);
                 setMoveTimeActual(null);
                 setInterpolationFailed(recordingInterpolationFailed);
-                setMotionGraph(recordingMotionGraph);
-                recordingMotionGraph = null;
-                recordingMoveTimePlanned = null;
+                recordingMoveTimePlanned = 0;
                 recordingInterpolationFailed = false;
+                if (propertyChangeSupport.hasListeners("motionGraph")) {
+                    // Somebody is watching, render the graph on the GUI thread, off the motion path.
+                    SwingUtilities.invokeLater(() -> {
+                        SimpleGraph oldValue = motionGraph;
+                        if (renderMotionGraph()) {
+                            firePropertyChange("motionGraph", oldValue, motionGraph);
+                        }
+                    });
+                }
             }
         }
     }
@@ -686,6 +1174,7 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
     public void testMotion(HeadMountable tool, boolean reverse) throws Exception {
         boolean wasDiagnosticsEnabled = isDiagnosticsEnabled(); 
         Double dt = null;
+        Location target = null;
         try {
             setDiagnosticsEnabled(false);
             double speed = getMachine().getSpeed();
@@ -706,6 +1195,7 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, midLocation2, toEndSpeed*speed);
                     }
+                    target = midLocation2;
                 }
                 if (mid1LocationEnabled && midLocation1 != initialLocation) {
                     if (!toMid2SafeZ) {
@@ -714,6 +1204,7 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, midLocation1, toMid2Speed*speed);
                     }
+                    target = midLocation1;
                 }
                 if (startLocationEnabled) {
                     if (!toMid1SafeZ) {
@@ -722,9 +1213,11 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, startLocation, toMid1Speed*speed);
                     }
+                    target = startLocation;
                 }
                 tool.waitForCompletion(CompletionType.WaitForStillstand);
                 dt = NanosecondTime.getRuntimeSeconds() - t0;
+                assertTestMotionArrived(tool, target);
             }
             else {
                 if (l.getXyzcDistanceTo(initialLocation) > 0.1) {
@@ -741,6 +1234,7 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, midLocation1, toMid1Speed*speed);
                     }
+                    target = midLocation1;
                 }
                 if (mid2LocationEnabled && midLocation2 != initialLocation) {
                     if (!toMid2SafeZ) {
@@ -749,6 +1243,7 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, midLocation2, toMid2Speed*speed);
                     }
+                    target = midLocation2;
                 }
                 if (endLocationEnabled) {
                     if (!toEndSafeZ) {
@@ -757,9 +1252,11 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
                     else {
                         MovableUtils.moveToLocationAtSafeZ(tool, endLocation, toEndSpeed*speed);
                     }
+                    target = endLocation;
                 }
                 tool.waitForCompletion(CompletionType.WaitForStillstand);
                 dt = NanosecondTime.getRuntimeSeconds() - t0;
+                assertTestMotionArrived(tool, target);
             }
         }
         finally {
@@ -776,6 +1273,27 @@ public class ReferenceAdvancedMotionPlanner extends AbstractMotionPlanner {
         }
     }
 
+    /**
+     * Asserts that the test motion has arrived at the target location. The blended Safe Z travel is validated 
+     * against the keep-out envelope as it is planned, see validateBlending(), this asserts that blending did not 
+     * change where the tool ends up.
+     * 
+     * @param tool
+     * @param target The last location moved to, or null if none.
+     * @throws Exception
+     */
+    protected void assertTestMotionArrived(HeadMountable tool, Location target) throws Exception {
+        if (target == null) {
+            return;
+        }
+        Location location = tool.getLocation().convertToUnits(LengthUnit.Millimeters);
+        double distance = location.getXyzcDistanceTo(target.convertToUnits(LengthUnit.Millimeters));
+        if (distance > 0.1) {
+            throw new Exception("Test motion of "+tool.getName()+" ended at "+location+" instead of "+target
+                    +" ("+String.format(Locale.US, "%.3f", distance)+"mm off).");
+        }
+    }
+
     public Location getInitialLocation(boolean reverse) {
         Location location = null;
         if (reverse) {
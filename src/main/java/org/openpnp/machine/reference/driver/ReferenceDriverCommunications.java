@@ -20,6 +20,7 @@
 package org.openpnp.machine.reference.driver;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.concurrent.TimeoutException;
 
 import org.simpleframework.xml.Attribute;
@@ -29,6 +30,9 @@ import org.simpleframework.xml.Attribute;
  *
  * This Driver interface is intended to model the minimum required functions to transfer
  * data from OpenPnP to a hardware controller.
+ * 
+ * Reading is buffered: implementations hand over whatever bytes are available in bulk through 
+ * readBytes() and the LineReader serves single bytes and lines from its buffer.
  */
 public abstract class ReferenceDriverCommunications {
     public enum LineEndingType {
@@ -50,6 +54,8 @@ public abstract class ReferenceDriverCommunications {
     @Attribute(required=false)
     protected LineEndingType lineEndingType = LineEndingType.LF;
 
+    private final LineReader lineReader = new LineReader(this::readBytes, LineReader.defaultCapacity);
+
     abstract public void connect() throws Exception;
     abstract public void disconnect() throws Exception;
 
@@ -57,7 +63,37 @@ public abstract class ReferenceDriverCommunications {
 
     abstract public void writeBytes(byte[] data) throws IOException;
 
-    abstract public int read() throws TimeoutException, IOException;
+    /**
+     * Read the bytes that are available, at least one. Blocks for the default timeout. If the read 
+     * times out a TimeoutException is thrown. Any other failure to read results in an IOExeption;
+     * 
+     * @param buffer
+     * @param offset
+     * @param length The maximum number of bytes to read.
+     * @return The number of bytes read, or -1 if the end of the stream is reached.
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    abstract protected int readBytes(byte[] buffer, int offset, int length) throws TimeoutException, IOException;
+
+    /**
+     * Read one byte from the input stream. Blocks for the default timeout. If the read times out a
+     * TimeoutException is thrown. Any other failure to read results in an IOExeption;
+     * 
+     * @return The byte as an unsigned value 0-255, or -1 if the end of the stream is reached.
+     * @throws TimeoutException
+     * @throws IOException
+     */
+    public int read() throws TimeoutException, IOException {
+        return lineReader.read();
+    }
+
+    /**
+     * Discard any buffered input, typically when (re-)connecting.
+     */
+    protected void clearReadBuffer() {
+        lineReader.clear();
+    }
 
     /**
      * Read a line from the input stream. Blocks for the default timeout. If the read times out a
@@ -86,21 +122,7 @@ public abstract class ReferenceDriverCommunications {
      * @throws IOException
      */
     public String readUntil(String characters) throws TimeoutException, IOException {
-        StringBuffer line = new StringBuffer();
-        while (true) {
-            int ch = read();
-            if (ch == -1) {
-                return null;
-            }
-            else if (characters.indexOf((char)ch) >= 0) {
-                if (line.length() > 0) {
-                    return line.toString();
-                }
-            }
-            else {
-                line.append((char) ch);
-            }
-        }
+        return lineReader.readUntil(characters);
     }
 
     public void write(int d) throws IOException {
@@ -115,4 +137,128 @@ public abstract class ReferenceDriverCommunications {
     public LineEndingType getLineEndingType() {
         return lineEndingType;
     }
+
+    /**
+     * Reads bytes in bulk from a Source into a reusable buffer and scans the buffer for lines. A line
+     * is decoded straight from the buffer, one byte per character, so no intermediate copies are made.
+     * If a line does not fit the buffer, the buffer grows.
+     * 
+     * Incomplete lines are kept in the buffer, i.e. a timeout does not lose any input. 
+     * 
+     * This class is not thread-safe, it is meant to be used by one reader thread. 
+     */
+    public static class LineReader {
+        public static final int defaultCapacity = 4096;
+
+        public interface Source {
+            /**
+             * @see ReferenceDriverCommunications#readBytes(byte[], int, int)
+             */
+            int read(byte[] buffer, int offset, int length) throws TimeoutException, IOException;
+        }
+
+        private final Source source;
+        private byte[] buffer;
+        /**
+         * Index of the next byte to be consumed.
+         */
+        private int position;
+        /**
+         * Index after the last byte read.
+         */
+        private int limit;
+
+        public LineReader(Source source, int capacity) {
+            this.source = source;
+            this.buffer = new byte[Math.max(16, capacity)];
+        }
+
+        /**
+         * @return The next byte as an unsigned value 0-255, or -1 if the end of the stream is reached.
+         * @throws TimeoutException
+         * @throws IOException
+         */
+        public int read() throws TimeoutException, IOException {
+            while (position == limit) {
+                if (!fill()) {
+                    return -1;
+                }
+            }
+            return buffer[position++] & 0xff;
+        }
+
+        /**
+         * Read until one of the characters is found. Empty lines are skipped.
+         * 
+         * @param characters list of ending characters
+         * @return The line without the ending character, or null if the end of the stream is reached.
+         * @throws TimeoutException
+         * @throws IOException
+         */
+        public String readUntil(String characters) throws TimeoutException, IOException {
+            // Offset of the next byte to scan, relative to position, so it survives compacting the buffer.
+            int scanned = 0;
+            while (true) {
+                int i = position + scanned;
+                for (; i < limit; i++) {
+                    if (characters.indexOf((char) (buffer[i] & 0xff)) >= 0) {
+                        if (i == position) {
+                            // Skip the empty line.
+                            position++;
+                        }
+                        else {
+                            String line = new String(buffer, position, i - position, StandardCharsets.ISO_8859_1);
+                            position = i + 1;
+                            return line;
+                        }
+                    }
+                }
+                scanned = limit - position;
+                if (!fill()) {
+                    return null;
+                }
+            }
+        }
+
+        /**
+         * Discard any buffered input.
+         */
+        public void clear() {
+            position = 0;
+            limit = 0;
+        }
+
+        /**
+         * Read what is available from the source, after the buffered bytes.
+         * 
+         * @return false if the end of the stream is reached.
+         * @throws TimeoutException
+         * @throws IOException
+         */
+        private boolean fill() throws TimeoutException, IOException {
+            if (position == limit) {
+                clear();
+            }
+            else if (limit == buffer.length) {
+                if (position > 0) {
+                    // Move the incomplete line to the front.
+                    System.arraycopy(buffer, position, buffer, 0, limit - position);
+                    limit -= position;
+                    position = 0;
+                }
+                else {
+                    // The line does not fit.
+                    byte[] grown = new byte[buffer.length*2];
+                    System.arraycopy(buffer, 0, grown, 0, limit);
+                    buffer = grown;
+                }
+            }
+            int n = source.read(buffer, limit, buffer.length - limit);
+            if (n < 0) {
+                return false;
+            }
+            limit += n;
+            return true;
+        }
+    }
 }
@@ -1,9 +1,8 @@
 package org.openpnp.machine.reference.driver;
 
-import java.io.BufferedReader;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
 import java.util.concurrent.TimeoutException;
@@ -17,7 +16,7 @@ import org.openpnp.util.GcodeServer;
  */
 public class SimulatedCommunications extends ReferenceDriverCommunications {
     protected Socket clientSocket;
-    protected BufferedReader input;
+    protected InputStream input;
     protected DataOutputStream output;
 
     protected GcodeServer gcodeServer;
@@ -26,8 +25,9 @@ public class SimulatedCommunications extends ReferenceDriverCommunications {
     public synchronized void connect() throws Exception {
         disconnect();
         clientSocket = new Socket("localhost", getGcodeServer().getListenerPort());
-        input = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
+        input = clientSocket.getInputStream();
         output = new DataOutputStream(clientSocket.getOutputStream());
+        clearReadBuffer();
     }
 
     public synchronized void disconnect() throws Exception {
@@ -55,40 +55,6 @@ public class SimulatedCommunications extends ReferenceDriverCommunications {
         return gcodeServer;
     }
 
-    /**
-     * Read a line from the socket. Blocks for the default timeout. If the read times out a
-     * TimeoutException is thrown. Any other failure to read results in an IOExeption;
-     * 
-     * @return
-     * @throws TimeoutException
-     * @throws IOException
-     */
-    public String readLine() throws TimeoutException, IOException {
-        StringBuffer line = new StringBuffer();
-        while (true) {
-            try {
-                int ch = input.read();
-                if (ch == -1) {
-                    return null;
-                }
-                else if (ch == '\n' || ch == '\r') {
-                    if (line.length() > 0) {
-                        return line.toString();
-                    }
-                }
-                else {
-                    line.append((char) ch);
-                }
-            }
-            catch (IOException ex) {
-                if (ex.getCause() instanceof SocketTimeoutException) {
-                    throw new TimeoutException(ex.getMessage());
-                }
-                throw ex;
-            }
-        }
-    }
-
     public void writeLine(String data) throws IOException
     {
         try {
@@ -100,12 +66,13 @@ public class SimulatedCommunications extends ReferenceDriverCommunications {
         }
     }
 
-    public int read() throws TimeoutException, IOException {
+    @Override
+    protected int readBytes(byte[] buffer, int offset, int length) throws TimeoutException, IOException {
         try {
-            return input.read();
+            return input.read(buffer, offset, length);
         }
         catch (IOException ex) {
-            if (ex.getCause() instanceof SocketTimeoutException) {
+            if (ex instanceof SocketTimeoutException || ex.getCause() instanceof SocketTimeoutException) {
                 throw new TimeoutException(ex.getMessage());
             }
             throw ex;
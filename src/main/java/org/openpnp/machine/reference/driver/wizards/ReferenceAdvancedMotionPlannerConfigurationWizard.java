@@ -38,6 +38,7 @@ import org.openpnp.gui.components.LocationButtonsPanel;
 import org.openpnp.gui.support.AbstractConfigurationWizard;
 import org.openpnp.gui.support.ActuatorsComboBoxModel;
 import org.openpnp.gui.support.DoubleConverter;
+import org.openpnp.gui.support.IntegerConverter;
 import org.openpnp.gui.support.LengthConverter;
 import org.openpnp.gui.support.MutableLocationProxy;
 import org.openpnp.machine.reference.driver.ReferenceAdvancedMotionPlanner;
@@ -65,6 +66,11 @@ public class ReferenceAdvancedMotionPlannerConfigurationWizard extends AbstractC
     private JPanel panelSettings;
     private JCheckBox allowContinuousMotion;
     private JCheckBox allowUncoordinated;
+    private JTextField lookAheadMoves;
+    private JTextField lookAheadTime;
+    private JCheckBox safeZBlending;
+    private JTextField blendingClearance;
+    private JCheckBox backlashBlending;
 
     private JPanel panel;
     private JLabel lblX;
@@ -155,6 +161,16 @@ public class ReferenceAdvancedMotionPlannerConfigurationWizard extends AbstractC
                         FormSpecs.RELATED_GAP_ROWSPEC,
                         FormSpecs.PREF_ROWSPEC,
                         FormSpecs.RELATED_GAP_ROWSPEC,
+                        FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC,
+                        FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC,
+                        FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC,
+                        FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC,
+                        FormSpecs.DEFAULT_ROWSPEC,
+                        FormSpecs.RELATED_GAP_ROWSPEC,
                         FormSpecs.DEFAULT_ROWSPEC,}));
 
         JLabel lblContinuousMotion = new JLabel("Allow continous motion?");
@@ -178,6 +194,44 @@ public class ReferenceAdvancedMotionPlannerConfigurationWizard extends AbstractC
         interpolationRetiming = new JCheckBox("");
         panelSettings.add(interpolationRetiming, "4, 6, right, top");
 
+        JLabel lblLookAheadMoves = new JLabel("Look-ahead Moves");
+        lblLookAheadMoves.setToolTipText("<html>\n<p>Maximum number of moves planned together in one look-ahead window, 0 for unlimited.</p>\n<p>A window is closed at the next corner, where the motion comes to still-stand anyway, <br/>\nso the planned motion is the same. With continuous motion, closed windows are executed <br/>\nright away, and the planning effort per move stays constant. Without a corner, e.g. in blended <br/>\nmoves or Safe Zone travel, the first moves are executed once twice this limit is reached.</p>\n</html>");
+        panelSettings.add(lblLookAheadMoves, "2, 8, right, default");
+
+        lookAheadMoves = new JTextField();
+        panelSettings.add(lookAheadMoves, "4, 8, fill, default");
+        lookAheadMoves.setColumns(10);
+
+        JLabel lblLookAheadTime = new JLabel("Look-ahead Time [s]");
+        lblLookAheadTime.setToolTipText("<html>\n<p>Maximum time horizon of one look-ahead window, 0 for unlimited.</p>\n<p>A window is closed at the next corner, after it has reached this time. Without a corner, <br/>\nthe first moves are executed once twice this time is reached.</p>\n</html>");
+        panelSettings.add(lblLookAheadTime, "2, 10, right, default");
+
+        lookAheadTime = new JTextField();
+        panelSettings.add(lookAheadTime, "4, 10, fill, default");
+        lookAheadTime.setColumns(10);
+
+        JLabel lblSafeZBlending = new JLabel("Safe Z Blending?");
+        lblSafeZBlending.setToolTipText("<html>\n<p>Blend the Z-up and Z-down moves of a Safe Z sequence into the travel move, i.e. start <br/>\nthe travel before Z has reached Safe Z and start the descent before the travel has arrived.</p>\n<p>Requires continuous motion and uncoordinated motion.</p>\n</html>");
+        panelSettings.add(lblSafeZBlending, "2, 12, right, default");
+
+        safeZBlending = new JCheckBox("");
+        panelSettings.add(safeZBlending, "4, 12");
+
+        JLabel lblBlendingClearance = new JLabel("Blending Clearance");
+        lblBlendingClearance.setToolTipText("<html>\n<p>How far below the Safe Zone the nozzle may be, while travelling. The blended motion <br/>\nis limited to this keep-out envelope and validated against it.</p>\n</html>");
+        panelSettings.add(lblBlendingClearance, "2, 14, right, default");
+
+        blendingClearance = new JTextField();
+        panelSettings.add(blendingClearance, "4, 14, fill, default");
+        blendingClearance.setColumns(10);
+
+        JLabel lblBacklashBlending = new JLabel("Backlash Blending?");
+        lblBacklashBlending.setToolTipText("<html>\n<p>Blend the final approach of one-sided backlash compensation into the preceding move, <br/>\ni.e. the axes reverse at the compensation waypoint without the whole machine coming to a stop.</p>\n<p>The backlash compensation method is still selected on each axis.</p>\n<p>Requires continuous motion and uncoordinated motion.</p>\n</html>");
+        panelSettings.add(lblBacklashBlending, "2, 16, right, default");
+
+        backlashBlending = new JCheckBox("");
+        panelSettings.add(backlashBlending, "4, 16");
+
         panel = new JPanel();
         panel.setBorder(new TitledBorder(UIManager.getBorder("TitledBorder.border"), "Test Motion", TitledBorder.LEADING, TitledBorder.TOP, null));
         contentPanel.add(panel);
@@ -429,6 +483,11 @@ public class ReferenceAdvancedMotionPlannerConfigurationWizard extends AbstractC
         addWrappedBinding(motionPlanner, "allowContinuousMotion", allowContinuousMotion, "selected");
         addWrappedBinding(motionPlanner, "allowUncoordinated", allowUncoordinated, "selected");
         addWrappedBinding(motionPlanner, "interpolationRetiming", interpolationRetiming, "selected");
+        addWrappedBinding(motionPlanner, "lookAheadMoves", lookAheadMoves, "text", new IntegerConverter());
+        addWrappedBinding(motionPlanner, "lookAheadTime", lookAheadTime, "text", doubleConverter);
+        addWrappedBinding(motionPlanner, "safeZBlending", safeZBlending, "selected");
+        addWrappedBinding(motionPlanner, "blendingClearance", blendingClearance, "text", lengthConverter);
+        addWrappedBinding(motionPlanner, "backlashBlending", backlashBlending, "selected");
 
         addWrappedBinding(motionPlanner, "startLocationEnabled", startLocationEnabled, "selected");
         addWrappedBinding(motionPlanner, "mid1LocationEnabled", mid1LocationEnabled, "selected");
@@ -495,6 +554,10 @@ public class ReferenceAdvancedMotionPlannerConfigurationWizard extends AbstractC
         addWrappedBinding(endLocation, "rotation", textFieldEndRotation, "text",
                 doubleConverter);
 
+        ComponentDecorators.decorateWithAutoSelect(lookAheadMoves);
+        ComponentDecorators.decorateWithAutoSelect(lookAheadTime);
+        ComponentDecorators.decorateWithAutoSelectAndLengthConversion(blendingClearance);
+
         ComponentDecorators.decorateWithAutoSelectAndLengthConversion(textFieldStartX);
         ComponentDecorators.decorateWithAutoSelectAndLengthConversion(textFieldStartY);
         ComponentDecorators.decorateWithAutoSelectAndLengthConversion(textFieldStartZ);
@@ -19,6 +19,8 @@
 
 package org.openpnp.machine.reference.feeder;
 
+import java.util.concurrent.Future;
+
 import javax.swing.Action;
 
 import org.openpnp.ConfigurationListener;
@@ -102,6 +104,22 @@ public class ReferenceAutoFeeder extends ReferenceFeeder {
         // Note by using the Object generic method, the value will be properly interpreted according to actuator.valueType.
         actuator.actuate((Object)actuatorValue);
     }
+
+    @Override
+    public Future<?> feedAhead(Nozzle nozzle) throws Exception {
+        if (isMoveBeforeFeed() || actuatorName == null || actuatorName.equals("")) {
+            return null;
+        }
+        Actuator actuator = nozzle.getHead().getActuatorByName(actuatorName);
+        if (actuator == null) {
+            actuator = Configuration.get().getMachine().getActuatorByName(actuatorName);
+        }
+        final Actuator feedActuator = actuator;
+        return submitFeedAhead(feedActuator, () -> {
+            feedActuator.actuate((Object)actuatorValue);
+            return null;
+        });
+    }
     
     @Override
     public void postPick(Nozzle nozzle) throws Exception {
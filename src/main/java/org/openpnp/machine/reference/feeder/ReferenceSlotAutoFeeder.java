@@ -1,6 +1,7 @@
 package org.openpnp.machine.reference.feeder;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 import org.openpnp.ConfigurationListener;
 import org.openpnp.gui.support.Wizard;
@@ -79,6 +80,14 @@ public class ReferenceSlotAutoFeeder extends ReferenceAutoFeeder {
         super.feed(nozzle);
     }
 
+    @Override
+    public Future<?> feedAhead(Nozzle nozzle) throws Exception {
+        if (getFeeder() == null) {
+            return null;
+        }
+        return super.feedAhead(nozzle);
+    }
+
     @Override
     public void postPick(Nozzle nozzle) throws Exception {
         if (getFeeder() == null) {
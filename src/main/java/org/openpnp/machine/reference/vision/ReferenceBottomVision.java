@@ -7,6 +7,7 @@ import java.util.Map;
 import javax.swing.Action;
 import javax.swing.Icon;
 
+import org.opencv.core.Mat;
 import org.opencv.core.Point;
 import org.opencv.core.RotatedRect;
 import org.opencv.core.Size;
@@ -27,7 +28,9 @@ import org.openpnp.util.OpenCvUtils;
 import org.openpnp.util.Utils2D;
 import org.openpnp.util.VisionUtils;
 import org.openpnp.vision.pipeline.CvPipeline;
+import org.openpnp.vision.pipeline.CvStage;
 import org.openpnp.vision.pipeline.CvStage.Result;
+import org.openpnp.vision.pipeline.stages.ImageCapture;
 import org.pmw.tinylog.Logger;
 import org.simpleframework.xml.Attribute;
 import org.simpleframework.xml.Element;
@@ -90,6 +93,108 @@ public class ReferenceBottomVision implements PartAlignment {
         }
     }
 
+    /**
+     * The result of {@link ReferenceBottomVision#captureForOffsets(Part, BoardLocation, Location, Nozzle)},
+     * to be analyzed by {@link ReferenceBottomVision#analyzeCapture(Capture)}.
+     */
+    public static class Capture {
+        private final Part part;
+        private final Nozzle nozzle;
+        private final Camera camera;
+        private final PartSettings partSettings;
+        private final Mat image;
+
+        protected Capture(Part part, Nozzle nozzle, Camera camera, PartSettings partSettings,
+                Mat image) {
+            this.part = part;
+            this.nozzle = nozzle;
+            this.camera = camera;
+            this.partSettings = partSettings;
+            this.image = image;
+        }
+
+        public Part getPart() {
+            return part;
+        }
+
+        public Nozzle getNozzle() {
+            return nozzle;
+        }
+
+        /**
+         * Release the captured image, if the capture is not going to be analyzed.
+         */
+        public void release() {
+            image.release();
+        }
+    }
+
+    /**
+     * The machine half of findOffsets(): Moves the part on the nozzle over the camera and captures 
+     * the image according to the ImageCapture stage of the part's pipeline. The analysis is left
+     * to analyzeCapture(), which does not need the machine, so the job processor can move on to the 
+     * next nozzle while it runs.
+     * 
+     * Only single pass post-rotate alignment can be split like this. Pre-rotate alignment needs
+     * the machine in between its vision passes. 
+     * 
+     * @return The capture, or null if the alignment of this part cannot be split, in which case 
+     * findOffsets() must be used. 
+     * @throws Exception
+     */
+    public Capture captureForOffsets(Part part, BoardLocation boardLocation,
+            Location placementLocation, Nozzle nozzle) throws Exception {
+        PartSettings partSettings = getPartSettings(part);
+        if (!isEnabled() || !partSettings.isEnabled()) {
+            return null;
+        }
+        if ((partSettings.getPreRotateUsage() == PreRotateUsage.DEFAULT && preRotate)
+                || (partSettings.getPreRotateUsage() == PreRotateUsage.ALWAYS_ON)) {
+            return null;
+        }
+        if (part == null || nozzle.getPart() == null) {
+            throw new Exception("No part on nozzle.");
+        }
+        if (part != nozzle.getPart()) {
+            throw new Exception("Part mismatch with part on nozzle.");
+        }
+        ImageCapture imageCapture = null;
+        for (CvStage stage : part.getCvPipeline().getStages()) {
+            if (stage.isEnabled() && stage instanceof ImageCapture) {
+                imageCapture = (ImageCapture) stage;
+                break;
+            }
+        }
+        if (imageCapture == null) {
+            return null;
+        }
+
+        Camera camera = VisionUtils.getBottomVisionCamera();
+        Location wantedLocation = getCameraLocationAtPartHeight(part, camera, nozzle, 0.);
+        MovableUtils.moveToLocationAtSafeZ(nozzle, wantedLocation);
+        return new Capture(part, nozzle, camera, partSettings, imageCapture.capture(camera));
+    }
+
+    /**
+     * The analysis half of findOffsets(), see captureForOffsets(). This does not use the machine
+     * and may be called on any thread. It processes a copy of the part's pipeline, so several 
+     * captures may be analyzed at the same time. 
+     * 
+     * @param capture
+     * @return The offsets, same as findOffsets().
+     * @throws Exception
+     */
+    public PartAlignmentOffset analyzeCapture(Capture capture) throws Exception {
+        try (CvPipeline cvPipeline = capture.part.getCvPipeline().clone()) {
+            cvPipeline.setProperty(ImageCapture.CAPTURED_IMAGE, capture.image);
+            return getPostRotateOffsets(cvPipeline, capture.part, capture.nozzle, capture.camera,
+                    capture.partSettings);
+        }
+        finally {
+            capture.release();
+        }
+    }
+
     public Location getCameraLocationAtPartHeight(Part part, Camera camera, Nozzle nozzle, double angle) throws Exception {
         if (part.isPartHeightUnknown()) {
             if (camera.getFocusProvider() != null
@@ -231,46 +336,51 @@ public class ReferenceBottomVision implements PartAlignment {
         MovableUtils.moveToLocationAtSafeZ(nozzle, wantedLocation);
 
         try (CvPipeline cvPipeline = part.getCvPipeline()) {
-            RotatedRect rect = processPipelineAndGetResult(cvPipeline, camera, part, nozzle);
-            camera=(Camera)cvPipeline.getProperty(CAMERA);
-
-            Logger.debug("Bottom vision part {} result rect {}", part.getId(), rect);
-
-            // Create the offsets object. This is the physical distance from
-            // the center of the camera to the located part.
-            Location offsets = VisionUtils.getPixelCenterOffsets(camera, rect.center.x, rect.center.y);
-
-            double angleOffset = VisionUtils.getPixelAngle(camera, rect.angle);
-            // Most OpenCV Pipelines can only tell us the angle of the recognized rectangle in a   
-            // wrapping-around range of 0° .. 90° as it has no notion of which rectangle side 
-            // is which. We can assume that the part is never picked more than +/-45º rotated.
-            // So we change the range wrapping-around to -45° .. +45°. See angleNorm():
-            if (partSettings.getMaxRotation() == MaxRotation.ADJUST) {
-                angleOffset = angleNorm(angleOffset);
-            } else {
-                // turning more than 180° in one direction makes no sense
-                angleOffset = angleNorm(angleOffset, 180);
-            }
-            
-            if (!partSizeCheck(part, partSettings, rect, camera) ) {
-                throw new Exception(String.format(
-                        "ReferenceBottomVision (%s): Incorrect part size.",
-                        part.getId() 
-                        ));          	
-            }
+            return getPostRotateOffsets(cvPipeline, part, nozzle, camera, partSettings);
+        }
+    }
 
-            // Set the angle on the offsets.
-            offsets = offsets.derive(null, null, null, angleOffset);
-            
-            // subtract visionCenterOffset
-            offsets = offsets.subtract(partSettings.getVisionOffset().rotateXy(offsets.getRotation()));
-            
-            Logger.debug("Final offsets {}", offsets);
+    private PartAlignmentOffset getPostRotateOffsets(CvPipeline cvPipeline, Part part,
+            Nozzle nozzle, Camera camera, PartSettings partSettings) throws Exception {
+        RotatedRect rect = processPipelineAndGetResult(cvPipeline, camera, part, nozzle);
+        camera=(Camera)cvPipeline.getProperty(CAMERA);
 
-            displayResult(cvPipeline, part, offsets, camera);
+        Logger.debug("Bottom vision part {} result rect {}", part.getId(), rect);
 
-            return new PartAlignmentOffset(offsets, false);
+        // Create the offsets object. This is the physical distance from
+        // the center of the camera to the located part.
+        Location offsets = VisionUtils.getPixelCenterOffsets(camera, rect.center.x, rect.center.y);
+
+        double angleOffset = VisionUtils.getPixelAngle(camera, rect.angle);
+        // Most OpenCV Pipelines can only tell us the angle of the recognized rectangle in a   
+        // wrapping-around range of 0° .. 90° as it has no notion of which rectangle side 
+        // is which. We can assume that the part is never picked more than +/-45º rotated.
+        // So we change the range wrapping-around to -45° .. +45°. See angleNorm():
+        if (partSettings.getMaxRotation() == MaxRotation.ADJUST) {
+            angleOffset = angleNorm(angleOffset);
+        } else {
+            // turning more than 180° in one direction makes no sense
+            angleOffset = angleNorm(angleOffset, 180);
         }
+        
+        if (!partSizeCheck(part, partSettings, rect, camera) ) {
+            throw new Exception(String.format(
+                    "ReferenceBottomVision (%s): Incorrect part size.",
+                    part.getId() 
+                    ));          	
+        }
+
+        // Set the angle on the offsets.
+        offsets = offsets.derive(null, null, null, angleOffset);
+        
+        // subtract visionCenterOffset
+        offsets = offsets.subtract(partSettings.getVisionOffset().rotateXy(offsets.getRotation()));
+        
+        Logger.debug("Final offsets {}", offsets);
+
+        displayResult(cvPipeline, part, offsets, camera);
+
+        return new PartAlignmentOffset(offsets, false);
     }
     
     
@@ -38,6 +38,7 @@ import org.openpnp.model.Placement.Type;
 import org.openpnp.model.Point;
 import org.openpnp.spi.Camera;
 import org.openpnp.spi.FiducialLocator;
+import org.openpnp.spi.JobProcessor.JobProcessorException;
 import org.openpnp.spi.PropertySheetHolder;
 import org.openpnp.util.IdentifiableList;
 import org.openpnp.util.MovableUtils;
@@ -90,52 +91,24 @@ public class ReferenceFiducialLocator implements FiducialLocator {
     }
     
     public Location locateBoard(BoardLocation boardLocation, boolean checkPanel) throws Exception {
-        List<Placement> fiducials;
-
-        Side boardSide = boardLocation.getSide();  // save for later
-        Location savedBoardLocation = boardLocation.getLocation();
-        AffineTransform savedPlacementTransform = boardLocation.getPlacementTransform();
-       
-        if (checkPanel) {
-            Panel panel = MainFrame.get().getJobTab().getJob().getPanels()
-                    .get(boardLocation.getPanelId());
-            fiducials = panel.getFiducials();
-            // If we are looking for panel fiducials, we need to treat the board as top side
-            boardLocation.setSide(Side.Top);
-        }
-        else {
-            fiducials = getFiducials(boardLocation);
-        }
-
-        if (fiducials.size() < 2) {
-            throw new Exception(String.format(
-                    "The board side contains only %d placements marked as fiducials, but at least 2 are required.",
-                    fiducials.size()));
-        }
+        FiducialTarget target = new FiducialTarget(boardLocation, checkPanel);
 
         // Clear the current transform so it doesn't potentially send us to the wrong spot
         // to find the fiducials.
         boardLocation.setPlacementTransform(null);
+        target.computeNominalLocations();
 
-        //Define where the fiducial trip will begin
-        Location currentCameraLocation = new Location(LengthUnit.Millimeters);
-        try {
-            currentCameraLocation = MainFrame.get().getMachineControls().getSelectedTool().getHead().getDefaultCamera().getLocation();
-        } catch (Exception e) {
-            currentCameraLocation = boardLocation.getLocation();
-        }
-        
         // Use a traveling salesman algorithm to optimize the path to visit the fiducials
-        TravellingSalesman<Placement> tsm = new TravellingSalesman<>(
-                fiducials, 
-                new TravellingSalesman.Locator<Placement>() { 
+        TravellingSalesman<FiducialVisit> tsm = new TravellingSalesman<>(
+                target.visits, 
+                new TravellingSalesman.Locator<FiducialVisit>() { 
                     @Override
-                    public Location getLocation(Placement locatable) {
-                        return Utils2D.calculateBoardPlacementLocation(boardLocation, locatable.getLocation());
+                    public Location getLocation(FiducialVisit locatable) {
+                        return locatable.nominalLocation;
                     }
                 }, 
                 // start from current camera location
-                currentCameraLocation,
+                getCurrentCameraLocation(boardLocation),
                 // and end at the board origin
                 boardLocation.getLocation());
 
@@ -143,72 +116,267 @@ public class ReferenceFiducialLocator implements FiducialLocator {
         tsm.solve();
 
         // Visit each fiducial and store its expected and measured location
-        List<Location> expectedLocations = new ArrayList<>();
-        List<Location> measuredLocations = new ArrayList<>();
-        for (Placement fiducial : tsm.getTravel()) {
-            Location measuredLocation = getFiducialLocation(boardLocation, fiducial);
+        for (FiducialVisit visit : tsm.getTravel()) {
+            visit.measure();
+        }
+        
+        return target.deriveTransform();
+    }
+
+    /**
+     * Locate the boards and the panel in one pass: The fiducials of all of them are visited in
+     * one combined tour, and only then the placement transform of each board is derived. This 
+     * saves the camera from going back and forth between the boards of a panel.
+     * 
+     * @param panelBoardLocation The BoardLocation through which the panel fiducials are located,
+     * or null if the panel is not checked. 
+     * @param boardLocations The BoardLocations to locate with their own fiducials.
+     * @throws JobProcessorException with the BoardLocation that failed as its source. The boards
+     * located before keep their new placement transform, the others get their previous one back.
+     */
+    @Override
+    public void locateBoards(BoardLocation panelBoardLocation, List<BoardLocation> boardLocations) 
+            throws Exception {
+        List<FiducialTarget> targets = new ArrayList<>();
+        if (panelBoardLocation != null) {
+            targets.add(createTarget(panelBoardLocation, true));
+        }
+        for (BoardLocation boardLocation : boardLocations) {
+            targets.add(createTarget(boardLocation, false));
+        }
+        if (targets.isEmpty()) {
+            return;
+        }
+        // Clear the current transforms, before any of the nominal locations are computed.
+        for (FiducialTarget target : targets) {
+            target.boardLocation.setPlacementTransform(null);
+        }
+        List<FiducialVisit> visits = new ArrayList<>();
+        for (FiducialTarget target : targets) {
+            target.computeNominalLocations();
+            visits.addAll(target.visits);
+        }
+
+        // One tour over all the fiducials.
+        TravellingSalesman<FiducialVisit> tsm = new TravellingSalesman<>(
+                visits, 
+                new TravellingSalesman.Locator<FiducialVisit>() { 
+                    @Override
+                    public Location getLocation(FiducialVisit locatable) {
+                        return locatable.nominalLocation;
+                    }
+                }, 
+                // start from current camera location
+                getCurrentCameraLocation(targets.get(0).boardLocation),
+                // no particular end location
+                null);
+        tsm.solve();
+
+        FiducialTarget failedTarget = null;
+        List<FiducialTarget> derivedTargets = new ArrayList<>();
+        try {
+            for (FiducialVisit visit : tsm.getTravel()) {
+                failedTarget = visit.target;
+                visit.measure();
+            }
+            // Derive the transforms in order, i.e. the panel first, like the individual checks. 
+            for (FiducialTarget target : targets) {
+                failedTarget = target;
+                target.deriveTransform();
+                derivedTargets.add(target);
+            }
+        }
+        catch (Exception e) {
+            // The boards located so far keep their new transform, the failed board is left as 
+            // the individual check leaves it, and the other boards get their transform back.
+            for (int i = targets.size() - 1; i >= 0; i--) {
+                FiducialTarget target = targets.get(i);
+                if (target.boardLocation != failedTarget.boardLocation 
+                        && !derivedTargets.contains(target)) {
+                    target.restoreTransform();
+                }
+            }
+            throw new JobProcessorException(failedTarget.boardLocation, e);
+        }
+    }
+
+    private FiducialTarget createTarget(BoardLocation boardLocation, boolean checkPanel) 
+            throws JobProcessorException {
+        try {
+            return new FiducialTarget(boardLocation, checkPanel);
+        }
+        catch (Exception e) {
+            throw new JobProcessorException(boardLocation, e);
+        }
+    }
+
+    private Location getCurrentCameraLocation(BoardLocation boardLocation) {
+        //Define where the fiducial trip will begin
+        try {
+            return MainFrame.get().getMachineControls().getSelectedTool().getHead().getDefaultCamera().getLocation();
+        } catch (Exception e) {
+            return boardLocation.getLocation();
+        }
+    }
+
+    /**
+     * A fiducial to be visited, with its expected and its measured location.
+     */
+    protected class FiducialVisit {
+        final FiducialTarget target;
+        final Placement fiducial;
+        Location nominalLocation;
+        Location measuredLocation;
+
+        FiducialVisit(FiducialTarget target, Placement fiducial) {
+            this.target = target;
+            this.fiducial = fiducial;
+        }
+
+        void measure() throws Exception {
+            measuredLocation = getFiducialLocation(nominalLocation, fiducial);
             if (measuredLocation == null) {
                 throw new Exception("Unable to locate " + fiducial.getId());
             }
-            expectedLocations.add(fiducial.getLocation().invert(boardSide==Side.Bottom, false, false, false));
-            measuredLocations.add(measuredLocation);
-            
             Logger.debug("Found {} at {}", fiducial.getId(), measuredLocation);
         }
-        
-        // Calculate the transform.
-        AffineTransform tx = Utils2D.deriveAffineTransform(expectedLocations, measuredLocations);
-        
-        // Set the transform.
-        boardLocation.setPlacementTransform(tx);
-        
-        // Return the compensated board location
-        Location origin = new Location(LengthUnit.Millimeters);
-        if (boardLocation.getSide() == Side.Bottom) {
-            origin = origin.add(boardLocation.getBoard().getDimensions().derive(null, 0., 0., 0.));
-        }
-        Location newBoardLocation = Utils2D.calculateBoardPlacementLocation(boardLocation, origin);
-        newBoardLocation = newBoardLocation.convertToUnits(boardLocation.getLocation().getUnits());
-        newBoardLocation = newBoardLocation.derive(null, null, boardLocation.getLocation().getZ(), null);
+    }
 
-        if (checkPanel) {
-            boardLocation.setSide(boardSide);	// restore side
+    /**
+     * A board to be located by its fiducials, or a panel located by its fiducials through its 
+     * first board.
+     */
+    protected class FiducialTarget {
+        final BoardLocation boardLocation;
+        final boolean checkPanel;
+        final Side boardSide;
+        final Location savedBoardLocation;
+        final AffineTransform savedPlacementTransform;
+        final List<FiducialVisit> visits = new ArrayList<>();
+
+        FiducialTarget(BoardLocation boardLocation, boolean checkPanel) throws Exception {
+            this.boardLocation = boardLocation;
+            this.checkPanel = checkPanel;
+            boardSide = boardLocation.getSide();  // save for later
+            savedBoardLocation = boardLocation.getLocation();
+            savedPlacementTransform = boardLocation.getPlacementTransform();
+
+            List<Placement> fiducials;
+            if (checkPanel) {
+                Panel panel = MainFrame.get().getJobTab().getJob().getPanels()
+                        .get(boardLocation.getPanelId());
+                fiducials = panel.getFiducials();
+            }
+            else {
+                fiducials = getFiducials(boardLocation);
+            }
+
+            if (fiducials.size() < 2) {
+                throw new Exception(String.format(
+                        "The board side contains only %d placements marked as fiducials, but at least 2 are required.",
+                        fiducials.size()));
+            }
+            for (Placement fiducial : fiducials) {
+                visits.add(new FiducialVisit(this, fiducial));
+            }
         }
-        
-        Utils2D.AffineInfo ai = Utils2D.affineInfo(tx);
-        Logger.info("Fiducial results: " + ai);
-        
-        double boardOffset = newBoardLocation.getLinearLengthTo(savedBoardLocation).convertToUnits(LengthUnit.Millimeters).getValue();
-        Logger.info("Board origin offset distance: " + boardOffset + "mm");
-        
-        //Check for out-of-nominal conditions
-        String errString = "";
-        if (Math.abs(ai.xScale-1) > tolerances.scalingTolerance) {
-            errString += "x scaling = " + String.format("%.5f", ai.xScale) + " which is outside the expected range of [" +
-                    String.format("%.5f", 1-tolerances.scalingTolerance) + ", " + String.format("%.5f", 1+tolerances.scalingTolerance) + "], ";
-        }
-        if (Math.abs(ai.yScale-1) > tolerances.scalingTolerance) {
-            errString += "the y scaling = " + String.format("%.5f", ai.yScale) + " which is outside the expected range of [" +
-                    String.format("%.5f", 1-tolerances.scalingTolerance) + ", " + String.format("%.5f", 1+tolerances.scalingTolerance) + "], ";
-        }
-        if (Math.abs(ai.xShear) > tolerances.shearingTolerance) {
-            errString += "the x shearing = " + String.format("%.5f", ai.xShear) + " which is outside the expected range of [" +
-                    String.format("%.5f", -tolerances.shearingTolerance) + ", " + String.format("%.5f", tolerances.shearingTolerance) + "], ";
-        }
-        if (boardOffset > tolerances.boardLocationTolerance.convertToUnits(LengthUnit.Millimeters).getValue()) {
-            errString += "the board origin moved " + String.format("%.4f", boardOffset) +
-                    "mm which is greater than the allowed amount of " +
-                    String.format("%.4f", tolerances.boardLocationTolerance.convertToUnits(LengthUnit.Millimeters).getValue()) + "mm, ";
-        }
-        if (errString.length() > 0) {
-            errString = errString.substring(0, errString.length()-2); //strip off the last comma and space
+
+        void restoreTransform() {
             boardLocation.setPlacementTransform(savedPlacementTransform);
-            throw new Exception("Fiducial locator results are invalid because: " + errString + ".  Potential remidies include " +
-                    "setting the initial board X, Y, Z, and Rotation in the Boards panel; using a different set of fiducials; " +
-                    "or changing the allowable tolerances in the <tolerances> section of the fiducial-locator section in machine.xml.");
         }
 
-        return newBoardLocation;
+        /**
+         * Compute where the fiducials are expected on the machine, according to the current 
+         * placement transform.
+         */
+        void computeNominalLocations() {
+            if (checkPanel) {
+                // If we are looking for panel fiducials, we need to treat the board as top side
+                boardLocation.setSide(Side.Top);
+            }
+            try {
+                for (FiducialVisit visit : visits) {
+                    visit.nominalLocation = Utils2D.calculateBoardPlacementLocation(boardLocation, 
+                            visit.fiducial.getLocation());
+                }
+            }
+            finally {
+                boardLocation.setSide(boardSide);
+            }
+        }
+
+        /**
+         * Derive and set the placement transform from the measured fiducial locations. 
+         * 
+         * @return The compensated board location.
+         * @throws Exception if the results are out of tolerance, in which case the previous 
+         * placement transform is restored.
+         */
+        Location deriveTransform() throws Exception {
+            List<Location> expectedLocations = new ArrayList<>();
+            List<Location> measuredLocations = new ArrayList<>();
+            for (FiducialVisit visit : visits) {
+                expectedLocations.add(visit.fiducial.getLocation().invert(boardSide==Side.Bottom, false, false, false));
+                measuredLocations.add(visit.measuredLocation);
+            }
+
+            // Calculate the transform.
+            AffineTransform tx = Utils2D.deriveAffineTransform(expectedLocations, measuredLocations);
+            
+            // Set the transform.
+            boardLocation.setPlacementTransform(tx);
+            
+            if (checkPanel) {
+                boardLocation.setSide(Side.Top);
+            }
+            // Return the compensated board location
+            Location origin = new Location(LengthUnit.Millimeters);
+            if (boardLocation.getSide() == Side.Bottom) {
+                origin = origin.add(boardLocation.getBoard().getDimensions().derive(null, 0., 0., 0.));
+            }
+            Location newBoardLocation = Utils2D.calculateBoardPlacementLocation(boardLocation, origin);
+            newBoardLocation = newBoardLocation.convertToUnits(boardLocation.getLocation().getUnits());
+            newBoardLocation = newBoardLocation.derive(null, null, boardLocation.getLocation().getZ(), null);
+
+            if (checkPanel) {
+                boardLocation.setSide(boardSide);	// restore side
+            }
+            
+            Utils2D.AffineInfo ai = Utils2D.affineInfo(tx);
+            Logger.info("Fiducial results: " + ai);
+            
+            double boardOffset = newBoardLocation.getLinearLengthTo(savedBoardLocation).convertToUnits(LengthUnit.Millimeters).getValue();
+            Logger.info("Board origin offset distance: " + boardOffset + "mm");
+            
+            //Check for out-of-nominal conditions
+            String errString = "";
+            if (Math.abs(ai.xScale-1) > tolerances.scalingTolerance) {
+                errString += "x scaling = " + String.format("%.5f", ai.xScale) + " which is outside the expected range of [" +
+                        String.format("%.5f", 1-tolerances.scalingTolerance) + ", " + String.format("%.5f", 1+tolerances.scalingTolerance) + "], ";
+            }
+            if (Math.abs(ai.yScale-1) > tolerances.scalingTolerance) {
+                errString += "the y scaling = " + String.format("%.5f", ai.yScale) + " which is outside the expected range of [" +
+                        String.format("%.5f", 1-tolerances.scalingTolerance) + ", " + String.format("%.5f", 1+tolerances.scalingTolerance) + "], ";
+            }
+            if (Math.abs(ai.xShear) > tolerances.shearingTolerance) {
+                errString += "the x shearing = " + String.format("%.5f", ai.xShear) + " which is outside the expected range of [" +
+                        String.format("%.5f", -tolerances.shearingTolerance) + ", " + String.format("%.5f", tolerances.shearingTolerance) + "], ";
+            }
+            if (boardOffset > tolerances.boardLocationTolerance.convertToUnits(LengthUnit.Millimeters).getValue()) {
+                errString += "the board origin moved " + String.format("%.4f", boardOffset) +
+                        "mm which is greater than the allowed amount of " +
+                        String.format("%.4f", tolerances.boardLocationTolerance.convertToUnits(LengthUnit.Millimeters).getValue()) + "mm, ";
+            }
+            if (errString.length() > 0) {
+                errString = errString.substring(0, errString.length()-2); //strip off the last comma and space
+                boardLocation.setPlacementTransform(savedPlacementTransform);
+                throw new Exception("Fiducial locator results are invalid because: " + errString + ".  Potential remidies include " +
+                        "setting the initial board X, Y, Z, and Rotation in the Boards panel; using a different set of fiducials; " +
+                        "or changing the allowable tolerances in the <tolerances> section of the fiducial-locator section in machine.xml.");
+            }
+
+            return newBoardLocation;
+        }
     }
     
     /**
@@ -306,11 +474,12 @@ public class ReferenceFiducialLocator implements FiducialLocator {
      * the location is returned. If the fiducial was not able to be located with any degree of
      * certainty the function returns null.
      * 
+     * @param location The nominal location of the fiducial on the machine.
      * @param fid
      * @return
      * @throws Exception
      */
-    private Location getFiducialLocation(BoardLocation boardLocation, Placement fid)
+    private Location getFiducialLocation(Location location, Placement fid)
             throws Exception {
         Logger.debug("Locating {}", fid.getId());
 
@@ -320,9 +489,6 @@ public class ReferenceFiducialLocator implements FiducialLocator {
                     String.format("Fiducial %s does not have a valid part assigned.", fid.getId()));
         }
 
-        Location location =
-                Utils2D.calculateBoardPlacementLocation(boardLocation, fid.getLocation());
-
         return getFiducialLocation(location, part);
     }
 
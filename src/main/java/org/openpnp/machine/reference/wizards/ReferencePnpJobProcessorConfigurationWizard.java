@@ -19,19 +19,47 @@
 
 package org.openpnp.machine.reference.wizards;
 
+import java.awt.FileDialog;
+import java.awt.event.ActionEvent;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.AbstractAction;
+import javax.swing.Action;
 import javax.swing.BoxLayout;
+import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JTextField;
+import javax.swing.ProgressMonitor;
+import javax.swing.SwingWorker;
 import javax.swing.border.TitledBorder;
 
 import org.openpnp.Translations;
+import org.openpnp.gui.MainFrame;
 import org.openpnp.gui.components.ComponentDecorators;
 import org.openpnp.gui.support.AbstractConfigurationWizard;
+import org.openpnp.gui.support.DoubleConverter;
 import org.openpnp.gui.support.IntegerConverter;
+import org.openpnp.gui.support.LongConverter;
+import org.openpnp.gui.support.MessageBoxes;
+import org.openpnp.machine.reference.JobCycleTimeSimulator;
+import org.openpnp.machine.reference.OptimizingPnpJobPlanner;
 import org.openpnp.machine.reference.ReferencePnpJobProcessor;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.AlignMode;
 import org.openpnp.machine.reference.ReferencePnpJobProcessor.JobOrderHint;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Job;
+import org.openpnp.spi.PnpJobPlanner;
+import org.openpnp.util.UiUtils;
+import org.pmw.tinylog.Logger;
 
 import com.jgoodies.forms.layout.ColumnSpec;
 import com.jgoodies.forms.layout.FormLayout;
@@ -43,6 +71,28 @@ public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigu
     private final ReferencePnpJobProcessor jobProcessor;
     private JComboBox comboBoxJobOrder;
     private JTextField maxVisionRetriesTextField;
+    private String plannerClassName;
+    private JComboBox comboBoxPlanner;
+    private JCheckBox feedAhead;
+    private JComboBox comboBoxAlignMode;
+    private JCheckBox batchFiducialCheck;
+    private JCheckBox exportTimings;
+    private JCheckBox journalProgress;
+    private boolean reloadWizard;
+    private JTextField travelSpeed;
+    private JTextField moveOverheadTime;
+    private JTextField nozzleTipChangeTime;
+    private JTextField bottomVisionTime;
+    private JTextField lookAhead;
+    private JTextField searchTrials;
+    private JCheckBox deterministic;
+    private JTextField randomSeed;
+    private JTextField simVisionTime;
+    private JTextField simFiducialTime;
+    private JTextField simVacuumDwellTime;
+    private JTextField simFeedTime;
+    private JTextField simNozzleTipChangeTime;
+    private JCheckBox simExportCsv;
 
     public ReferencePnpJobProcessorConfigurationWizard(ReferencePnpJobProcessor jobProcessor) {
         this.jobProcessor = jobProcessor;
@@ -60,6 +110,12 @@ public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigu
             new RowSpec[] {
                 FormSpecs.RELATED_GAP_ROWSPEC,
                 FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
                 FormSpecs.DEFAULT_ROWSPEC,}));
 
         JLabel lblJobOrder = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.JobOrder"));
@@ -74,6 +130,261 @@ public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigu
         maxVisionRetriesTextField = new JTextField();
         panelGeneral.add(maxVisionRetriesTextField, "4, 3");
         maxVisionRetriesTextField.setColumns(10);
+
+        JLabel lblPlanner = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.Planner"));
+        panelGeneral.add(lblPlanner, "2, 4, right, default");
+
+        Object[] classNames = jobProcessor.getCompatiblePlannerClasses().stream()
+                .map(c -> c.getSimpleName()).toArray();
+        comboBoxPlanner = new JComboBox(classNames);
+        panelGeneral.add(comboBoxPlanner, "4, 4, fill, default");
+
+        JLabel lblFeedAhead = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.FeedAhead"));
+        lblFeedAhead.setToolTipText("<html>Plan the next cycle while the current cycle is aligning and placing, and let<br/>"
+                + "capable feeders feed ahead in the background. Other feeders are fed as usual.</html>");
+        panelGeneral.add(lblFeedAhead, "2, 5, right, default");
+
+        feedAhead = new JCheckBox("");
+        panelGeneral.add(feedAhead, "4, 5");
+
+        JLabel lblAlignMode = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.AlignMode"));
+        lblAlignMode.setToolTipText("<html>SinglePass captures the parts on all the nozzles in one trip over the bottom camera<br/>"
+                + "and analyzes the images in the background. Pre-rotate alignment stays sequential.</html>");
+        panelGeneral.add(lblAlignMode, "2, 6, right, default");
+
+        comboBoxAlignMode = new JComboBox(AlignMode.values());
+        panelGeneral.add(comboBoxAlignMode, "4, 6");
+
+        JLabel lblBatchFiducialCheck = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.BatchFiducialCheck"));
+        lblBatchFiducialCheck.setToolTipText("<html>Visit the fiducials of the panel and of all the boards in one tour, then derive<br/>"
+                + "the board locations, instead of one tour per board.</html>");
+        panelGeneral.add(lblBatchFiducialCheck, "2, 7, right, default");
+
+        batchFiducialCheck = new JCheckBox("");
+        panelGeneral.add(batchFiducialCheck, "4, 7");
+
+        JLabel lblExportTimings = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.ExportTimings"));
+        lblExportTimings.setToolTipText("<html>At the end of each job, write the step timing histograms as CSV and JSON<br/>"
+                + "into the jobtimings folder of the configuration directory.</html>");
+        panelGeneral.add(lblExportTimings, "2, 8, right, default");
+
+        exportTimings = new JCheckBox("");
+        panelGeneral.add(exportTimings, "4, 8");
+
+        JLabel lblJournalProgress = new JLabel(Translations.getString("MachineSetup.JobProcessors.ReferencePnpJobProcessor.Label.JournalProgress"));
+        lblJournalProgress.setToolTipText("<html>Append each placed part to a .progress file next to the job file, so the progress<br/>"
+                + "survives a crash. It is replayed when the job is loaded and removed when it is saved.</html>");
+        panelGeneral.add(lblJournalProgress, "2, 9, right, default");
+
+        journalProgress = new JCheckBox("");
+        panelGeneral.add(journalProgress, "4, 9");
+
+        if (jobProcessor.getPlanner() instanceof OptimizingPnpJobPlanner) {
+            JPanel panelOptimizer = new JPanel();
+            panelOptimizer.setBorder(new TitledBorder(null, "Optimizing Planner", TitledBorder.LEADING,
+                    TitledBorder.TOP, null, null));
+            contentPanel.add(panelOptimizer);
+            panelOptimizer.setLayout(new FormLayout(new ColumnSpec[] {
+                    FormSpecs.RELATED_GAP_COLSPEC,
+                    FormSpecs.DEFAULT_COLSPEC,
+                    FormSpecs.RELATED_GAP_COLSPEC,
+                    FormSpecs.DEFAULT_COLSPEC,},
+                new RowSpec[] {
+                    FormSpecs.RELATED_GAP_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,
+                    FormSpecs.DEFAULT_ROWSPEC,}));
+
+            JLabel lblTravelSpeed = new JLabel("Travel Speed [mm/s]");
+            panelOptimizer.add(lblTravelSpeed, "2, 2, right, default");
+            travelSpeed = new JTextField();
+            panelOptimizer.add(travelSpeed, "4, 2");
+            travelSpeed.setColumns(10);
+
+            JLabel lblMoveOverheadTime = new JLabel("Move Overhead [s]");
+            lblMoveOverheadTime.setToolTipText("Time added to every move for acceleration and settling.");
+            panelOptimizer.add(lblMoveOverheadTime, "2, 3, right, default");
+            moveOverheadTime = new JTextField();
+            panelOptimizer.add(moveOverheadTime, "4, 3");
+            moveOverheadTime.setColumns(10);
+
+            JLabel lblNozzleTipChangeTime = new JLabel("Nozzle Tip Change [s]");
+            panelOptimizer.add(lblNozzleTipChangeTime, "2, 4, right, default");
+            nozzleTipChangeTime = new JTextField();
+            panelOptimizer.add(nozzleTipChangeTime, "4, 4");
+            nozzleTipChangeTime.setColumns(10);
+
+            JLabel lblBottomVisionTime = new JLabel("Bottom Vision [s]");
+            panelOptimizer.add(lblBottomVisionTime, "2, 5, right, default");
+            bottomVisionTime = new JTextField();
+            panelOptimizer.add(bottomVisionTime, "4, 5");
+            bottomVisionTime.setColumns(10);
+
+            JLabel lblLookAhead = new JLabel("Look-Ahead Placements");
+            lblLookAhead.setToolTipText("Number of placements, in job order, considered for each cycle.");
+            panelOptimizer.add(lblLookAhead, "2, 6, right, default");
+            lookAhead = new JTextField();
+            panelOptimizer.add(lookAhead, "4, 6");
+            lookAhead.setColumns(10);
+
+            JLabel lblSearchTrials = new JLabel("Search Trials");
+            panelOptimizer.add(lblSearchTrials, "2, 7, right, default");
+            searchTrials = new JTextField();
+            panelOptimizer.add(searchTrials, "4, 7");
+            searchTrials.setColumns(10);
+
+            JLabel lblDeterministic = new JLabel("Deterministic?");
+            lblDeterministic.setToolTipText("Use a fixed random seed, so the same job is always planned the same way.");
+            panelOptimizer.add(lblDeterministic, "2, 8, right, default");
+            deterministic = new JCheckBox("");
+            panelOptimizer.add(deterministic, "4, 8");
+
+            JLabel lblRandomSeed = new JLabel("Random Seed");
+            panelOptimizer.add(lblRandomSeed, "2, 9, right, default");
+            randomSeed = new JTextField();
+            panelOptimizer.add(randomSeed, "4, 9");
+            randomSeed.setColumns(10);
+        }
+
+        JPanel panelSimulation = new JPanel();
+        panelSimulation.setBorder(new TitledBorder(null, "Cycle Time Simulation", TitledBorder.LEADING,
+                TitledBorder.TOP, null, null));
+        contentPanel.add(panelSimulation);
+        panelSimulation.setLayout(new FormLayout(new ColumnSpec[] {
+                FormSpecs.RELATED_GAP_COLSPEC,
+                FormSpecs.DEFAULT_COLSPEC,
+                FormSpecs.RELATED_GAP_COLSPEC,
+                FormSpecs.DEFAULT_COLSPEC,},
+            new RowSpec[] {
+                FormSpecs.RELATED_GAP_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,
+                FormSpecs.RELATED_GAP_ROWSPEC,
+                FormSpecs.DEFAULT_ROWSPEC,}));
+
+        JLabel lblSimVisionTime = new JLabel("Bottom Vision [s]");
+        panelSimulation.add(lblSimVisionTime, "2, 2, right, default");
+        simVisionTime = new JTextField();
+        panelSimulation.add(simVisionTime, "4, 2");
+        simVisionTime.setColumns(10);
+
+        JLabel lblSimFiducialTime = new JLabel("Fiducial Vision [s]");
+        panelSimulation.add(lblSimFiducialTime, "2, 3, right, default");
+        simFiducialTime = new JTextField();
+        panelSimulation.add(simFiducialTime, "4, 3");
+        simFiducialTime.setColumns(10);
+
+        JLabel lblSimVacuumDwellTime = new JLabel("Vacuum Dwell [s]");
+        lblSimVacuumDwellTime.setToolTipText("Valve switching time on pick and place, added to the configured dwell times.");
+        panelSimulation.add(lblSimVacuumDwellTime, "2, 4, right, default");
+        simVacuumDwellTime = new JTextField();
+        panelSimulation.add(simVacuumDwellTime, "4, 4");
+        simVacuumDwellTime.setColumns(10);
+
+        JLabel lblSimFeedTime = new JLabel("Feed [s]");
+        panelSimulation.add(lblSimFeedTime, "2, 5, right, default");
+        simFeedTime = new JTextField();
+        panelSimulation.add(simFeedTime, "4, 5");
+        simFeedTime.setColumns(10);
+
+        JLabel lblSimNozzleTipChangeTime = new JLabel("Nozzle Tip Change [s]");
+        panelSimulation.add(lblSimNozzleTipChangeTime, "2, 6, right, default");
+        simNozzleTipChangeTime = new JTextField();
+        panelSimulation.add(simNozzleTipChangeTime, "4, 6");
+        simNozzleTipChangeTime.setColumns(10);
+
+        JLabel lblSimExportCsv = new JLabel("Export CSV?");
+        lblSimExportCsv.setToolTipText("Save the per placement time breakdown of the simulation as a CSV file.");
+        panelSimulation.add(lblSimExportCsv, "2, 7, right, default");
+        simExportCsv = new JCheckBox("");
+        panelSimulation.add(simExportCsv, "4, 7");
+
+        JButton btnSimulate = new JButton(simulateAction);
+        panelSimulation.add(btnSimulate, "4, 9");
+    }
+
+    private Action simulateAction = new AbstractAction("Simulate Job") {
+        {
+            putValue(Action.SHORT_DESCRIPTION, "<html>Estimate the cycle time of the current job without using the machine.</html>");
+        }
+
+        @Override
+        public void actionPerformed(ActionEvent e) {
+            applyAction.actionPerformed(e);
+            Job job = MainFrame.get().getJobTab().getJob();
+            ProgressMonitor progressMonitor = new ProgressMonitor(MainFrame.get(), 
+                    "Simulating the job cycle time...", null, 0, 100);
+            Action action = this;
+            action.setEnabled(false);
+            // The simulation can take a while on large jobs, so it runs in the background.
+            SwingWorker<JobCycleTimeSimulator.Report, Void> worker = 
+                    new SwingWorker<JobCycleTimeSimulator.Report, Void>() {
+                @Override
+                protected JobCycleTimeSimulator.Report doInBackground() throws Exception {
+                    return jobProcessor.getSimulator().simulate(jobProcessor, job, 
+                            (simulated, total) -> setProgress(total > 0 ? 100 * simulated / total : 100));
+                }
+
+                @Override
+                protected void done() {
+                    progressMonitor.close();
+                    action.setEnabled(true);
+                    if (isCancelled()) {
+                        return;
+                    }
+                    UiUtils.messageBoxOnException(() -> {
+                        try {
+                            showSimulationReport(get());
+                        }
+                        catch (ExecutionException executionException) {
+                            if (executionException.getCause() instanceof Exception) {
+                                throw (Exception) executionException.getCause();
+                            }
+                            throw executionException;
+                        }
+                    });
+                }
+            };
+            worker.addPropertyChangeListener(evt -> {
+                if ("progress".equals(evt.getPropertyName())) {
+                    progressMonitor.setProgress((Integer) evt.getNewValue());
+                }
+                if (progressMonitor.isCanceled()) {
+                    worker.cancel(true);
+                }
+            });
+            worker.execute();
+        }
+    };
+
+    private void showSimulationReport(JobCycleTimeSimulator.Report report) throws Exception {
+        StringBuilder message = new StringBuilder(report.toString());
+        for (Map.Entry<BoardLocation, Double> entry : report.getBoardTimes().entrySet()) {
+            message.append(String.format(Locale.US, "\n%s: %.1fs", 
+                    entry.getKey().getBoard().getName(), entry.getValue()));
+        }
+        Logger.info("Cycle time simulation: {}", message);
+        if (simExportCsv.isSelected()) {
+            FileDialog fileDialog = new FileDialog(MainFrame.get(), "Export Simulation As...", FileDialog.SAVE);
+            fileDialog.setFile("simulation.csv");
+            fileDialog.setVisible(true);
+            if (fileDialog.getFile() != null) {
+                File file = new File(new File(fileDialog.getDirectory()), fileDialog.getFile());
+                try (Writer writer = new FileWriter(file)) {
+                    report.writeCsv(writer);
+                }
+            }
+        }
+        MessageBoxes.infoBox("Cycle Time Simulation", message.toString());
     }
 
     @Override
@@ -84,5 +395,80 @@ public class ReferencePnpJobProcessorConfigurationWizard extends AbstractConfigu
         addWrappedBinding(jobProcessor, "maxVisionRetries", maxVisionRetriesTextField, "text", intConverter);
 
         ComponentDecorators.decorateWithAutoSelect(maxVisionRetriesTextField);
+
+        addWrappedBinding(jobProcessor, "feedAhead", feedAhead, "selected");
+        addWrappedBinding(jobProcessor, "alignMode", comboBoxAlignMode, "selectedItem");
+        addWrappedBinding(jobProcessor, "batchFiducialCheck", batchFiducialCheck, "selected");
+        addWrappedBinding(jobProcessor, "exportTimings", exportTimings, "selected");
+        addWrappedBinding(jobProcessor, "journalProgress", journalProgress, "selected");
+
+        plannerClassName = jobProcessor.getPlanner().getClass().getSimpleName();
+        addWrappedBinding(this, "plannerClassName", comboBoxPlanner, "selectedItem");
+
+        JobCycleTimeSimulator simulator = jobProcessor.getSimulator();
+        DoubleConverter secondsConverter =
+                new DoubleConverter(Configuration.get().getLengthDisplayFormat());
+        addWrappedBinding(simulator, "visionTime", simVisionTime, "text", secondsConverter);
+        addWrappedBinding(simulator, "fiducialTime", simFiducialTime, "text", secondsConverter);
+        addWrappedBinding(simulator, "vacuumDwellTime", simVacuumDwellTime, "text", secondsConverter);
+        addWrappedBinding(simulator, "feedTime", simFeedTime, "text", secondsConverter);
+        addWrappedBinding(simulator, "nozzleTipChangeTime", simNozzleTipChangeTime, "text", secondsConverter);
+        ComponentDecorators.decorateWithAutoSelect(simVisionTime);
+        ComponentDecorators.decorateWithAutoSelect(simFiducialTime);
+        ComponentDecorators.decorateWithAutoSelect(simVacuumDwellTime);
+        ComponentDecorators.decorateWithAutoSelect(simFeedTime);
+        ComponentDecorators.decorateWithAutoSelect(simNozzleTipChangeTime);
+
+        if (jobProcessor.getPlanner() instanceof OptimizingPnpJobPlanner) {
+            OptimizingPnpJobPlanner planner = (OptimizingPnpJobPlanner) jobProcessor.getPlanner();
+            DoubleConverter doubleConverter =
+                    new DoubleConverter(Configuration.get().getLengthDisplayFormat());
+            LongConverter longConverter = new LongConverter();
+
+            addWrappedBinding(planner, "travelSpeed", travelSpeed, "text", doubleConverter);
+            addWrappedBinding(planner, "moveOverheadTime", moveOverheadTime, "text", doubleConverter);
+            addWrappedBinding(planner, "nozzleTipChangeTime", nozzleTipChangeTime, "text", doubleConverter);
+            addWrappedBinding(planner, "bottomVisionTime", bottomVisionTime, "text", doubleConverter);
+            addWrappedBinding(planner, "lookAhead", lookAhead, "text", intConverter);
+            addWrappedBinding(planner, "searchTrials", searchTrials, "text", intConverter);
+            addWrappedBinding(planner, "deterministic", deterministic, "selected");
+            addWrappedBinding(planner, "randomSeed", randomSeed, "text", longConverter);
+
+            ComponentDecorators.decorateWithAutoSelect(travelSpeed);
+            ComponentDecorators.decorateWithAutoSelect(moveOverheadTime);
+            ComponentDecorators.decorateWithAutoSelect(nozzleTipChangeTime);
+            ComponentDecorators.decorateWithAutoSelect(bottomVisionTime);
+            ComponentDecorators.decorateWithAutoSelect(lookAhead);
+            ComponentDecorators.decorateWithAutoSelect(searchTrials);
+            ComponentDecorators.decorateWithAutoSelect(randomSeed);
+        }
+    }
+
+    public String getPlannerClassName() {
+        return plannerClassName;
+    }
+
+    public void setPlannerClassName(String plannerClassName) throws Exception {
+        if (jobProcessor.getPlanner().getClass().getSimpleName().equals(plannerClassName)) {
+            return;
+        }
+        for (Class<? extends PnpJobPlanner> plannerClass : jobProcessor.getCompatiblePlannerClasses()) {
+            if (plannerClass.getSimpleName().equals(plannerClassName)) {
+                PnpJobPlanner planner = (PnpJobPlanner) plannerClass.newInstance();
+                jobProcessor.setPlanner(planner);
+                this.plannerClassName = plannerClassName;
+                reloadWizard = true;
+                break;
+            }
+        }
+    }
+
+    @Override
+    protected void saveToModel() {
+        super.saveToModel();
+        if (reloadWizard) {
+            // Reselect the tree path to reload the wizard with the planner specific settings.
+            MainFrame.get().getMachineSetupTab().selectCurrentTreePath();
+        }
     }
 }
@@ -441,6 +441,41 @@ public abstract class AbstractMotionPath implements Iterable<MotionProfile []> {
         }
     }
 
+    /**
+     * Determines whether the solver treats the junction between two subsequent moves as a corner, i.e. both moves
+     * are coordinated and not co-linear, so the motion comes to still-stand in the junction. Neither move depends
+     * on the other, so a path can be cut at a corner and the parts solved separately, with the same result.
+     *
+     * @param prevProfiles
+     * @param profiles
+     * @return
+     */
+    public static boolean isCorner(MotionProfile [] prevProfiles, MotionProfile [] profiles) {
+        if (prevProfiles.length == 0 || profiles.length == 0) {
+            return false;
+        }
+        if (!(MotionProfile.isCoordinated(prevProfiles) && MotionProfile.isCoordinated(profiles))) {
+            return false;
+        }
+        double [] prevUnitVector = MotionProfile.getUnitVector(prevProfiles);
+        double [] unitVector = MotionProfile.getUnitVector(profiles);
+        if (MotionProfile.getLeadAxisIndex(prevUnitVector) != MotionProfile.getLeadAxisIndex(unitVector)
+                || isSimplified(prevProfiles) != isSimplified(profiles)) {
+            return true;
+        }
+        return MotionProfile.dotProduct(prevUnitVector, unitVector) < 1.0 - MotionProfile.eps;
+    }
+
+    private static boolean isSimplified(MotionProfile [] profiles) {
+        boolean simplified = false;
+        for (int axis = 0; axis < profiles.length; axis++) {
+            if (!profiles[axis].isEmpty()) {
+                simplified |= !profiles[axis].isSupportingUncoordinated();
+            }
+        }
+        return simplified;
+    }
+
     /**
      * Helper for the optimizer: reduces excess overshoot into uncoordinated moves. This is a simple
      * heuristic controlled by excess time detected in the uncoordinated move. Excess time is assumed
@@ -21,15 +21,18 @@
 
 package org.openpnp.model;
 
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.LinkedHashMap;
+import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 import java.util.function.BiFunction;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleUnaryOperator;
 import java.util.function.Function;
 
 import org.openpnp.spi.Axis;
@@ -59,9 +62,24 @@ import org.openpnp.util.Triplet;
  * AxesLocations preserve the order of the axes. In particular the Configuration order of axis definitions is 
  * sometimes used to treat axes in their "natural" order, where it may matter.  
  * 
+ * The axes and coordinates are stored in two arrays, in order. A bit mask over the axis ordinals (see 
+ * Axis.getOrdinal()) tells quickly whether an axis is missing. Use the Builder to create AxesLocations
+ * in hot loops, it does not box the coordinates.
+ * 
  */
 public class AxesLocation {
-    final private LinkedHashMap<Axis, Double> location;
+    final private Axis [] axes;
+    final private double [] coordinates;
+    /**
+     * Bit (ordinal mod 64) is set for each contained axis. A cleared bit means the axis is missing, a set bit
+     * means it may be contained. 
+     */
+    final private long mask;
+    private Set<Axis> axesSet;
+
+    final private static Axis [] noAxes = new Axis[0];
+    final private static double [] noCoordinates = new double[0];
+
     final public static AxesLocation zero = new AxesLocation();
 
     /**
@@ -83,7 +101,35 @@ public class AxesLocation {
      */
     public AxesLocation() {
         // Empty.
-        location = new LinkedHashMap<>(0);
+        this(noAxes, noCoordinates, 0);
+    }
+
+    /**
+     * Create from the first size axes and coordinates, taking ownership of the arrays, if they have 
+     * the exact size.
+     */
+    private AxesLocation(Axis [] axes, double [] coordinates, int size) {
+        if (axes.length != size) {
+            axes = Arrays.copyOf(axes, size);
+            coordinates = Arrays.copyOf(coordinates, size);
+        }
+        this.axes = axes;
+        this.coordinates = coordinates;
+        long mask = 0;
+        for (Axis axis : axes) {
+            mask |= bit(axis);
+        }
+        this.mask = mask;
+    }
+
+    private AxesLocation(Builder builder) {
+        // Always copy, the Builder may be reused.
+        this(Arrays.copyOf(builder.axes, builder.size), Arrays.copyOf(builder.coordinates, builder.size), 
+                builder.size);
+    }
+
+    private static long bit(Axis axis) {
+        return 1L << (axis.getOrdinal() & 63);
     }
     /**
      * Create a single Axis/coordinate pair AxesLocation.  
@@ -92,10 +138,9 @@ public class AxesLocation {
      * @param coordinate
      */
     public AxesLocation(Axis axis, double coordinate) {
-        location = new LinkedHashMap<>(1);
-        if (axis != null) {
-            location.put(axis, coordinate);
-        }
+        this(axis != null ? new Axis [] { axis } : noAxes, 
+                axis != null ? new double [] { coordinate } : noCoordinates, 
+                axis != null ? 1 : 0);
     }
     /**
      * Create a single Axis/Length coordinate pair AxesLocation.  
@@ -114,10 +159,8 @@ public class AxesLocation {
      * @param axes
      */
     public AxesLocation(CoordinateAxis... axis) {
-        location = new LinkedHashMap<>(axis.length);
-        for (CoordinateAxis oneAxis : axis) {
-            location.put(oneAxis, oneAxis.getLengthCoordinate().convertToUnits(getUnits()).getValue());
-        }
+        this(new Builder(axis.length).putAll(Arrays.asList(axis), 
+                (oneAxis) -> oneAxis.getLengthCoordinate()));
     }
     /**
      * Create an AxesLocation with the given Axis List and initialize to the current 
@@ -136,13 +179,7 @@ public class AxesLocation {
      * @param initializer
      */
     public <T extends Axis> AxesLocation(Iterable<T> axes, Function<T, Length> initializer) {
-        location = new LinkedHashMap<>();
-        for (T axis : axes) {
-            Length coordinate = initializer.apply(axis);
-            if (coordinate != null) {
-                location.put(axis, coordinate.convertToUnits(getUnits()).getValue());
-            }
-        }
+        this(new Builder().putAll(axes, initializer));
     }
     /**
      * Create an AxesLoaction over all the ControllerAxes of the machine and initialize to the current 
@@ -161,15 +198,8 @@ public class AxesLocation {
      * @param initializer
      */
     public AxesLocation(Machine machine, Function<CoordinateAxis, Length> initializer) {
-        location = new LinkedHashMap<>();
-        for (Axis axis : machine.getAxes()) {
-            if (axis instanceof CoordinateAxis) {
-                Length coordinate = initializer.apply((CoordinateAxis) axis);
-                if (coordinate != null) {
-                    location.put(axis, coordinate.convertToUnits(getUnits()).getValue());
-                }
-            }
-        }
+        this(new Builder().putAll(machine.getAxes(), (axis) -> (axis instanceof CoordinateAxis) ?
+                initializer.apply((CoordinateAxis) axis) : null));
     }
     /**
      * Create an AxesLoaction over all the ControllerAxes of the machine (in Machine Setup order) and with the given driver.
@@ -180,17 +210,9 @@ public class AxesLocation {
      * @param initializer
      */
     public AxesLocation(Machine machine, Driver driver, Function<ControllerAxis, Length> initializer) {
-        location = new LinkedHashMap<>();
-        for (Axis axis : machine.getAxes()) {
-            if (axis instanceof ControllerAxis) {
-                if (((ControllerAxis) axis).getDriver() == driver) {
-                    Length coordinate = initializer.apply((ControllerAxis) axis);
-                    if (coordinate != null) {
-                        location.put(axis, coordinate.convertToUnits(getUnits()).getValue());
-                    }
-                }
-            }
-        }
+        this(new Builder().putAll(machine.getAxes(), (axis) -> (axis instanceof ControllerAxis 
+                && ((ControllerAxis) axis).getDriver() == driver) ?
+                initializer.apply((ControllerAxis) axis) : null));
     }
     /**
      * Using the given binary function, aggregate the given axesLocation argument list.  
@@ -199,14 +221,33 @@ public class AxesLocation {
      * @param axesLocation
      */
     public AxesLocation(BiFunction<Double, Double, Double> function, AxesLocation... axesLocation) {
-        location = new LinkedHashMap<>();
+        this(mergeAll(function, axesLocation));
+    }
+
+    private static Builder mergeAll(BiFunction<Double, Double, Double> function, AxesLocation... axesLocation) {
+        Builder builder = new Builder();
         for (AxesLocation oneAxesLocation : axesLocation) {
             if (oneAxesLocation != null) {
-                for (Axis axis : oneAxesLocation.getAxes()) {
-                    location.merge(axis, oneAxesLocation.getCoordinate(axis), function);
+                for (int i = 0; i < oneAxesLocation.axes.length; i++) {
+                    Axis axis = oneAxesLocation.axes[i];
+                    double coordinate = oneAxesLocation.coordinates[i];
+                    int index = builder.indexOf(axis);
+                    if (index < 0) {
+                        builder.append(axis, coordinate);
+                    }
+                    else {
+                        Double merged = function.apply(builder.coordinates[index], coordinate);
+                        if (merged == null) {
+                            builder.removeAt(index);
+                        }
+                        else {
+                            builder.coordinates[index] = merged;
+                        }
+                    }
                 }
             }
         }
+        return builder;
     }
     /**
      * Create a new AxesLocation with the given function applied to the coordinates of axesLocation.
@@ -215,26 +256,97 @@ public class AxesLocation {
      * @param axesLocation
      */
     public AxesLocation(Function<Double, Double> function, AxesLocation axesLocation) {
-        location = new LinkedHashMap<>();
-        for (Axis axis : axesLocation.getAxes()) {
-            location.put(axis, function.apply(axesLocation.getCoordinate(axis)));
+        this(axesLocation.axes, applyAll(function, axesLocation.coordinates), axesLocation.axes.length);
+    }
+
+    private static double [] applyAll(Function<Double, Double> function, double [] coordinates) {
+        double [] result = new double[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            Double coordinate = function.apply(coordinates[i]);
+            result[i] = (coordinate != null ? coordinate : 0.0);
         }
+        return result;
+    }
+
+    /**
+     * Merge this with the other AxesLocation. Axes contained in both are combined with the operator, axes contained
+     * in only one of them are taken as is. The axes of this come first, in order, then those only in other. 
+     * 
+     * @param other
+     * @param operator
+     * @return
+     */
+    public AxesLocation merge(AxesLocation other, DoubleBinaryOperator operator) {
+        if (other == null || other.axes.length == 0) {
+            return this;
+        }
+        if (Arrays.equals(axes, other.axes)) {
+            // Same axes in the same order, the common case along a motion path.
+            double [] result = new double[axes.length];
+            for (int i = 0; i < axes.length; i++) {
+                result[i] = operator.applyAsDouble(coordinates[i], other.coordinates[i]);
+            }
+            return new AxesLocation(axes, result, axes.length);
+        }
+        Builder builder = new Builder(axes.length + other.axes.length).putAll(this);
+        for (int i = 0; i < other.axes.length; i++) {
+            builder.merge(other.axes[i], other.coordinates[i], operator);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Apply the operator to all the coordinates.
+     * 
+     * @param operator
+     * @return
+     */
+    public AxesLocation map(DoubleUnaryOperator operator) {
+        double [] result = new double[axes.length];
+        for (int i = 0; i < axes.length; i++) {
+            result[i] = operator.applyAsDouble(coordinates[i]);
+        }
+        return new AxesLocation(axes, result, axes.length);
     }
 
     public AxesLocation add(AxesLocation other) {
-        return new AxesLocation((a, b) -> (a + b), this, other);
+        return merge(other, (a, b) -> (a + b));
     }
 
     public AxesLocation subtract(AxesLocation other) {
-        return new AxesLocation((a, b) -> (a - b), this, other);
+        return merge(other, (a, b) -> (a - b));
     }
 
     public AxesLocation multiply(double factor) {
-        return new AxesLocation((a) -> (a*factor), this);
+        return map((a) -> (a*factor));
     }
 
     public AxesLocation put(AxesLocation other) {
-        return new AxesLocation((a, b) -> (b), this, other);
+        return merge(other, (a, b) -> (b));
+    }
+
+    /**
+     * Put the single Axis/coordinate pair, same as put(new AxesLocation(axis, coordinate)).
+     *
+     * @param axis
+     * @param coordinate
+     * @return
+     */
+    public AxesLocation put(Axis axis, double coordinate) {
+        if (axis == null) {
+            return this;
+        }
+        int index = indexOf(axis);
+        if (index >= 0) {
+            double [] result = coordinates.clone();
+            result[index] = coordinate;
+            return new AxesLocation(axes, result, axes.length);
+        }
+        Axis [] resultAxes = Arrays.copyOf(axes, axes.length + 1);
+        double [] result = Arrays.copyOf(coordinates, axes.length + 1);
+        resultAxes[axes.length] = axis;
+        result[axes.length] = coordinate;
+        return new AxesLocation(resultAxes, result, resultAxes.length);
     }
 
     /**
@@ -245,8 +357,8 @@ public class AxesLocation {
      */
     public double dotProduct(AxesLocation other) {
         double dot = 0;
-        for (Entry<Axis, Double> entry : this.location.entrySet()) {
-            dot += entry.getValue()*other.getCoordinate(entry.getKey());
+        for (int i = 0; i < axes.length; i++) {
+            dot += coordinates[i]*other.getCoordinate(axes[i]);
         }
         return dot;
     }
@@ -280,7 +392,14 @@ public class AxesLocation {
      * @return
      */
     public AxesLocation drivenBy(Driver driver) {
-        return new AxesLocation(getAxes(driver), (axis) -> (getLengthCoordinate(axis)));
+        Builder builder = new Builder(axes.length);
+        for (int i = 0; i < axes.length; i++) {
+            if (axes[i] instanceof ControllerAxis
+                    && (driver == null || ((ControllerAxis) axes[i]).getDriver() == driver)) {
+                builder.append(axes[i], coordinates[i]);
+            }
+        }
+        return builder.build();
     }
 
     /**
@@ -291,9 +410,13 @@ public class AxesLocation {
      */
     public AxesLocation byType(Axis.Type... types) {
         final List<Axis.Type> typeList = Arrays.asList(types);
-        return  new AxesLocation(getAxes(), 
-                (axis) -> (typeList.contains(axis.getType()) ? 
-                        getLengthCoordinate(axis) : null)); 
+        Builder builder = new Builder(axes.length);
+        for (int i = 0; i < axes.length; i++) {
+            if (typeList.contains(axes[i].getType())) {
+                builder.append(axes[i], coordinates[i]);
+            }
+        }
+        return builder.build();
     }
 
     /**
@@ -302,7 +425,55 @@ public class AxesLocation {
      * @return
      */
     public Set<Axis> getAxes() {
-        return location.keySet();
+        if (axesSet == null) {
+            axesSet = new AbstractSet<Axis>() {
+                @Override
+                public Iterator<Axis> iterator() {
+                    return new Iterator<Axis>() {
+                        private int i = 0;
+
+                        @Override
+                        public boolean hasNext() {
+                            return i < axes.length;
+                        }
+
+                        @Override
+                        public Axis next() {
+                            if (i < axes.length) {
+                                return axes[i++];
+                            }
+                            throw new NoSuchElementException();
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    return axes.length;
+                }
+
+                @Override
+                public boolean contains(Object o) {
+                    return o instanceof Axis && indexOf((Axis) o) >= 0;
+                }
+            };
+        }
+        return axesSet;
+    }
+
+    /**
+     * @param axis
+     * @return The index of the axis in this AxesLocation, or -1 if it is not contained.
+     */
+    private int indexOf(Axis axis) {
+        if ((mask & bit(axis)) != 0) {
+            for (int i = 0; i < axes.length; i++) {
+                if (axes[i] == axis) {
+                    return i;
+                }
+            }
+        }
+        return -1;
     }
 
     /**
@@ -329,13 +500,13 @@ public class AxesLocation {
      */
     @SuppressWarnings("unchecked")
     public <T extends Axis> LinkedHashSet<T> getAxes(Class<T> axisClass) {
-        LinkedHashSet<T> axes = new LinkedHashSet<>();
-        for (Axis axis : getAxes()) {
+        LinkedHashSet<T> set = new LinkedHashSet<>();
+        for (Axis axis : axes) {
             if (axisClass.isInstance(axis)) {
-                axes.add((T) axis);
+                set.add((T) axis);
             }
         }
-        return axes;
+        return set;
     }
 
     /**
@@ -352,7 +523,7 @@ public class AxesLocation {
         if (axis == null) {
             return true;
         }
-        return (location.containsKey(axis));
+        return indexOf(axis) >= 0;
     }
 
     /**
@@ -369,8 +540,9 @@ public class AxesLocation {
      * @return
      */
     public boolean matches(AxesLocation other) {
-        for (CoordinateAxis axis : getAxes(CoordinateAxis.class)) {
-            if (!axis.coordinatesMatch(
+        for (Axis axis : axes) {
+            if (axis instanceof CoordinateAxis 
+                    && !((CoordinateAxis) axis).coordinatesMatch(
                     this.getLengthCoordinate(axis), 
                     other.getLengthCoordinate(axis))) {
                 return false;
@@ -379,20 +551,43 @@ public class AxesLocation {
         return true;
     }
 
+    /**
+     * Returns true if the coordinates of this location match the other's within the given tolerance.
+     * 
+     * Like matches(), this is asymmetric, as only the axes contained in this location are matched. Axes
+     * missing in the other location are compared against 0.0. 
+     * 
+     * @param other
+     * @param tolerance
+     * @return
+     */
+    public boolean matchesWithin(AxesLocation other, double tolerance) {
+        boolean sameAxes = Arrays.equals(axes, other.axes);
+        for (int i = 0; i < axes.length; i++) {
+            double otherCoordinate = sameAxes ? other.coordinates[i] : other.getCoordinate(axes[i]);
+            if (!(Math.abs(coordinates[i] - otherCoordinate) <= tolerance)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public int size() {
-        return getAxes().size();
+        return axes.length;
     }
 
     public boolean isEmpty() {
-        return getAxes().isEmpty();
+        return axes.length == 0;
     }
 
     /**
      * Set this AxesLocation to the axes as the current (planned) location.  
      */
     public void setToCoordinates() {
-        for (CoordinateAxis axis : getAxes(CoordinateAxis.class)) {
-            axis.setCoordinate(getCoordinate(axis));
+        for (int i = 0; i < axes.length; i++) {
+            if (axes[i] instanceof CoordinateAxis) {
+                ((CoordinateAxis) axes[i]).setCoordinate(coordinates[i]);
+            }
         }
     }
 
@@ -415,9 +610,9 @@ public class AxesLocation {
      */
     public double getCoordinate(Axis axis) {
         if (axis != null) {
-            Double coordinate = location.get(axis);
-            if (coordinate != null) {
-                return coordinate;
+            int index = indexOf(axis);
+            if (index >= 0) {
+                return coordinates[index];
             }
         }
         return 0.0;
@@ -452,14 +647,13 @@ public class AxesLocation {
     public String toString() {
         StringBuilder str = new StringBuilder();
         str.append("(");
-        int i = 0;
-        for (Entry<Axis, Double> entry : location.entrySet()) {
-            if (i++ > 0) {
+        for (int i = 0; i < axes.length; i++) {
+            if (i > 0) {
                 str.append(", ");
             }
-            str.append(entry.getKey().getName());
+            str.append(axes[i].getName());
             str.append(":");
-            str.append(String.format(Locale.US, "%f", entry.getValue())); 
+            str.append(String.format(Locale.US, "%f", coordinates[i])); 
         }
         str.append(")");
         return str.toString();
@@ -591,13 +785,18 @@ public class AxesLocation {
      * @return
      */
     public AxesLocation motionSegmentTo(AxesLocation location1) {
-        AxesLocation distance = new AxesLocation(getControllerAxes(), 
-                (a) -> ( location1.contains(a) ? 
-                        (!a.coordinatesMatch(getLengthCoordinate(a), location1.getLengthCoordinate(a)) ? 
-                                new Length(location1.getCoordinate(a) - getCoordinate(a), AxesLocation.getUnits())
-                                :null)
-                        :null));
-        return distance;
+        Builder distance = new Builder(axes.length);
+        for (int i = 0; i < axes.length; i++) {
+            if (axes[i] instanceof ControllerAxis) {
+                ControllerAxis a = (ControllerAxis) axes[i];
+                int index1 = location1.indexOf(a);
+                if (index1 >= 0 
+                        && !a.coordinatesMatch(getLengthCoordinate(a), location1.getLengthCoordinate(a))) {
+                    distance.append(a, location1.coordinates[index1] - coordinates[i]);
+                }
+            }
+        }
+        return distance.build();
     }
 
     /**
@@ -608,9 +807,9 @@ public class AxesLocation {
      */
     public double getEuclideanMetric() {
         double sumSq = 0;
-        for (Entry<Axis, Double> entry : location.entrySet()) {
-            if (entry.getKey() instanceof ControllerAxis) {
-                sumSq += Math.pow(entry.getValue(), 2);
+        for (int i = 0; i < axes.length; i++) {
+            if (axes[i] instanceof ControllerAxis) {
+                sumSq += Math.pow(coordinates[i], 2);
             }
         }
         return Math.sqrt(sumSq);
@@ -663,4 +862,143 @@ public class AxesLocation {
             return rates.second;
         }        
     }
+
+    /**
+     * Builds AxesLocations without boxing the coordinates. A Builder can be reused after build() by 
+     * clear()ing it. 
+     */
+    public static class Builder {
+        private Axis [] axes;
+        private double [] coordinates;
+        private int size;
+
+        public Builder() {
+            this(8);
+        }
+
+        public Builder(int capacity) {
+            axes = new Axis[Math.max(1, capacity)];
+            coordinates = new double[axes.length];
+        }
+
+        public int size() {
+            return size;
+        }
+
+        private int indexOf(Axis axis) {
+            for (int i = 0; i < size; i++) {
+                if (axes[i] == axis) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void append(Axis axis, double coordinate) {
+            if (size == axes.length) {
+                axes = Arrays.copyOf(axes, size*2);
+                coordinates = Arrays.copyOf(coordinates, size*2);
+            }
+            axes[size] = axis;
+            coordinates[size] = coordinate;
+            size++;
+        }
+
+        private void removeAt(int index) {
+            System.arraycopy(axes, index + 1, axes, index, size - index - 1);
+            System.arraycopy(coordinates, index + 1, coordinates, index, size - index - 1);
+            size--;
+            axes[size] = null;
+        }
+
+        /**
+         * Set the coordinate of the axis, appending the axis if not yet contained.
+         * 
+         * @param axis
+         * @param coordinate
+         * @return
+         */
+        public Builder put(Axis axis, double coordinate) {
+            if (axis != null) {
+                int index = indexOf(axis);
+                if (index < 0) {
+                    append(axis, coordinate);
+                }
+                else {
+                    coordinates[index] = coordinate;
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Combine the coordinate of the axis with the given coordinate using the operator, or append the axis
+         * with the given coordinate, if not yet contained.
+         * 
+         * @param axis
+         * @param coordinate
+         * @param operator
+         * @return
+         */
+        public Builder merge(Axis axis, double coordinate, DoubleBinaryOperator operator) {
+            if (axis != null) {
+                int index = indexOf(axis);
+                if (index < 0) {
+                    append(axis, coordinate);
+                }
+                else {
+                    coordinates[index] = operator.applyAsDouble(coordinates[index], coordinate);
+                }
+            }
+            return this;
+        }
+
+        public Builder add(Axis axis, double coordinate) {
+            return merge(axis, coordinate, (a, b) -> (a + b));
+        }
+
+        public Builder putAll(AxesLocation axesLocation) {
+            for (int i = 0; i < axesLocation.axes.length; i++) {
+                put(axesLocation.axes[i], axesLocation.coordinates[i]);
+            }
+            return this;
+        }
+
+        /**
+         * Put the axes with the coordinates given by the initializer. Axes for which the initializer returns null 
+         * are omitted.
+         * 
+         * @param <T>
+         * @param axes
+         * @param initializer
+         * @return
+         */
+        public <T extends Axis> Builder putAll(Iterable<T> axes, Function<T, Length> initializer) {
+            for (T axis : axes) {
+                Length coordinate = initializer.apply(axis);
+                if (coordinate != null) {
+                    put(axis, coordinate.convertToUnits(getUnits()).getValue());
+                }
+            }
+            return this;
+        }
+
+        public Builder remove(Axis axis) {
+            int index = indexOf(axis);
+            if (index >= 0) {
+                removeAt(index);
+            }
+            return this;
+        }
+
+        public Builder clear() {
+            Arrays.fill(axes, 0, size, null);
+            size = 0;
+            return this;
+        }
+
+        public AxesLocation build() {
+            return new AxesLocation(this);
+        }
+    }
 }
@@ -60,6 +60,24 @@ public class BoardLocation extends AbstractModelObject {
      */
     private AffineTransform placementTransform;
 
+    /**
+     * The compiled placement transform, cleared by any change that affects it.
+     */
+    private volatile BoardPlacementTransform compiledPlacementTransform;
+
+    {
+        addPropertyChangeListener(e -> {
+            switch (e.getPropertyName()) {
+                case "location":
+                case "side":
+                case "board":
+                case "placementTransform":
+                    compiledPlacementTransform = null;
+                    break;
+            }
+        });
+    }
+
     BoardLocation() {
         setLocation(new Location(LengthUnit.Millimeters));
     }
@@ -221,6 +239,22 @@ public class BoardLocation extends AbstractModelObject {
         firePropertyChange("placementTransform", oldValue, placementTransform);
     }
 
+    /**
+     * Get the board to machine transform compiled from the location, side, board and placement
+     * transform. It is cached until one of these changes, so the placements of a board can be
+     * transformed without rebuilding the transform each time.
+     * 
+     * @return
+     */
+    public BoardPlacementTransform getCompiledPlacementTransform() {
+        BoardPlacementTransform compiled = compiledPlacementTransform;
+        if (compiled == null || !compiled.isValidFor(this)) {
+            compiled = new BoardPlacementTransform(this);
+            compiledPlacementTransform = compiled;
+        }
+        return compiled;
+    }
+
     @Override
     public String toString() {
         return String.format("board (%s), location (%s), side (%s)", boardFile, location, side);
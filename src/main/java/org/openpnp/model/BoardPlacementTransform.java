@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.awt.geom.AffineTransform;
+
+import org.openpnp.model.Board.Side;
+import org.openpnp.util.Utils2D;
+
+/**
+ * The board to machine transform of a BoardLocation, compiled into its matrix coefficients, the
+ * transform angle and the board Z, all in Millimeters. Instances are immutable and are obtained
+ * from BoardLocation.getCompiledPlacementTransform(), which caches them until the location, side,
+ * board or placement transform changes.
+ *
+ * The results are identical to Utils2D.calculateBoardPlacementLocation(), which uses this class.
+ */
+public class BoardPlacementTransform {
+    private final double m00, m10, m01, m11, m02, m12;
+    private final boolean bottom;
+    private final double z;
+    private final double angle;
+    /**
+     * The board dimensions this was compiled with, if the default transform depends on them.
+     */
+    private final Location boardDimensions;
+
+    BoardPlacementTransform(BoardLocation boardLocation) {
+        AffineTransform tx = boardLocation.getPlacementTransform();
+        Location dimensions = null;
+        if (tx == null) {
+            tx = Utils2D.getDefaultBoardPlacementLocationTransform(boardLocation);
+            if (boardLocation.getSide() == Side.Bottom) {
+                dimensions = boardLocation.getBoard().getDimensions();
+            }
+        }
+        double[] m = new double[6];
+        tx.getMatrix(m);
+        m00 = m[0];
+        m10 = m[1];
+        m01 = m[2];
+        m11 = m[3];
+        m02 = m[4];
+        m12 = m[5];
+        bottom = (boardLocation.getSide() == Side.Bottom);
+        z = boardLocation.getLocation().convertToUnits(LengthUnit.Millimeters).getZ();
+        angle = Utils2D.affineInfo(tx).rotationAngleDeg;
+        boardDimensions = dimensions;
+    }
+
+    /**
+     * @param boardLocation
+     * @return true if this transform still matches the board of the BoardLocation. The board
+     * dimensions are only used for the default transform of the Bottom side and changes to them
+     * are not seen by the BoardLocation's listeners.
+     */
+    boolean isValidFor(BoardLocation boardLocation) {
+        if (boardDimensions == null) {
+            return true;
+        }
+        Board board = boardLocation.getBoard();
+        return board != null && board.getDimensions() == boardDimensions;
+    }
+
+    /**
+     * Transform a placement location from board to machine coordinates.
+     *
+     * @param placementLocation
+     * @return The machine location, in the units of placementLocation.
+     */
+    public Location transform(Location placementLocation) {
+        LengthUnit placementUnits = placementLocation.getUnits();
+        placementLocation = placementLocation.convertToUnits(LengthUnit.Millimeters);
+        double x = placementLocation.getX();
+        double y = placementLocation.getY();
+        if (bottom) {
+            x = x * -1;
+        }
+        Location l = new Location(LengthUnit.Millimeters,
+                x * m00 + y * m01 + m02,
+                x * m10 + y * m11 + m12,
+                z,
+                angle + placementLocation.getRotation());
+        return l.convertToUnits(placementUnits);
+    }
+
+    /**
+     * Transform count placement coordinates from board to machine coordinates, in place. This
+     * is the batch form of transform(Location) for transforming all the placements of a board.
+     *
+     * @param x The X coordinates in Millimeters.
+     * @param y The Y coordinates in Millimeters.
+     * @param rotation The rotations in degrees, may be null.
+     * @param count
+     */
+    public void transform(double[] x, double[] y, double[] rotation, int count) {
+        double sign = bottom ? -1 : 1;
+        for (int i = 0; i < count; i++) {
+            double px = x[i] * sign;
+            double py = y[i];
+            x[i] = px * m00 + py * m01 + m02;
+            y[i] = px * m10 + py * m11 + m12;
+        }
+        if (rotation != null) {
+            for (int i = 0; i < count; i++) {
+                rotation[i] = angle + rotation[i];
+            }
+        }
+    }
+
+    /**
+     * @return The board Z in Millimeters, which is the Z of all transformed locations.
+     */
+    public double getZ() {
+        return z;
+    }
+
+    /**
+     * @return The transform angle in degrees, which is added to the placement rotations.
+     */
+    public double getAngle() {
+        return angle;
+    }
+}
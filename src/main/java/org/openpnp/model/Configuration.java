@@ -700,6 +700,10 @@ public class Configuration extends AbstractModelObject {
 
         job.setDirty(false);
 
+        // Replay the progress made since the job was last saved. This leaves the job dirty,
+        // so saving it folds the progress into the job file.
+        JobProgressJournal.replay(job);
+
         return job;
     }
 
@@ -723,9 +727,13 @@ public class Configuration extends AbstractModelObject {
         for (Board board : boards) {
             saveBoard(board);
         }
+        // Records appended from here on are not necessarily in the XML, they go to a new journal.
+        File journal = JobProgressJournal.rotate(file);
         // Save the job
         serializer.write(job, new ByteArrayOutputStream());
         serializer.write(job, file);
+        // The progress up to the rotation is now in the job file.
+        JobProgressJournal.compact(journal);
         job.setFile(file);
         job.setDirty(false);
     }
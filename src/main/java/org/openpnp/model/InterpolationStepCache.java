@@ -0,0 +1,384 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openpnp.spi.ControllerAxis;
+import org.openpnp.spi.Driver;
+
+/**
+ * A bounded, least recently used cache of interpolation step tables, i.e. of the way-points that
+ * the simulated jerk control interpolation of a Motion has chosen. A pick and place job repeats
+ * the same kind of move over and over, e.g. from the feeders to the board, so the costly probing
+ * of the interpolation need not be repeated for every move.
+ *
+ * Only coordinated moves from still-stand to still-stand are cached. Their interpolation is a
+ * function of the path's motion limits, the driver's interpolation settings and the distance, but
+ * not of the direction, because all the axes are scaled copies of the lead axis. The key holds the
+ * limit set and the interpolation settings exactly and the distance quantized into classes. A
+ * step table holds each way-point as a position relative to the segment of the profile it falls
+ * into, so a table computed for one move of a distance class is replayed onto the others with
+ * their way-points still at the segment boundaries. The jerk segments must have the same durations,
+ * otherwise the step table is rejected, because the acceleration would change by more between the
+ * way-points than the jerk control simulation allows. The commands are always re-computed from the actual Motion, so the path and its end points are exact, only the
+ * choice of way-points is shared.
+ *
+ * Motion.interpolatedMoveToCommands() consults the shared instance. The motion planner
+ * configures it.
+ */
+public class InterpolationStepCache {
+    public static final int defaultCapacity = 1024;
+    /**
+     * The number of distance classes per doubling of the distance, i.e. neighboring classes differ
+     * by about 1%.
+     */
+    public static final int distanceClassesPerOctave = 64;
+
+    private static final InterpolationStepCache instance = new InterpolationStepCache(defaultCapacity);
+
+    private volatile boolean enabled = true;
+    private volatile int capacity;
+
+    private final Map<Key, StepTable> stepTables = new LinkedHashMap<Key, StepTable>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, StepTable> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong rejects = new AtomicLong();
+
+    public InterpolationStepCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static InterpolationStepCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled && capacity > 0;
+    }
+
+    /**
+     * Enable or disable the cache. Disabling it clears it, so every move is interpolated, e.g. for
+     * diagnostics.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        synchronized (stepTables) {
+            while (stepTables.size() > this.capacity) {
+                stepTables.remove(stepTables.keySet().iterator().next());
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (stepTables) {
+            return stepTables.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The number of step tables that were found, but could not be replayed onto the distance of the
+     * move. These are counted as misses, not as hits.
+     */
+    public long getRejects() {
+        return rejects.get();
+    }
+
+    /**
+     * @return The ratio of hits to lookups, or 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Clear the cache and reset the statistics.
+     */
+    public void clear() {
+        synchronized (stepTables) {
+            stepTables.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+        rejects.set(0);
+    }
+
+    /**
+     * @param key
+     * @return The cached step table or null if there is none, or if the cache is disabled.
+     */
+    public StepTable get(Key key) {
+        if (!isEnabled()) {
+            return null;
+        }
+        StepTable stepTable;
+        synchronized (stepTables) {
+            stepTable = stepTables.get(key);
+        }
+        if (stepTable != null) {
+            hits.incrementAndGet();
+        }
+        else {
+            misses.incrementAndGet();
+        }
+        return stepTable;
+    }
+
+    /**
+     * Count the step table last returned by get() as rejected, because it does not fit the profile of
+     * the move. The move is interpolated instead and its step table replaces the rejected one.
+     */
+    public void reject() {
+        hits.decrementAndGet();
+        misses.incrementAndGet();
+        rejects.incrementAndGet();
+    }
+
+    public void put(Key key, StepTable stepTable) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (stepTables) {
+            stepTables.put(key, stepTable);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("InterpolationStepCache {enabled = %s, size = %d/%d, hits = %d, misses = %d, rejects = %d, hit ratio = %.1f%%}",
+                enabled, getSize(), capacity, getHits(), getMisses(), getRejects(), getHitRatio()*100);
+    }
+
+    /**
+     * @param distance
+     * @return The distance class of the given distance.
+     */
+    public static int getDistanceClass(double distance) {
+        return (int) Math.floor(Math.log(distance)/Math.log(2)*distanceClassesPerOctave);
+    }
+
+    /**
+     * The inputs of the interpolation.
+     */
+    public static class Key {
+        private final Driver driver;
+        private final List<ControllerAxis> axes;
+        private final int maxSteps, maxJerkSteps, minStep;
+        private final long timeStep, junctionDeviation, minimumVelocity;
+        // The limits are compared in float precision, to ignore the rounding of scaling them per axis.
+        private final int vMax, aMaxEntry, aMaxExit, jMax;
+        private final int distanceClass;
+        private final int segmentMask;
+        private final int hash;
+
+        /**
+         * @param driver The driver.
+         * @param axes The axes moved by the driver.
+         * @param maxSteps
+         * @param maxJerkSteps
+         * @param minStep
+         * @param timeStep The interpolation time step, with the speed factor applied.
+         * @param junctionDeviation
+         * @param minimumVelocity
+         * @param vMax The velocity limit of the path.
+         * @param aMaxEntry The entry acceleration limit of the path.
+         * @param aMaxExit The exit acceleration limit of the path.
+         * @param jMax The jerk limit of the path.
+         * @param distance The distance of the path.
+         * @param segmentMask The bit mask of the non-empty segments of the profile.
+         */
+        public Key(Driver driver, List<ControllerAxis> axes,
+                int maxSteps, int maxJerkSteps, int minStep,
+                double timeStep, double junctionDeviation, double minimumVelocity,
+                double vMax, double aMaxEntry, double aMaxExit, double jMax,
+                double distance, int segmentMask) {
+            this.driver = driver;
+            this.axes = axes;
+            this.maxSteps = maxSteps;
+            this.maxJerkSteps = maxJerkSteps;
+            this.minStep = minStep;
+            this.timeStep = Double.doubleToLongBits(timeStep);
+            this.junctionDeviation = Double.doubleToLongBits(junctionDeviation);
+            this.minimumVelocity = Double.doubleToLongBits(minimumVelocity);
+            this.vMax = Float.floatToIntBits((float) vMax);
+            this.aMaxEntry = Float.floatToIntBits((float) aMaxEntry);
+            this.aMaxExit = Float.floatToIntBits((float) aMaxExit);
+            this.jMax = Float.floatToIntBits((float) jMax);
+            this.distanceClass = getDistanceClass(distance);
+            this.segmentMask = segmentMask;
+            long h = System.identityHashCode(driver);
+            h = h*31 + axes.hashCode();
+            h = h*31 + maxSteps;
+            h = h*31 + maxJerkSteps;
+            h = h*31 + minStep;
+            h = h*31 + this.timeStep;
+            h = h*31 + this.junctionDeviation;
+            h = h*31 + this.minimumVelocity;
+            h = h*31 + this.vMax;
+            h = h*31 + this.aMaxEntry;
+            h = h*31 + this.aMaxExit;
+            h = h*31 + this.jMax;
+            h = h*31 + distanceClass;
+            h = h*31 + segmentMask;
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && driver == other.driver
+                    && maxSteps == other.maxSteps && maxJerkSteps == other.maxJerkSteps
+                    && minStep == other.minStep
+                    && timeStep == other.timeStep
+                    && junctionDeviation == other.junctionDeviation
+                    && minimumVelocity == other.minimumVelocity
+                    && vMax == other.vMax
+                    && aMaxEntry == other.aMaxEntry && aMaxExit == other.aMaxExit
+                    && jMax == other.jMax
+                    && distanceClass == other.distanceClass
+                    && segmentMask == other.segmentMask
+                    && axes.equals(other.axes);
+        }
+    }
+
+    /**
+     * The outcome of the interpolation. Immutable once cached.
+     */
+    public static class StepTable {
+        /**
+         * The way-points, as the index of the profile segment they fall into.
+         */
+        private final int [] segments;
+        /**
+         * The way-points, as the fraction of the profile segment they fall into.
+         */
+        private final double [] fractions;
+        /**
+         * The durations of the profile segments, to check whether the jerk segments fit another move.
+         */
+        private final double [] segmentTimes;
+        /**
+         * The ratio of the true peak feed-rate, as probed, to the peak of the way-points.
+         */
+        private final double peakFactor;
+        private final boolean failed;
+
+        /**
+         * A step table of an interpolated move.
+         *
+         * @param segments
+         * @param fractions
+         * @param segmentTimes
+         * @param peakFactor
+         */
+        public StepTable(int [] segments, double [] fractions, double [] segmentTimes, double peakFactor) {
+            this.segments = segments;
+            this.fractions = fractions;
+            this.segmentTimes = segmentTimes;
+            this.peakFactor = peakFactor;
+            this.failed = false;
+        }
+
+        /**
+         * A step table of a move that is not interpolated, but executed as one moderated move.
+         *
+         * @param failed true if the interpolation failed, rather than collapsed.
+         */
+        public StepTable(boolean failed) {
+            this.segments = null;
+            this.fractions = null;
+            this.segmentTimes = null;
+            this.peakFactor = 1.0;
+            this.failed = failed;
+        }
+
+        public boolean isInterpolated() {
+            return segments != null;
+        }
+
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public int size() {
+            return segments == null ? 0 : segments.length;
+        }
+
+        public int getSegment(int i) {
+            return segments[i];
+        }
+
+        public double getFraction(int i) {
+            return fractions[i];
+        }
+
+        public double getSegmentTime(int i) {
+            return segmentTimes[i];
+        }
+
+        public double getPeakFactor() {
+            return peakFactor;
+        }
+    }
+}
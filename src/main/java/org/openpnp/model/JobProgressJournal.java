@@ -0,0 +1,262 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.pmw.tinylog.Logger;
+
+/**
+ * An append-only journal of the placement progress of a job, kept next to the job file as
+ * <job file>.progress. Each placed or errored placement is appended as one line as it happens,
+ * so the progress survives a crash or power loss without rewriting the job XML.
+ *
+ * When the job is loaded the journal is replayed onto the BoardLocations. When the job is saved
+ * the journal is first rotated, so records appended during the save go to a new journal, and
+ * once the progress is part of the XML the rotated journal is compacted, i.e. deleted.
+ *
+ * Lines are tab separated: the record type (P for placed, E for errored), the index of the
+ * BoardLocation in the job, the placement id and for errors the message. Unknown lines and
+ * a last line without line end, i.e. torn by a power loss, are ignored on replay.
+ *
+ * Writes are done in order on a background thread, so the machine thread never waits for the
+ * disk.
+ */
+public class JobProgressJournal {
+    public static final String SUFFIX = ".progress";
+    public static final String ROTATED_SUFFIX = ".progress.saving";
+
+    private static final ExecutorService writer = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "JobProgressJournal");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final File file;
+    private final Map<BoardLocation, Integer> boardLocationIndexes = new IdentityHashMap<>();
+
+    /**
+     * Create a journal for the job. The job must have a file.
+     *
+     * @param job
+     */
+    public JobProgressJournal(Job job) {
+        this.file = getJournalFile(job.getFile());
+        List<BoardLocation> boardLocations = job.getBoardLocations();
+        for (int i = 0; i < boardLocations.size(); i++) {
+            boardLocationIndexes.put(boardLocations.get(i), i);
+        }
+    }
+
+    public static File getJournalFile(File jobFile) {
+        return new File(jobFile.getPath() + SUFFIX);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public void placed(BoardLocation boardLocation, Placement placement) {
+        append("P", boardLocation, placement, null);
+    }
+
+    public void errored(BoardLocation boardLocation, Placement placement, Exception error) {
+        append("E", boardLocation, placement, error == null ? null : error.getMessage());
+    }
+
+    protected void append(String type, BoardLocation boardLocation, Placement placement,
+            String message) {
+        Integer index = boardLocationIndexes.get(boardLocation);
+        if (index == null) {
+            return;
+        }
+        StringBuilder line = new StringBuilder();
+        line.append(type).append('\t').append(index).append('\t').append(escape(placement.getId()));
+        if (message != null) {
+            line.append('\t').append(escape(message));
+        }
+        line.append('\n');
+        byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        writer.submit(() -> {
+            try (FileOutputStream out = new FileOutputStream(file, true)) {
+                out.write(bytes);
+                out.getChannel().force(false);
+            }
+            catch (Exception e) {
+                Logger.warn("Writing the job progress journal {} failed: {}", file,
+                        e.getMessage());
+            }
+        });
+    }
+
+    private static String escape(String s) {
+        return s.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Wait until all the records appended so far are written.
+     *
+     * @throws Exception
+     */
+    public void flush() throws Exception {
+        writer.submit(() -> {
+        }).get();
+    }
+
+    /**
+     * Replay the journal of the job, if any, onto its BoardLocations. A journal rotated by a save
+     * that did not complete is replayed first. A torn last line is cut off the journal, so the
+     * records appended later start on a line of their own.
+     *
+     * @param job
+     * @return The number of placements marked as placed.
+     * @throws Exception
+     */
+    public static int replay(Job job) throws Exception {
+        if (job.getFile() == null) {
+            return 0;
+        }
+        int placed = 0;
+        for (File file : new File[] { getRotatedJournalFile(job.getFile()),
+                getJournalFile(job.getFile()) }) {
+            if (file.exists()) {
+                placed += replay(job.getBoardLocations(), truncateTornLine(file));
+            }
+        }
+        if (placed > 0) {
+            Logger.info("Replayed {} placements from job progress journal {}.", placed,
+                    getJournalFile(job.getFile()));
+        }
+        return placed;
+    }
+
+    private static int replay(List<BoardLocation> boardLocations, byte[] content) {
+        String[] lines = new String(content, StandardCharsets.UTF_8).split("\n");
+        int placed = 0;
+        for (String line : lines) {
+            String[] fields = line.split("\t");
+            if (fields.length < 3 || !fields[0].equals("P")) {
+                // Errored placements are recorded for the operator, they stay pending.
+                continue;
+            }
+            int index;
+            try {
+                index = Integer.parseInt(fields[1]);
+            }
+            catch (NumberFormatException e) {
+                continue;
+            }
+            if (index < 0 || index >= boardLocations.size()) {
+                continue;
+            }
+            BoardLocation boardLocation = boardLocations.get(index);
+            if (!boardLocation.getPlaced(fields[2])) {
+                boardLocation.setPlaced(fields[2], true);
+                placed++;
+            }
+        }
+        return placed;
+    }
+
+    /**
+     * Cut a last line without line end, i.e. torn by a crash, off the file.
+     *
+     * @param file
+     * @return The complete lines of the file.
+     * @throws IOException
+     */
+    private static byte[] truncateTornLine(File file) throws IOException {
+        byte[] content = Files.readAllBytes(file.toPath());
+        int length = content.length;
+        while (length > 0 && content[length - 1] != '\n') {
+            length--;
+        }
+        if (length < content.length) {
+            Logger.warn("Ignoring torn last line of job progress journal {}.", file);
+            content = Arrays.copyOf(content, length);
+            Files.write(file.toPath(), content);
+        }
+        return content;
+    }
+
+    public static File getRotatedJournalFile(File jobFile) {
+        return new File(jobFile.getPath() + ROTATED_SUFFIX);
+    }
+
+    /**
+     * Rotate the journal of the job file, before the job is serialized for saving. The records
+     * appended so far are written first and moved to the rotated journal, those appended while
+     * the job is saved go to a new journal. If a rotated journal is left over from a save that did
+     * not complete, the records are added to it.
+     *
+     * @param jobFile
+     * @return The rotated journal, to be passed to compact() once the job file is written, or null
+     * if there is no journal.
+     * @throws Exception
+     */
+    public static File rotate(File jobFile) throws Exception {
+        File file = getJournalFile(jobFile);
+        File rotated = getRotatedJournalFile(jobFile);
+        return writer.submit(() -> {
+            if (!file.exists()) {
+                return rotated.exists() ? rotated : null;
+            }
+            if (rotated.exists()) {
+                truncateTornLine(rotated);
+                Files.write(rotated.toPath(), truncateTornLine(file), StandardOpenOption.APPEND);
+                Files.delete(file.toPath());
+            }
+            else {
+                Files.move(file.toPath(), rotated.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            return rotated;
+        }).get();
+    }
+
+    /**
+     * Compact the journal, after the progress has been saved into the job file, by deleting the
+     * journal rotated before the job was serialized. Records appended since are kept.
+     *
+     * @param rotated The rotated journal as returned by rotate(), may be null.
+     * @throws Exception
+     */
+    public static void compact(File rotated) throws Exception {
+        if (rotated == null) {
+            return;
+        }
+        writer.submit(() -> {
+            if (rotated.exists() && !rotated.delete()) {
+                Logger.warn("Compacting the job progress journal {} failed.", rotated);
+            }
+        }).get();
+    }
+}
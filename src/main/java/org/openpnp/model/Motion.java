@@ -23,9 +23,11 @@ package org.openpnp.model;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.TreeSet;
 import java.util.function.BiFunction;
 
@@ -94,7 +96,15 @@ public class Motion {
         /**
          * Signaling failed interpolation. 
          */
-        InterpolationFailed;
+        InterpolationFailed,
+        /**
+         * The motion is blended into or out of a Safe Z travel, it may start or end below the Safe Zone.
+         */
+        SafeZBlending,
+        /**
+         * The motion is the final approach of a one-sided backlash compensation. 
+         */
+        BacklashApproach;
 
         public int flag() {
             return 1 << this.ordinal();
@@ -297,6 +307,11 @@ public class Motion {
                 // Compute s0 by distance rather than taking location0, because some axes may have been omitted in location. 
                 double s1 = location1.getCoordinate(axis); 
                 double s0 = s1 - distance.getCoordinate(axis);
+                if (hasOption(MotionOption.SafeZBlending)) {
+                    // Blended into or out of the Safe Zone, the end points themselves are allowed. 
+                    sMin = Math.min(sMin, Math.min(s0, s1));
+                    sMax = Math.max(sMax, Math.max(s0, s1));
+                }
                 axesProfiles[entry.getValue()] = new MotionProfile(
                         s0, s1,
                         0, 0, 0, 0, // initialize with still-stand
@@ -785,11 +800,29 @@ public class Motion {
      * @throws Exception
      */
     public List<MoveToCommand> interpolatedMoveToCommands(Driver driver, boolean retiming) throws Exception {
+        List<MoveToCommand> list = new ArrayList<>();
+        interpolatedMoveToCommandIterator(driver, retiming).forEachRemaining(list::add);
+        return list;
+    }
+
+    /**
+     * Interpolate the Motion like interpolatedMoveToCommands(), but hand out the moveToCommands one by one. 
+     * 
+     * The interpolation first only determines the way-points, the peak feed-rate and the effective time for 
+     * re-timing. The moveToCommands are then created and re-timed as they are handed out, i.e. while the driver 
+     * sends them, and a long move never holds all its commands at once.  
+     * 
+     * @param driver
+     * @param retiming
+     * @return
+     * @throws Exception
+     */
+    public Iterator<MoveToCommand> interpolatedMoveToCommandIterator(Driver driver, boolean retiming) throws Exception {
         if (driver.getMotionControlType() == MotionControlType.ModeratedConstantAcceleration) {
-            return moderatedMoveTo(driver);
+            return moderatedMoveTo(driver).iterator();
         }
         else if (!driver.getMotionControlType().isInterpolated()) {
-            return singleMoveTo(driver);
+            return singleMoveTo(driver).iterator();
         }
 
         // Check if this is a simple constant acceleration move.
@@ -804,7 +837,7 @@ public class Motion {
             }
             if (! hasJerk) {
                 // Simple move.
-                return moderatedMoveTo(driver);
+                return moderatedMoveTo(driver).iterator();
             }
         }
         double time = getTime();
@@ -823,7 +856,7 @@ public class Motion {
         int numSteps = (int)Math.floor(time/timeStep/2)*2;
         if (numSteps < 4) {
             // No interpolation, or move too short for interpolation. Just execute as one moderated moveTo. 
-            return moderatedMoveTo(driver);
+            return moderatedMoveTo(driver).iterator();
         }
         // Sanity.
         distStep = Math.max(3, distStep);
@@ -853,7 +886,7 @@ public class Motion {
             int numStepsNew = (int) Math.ceil(2*time/wantedTimeStep);
             if (numStepsNew < 4) {
                 // No interpolation needed, or move too short for interpolation. Just execute as one moderated moveTo. 
-                return moderatedMoveTo(driver);
+                return moderatedMoveTo(driver).iterator();
             }
             numSteps = Math.min(numSteps, numStepsNew);
         }
@@ -904,6 +937,24 @@ public class Motion {
          * 
          */
 
+        // Coordinated moves from still-stand to still-stand are interpolated the same way for the same limits and 
+        // similar distance, consult the step table cache.
+        InterpolationStepCache.Key stepTableKey = null;
+        if (simpleSymmetricMove 
+                && MotionProfile.isCoordinated(axesProfiles)
+                && InterpolationStepCache.getInstance().isEnabled()) {
+            stepTableKey = getStepTableKey(driver, maxSteps, maxJerkSteps, distStep, timeStep, junctionDeviation);
+            InterpolationStepCache.StepTable stepTable = InterpolationStepCache.getInstance().get(stepTableKey);
+            if (stepTable != null) {
+                Iterator<MoveToCommand> replayed = replayStepTable(driver, stepTable, maxDeltaA, retiming);
+                if (replayed != null) {
+                    return replayed;
+                }
+                // The jerk segments of the profile differ, interpolate it and replace the step table. 
+                InterpolationStepCache.getInstance().reject();
+            }
+        }
+
         // Perform the interpolation. 
         double compT0 = NanosecondTime.getRuntimeSeconds();
 
@@ -986,7 +1037,9 @@ public class Motion {
             }
         }
 
-        List<MoveToCommand> list = new ArrayList<>(numSteps);
+        // Never more than maxSteps are taken. Only the way-points are kept, the commands are created again when 
+        // handed out.
+        WayPoints wayPoints = new WayPoints(Math.max(1, Math.min(numSteps, maxSteps)));
         // Last taken interpolation point, initialized to be the start. 
         AxesLocation location0 = getMomentaryLocation(0);
         AxesLocation velocity0 = getMomentaryVelocity(0);
@@ -1048,8 +1101,8 @@ public class Motion {
                     }
                     else {
                         // There is no candidate command. Need to merge with the previous command.
-                        if (list.size() > 0) {
-                            list.remove(list.size() - 1);
+                        if (wayPoints.size() > 0) {
+                            wayPoints.removeLast();
                         }
                         location0 = locationS;
                         velocity0 = velocityS;
@@ -1064,11 +1117,6 @@ public class Motion {
                     break;
                 }
                 else {
-                    final AxesLocation ds = segment;
-                    double distance = ds.getRS274NGCMetric(driver, 
-                            (axis) -> ds.getCoordinate(axis));
-                    AxesLocation movedAxesLocation = new AxesLocation(segment.getAxes(driver), 
-                            (axis) -> location2.getLengthCoordinate(axis));
                     AxesLocation velocity2 = getMomentaryVelocity(t2);
 
                     // Note, if the motion is curved, we might have an angle between the segments (corners of a polygon), 
@@ -1077,42 +1125,13 @@ public class Motion {
                     // (in controllers this is typically called "junction deviation" or "jerk"). 
                     final AxesLocation segmentVelocity0 = velocity0.along(segment);
                     final AxesLocation segmentVelocity2 = velocity2.along(segment);
-                    // Calculate scalar RS274NGC (G-code) tool-path rates.
-                    double v0, v2;
-                    // Segment scalar rates.
-                    v0 = segment.getRS274NGCMetric(driver, 
-                            (axis) -> segmentVelocity0.getCoordinate(axis));
-                    v2 = segment.getRS274NGCMetric(driver, 
-                            (axis) -> segmentVelocity2.getCoordinate(axis));
-                    // Avg. velocity with constant acceleration.
-                    double avgVelocity = (v0 + v2)*0.5;
-                    double dtNominal = distance == 0 ? 0 : distance/avgVelocity;
-                    // Tool-path acceleration is the velocity difference over nominal time.
-                    double acceleration = (v2 - v0)/dtNominal;
+                    MoveToCommand command2 = createInterpolationMoveToCommand(driver, segment, 
+                            location0, segmentVelocity0, t0, 
+                            location2, segmentVelocity2, 
+                            maxDeltaA, minAcceleration);
                     // Record the maximum velocity. This is done, even if this segment is later not be recorded, which is 
                     // fine because we actually want to get the true peak.
-                    double maxSegmentVelocity = Math.max(Math.abs(v0), Math.abs(v2));
-                    maxVelocity = Math.max(maxSegmentVelocity, maxVelocity);
-                    double minSegmentAcceleration = minAcceleration;
-                    Double velocity = null;
-                    if (acceleration == 0) {
-                        // Velocity governed segment.
-                        velocity = maxSegmentVelocity;
-                        minSegmentAcceleration = Double.POSITIVE_INFINITY;
-                        // Allow a higher acceleration to recover from any unplanned deceleration. 
-                        for (ControllerAxis axis : segment.getControllerAxes()) {
-                            double aMinAxis = maxDeltaA.getCoordinate(axis)/Math.abs(segment.getCoordinate(axis)/distance);
-                            minSegmentAcceleration = Math.min(minSegmentAcceleration, aMinAxis);
-                        }
-                    }
-
-                    MoveToCommand command2 = new MoveToCommand(
-                            location0, location2,
-                            movedAxesLocation, // just the axes that are actually moved  
-                            velocity, 
-                            Math.max(Math.abs(acceleration), minSegmentAcceleration),
-                            null, // No jerk, we're simulating it, remember?
-                            t0, dtNominal, v0, v2); 
+                    maxVelocity = Math.max(Math.max(Math.abs(command2.v0), Math.abs(command2.v1)), maxVelocity);
 
                     // Are we making a new segment?
                     boolean newSegment = false;
@@ -1160,12 +1179,16 @@ public class Motion {
                         }
                     }
                     if (newSegment) {
-                        if (list.size() >= maxSteps-1) {
+                        if (wayPoints.size() >= maxSteps-1) {
                             // Uh-oh, not enough steps available for interpolation. Degrade move to moderated.
                             Logger.warn("Interpolation failed! Max. steps ("+maxSteps+") reached after "
                                     +String.format(Locale.US, "%.3f", 100*t2/time)+"% of move time/ "+probeCount+" probes. Degrading to moderated move.");
                             setOption(MotionOption.InterpolationFailed);
-                            return moderatedMoveTo(driver);
+                            if (stepTableKey != null) {
+                                InterpolationStepCache.getInstance().put(stepTableKey, 
+                                        new InterpolationStepCache.StepTable(true));
+                            }
+                            return moderatedMoveTo(driver).iterator();
                         }
                         if (command1 == null) {
                             // There is no candidate command before this one. We are forced to take it fully.
@@ -1176,8 +1199,8 @@ public class Motion {
                             command1 = command2;
                             command2 = null;
                         }
-                        // Add to list.
-                        list.add(command1);
+                        // Add to way-points.
+                        wayPoints.add(t1, command1);
                         //                        if (commandS != null && !intervalsExtremes.contains(commandS.t0)) {
                         //                            if (commandS.feedRatePerSecond == null && command1.feedRatePerSecond == null
                         //                                && Math.abs(commandS.accelerationPerSecond2 - command1.accelerationPerSecond2) < MotionProfile.atol) {
@@ -1220,28 +1243,145 @@ public class Motion {
         }
         // Always add the last candidate command, if left over. 
         if (command1 != null) {
-            list.add(command1);
+            wayPoints.add(t1, command1);
         }
 
-        if (list.size() < 2 || !interpolationNeeded) {
+        if (wayPoints.size() < 2 || !interpolationNeeded) {
             // Interpolation collapsed.
-            return moderatedMoveTo(driver);
+            if (stepTableKey != null) {
+                InterpolationStepCache.getInstance().put(stepTableKey, 
+                        new InterpolationStepCache.StepTable(false));
+            }
+            return moderatedMoveTo(driver).iterator();
         }
         double compTime = NanosecondTime.getRuntimeSeconds() - compT0;
-        Logger.debug("Interpolation "+numSteps+" intervals, "+probeCount+" probes, "+list.size()
+        Logger.debug("Interpolation "+numSteps+" intervals, "+probeCount+" probes, "+wayPoints.size()
         +" steps, comp time "+String.format(Locale.US, "%.3f", compTime*1000)+"ms");
-        // The interpolation will use constant acceleration to reach the way-points, i.e. it will be slightly faster. 
-        // Re-time the whole path to match the planning time exactly.
-        double timeEffective = 0;
-        for (MoveToCommand move : list) {
-            timeEffective += move.time;
-        }
-        double factor = retiming ? timeEffective/time : 1.0;
-        double factorSq = factor*factor;
-        // Set the maximum for the whole move.
-        list.get(0).feedRatePerSecond = maxVelocity;
-        double tSum = 0;
-        for (MoveToCommand move : list) {
+        if (stepTableKey != null) {
+            InterpolationStepCache.getInstance().put(stepTableKey, 
+                    createStepTable(wayPoints, maxVelocity, minVelocity));
+        }
+        return new WayPointMoveToCommandIterator(driver, wayPoints, maxDeltaA, minAcceleration, 
+                maxVelocity, time, retiming);
+    }
+
+    /**
+     * The way-points taken by the interpolation, with the time and the peak feed-rate of the moveToCommand 
+     * that reaches each one. 
+     */
+    private static class WayPoints {
+        private final double [] times;
+        private final double [] durations;
+        private final double [] peakVelocities;
+        private int size;
+
+        WayPoints(int capacity) {
+            times = new double[capacity];
+            durations = new double[capacity];
+            peakVelocities = new double[capacity];
+        }
+
+        void add(double t, MoveToCommand command) {
+            times[size] = t;
+            durations[size] = command.time;
+            peakVelocities[size] = Math.max(Math.abs(command.v0), Math.abs(command.v1));
+            size++;
+        }
+
+        void removeLast() {
+            size--;
+        }
+
+        int size() {
+            return size;
+        }
+
+        double getTime(int k) {
+            return times[k];
+        }
+
+        /**
+         * @return The time the moveToCommands take with constant acceleration, before re-timing.
+         */
+        double getEffectiveTime() {
+            double timeEffective = 0;
+            for (int k = 0; k < size; k++) {
+                timeEffective += durations[k];
+            }
+            return timeEffective;
+        }
+
+        double getPeakVelocity(double minVelocity) {
+            double peakVelocity = minVelocity;
+            for (int k = 0; k < size; k++) {
+                peakVelocity = Math.max(peakVelocity, peakVelocities[k]);
+            }
+            return peakVelocity;
+        }
+    }
+
+    /**
+     * Hands out the interpolation moveToCommands from one way-point to the next. Each command is created when it 
+     * is handed out, and re-timed to match the planning time, if retiming is enabled. 
+     */
+    private class WayPointMoveToCommandIterator implements Iterator<MoveToCommand> {
+        private final Driver driver;
+        private final WayPoints wayPoints;
+        private final AxesLocation maxDeltaA;
+        private final double minAcceleration;
+        private final double maxVelocity;
+        private final double factor;
+        private final double factorSq;
+        private int k = 0;
+        private AxesLocation location0 = getMomentaryLocation(0);
+        private AxesLocation velocity0 = getMomentaryVelocity(0);
+        private double t0 = 0;
+        private double tSum = 0;
+
+        /**
+         * @param driver
+         * @param wayPoints
+         * @param maxDeltaA
+         * @param minAcceleration
+         * @param maxVelocity The peak feed-rate of the whole move.
+         * @param time
+         * @param retiming
+         */
+        WayPointMoveToCommandIterator(Driver driver, WayPoints wayPoints, AxesLocation maxDeltaA, 
+                double minAcceleration, double maxVelocity, double time, boolean retiming) {
+            this.driver = driver;
+            this.wayPoints = wayPoints;
+            this.maxDeltaA = maxDeltaA;
+            this.minAcceleration = minAcceleration;
+            this.maxVelocity = maxVelocity;
+            // The interpolation will use constant acceleration to reach the way-points, i.e. it will be slightly faster. 
+            // Re-time the whole path to match the planning time exactly.
+            factor = retiming ? wayPoints.getEffectiveTime()/time : 1.0;
+            factorSq = factor*factor;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return k < wayPoints.size();
+        }
+
+        @Override
+        public MoveToCommand next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            double t2 = wayPoints.getTime(k);
+            AxesLocation location2 = getMomentaryLocation(t2);
+            AxesLocation velocity2 = getMomentaryVelocity(t2);
+            AxesLocation segment = location0.motionSegmentTo(location2).drivenBy(driver);
+            MoveToCommand move = createInterpolationMoveToCommand(driver, segment, 
+                    location0, velocity0.along(segment), t0, 
+                    location2, velocity2.along(segment), 
+                    maxDeltaA, minAcceleration);
+            if (k == 0) {
+                // Set the maximum for the whole move.
+                move.feedRatePerSecond = maxVelocity;
+            }
             if (move.feedRatePerSecond != null) {
                 move.feedRatePerSecond *= factor;
             }
@@ -1257,8 +1397,184 @@ public class Motion {
             move.time /= factor;
             move.t0 = tSum;
             tSum += move.time;
+            location0 = location2;
+            velocity0 = velocity2;
+            t0 = t2;
+            k++;
+            return move;
         }
-        return list;
+    }
+
+    /**
+     * Create an interpolation moveToCommand along the straight segment from location0 to location2. 
+     * 
+     * @param driver
+     * @param segment The segment from location0 to location2, of the axes driven by the driver.
+     * @param location0
+     * @param segmentVelocity0 The velocity at location0, projected onto the segment.
+     * @param t0
+     * @param location2
+     * @param segmentVelocity2 The velocity at location2, projected onto the segment.
+     * @param maxDeltaA
+     * @param minAcceleration
+     * @return
+     */
+    private MoveToCommand createInterpolationMoveToCommand(Driver driver, AxesLocation segment, 
+            AxesLocation location0, AxesLocation segmentVelocity0, double t0, 
+            AxesLocation location2, AxesLocation segmentVelocity2, 
+            AxesLocation maxDeltaA, double minAcceleration) {
+        double distance = segment.getRS274NGCMetric(driver, 
+                (axis) -> segment.getCoordinate(axis));
+        AxesLocation movedAxesLocation = new AxesLocation(segment.getAxes(driver), 
+                (axis) -> location2.getLengthCoordinate(axis));
+        // Calculate scalar RS274NGC (G-code) tool-path rates.
+        double v0, v2;
+        // Segment scalar rates.
+        v0 = segment.getRS274NGCMetric(driver, 
+                (axis) -> segmentVelocity0.getCoordinate(axis));
+        v2 = segment.getRS274NGCMetric(driver, 
+                (axis) -> segmentVelocity2.getCoordinate(axis));
+        // Avg. velocity with constant acceleration.
+        double avgVelocity = (v0 + v2)*0.5;
+        double dtNominal = distance == 0 ? 0 : distance/avgVelocity;
+        // Tool-path acceleration is the velocity difference over nominal time.
+        double acceleration = (v2 - v0)/dtNominal;
+        double maxSegmentVelocity = Math.max(Math.abs(v0), Math.abs(v2));
+        double minSegmentAcceleration = minAcceleration;
+        Double velocity = null;
+        if (acceleration == 0) {
+            // Velocity governed segment.
+            velocity = maxSegmentVelocity;
+            minSegmentAcceleration = Double.POSITIVE_INFINITY;
+            // Allow a higher acceleration to recover from any unplanned deceleration. 
+            for (ControllerAxis axis : segment.getControllerAxes()) {
+                double aMinAxis = maxDeltaA.getCoordinate(axis)/Math.abs(segment.getCoordinate(axis)/distance);
+                minSegmentAcceleration = Math.min(minSegmentAcceleration, aMinAxis);
+            }
+        }
+
+        return new MoveToCommand(
+                location0, location2,
+                movedAxesLocation, // just the axes that are actually moved  
+                velocity, 
+                Math.max(Math.abs(acceleration), minSegmentAcceleration),
+                null, // No jerk, we're simulating it, remember?
+                t0, dtNominal, v0, v2); 
+    }
+
+    /**
+     * @return The key of the interpolation step table of this coordinated Motion. 
+     */
+    private InterpolationStepCache.Key getStepTableKey(Driver driver, int maxSteps, int maxJerkSteps, int distStep, 
+            double timeStep, double junctionDeviation) {
+        double [] unitVector = MotionProfile.getUnitVector(axesProfiles);
+        int lead = MotionProfile.getLeadAxisIndex(unitVector);
+        MotionProfile leadProfile = axesProfiles[lead];
+        // Scale the lead axis to the path. 
+        double scale = 1/Math.abs(unitVector[lead]);
+        double distance = Math.abs(leadProfile.s[MotionProfile.segments] - leadProfile.s[0])*scale;
+        int segmentMask = 0;
+        for (int i = 0; i <= MotionProfile.segments+1; i++) {
+            if (leadProfile.t[i] > MotionProfile.ttol) {
+                segmentMask |= 1 << i;
+            }
+        }
+        AxesLocation segment = location0.motionSegmentTo(location1).drivenBy(driver);
+        return new InterpolationStepCache.Key(driver, new ArrayList<>(segment.getControllerAxes()),
+                maxSteps, maxJerkSteps, distStep, timeStep, junctionDeviation, driver.getMinimumVelocity(), 
+                leadProfile.getVelocityMax()*scale, 
+                leadProfile.getEntryAccelerationMax()*scale, 
+                leadProfile.getExitAccelerationMax()*scale, 
+                leadProfile.getJerkMax()*scale, 
+                distance, segmentMask);
+    }
+
+    /**
+     * Create the step table of the interpolated moveToCommands, with the way-points relative to the segments of the 
+     * lead profile. 
+     */
+    private InterpolationStepCache.StepTable createStepTable(WayPoints wayPoints, 
+            double maxVelocity, double minVelocity) {
+        MotionProfile leadProfile = axesProfiles[MotionProfile.getLeadAxisIndex(axesProfiles)];
+        int [] segments = new int[wayPoints.size()];
+        double [] fractions = new double[wayPoints.size()];
+        for (int k = 0; k < wayPoints.size(); k++) {
+            double t = wayPoints.getTime(k);
+            double tSegment = 0;
+            int i = 0;
+            while (i < MotionProfile.segments+1 && t > tSegment + leadProfile.t[i]) {
+                tSegment += leadProfile.t[i];
+                i++;
+            }
+            segments[k] = i;
+            fractions[k] = leadProfile.t[i] > 0 ? Math.min(1.0, (t - tSegment)/leadProfile.t[i]) : 0;
+        }
+        return new InterpolationStepCache.StepTable(segments, fractions, leadProfile.t.clone(), 
+                maxVelocity/wayPoints.getPeakVelocity(minVelocity));
+    }
+
+    /**
+     * Interpolate the Motion with the way-points of a cached step table. The instant acceleration changes between 
+     * the way-points are set by the durations of the jerk segments of the profile, so the step table is only 
+     * replayed if these are the same as in the Motion it was made for. Otherwise a Motion of another distance 
+     * in the same distance class could exceed the jerk control limit. Constant acceleration and constant 
+     * velocity segments may differ, i.e. long moves are replayed onto other distances, short moves only onto 
+     * the same distance.  
+     * 
+     * @return The moveToCommands, or null if the jerk segments differ from the step table.  
+     */
+    private Iterator<MoveToCommand> replayStepTable(Driver driver, InterpolationStepCache.StepTable stepTable, 
+            AxesLocation maxDeltaA, boolean retiming) {
+        if (!stepTable.isInterpolated()) {
+            if (stepTable.isFailed()) {
+                setOption(MotionOption.InterpolationFailed);
+            }
+            return moderatedMoveTo(driver).iterator();
+        }
+        double time = getTime();
+        MotionProfile leadProfile = axesProfiles[MotionProfile.getLeadAxisIndex(axesProfiles)];
+        for (int i = 1; i <= MotionProfile.segments; i++) {
+            // Segment i has the jerk j[i-1].
+            if (leadProfile.j[i-1] != 0 
+                    && Math.abs(leadProfile.t[i] - stepTable.getSegmentTime(i)) > leadProfile.t[i]*1e-6) {
+                return null;
+            }
+        }
+        double minVelocity = driver.getMinimumVelocity();
+        double minAcceleration = minVelocity*4; // HACK
+        int size = stepTable.size();
+        // The peak feed-rate and the effective time must be known before the first command is handed out. 
+        WayPoints wayPoints = new WayPoints(size);
+        AxesLocation location0 = getMomentaryLocation(0);
+        AxesLocation velocity0 = getMomentaryVelocity(0);
+        double t0 = 0;
+        for (int k = 0; k < size; k++) {
+            double t2;
+            if (k == size - 1) {
+                t2 = time;
+            }
+            else {
+                int segment = stepTable.getSegment(k);
+                t2 = 0;
+                for (int i = 0; i < segment; i++) {
+                    t2 += leadProfile.t[i];
+                }
+                t2 += stepTable.getFraction(k)*leadProfile.t[segment];
+            }
+            AxesLocation location2 = getMomentaryLocation(t2);
+            AxesLocation velocity2 = getMomentaryVelocity(t2);
+            AxesLocation segment = location0.motionSegmentTo(location2).drivenBy(driver);
+            MoveToCommand command = createInterpolationMoveToCommand(driver, segment, 
+                    location0, velocity0.along(segment), t0, 
+                    location2, velocity2.along(segment), 
+                    maxDeltaA, minAcceleration);
+            wayPoints.add(t2, command);
+            location0 = location2;
+            velocity0 = velocity2;
+            t0 = t2;
+        }
+        return new WayPointMoveToCommandIterator(driver, wayPoints, maxDeltaA, minAcceleration, 
+                wayPoints.getPeakVelocity(minVelocity)*stepTable.getPeakFactor(), time, retiming);
     }
 
     private double computeMaxDeltaA(Integer maxJerkSteps, ControllerAxis axis) {
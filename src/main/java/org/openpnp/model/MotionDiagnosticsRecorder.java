@@ -0,0 +1,276 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.openpnp.model.Motion.MoveToCommand;
+import org.openpnp.spi.Driver;
+
+/**
+ * Records the planned Motions and the executed MoveToCommands for diagnostics, with next to no
+ * overhead on the motion path. Samples go into preallocated ring buffers: the Motion, Driver and
+ * AxesLocation references, which are immutable once executed, and the scalar command parameters
+ * as primitive doubles, with NaN standing in for null. No graph is built while recording.
+ *
+ * The motion planner records and publishes the samples on its own thread. Publishing swaps the
+ * buffer, so a consumer, typically the GUI, can replay the published samples on demand and on its
+ * own thread, while the next samples are recorded. A published recording that is never replayed
+ * is simply superseded by the next one. When the ring buffer overflows, the oldest samples are
+ * overwritten and the replay starts with the first complete Motion that is left.
+ */
+public class MotionDiagnosticsRecorder {
+    public static final int defaultCapacity = 4096;
+
+    /**
+     * Receives the replayed samples, with the same arguments as they were recorded.
+     */
+    public interface Renderer {
+        void render(Motion plannedMotion, MoveToCommand moveToCommand, Driver driver,
+                boolean firstAfterCoordination, boolean firstDriver);
+    }
+
+    private final int capacity;
+
+    /**
+     * The buffer that is recorded into. Only accessed by the recording thread.
+     */
+    private Recording recording;
+    private final AtomicReference<Recording> published = new AtomicReference<>();
+    private final AtomicReference<Recording> spare = new AtomicReference<>();
+
+    public MotionDiagnosticsRecorder(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.recording = new Recording(this.capacity);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of samples recorded and not yet published.
+     */
+    public int size() {
+        return recording.size;
+    }
+
+    public boolean isEmpty() {
+        return recording.size == 0;
+    }
+
+    /**
+     * Record one executed MoveToCommand of the planned Motion. Does not allocate.
+     *
+     * @param plannedMotion
+     * @param moveToCommand
+     * @param driver
+     * @param firstAfterCoordination
+     * @param firstDriver
+     */
+    public void record(Motion plannedMotion, MoveToCommand moveToCommand, Driver driver,
+            boolean firstAfterCoordination, boolean firstDriver) {
+        recording.record(plannedMotion, moveToCommand, driver, firstAfterCoordination, firstDriver);
+    }
+
+    /**
+     * Discard the samples recorded so far.
+     */
+    public void clear() {
+        recording.clear();
+    }
+
+    /**
+     * Publish the samples recorded so far for replay and start a new recording. A previously
+     * published recording that has not been replayed yet, is discarded.
+     *
+     * @return true if there were samples to publish.
+     */
+    public boolean publish() {
+        if (recording.size == 0) {
+            return false;
+        }
+        Recording recycled = published.getAndSet(recording);
+        if (recycled == null) {
+            recycled = spare.getAndSet(null);
+        }
+        if (recycled == null) {
+            // The consumer is still replaying the other buffer.
+            recycled = new Recording(capacity);
+        }
+        recycled.clear();
+        recording = recycled;
+        return true;
+    }
+
+    /**
+     * @return true if there is a published recording that has not been replayed yet.
+     */
+    public boolean isPublished() {
+        return published.get() != null;
+    }
+
+    /**
+     * Replay the published recording to the renderer, oldest sample first, and release it. Can be
+     * called from any thread.
+     *
+     * @param renderer
+     * @return true if there was a published recording to replay.
+     */
+    public boolean replay(Renderer renderer) {
+        Recording replaying = published.getAndSet(null);
+        if (replaying == null) {
+            return false;
+        }
+        try {
+            replaying.replay(renderer);
+        }
+        finally {
+            replaying.clear();
+            spare.set(replaying);
+        }
+        return true;
+    }
+
+    private static class Recording {
+        private static final int firstAfterCoordinationFlag = 1;
+        private static final int firstDriverFlag = 2;
+
+        private static final int feedRateIndex = 0;
+        private static final int accelerationIndex = 1;
+        private static final int jerkIndex = 2;
+        private static final int timeStartIndex = 3;
+        private static final int timeDurationIndex = 4;
+        private static final int v0Index = 5;
+        private static final int v1Index = 6;
+        private static final int parameters = 7;
+
+        private final Motion [] motions;
+        private final Driver [] drivers;
+        private final AxesLocation [] locations0;
+        private final AxesLocation [] locations1;
+        private final AxesLocation [] movedAxesLocations;
+        private final double [] values;
+        private final byte [] flags;
+        /**
+         * Index of the oldest sample.
+         */
+        private int head;
+        private int size;
+        private boolean overflown;
+
+        Recording(int capacity) {
+            motions = new Motion[capacity];
+            drivers = new Driver[capacity];
+            locations0 = new AxesLocation[capacity];
+            locations1 = new AxesLocation[capacity];
+            movedAxesLocations = new AxesLocation[capacity];
+            values = new double[capacity*parameters];
+            flags = new byte[capacity];
+        }
+
+        void record(Motion plannedMotion, MoveToCommand moveToCommand, Driver driver,
+                boolean firstAfterCoordination, boolean firstDriver) {
+            int capacity = motions.length;
+            int i;
+            if (size == capacity) {
+                // Overwrite the oldest.
+                i = head;
+                head = index(1);
+                overflown = true;
+            }
+            else {
+                i = index(size);
+                size++;
+            }
+            motions[i] = plannedMotion;
+            drivers[i] = driver;
+            locations0[i] = moveToCommand.getLocation0();
+            locations1[i] = moveToCommand.getLocation1();
+            movedAxesLocations[i] = moveToCommand.getMovedAxesLocation();
+            int k = i*parameters;
+            values[k + feedRateIndex] = toPrimitive(moveToCommand.getFeedRatePerSecond());
+            values[k + accelerationIndex] = toPrimitive(moveToCommand.getAccelerationPerSecond2());
+            values[k + jerkIndex] = toPrimitive(moveToCommand.getJerkPerSecond3());
+            values[k + timeStartIndex] = toPrimitive(moveToCommand.getTimeStart());
+            values[k + timeDurationIndex] = toPrimitive(moveToCommand.getTimeDuration());
+            values[k + v0Index] = toPrimitive(moveToCommand.getV0());
+            values[k + v1Index] = toPrimitive(moveToCommand.getV1());
+            flags[i] = (byte) ((firstAfterCoordination ? firstAfterCoordinationFlag : 0)
+                    | (firstDriver ? firstDriverFlag : 0));
+        }
+
+        void replay(Renderer renderer) {
+            // After an overflow, the oldest samples may be the tail of a Motion, so skip ahead to the
+            // first complete one and make it the start of the recording.
+            boolean seek = overflown;
+            for (int n = 0; n < size; n++) {
+                int i = index(n);
+                int k = i*parameters;
+                boolean firstAfterCoordination = (flags[i] & firstAfterCoordinationFlag) != 0;
+                boolean firstDriver = (flags[i] & firstDriverFlag) != 0;
+                if (seek) {
+                    if (!firstDriver || values[k + timeStartIndex] != 0) {
+                        continue;
+                    }
+                    firstAfterCoordination = true;
+                    seek = false;
+                }
+                MoveToCommand moveToCommand = motions[i].new MoveToCommand(
+                        locations0[i], locations1[i], movedAxesLocations[i],
+                        toObject(values[k + feedRateIndex]),
+                        toObject(values[k + accelerationIndex]),
+                        toObject(values[k + jerkIndex]),
+                        toObject(values[k + timeStartIndex]),
+                        toObject(values[k + timeDurationIndex]),
+                        toObject(values[k + v0Index]),
+                        toObject(values[k + v1Index]));
+                renderer.render(motions[i], moveToCommand, drivers[i], firstAfterCoordination, firstDriver);
+            }
+        }
+
+        void clear() {
+            for (int n = 0; n < size; n++) {
+                int i = index(n);
+                motions[i] = null;
+                drivers[i] = null;
+                locations0[i] = null;
+                locations1[i] = null;
+                movedAxesLocations[i] = null;
+            }
+            head = 0;
+            size = 0;
+            overflown = false;
+        }
+
+        private int index(int offset) {
+            int i = head + offset;
+            return i >= motions.length ? i - motions.length : i;
+        }
+
+        private static double toPrimitive(Double value) {
+            return value == null ? Double.NaN : value;
+        }
+
+        private static Double toObject(double value) {
+            return Double.isNaN(value) ? null : value;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import org.openpnp.util.NanosecondTime;
+
+/**
+ * The real-time history of planned Motions, keyed by their planned end time. Motions must be added
+ * in the order of their end time, which is how a motion planner executes them.
+ *
+ * The history is kept in a ring buffer, so adding a Motion does not allocate, and looking up the
+ * Motion at a certain time is a binary search. The oldest Motions are evicted when the capacity is
+ * reached, or when they ended more than the maximum age ago, in real-time.
+ *
+ * This class is not thread-safe.
+ */
+public class MotionHistory {
+    private static final int initialCapacity = 64;
+
+    private final int capacity;
+    private final double maximumAge;
+
+    private double[] times = new double[0];
+    private Motion[] motions = new Motion[0];
+    /**
+     * Index of the oldest entry.
+     */
+    private int head;
+    private int size;
+
+    /**
+     * @param capacity The maximum number of Motions kept.
+     * @param maximumAge The maximum age of the Motions kept, in seconds.
+     */
+    public MotionHistory(int capacity, double maximumAge) {
+        this.capacity = Math.max(1, capacity);
+        this.maximumAge = maximumAge;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public double getMaximumAge() {
+        return maximumAge;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Add the Motion, ending at time1. A Motion ending at the same time as the last one replaces it.
+     *
+     * @param time1 The planned end time of the Motion, must not be earlier than that of the last Motion.
+     * @param motion
+     */
+    public void put(double time1, Motion motion) {
+        if (size > 0) {
+            double lastTime = getLastTime();
+            if (time1 == lastTime) {
+                // Same key, replace.
+                motions[index(size - 1)] = motion;
+                return;
+            }
+            if (time1 < lastTime) {
+                throw new IllegalArgumentException("Motion history time "+time1
+                        +" is before the last time "+lastTime);
+            }
+        }
+        clearOlderThan(NanosecondTime.getRuntimeSeconds() - maximumAge);
+        if (size == capacity) {
+            // Evict the oldest.
+            motions[head] = null;
+            head = index(1);
+            size--;
+        }
+        else if (size == times.length) {
+            grow();
+        }
+        int i = index(size);
+        times[i] = time1;
+        motions[i] = motion;
+        size++;
+    }
+
+    /**
+     * @return The end time of the last Motion.
+     * @throws IllegalStateException if the history is empty.
+     */
+    public double getLastTime() {
+        if (size == 0) {
+            throw new IllegalStateException("Motion history is empty.");
+        }
+        return times[index(size - 1)];
+    }
+
+    /**
+     * @return The last Motion, or null if the history is empty.
+     */
+    public Motion getLast() {
+        return size == 0 ? null : motions[index(size - 1)];
+    }
+
+    /**
+     * @param time
+     * @return The first Motion that ends after the given time, i.e. the Motion that is underway at that
+     * time, or null if the last Motion ended before or at that time.
+     */
+    public Motion getHigher(double time) {
+        // Binary search for the first entry with times > time.
+        int lo = 0;
+        int hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[index(mid)] > time) {
+                hi = mid;
+            }
+            else {
+                lo = mid + 1;
+            }
+        }
+        return lo < size ? motions[index(lo)] : null;
+    }
+
+    /**
+     * Remove the Motions that ended before the given time.
+     *
+     * @param time
+     */
+    public void clearOlderThan(double time) {
+        while (size > 0 && times[head] < time) {
+            motions[head] = null;
+            head = index(1);
+            size--;
+        }
+    }
+
+    public void clear() {
+        clearOlderThan(Double.POSITIVE_INFINITY);
+        head = 0;
+    }
+
+    private int index(int offset) {
+        int i = head + offset;
+        return i >= times.length ? i - times.length : i;
+    }
+
+    private void grow() {
+        int length = Math.min(capacity, Math.max(initialCapacity, times.length*2));
+        double[] newTimes = new double[length];
+        Motion[] newMotions = new Motion[length];
+        for (int k = 0; k < size; k++) {
+            newTimes[k] = times[index(k)];
+            newMotions[k] = motions[index(k)];
+        }
+        times = newTimes;
+        motions = newMotions;
+        head = 0;
+    }
+}
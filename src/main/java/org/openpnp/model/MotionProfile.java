@@ -26,14 +26,15 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.Arrays;
-import java.util.function.BiFunction;
-import java.util.function.Function;
+import java.util.function.DoubleUnaryOperator;
 
 import org.openpnp.spi.Driver.MotionControlType;
 import org.openpnp.util.NanosecondTime;
 import org.pmw.tinylog.Logger;
 
 public class MotionProfile {
+    // Trace calls that build a message are guarded by traceEnabled, so the compiler drops them
+    // entirely and the solver does not build strings it never prints.
     private static final boolean traceEnabled = false;
     private static final boolean svgEnabled = false;
 
@@ -94,6 +95,31 @@ public class MotionProfile {
 
     int profileOptions;
 
+    /**
+     * Scratch space of the solver, reused by all the profiles solved on a thread, so solving does
+     * not allocate.
+     */
+    static class Workspace {
+        // solveForVelocity() borders and regions.
+        final double [] borders = new double[7];
+        final int [] regionBorder0 = new int[borders.length-1];
+        final int [] regionBorder1 = new int[borders.length-1];
+        final double [] borderSResult = new double[borders.length];
+        final double [] borderTResult = new double[borders.length];
+
+        // getSegmentCrossingTime() intervals, as pairs of begin and end times.
+        final double [] intervals = new double[6];
+        // The jerk segment solved for the crossing time, and its displacement and velocity functions. 
+        double ds;
+        double v0;
+        double a0;
+        double j;
+        final DoubleUnaryOperator f = (t) -> (-ds + v0*t + 1./2*a0*Math.pow(t, 2) + 1./6*j*Math.pow(t, 3)); 
+        final DoubleUnaryOperator g = (t) -> (v0 + a0*t + 1./2*j*Math.pow(t, 2));
+    }
+
+    private static final ThreadLocal<Workspace> workspaces = ThreadLocal.withInitial(Workspace::new);
+
     public enum ProfileOption {
         Coordinated, 
         SynchronizeEarlyBird, 
@@ -340,7 +366,28 @@ public class MotionProfile {
         return time;
     }
 
-    protected double getMomentary(double ts, double f0, double f7, BiFunction<Integer, Double, Double> f) {
+    /**
+     * A function of the profile over the time ts into the segment i. The functions are
+     * non-capturing constants, so evaluating them neither allocates nor boxes.
+     */
+    @FunctionalInterface
+    protected interface SegmentFunction {
+        double apply(MotionProfile profile, int i, double ts);
+    }
+
+    // s0 + V0*t + 1/2*a0*t^2 + 1/6*j*t^3
+    private static final SegmentFunction segmentLocation = (p, i, ts) -> 
+        (p.s[i-1] + p.v[i-1]*ts + 1./2*p.a[i-1]*Math.pow(ts, 2) + 1./6*p.j[i-1]*Math.pow(ts, 3));
+    // V0 + a0*t + 1/2*j*t^2
+    private static final SegmentFunction segmentVelocity = (p, i, ts) -> 
+        (p.v[i-1] + p.a[i-1]*ts + 1./2*p.j[i-1]*Math.pow(ts, 2));
+    // a0 + j*t
+    private static final SegmentFunction segmentAcceleration = (p, i, ts) -> 
+        (p.a[i-1] + p.j[i-1]*ts);
+    private static final SegmentFunction segmentJerk = (p, i, ts) -> 
+        (p.j[i-1]);
+
+    protected double getMomentary(double ts, double f0, double f7, SegmentFunction f) {
         if (ts <= t[0]) {
             return f0;
         }
@@ -350,7 +397,7 @@ public class MotionProfile {
         }
         for (int i = 1; i <= segments; i++) {
             if (ts < t[i]) {
-                return f.apply(i, ts);
+                return f.apply(this, i, ts);
             }
             ts -= t[i];
         }
@@ -358,25 +405,19 @@ public class MotionProfile {
     }
 
     public double getMomentaryLocation(double time) { 
-        return getMomentary(time, s[0], s[segments], 
-                // s0 + V0*t + 1/2*a0*t^2 + 1/6*j*t^3
-                (i, ts) -> (s[i-1] + v[i-1]*ts + 1./2*a[i-1]*Math.pow(ts, 2) + 1./6*j[i-1]*Math.pow(ts, 3)));
+        return getMomentary(time, s[0], s[segments], segmentLocation);
     }
 
     public double getMomentaryVelocity(double time) { 
-        return getMomentary(time, v[0], v[segments], 
-                // V0 + a0*t + 1/2*j*t^2
-                (i, ts) -> (v[i-1] + a[i-1]*ts + 1./2*j[i-1]*Math.pow(ts, 2)));
+        return getMomentary(time, v[0], v[segments], segmentVelocity);
     }
 
     public double getMomentaryAcceleration(double time) { 
-        return getMomentary(time, a[0], isConstantAcceleration() ? 0 : a[segments], 
-                // a0 + j*t
-                (i, ts) -> (a[i-1] + j[i-1]*ts));
+        return getMomentary(time, a[0], isConstantAcceleration() ? 0 : a[segments], segmentAcceleration);
     }
 
     public double getMomentaryJerk(double time) { 
-        return getMomentary(time, j[0], 0, (i, ts) -> (j[i-1]));
+        return getMomentary(time, j[0], 0, segmentJerk);
     }
 
     public enum ErrorState {
@@ -512,7 +553,9 @@ public class MotionProfile {
             Logger.error(label+this+" has error: "+error);
         }
         else {
-            trace(label+": "+this);
+            if (traceEnabled) {
+                trace(label+": "+this);
+            }
         }
     }
 
@@ -564,7 +607,15 @@ public class MotionProfile {
         return str.toString();
     }
 
+    /**
+     * Solve the profile, using the solution of an identical profile from the MotionProfileCache,
+     * if available.
+     */
     public void solve() {
+        MotionProfileCache.getInstance().solve(this);
+    }
+
+    void solveUncached() {
         // scale down tolerances for tiny moves
         double magnitude = Math.max(eps,  Math.min(1.0, 
                 0.01*(Math.abs(s[0]-s[segments])
@@ -594,7 +645,9 @@ public class MotionProfile {
             return true;
         }
 
-        trace("\n### solving "+this);
+        if (traceEnabled) {
+            trace("\n### solving "+this);
+        }
 
         // Calculate the effective entry/exit velocity after jerk to acceleration 0.
         double vEffEntry = getEffectiveEntryVelocity(jMax);
@@ -623,22 +676,31 @@ public class MotionProfile {
 
         // Solver regions from -vMax to +vMax are split by effective entry/exit velocities and zero. 
         // Note, we do not allow solutions beyond vMax, even if the effective entry/exit velocities are beyond.
-        double [] borders = new double [] {
-                -vMax, -nearZero, 0, nearZero, vMax, Math.max(-vMax, Math.min(vMax, vEffEntry)), Math.max(-vMax, Math.min(vMax, vEffExit)) 
-        };
+        final Workspace workspace = workspaces.get();
+        final double [] borders = workspace.borders;
+        borders[0] = -vMax;
+        borders[1] = -nearZero;
+        borders[2] = 0;
+        borders[3] = nearZero;
+        borders[4] = vMax;
+        borders[5] = Math.max(-vMax, Math.min(vMax, vEffEntry));
+        borders[6] = Math.max(-vMax, Math.min(vMax, vEffExit));
         Arrays.sort(borders);
-        int [][] regions = new int[borders.length-1][];
+        final int [] regionBorder0 = workspace.regionBorder0;
+        final int [] regionBorder1 = workspace.regionBorder1;
         int regionCount = 0;
-        double borderSResult[] = new double [borders.length];
-        double borderTResult[] = new double [borders.length];
+        final double borderSResult[] = workspace.borderSResult;
+        final double borderTResult[] = workspace.borderTResult;
         // Mark these results as missing.
         Arrays.fill(borderSResult, Double.NaN);
+        Arrays.fill(borderTResult, 0);
         int i0 = 0;
         int iVMax = -1;
         for (int i = 1; i < borders.length; i++) {
             if (borders[i0] < borders[i]) {
                 // Region not empty, add it.
-                regions[regionCount] = new int [] {i0, i};
+                regionBorder0[regionCount] = i0;
+                regionBorder1[regionCount] = i;
                 regionCount++;
                 i0 = i;
                 if (borders[i] == v[4]) {
@@ -672,7 +734,9 @@ public class MotionProfile {
                 if (aMaxEntry == aMaxExit) {
                     double sd = signum*(s[segments]-s[0]);
                     vInitialGuess = signum*Math.sqrt(aMaxEntry*sd + 1./2*Math.pow(v[0], 2) + v[0]*v[7] - 1./2*Math.pow(v[7], 2));
-                    trace("Analytical solution with constant acceleration profile = "+vInitialGuess);
+                    if (traceEnabled) {
+                        trace("Analytical solution with constant acceleration profile = "+vInitialGuess);
+                    }
                 }
             }
             else if (!hasOption(ProfileOption.SimplifiedSCurve)){
@@ -701,7 +765,9 @@ public class MotionProfile {
                             - 2*Math.sqrt(3*Math.pow(a[1], 4) + 18*a[1]*Math.pow(j[0], 2)*s3 + 9*Math.pow(j[0], 2)*Math.pow(v[1], 2)))/j[0];
                     double v3_2 = -1./6*(3*Math.pow(a[1], 2) 
                             + 2*Math.sqrt(3*Math.pow(a[1], 4) + 18*a[1]*Math.pow(j[0], 2)*s3 + 9*Math.pow(j[0], 2)*Math.pow(v[1], 2)))/j[0];
-                    trace("Analytical solution with constant acceleration segment (1) = "+vInitialGuess+" (2) = "+v3_2);
+                    if (traceEnabled) {
+                        trace("Analytical solution with constant acceleration segment (1) = "+vInitialGuess+" (2) = "+v3_2);
+                    }
                 }
                 else if (t[5] > (-t[4]*0.25)) { 
                     // Deceleration segment is long enough.
@@ -711,13 +777,17 @@ public class MotionProfile {
                             - 2*Math.sqrt(3*Math.pow(a[6], 4) - 18*a[6]*Math.pow(j[6], 2)*s4 + 9*Math.pow(j[6], 2)*Math.pow(v[6], 2)))/j[6]);
                     double v3_2 = (-1./6*(3*Math.pow(a[6], 2) 
                             + 2*Math.sqrt(3*Math.pow(a[6], 4) - 18*a[6]*Math.pow(j[6], 2)*s4 + 9*Math.pow(j[6], 2)*Math.pow(v[6], 2)))/j[6]);
-                    trace("Analytical solution with constant deceleration segment (1) = "+vInitialGuess+" (2) = "+v3_2);
+                    if (traceEnabled) {
+                        trace("Analytical solution with constant deceleration segment (1) = "+vInitialGuess+" (2) = "+v3_2);
+                    }
                 }
             }
             if (Double.isFinite(vInitialGuess) && Math.abs(vInitialGuess) > 0 && Math.abs(vInitialGuess) <= vMax) {
                 computeProfile(vInitialGuess, vEffEntry, vEffExit, tMin);
                 if (t[4] >= -ttol && t[4] < vttol) {
-                    trace("taken "+this);
+                    if (traceEnabled) {
+                        trace("taken "+this);
+                    }
                     return true;
                 }
             }
@@ -745,7 +815,9 @@ public class MotionProfile {
                 else if (sResult >= -stol && (tMin == 0 || tResult >= tMin-ttol) && tResult < bestTime) {
                     bestVelocity = vPeak;
                     bestTime = tResult;
-                    trace("border case v="+vPeak+", s="+sResult+", t="+tResult+" "+this);
+                    if (traceEnabled) {
+                        trace("border case v="+vPeak+", s="+sResult+", t="+tResult+" "+this);
+                    }
                 }
             }
         }
@@ -763,9 +835,8 @@ public class MotionProfile {
             regionStep = 1;
         }
         for (int regionIndex = regionStart; regionIndex != regionEnd; regionIndex += regionStep) {
-            int [] region = regions[regionIndex];
-            final int border0 =  region[0];
-            final int border1 =  region[1];
+            final int border0 =  regionBorder0[regionIndex];
+            final int border1 =  regionBorder1[regionIndex];
             double vPeak0 = borders[border0];
             double vPeak1 = borders[border1];
             double sign = Math.signum(vPeak0+vPeak1);
@@ -777,7 +848,9 @@ public class MotionProfile {
 
             if (!(sValid0 || sValid1)) {
                 // None valid -> skip this region.
-                trace("region invalid in s "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1);
+                if (traceEnabled) {
+                    trace("region invalid in s "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1);
+                }
                 continue;
             }
 
@@ -794,12 +867,16 @@ public class MotionProfile {
             boolean tValid1 = (tMin == 0 || tResult1 >= tMin-ttol);
             if (!(tValid0 || tValid1)) {
                 // None valid -> skip this region.
-                trace("region invalid in t "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1);
+                if (traceEnabled) {
+                    trace("region invalid in t "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1);
+                }
                 continue;
             }
 
             if (Math.min(tResult0,  tResult1) >= bestTime) {
-                trace("region eclipsed by best t "+bestTime+" "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1);
+                if (traceEnabled) {
+                    trace("region eclipsed by best t "+bestTime+" "+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1);
+                }
                 continue;
             }
 
@@ -843,12 +920,16 @@ public class MotionProfile {
                     tResult = time;
                     if (sResult < 0) {
                         // Great, we found it.
-                        trace("    found invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        if (traceEnabled) {
+                            trace("    found invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        }
                         break;
                     }
                     if (sResult > sSecant) {
                         // Raising result -> overshoot, this means there is no invalid section. 
-                        trace("    overshot, no invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        if (traceEnabled) {
+                            trace("    overshot, no invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        }
                         break;
                     }
                     // Apply secant method. 
@@ -856,7 +937,9 @@ public class MotionProfile {
                     if (Math.abs(gradient) < vttol) {
                         // Stuck in a local minimum. This must be a "tangent" situation, otherwise we should see overshoot.
                         // We simply don't support tangent cases.
-                        trace("    stuck local minimum, no invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        if (traceEnabled) {
+                            trace("    stuck local minimum, no invalid mid area "+vSearch+" s "+sResult+" t "+tResult);
+                        }
                         break;
                     }
                     double delta = -sResult/gradient;
@@ -865,7 +948,9 @@ public class MotionProfile {
                     sSecant = sResult;
                     // Assign new value.
                     vSearch = Math.max(vSearch0, Math.min(vSearch1,  vSearch+delta));
-                    trace("    search for invalid mid area "+vSearch+" gradient "+gradient+" delta "+delta+" s "+sResult+" t "+tResult);
+                    if (traceEnabled) {
+                        trace("    search for invalid mid area "+vSearch+" gradient "+gradient+" delta "+delta+" s "+sResult+" t "+tResult);
+                    }
                 }
                 while (true);
                 if (sResult < 0) {
@@ -910,7 +995,9 @@ public class MotionProfile {
                 }
             }
         }
-        trace("best velocity "+bestVelocity+" best time "+bestTime+" time-tMin "+(bestTime-tMin));
+        if (traceEnabled) {
+            trace("best velocity "+bestVelocity+" best time "+bestTime+" time-tMin "+(bestTime-tMin));
+        }
         if (bestVelocity != v[4]) {
             // re-establish best solution
             trace("  re-establish");
@@ -920,10 +1007,14 @@ public class MotionProfile {
             if (Math.abs(time/tMin - 1) < 0.001) {
                 // The solver may have slightly approximated. Stretch the profile into the exact minimum time. 
                 if (retimeProfile()) {
-                    trace("    retimed tMin "+tMin+" time "+time);
+                    if (traceEnabled) {
+                        trace("    retimed tMin "+tMin+" time "+time);
+                    }
                 }
                 else {
-                    trace("    not retimed tMin "+tMin+" time "+time);
+                    if (traceEnabled) {
+                        trace("    not retimed tMin "+tMin+" time "+time);
+                    }
                 }
             }
             else {
@@ -991,13 +1082,19 @@ public class MotionProfile {
             double tMin, double bestTime,
             final int iterations, final double stol, final double vtol, final double ttol) {
 
-        trace("=== solveRegion("+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1+")");
+        if (traceEnabled) {
+            trace("=== solveRegion("+vPeak0+" .. "+vPeak1+", s="+sResult0+" .. "+sResult1+", t="+tResult0+" .. "+tResult1+")");
+        }
         if (Math.min(tResult0,  tResult1) >= bestTime) {
-            trace("region eclipsed by best t "+bestTime);
+            if (traceEnabled) {
+                trace("region eclipsed by best t "+bestTime);
+            }
             return false;
         }
         if (bestTime == tMin) {
-            trace("region eclipsed by best t == min t "+bestTime);
+            if (traceEnabled) {
+                trace("region eclipsed by best t == min t "+bestTime);
+            }
             return false;
         }
 
@@ -1037,7 +1134,9 @@ public class MotionProfile {
 
             double sResult = sign*(s[4] - s[3]);
             double tResult = time;
-            trace("vPeak = "+vPeak+" s="+sResult+" t-tMin="+(time-tMin)+" "+this);
+            if (traceEnabled) {
+                trace("vPeak = "+vPeak+" s="+sResult+" t-tMin="+(time-tMin)+" "+this);
+            }
             double magnitude = Math.max(eps, Math.min(maxMagnitude, 0.0001*(Math.abs(s[3]-s[0])+Math.abs(s[segments]-s[4]))));
             if (Math.abs(vPeak - vSecant) < magnitude*vtol) {
                 converging++;
@@ -1064,7 +1163,9 @@ public class MotionProfile {
                     // Restore the previously valid solution after converging (turns out there was not a better one).
                     computeProfile(vValid, vEffEntry, vEffExit, tMin);
                     // That's a solution
-                    trace("taken previous valid solution after converging "+vValid);
+                    if (traceEnabled) {
+                        trace("taken previous valid solution after converging "+vValid);
+                    }
                     return true;
                 }
                 else {
@@ -1207,6 +1308,8 @@ public class MotionProfile {
     }
 
     public static void synchronizeProfiles(MotionProfile [] profiles) {
+        // The initial solutions are independent of each other, solve them (concurrently, if enabled).
+        MotionProfileSolverPool.getInstance().solve(profiles);
         // Find the maximum time.
         double maxTime = 0;
         MotionProfile leadProfile = null;
@@ -1215,7 +1318,9 @@ public class MotionProfile {
             if (profile.time > maxTime) {
                 maxTime = profile.time;
                 leadProfile = profile;
-                trace("    max time "+maxTime+" from "+profile);
+                if (traceEnabled) {
+                    trace("    max time "+maxTime+" from "+profile);
+                }
             }
         }
         // Re-time the others.
@@ -1340,7 +1445,9 @@ public class MotionProfile {
                         // Sometimes the solution was at/near entry/exit speeds and in these cases, it is possible
                         // that the new tMin is impossible, i.e. more time is needed. 
                         // --> restart the process.
-                        trace("    need to restart synchronize, maxTime "+maxTime+" breached with "+profile.time+" on "+profile);
+                        if (traceEnabled) {
+                            trace("    need to restart synchronize, maxTime "+maxTime+" breached with "+profile.time+" on "+profile);
+                        }
                         maxTime = profile.time;
                         restart = true;
                         break;
@@ -1882,11 +1989,8 @@ solve(eq, t)            # Solve for t
  t == -(dt*j - sqrt(dt^2*j^2 + 2*dt*j^2*t2 + j^2*t2^2 + 4*a2*dt*j))/j]
                      */
                     double sqrtTerm = Math.sqrt(Math.pow(dt, 2)*Math.pow(js, 2) + 2*dt*Math.pow(js, 2)*t2 + Math.pow(js, 2)*Math.pow(t2, 2) + 4*as*dt*js);
-                    double[] tS = new double[] { 
-                            -(dt*js + sqrtTerm)/js,
-                            -(dt*js - sqrtTerm)/js 
-                    };
-                    for (double ts : tS) {
+                    for (int k = 0; k < 2; k++) {
+                        double ts = (k == 0 ? -(dt*js + sqrtTerm)/js : -(dt*js - sqrtTerm)/js);
                         double dth = (ts-t2)/2;
                         if (dth > 0 && dth < t[1]+eps && dth < t[3]+eps) {
                             // Phase 1
@@ -1945,11 +2049,8 @@ solve(eq, t)            # Solve for t
                         double js = j[6];
                         double as = -a[6];
                         double sqrtTerm = Math.sqrt(Math.pow(dt, 2)*Math.pow(js, 2) + 2*dt*Math.pow(js, 2)*t6 + Math.pow(js, 2)*Math.pow(t6, 2) + 4*as*dt*js);
-                        double[] tS = new double[] { 
-                                -(dt*js + sqrtTerm)/js,
-                                -(dt*js - sqrtTerm)/js
-                        };
-                        for (double ts : tS) {
+                        for (int k = 0; k < 2; k++) {
+                            double ts = (k == 0 ? -(dt*js + sqrtTerm)/js : -(dt*js - sqrtTerm)/js);
                             double dth = (ts-t6)/2;
                             if (dth > 0 && dth < t[7]+eps && dth < t[5]+eps) {
                                 // Phase 7 backward
@@ -2011,7 +2112,7 @@ solve(eq, t)            # Solve for t
                     t[4] = 0;
                     tOverlap = Math.min(t[3], t[5]);
                     if (tMin > 0) {
-                        time = Arrays.stream(t).sum();
+                        time = sum(t);
                         // Restrict to minimum time violation.
                         tOverlap = Math.min(tOverlap, time - tMin);
                     }
@@ -2062,7 +2163,7 @@ solve(eq, t)            # Solve for t
                 t[4] = (s[4] - s[3])/v[4];
             }
         }
-        time = Arrays.stream(t).sum();
+        time = sum(t);
         if (adjustMinTime && (tMin > time)) {
             // Zero velocity profile -> can adapt minimum time directly 
             t[4] = tMin - time;
@@ -2070,6 +2171,30 @@ solve(eq, t)            # Solve for t
         }
     }
 
+    /**
+     * Sum the values with compensated (Kahan) summation, the same as Arrays.stream(values).sum(),
+     * but without the allocation of the stream.
+     */
+    static double sum(double [] values) {
+        double sum = 0;
+        // Negated low-order bits of the sum.
+        double compensation = 0;
+        // The simple sum, to return the properly signed infinity.
+        double simpleSum = 0;
+        for (double value : values) {
+            double tmp = value - compensation;
+            double velvel = sum + tmp;
+            compensation = (velvel - sum) - tmp;
+            sum = velvel;
+            simpleSum += value;
+        }
+        double tmp = sum - compensation;
+        if (Double.isNaN(tmp) && Double.isInfinite(simpleSum)) {
+            return simpleSum;
+        }
+        return tmp;
+    }
+
     public Double getForwardCrossingTime(double sCross, boolean halfProfile) {
         double tSeg = t[0];
         if (halfProfile) {
@@ -2083,8 +2208,8 @@ solve(eq, t)            # Solve for t
             }
         }
         for (int i = 1; i <= (halfProfile ? 3 : segments); i++) {
-            Double ts = getSegmentCrossingTime(sCross, tSeg, i, true);
-            if (ts != null) {
+            double ts = getSegmentCrossingTime(sCross, tSeg, i, true);
+            if (!Double.isNaN(ts)) {
                 return ts;
             }
             tSeg += t[i];
@@ -2106,15 +2231,18 @@ solve(eq, t)            # Solve for t
         }
         for (int i = segments; i >= (halfProfile ? 4 : 1); i--) {
             tSeg -= t[i];
-            Double ts = getSegmentCrossingTime(sCross, tSeg, i, false);
-            if (ts != null) {
+            double ts = getSegmentCrossingTime(sCross, tSeg, i, false);
+            if (!Double.isNaN(ts)) {
                 return ts;
             }
         }
         return null;
     }
 
-    protected Double getSegmentCrossingTime(double sCross, double tSeg, int i, boolean forward) {
+    /**
+     * @return The time at which the segment i crosses sCross, or NaN if it does not.
+     */
+    protected double getSegmentCrossingTime(double sCross, double tSeg, int i, boolean forward) {
         double ti = t[i];
         double j = this.j[i-1];
 
@@ -2156,13 +2284,18 @@ solve(eq, t)            # Solve for t
             // curvature of the path. 
             // These give us interval boundaries, where we can search for the third order roots. 
             // [t == -(a0 + sqrt(a0^2 - 2*j*v0))/j, t == -(a0 - sqrt(a0^2 - 2*j*v0))/j]
-            double sTerm = Math.sqrt(a02 - 2*j*v0);
+            // Without real roots, e.g. when entering with velocity and jerk of the same sign, there is no 
+            // extreme and the intervals collapse at the velocity minimum.
+            double sTerm = Math.sqrt(Math.max(0, a02 - 2*j*v0));
             double ti0 = 0;
             double ti1 = Math.max(ti0, Math.min(ti, -(a0 + sTerm)/j));
             double ti2 = Math.max(ti0, Math.min(ti, -(a0 - sTerm)/j));
             // Now treat each interval and solve for roots numerically. 
-            Function<Double, Double> f = (t) -> (-ds + v0*t + 1./2*a0*Math.pow(t, 2) + 1./6*j*Math.pow(t, 3)); 
-            Function<Double, Double> g = (t) -> (v0 + a0*t + 1./2*j*Math.pow(t, 2));
+            final Workspace workspace = workspaces.get();
+            workspace.ds = ds;
+            workspace.v0 = v0;
+            workspace.a0 = a0;
+            workspace.j = j;
             if (ti1 > ti2) {
                 // swap
                 double tmp = ti2;
@@ -2170,13 +2303,21 @@ solve(eq, t)            # Solve for t
                 ti1 = tmp;
             }
             // We want the first (forward==true) or last one in time.
-            double[][]intervals = (forward ? 
-                    new double[][] {{ti0, ti1}, {ti1, ti2}, {ti2, ti}}
-            :       new double[][] {{ti2, ti}, {ti1, ti2}, {ti0, ti1}});
-            for (double [] interval : intervals) {
-                if (interval[0] < interval[1]) {
-                    Double ts = newtonSolve(interval[0], interval[1], f, g, true);
-                    if (ts != null) {
+            final double [] intervals = workspace.intervals;
+            if (forward) {
+                intervals[0] = ti0; intervals[1] = ti1;
+                intervals[2] = ti1; intervals[3] = ti2;
+                intervals[4] = ti2; intervals[5] = ti;
+            }
+            else {
+                intervals[0] = ti2; intervals[1] = ti;
+                intervals[2] = ti1; intervals[3] = ti2;
+                intervals[4] = ti0; intervals[5] = ti1;
+            }
+            for (int k = 0; k < intervals.length; k += 2) {
+                if (intervals[k] < intervals[k+1]) {
+                    double ts = newtonSolve(intervals[k], intervals[k+1], workspace.f, workspace.g, true);
+                    if (!Double.isNaN(ts)) {
                         return ts + tSeg;
                     }
                 }
@@ -2220,22 +2361,27 @@ solve(eq, t)            # Solve for t
                 return ts + tSeg;
             }
         }
-        return null;
+        return Double.NaN;
     }
 
-    protected Double newtonSolve(double x0, double x1, Function<Double, Double> f,
-            Function<Double, Double> g, boolean zeroes) {
+    /**
+     * Solve f(x) = 0 by Newton's method in the interval x0 .. x1, where g is the derivative of f.
+     * 
+     * @return The solution, or NaN if none is found.
+     */
+    protected double newtonSolve(double x0, double x1, DoubleUnaryOperator f,
+            DoubleUnaryOperator g, boolean zeroes) {
         // Start value.
         double x = (x0 + x1)*0.5;
         int escapeNeg = 0;
         int escapePos = 0;
         for(int iter = 0; iter < iterations; iter++) {
-            double y = f.apply(x);
-            double dydt = g.apply(x);
+            double y = f.applyAsDouble(x);
+            double dydt = g.applyAsDouble(x);
 
             if (Math.abs(dydt) < ttol) {
                 // Stop if the denominator is too small
-                return null;
+                return Double.NaN;
             }
             // Do Newton's computation. Limit to interval.
             double xn = Math.max(x0, Math.min(x1, x - y/dydt));  
@@ -2243,14 +2389,14 @@ solve(eq, t)            # Solve for t
             if (xn <= x0) {
                 if (++escapeNeg > 1) {
                     // Multiple times outside, escaped. 
-                    return null;
+                    return Double.NaN;
                 }
                 escapePos = 0;
             }
             else if (xn >= x1) {
                 if (++escapePos > 1) {
                     // Multiple times outside, escaped. 
-                    return null;
+                    return Double.NaN;
                 }
                 escapeNeg = 0;
             }
@@ -2308,7 +2454,8 @@ solve(eq, t)            # Solve for t
             if (j[i-1] != 0) {
                 // 3rd order segment.
                 double dt = Math.sqrt(Math.pow(a[i-1], 2) - 2*v[i-1]*j[i-1]);
-                for (double tCross : new double[] { -(a[i-1] + dt)/j[i-1], -(a[i-1] - dt)/j[i-1] }) { 
+                for (int k = 0; k < 2; k++) {
+                    double tCross = (k == 0 ? -(a[i-1] + dt)/j[i-1] : -(a[i-1] - dt)/j[i-1]);
                     if (tCross >= 0 && tCross <= t[i]) {
                         // Zero-crossing inside the period, maybe an extreme.
                         double sExtreme = s[i-1] + v[i-1]*tCross + 1./2*a[i-1]*Math.pow(tCross, 2) + 1./6*j[i-1]*Math.pow(tCross, 3);
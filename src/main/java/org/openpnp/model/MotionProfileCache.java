@@ -0,0 +1,284 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openpnp.util.NanosecondTime;
+
+/**
+ * A bounded, least recently used cache of solved MotionProfiles. A pick and place job repeats the
+ * same moves over and over, e.g. from a feeder to the bottom camera or up and down to Safe Z, so
+ * most profiles have been solved before.
+ *
+ * The key holds all the inputs of the solver, i.e. the entry and exit location, velocity and
+ * acceleration, the velocity, acceleration and jerk limits, the minimum time and the options.
+ * Values are compared exactly. Quantizing them would hand out profiles that end slightly off the
+ * target location, and as the solver is not translation invariant in the last bits, even moves
+ * of the same distance must be keyed on their absolute locations. A hit therefore yields the very
+ * same solution as solving.
+ *
+ * MotionProfile.solve() consults the shared instance. The motion planner configures it.
+ */
+public class MotionProfileCache {
+    public static final int defaultCapacity = 4096;
+
+    private static final MotionProfileCache instance = new MotionProfileCache(defaultCapacity);
+
+    private volatile boolean enabled = true;
+    private volatile int capacity;
+
+    private final Map<Key, Solution> solutions = new LinkedHashMap<Key, Solution>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Solution> eldest) {
+            return size() > capacity;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public MotionProfileCache(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public static MotionProfileCache getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Enable or disable the cache. Disabling it clears it, so every profile is solved, e.g. for
+     * diagnostics.
+     *
+     * @param enabled
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+        if (!enabled) {
+            clear();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = Math.max(0, capacity);
+        synchronized (solutions) {
+            while (solutions.size() > this.capacity) {
+                solutions.remove(solutions.keySet().iterator().next());
+            }
+        }
+    }
+
+    public int getSize() {
+        synchronized (solutions) {
+            return solutions.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return The ratio of hits to lookups, or 0 if there were none.
+     */
+    public double getHitRatio() {
+        long hits = getHits();
+        long lookups = hits + getMisses();
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * Clear the cache and reset the statistics.
+     */
+    public void clear() {
+        synchronized (solutions) {
+            solutions.clear();
+        }
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Solve the profile, i.e. copy a cached solution into it or solve it and cache the solution.
+     *
+     * @param profile
+     */
+    public void solve(MotionProfile profile) {
+        if (!enabled || capacity == 0) {
+            profile.solveUncached();
+            return;
+        }
+        double tStart = NanosecondTime.getRuntimeSeconds();
+        Key key = new Key(profile);
+        Solution solution;
+        synchronized (solutions) {
+            solution = solutions.get(key);
+        }
+        if (solution != null) {
+            hits.incrementAndGet();
+            solution.copyTo(profile);
+            profile.solvingTime = NanosecondTime.getRuntimeSeconds() - tStart;
+            return;
+        }
+        misses.incrementAndGet();
+        int eval0 = profile.eval;
+        profile.solveUncached();
+        solution = new Solution(profile, profile.eval - eval0);
+        synchronized (solutions) {
+            solutions.put(key, solution);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("MotionProfileCache {enabled = %s, size = %d/%d, hits = %d, misses = %d, hit ratio = %.1f%%}",
+                enabled, getSize(), capacity, getHits(), getMisses(), getHitRatio()*100);
+    }
+
+    /**
+     * The inputs of the solver. The Solved option is not part of the key.
+     */
+    private static class Key {
+        private final long s0, s1, v0, v1, a0, a1;
+        private final long vMax, aMaxEntry, aMaxExit, jMax, tMin;
+        private final int options;
+        private final int hash;
+
+        Key(MotionProfile profile) {
+            final int segments = MotionProfile.segments;
+            s0 = Double.doubleToLongBits(profile.s[0]);
+            s1 = Double.doubleToLongBits(profile.s[segments]);
+            v0 = Double.doubleToLongBits(profile.v[0]);
+            v1 = Double.doubleToLongBits(profile.v[segments]);
+            a0 = Double.doubleToLongBits(profile.a[0]);
+            a1 = Double.doubleToLongBits(profile.a[segments]);
+            vMax = Double.doubleToLongBits(profile.vMax);
+            aMaxEntry = Double.doubleToLongBits(profile.aMaxEntry);
+            aMaxExit = Double.doubleToLongBits(profile.aMaxExit);
+            jMax = Double.doubleToLongBits(profile.jMax);
+            tMin = Double.doubleToLongBits(profile.tMin);
+            options = profile.profileOptions & ~MotionProfile.ProfileOption.Solved.flag();
+            long h = s0;
+            h = h*31 + s1;
+            h = h*31 + v0;
+            h = h*31 + v1;
+            h = h*31 + a0;
+            h = h*31 + a1;
+            h = h*31 + vMax;
+            h = h*31 + aMaxEntry;
+            h = h*31 + aMaxExit;
+            h = h*31 + jMax;
+            h = h*31 + tMin;
+            h = h*31 + options;
+            hash = (int) (h ^ (h >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hash == other.hash
+                    && s0 == other.s0 && s1 == other.s1
+                    && v0 == other.v0 && v1 == other.v1
+                    && a0 == other.a0 && a1 == other.a1
+                    && vMax == other.vMax
+                    && aMaxEntry == other.aMaxEntry && aMaxExit == other.aMaxExit
+                    && jMax == other.jMax
+                    && tMin == other.tMin
+                    && options == other.options;
+        }
+    }
+
+    /**
+     * Everything solving writes into the profile. Immutable once cached.
+     */
+    private static class Solution {
+        private final double [] s;
+        private final double [] v;
+        private final double [] a;
+        private final double [] j;
+        private final double [] t;
+        private final double time;
+        private final double [] bounds;
+        private final int eval;
+
+        Solution(MotionProfile profile, int eval) {
+            s = profile.s.clone();
+            v = profile.v.clone();
+            a = profile.a.clone();
+            j = profile.j.clone();
+            t = profile.t.clone();
+            time = profile.time;
+            bounds = new double [] {
+                    profile.sBound0, profile.sBound1, profile.tSBound0, profile.tSBound1,
+                    profile.vBound0, profile.vBound1, profile.tVBound0, profile.tVBound1,
+                    profile.aBound0, profile.aBound1, profile.tABound0, profile.tABound1,
+            };
+            this.eval = eval;
+        }
+
+        void copyTo(MotionProfile profile) {
+            System.arraycopy(s, 0, profile.s, 0, s.length);
+            System.arraycopy(v, 0, profile.v, 0, v.length);
+            System.arraycopy(a, 0, profile.a, 0, a.length);
+            System.arraycopy(j, 0, profile.j, 0, j.length);
+            System.arraycopy(t, 0, profile.t, 0, t.length);
+            profile.time = time;
+            profile.sBound0 = bounds[0];
+            profile.sBound1 = bounds[1];
+            profile.tSBound0 = bounds[2];
+            profile.tSBound1 = bounds[3];
+            profile.vBound0 = bounds[4];
+            profile.vBound1 = bounds[5];
+            profile.tVBound0 = bounds[6];
+            profile.tVBound1 = bounds[7];
+            profile.aBound0 = bounds[8];
+            profile.aBound1 = bounds[9];
+            profile.tABound0 = bounds[10];
+            profile.tABound1 = bounds[11];
+            profile.eval += eval;
+            profile.setOption(MotionProfile.ProfileOption.Solved);
+        }
+    }
+}
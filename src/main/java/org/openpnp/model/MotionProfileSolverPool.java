@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.model;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Solves the independent axis profiles of a move concurrently, on a small dedicated pool of daemon
+ * threads. Each profile is solved on its own, so the solutions are exactly the same as when solved
+ * one after another.
+ *
+ * Handing work to another thread has its own cost, so moves with fewer unsolved profiles than the
+ * threshold are solved on the calling thread. The calling thread always takes part in the
+ * solving, so a busy pool never delays a move beyond solving it alone.
+ *
+ * MotionProfile.synchronizeProfiles() uses the shared instance. The motion planner configures it.
+ */
+public class MotionProfileSolverPool {
+    public static final int defaultThreshold = 4;
+    public static final int defaultThreads = 2;
+
+    private static final MotionProfileSolverPool instance = new MotionProfileSolverPool();
+
+    private volatile boolean enabled = false;
+    private volatile int threshold = defaultThreshold;
+    private int threads = defaultThreads;
+    private ExecutorService executor;
+
+    public static MotionProfileSolverPool getInstance() {
+        return instance;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @param threshold The minimum number of unsolved profiles to solve them concurrently.
+     */
+    public void setThreshold(int threshold) {
+        this.threshold = Math.max(2, threshold);
+    }
+
+    public synchronized int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @param threads The number of pool threads, in addition to the calling thread. A different
+     * number shuts the current pool down. Batches already handed to it are still completed, and a
+     * concurrent solve() that finds it shut down solves on its calling thread.
+     */
+    public synchronized void setThreads(int threads) {
+        threads = Math.max(1, threads);
+        if (threads != this.threads) {
+            this.threads = threads;
+            if (executor != null) {
+                executor.shutdown();
+                executor = null;
+            }
+        }
+    }
+
+    /**
+     * Make sure all the profiles are solved.
+     *
+     * @param profiles
+     */
+    public void solve(MotionProfile [] profiles) {
+        int unsolved = 0;
+        for (MotionProfile profile : profiles) {
+            if (!profile.hasOption(MotionProfile.ProfileOption.Solved)) {
+                unsolved++;
+            }
+        }
+        if (!enabled || unsolved < threshold) {
+            for (MotionProfile profile : profiles) {
+                profile.assertSolved();
+            }
+            return;
+        }
+        MotionProfile [] work = new MotionProfile[unsolved];
+        int n = 0;
+        for (MotionProfile profile : profiles) {
+            if (!profile.hasOption(MotionProfile.ProfileOption.Solved)) {
+                work[n++] = profile;
+            }
+        }
+        Batch batch = new Batch(work);
+        ExecutorService executor = getExecutor();
+        int helpers = Math.min(getThreads(), unsolved - 1);
+        try {
+            for (int i = 0; i < helpers; i++) {
+                executor.execute(batch);
+            }
+        }
+        catch (RejectedExecutionException e) {
+            // The pool was shut down by setThreads() since we got it. The calling thread takes the
+            // profiles that no helper takes.
+        }
+        batch.run();
+        batch.await();
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            AtomicInteger count = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "MotionProfileSolver-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * The profiles of one move. The calling thread and the pool threads take the profiles one by one,
+     * until all are taken.
+     */
+    private static class Batch implements Runnable {
+        private final MotionProfile [] profiles;
+        private final AtomicInteger next = new AtomicInteger();
+        private final CountDownLatch done;
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        Batch(MotionProfile [] profiles) {
+            this.profiles = profiles;
+            this.done = new CountDownLatch(profiles.length);
+        }
+
+        @Override
+        public void run() {
+            int i;
+            while ((i = next.getAndIncrement()) < profiles.length) {
+                try {
+                    profiles[i].solve();
+                }
+                catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+                finally {
+                    done.countDown();
+                }
+            }
+        }
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            Throwable e = failure.get();
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+        }
+    }
+}
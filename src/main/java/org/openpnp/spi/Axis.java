@@ -49,4 +49,10 @@ public interface Axis extends Identifiable, Named, WizardConfigurable, PropertyS
     public Type getType();
 
     public void setType(Type type);
+
+    /**
+     * @return The ordinal of the axis, a small number that is unique among all the axes. It is assigned
+     * when the axis is created and used by AxesLocation to quickly find axes. 
+     */
+    public int getOrdinal();
 }
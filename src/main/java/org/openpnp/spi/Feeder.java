@@ -19,6 +19,8 @@
 
 package org.openpnp.spi;
 
+import java.util.concurrent.Future;
+
 import org.openpnp.model.Identifiable;
 import org.openpnp.model.Location;
 import org.openpnp.model.Named;
@@ -107,6 +109,24 @@ public interface Feeder extends Identifiable, Named, WizardConfigurable, Propert
      */
     public void feed(Nozzle nozzle) throws Exception;
 
+    /**
+     * Requests the Feeder to feed ahead of time, i.e. to start preparing the next part while the
+     * machine is busy doing other things. This is only possible for Feeders that do not need Head
+     * interaction to feed. The call must not block, the feed is performed in the background.
+     * 
+     * If the returned handle completes without an Exception, the part is ready to be picked and the
+     * JobProcessor will not call feed() for the next pick from this Feeder. If it completes with an
+     * Exception, the JobProcessor falls back to a regular feed(). 
+     * 
+     * @param nozzle The Nozzle that is planned to pick the part.
+     * @return The completion handle of the feed, or null if the Feeder cannot feed ahead, in which 
+     * case feed() will be called as usual.
+     * @throws Exception
+     */
+    public default Future<?> feedAhead(Nozzle nozzle) throws Exception {
+        return null;
+    }
+
     public void postPick(Nozzle nozzle) throws Exception;
 
     /*
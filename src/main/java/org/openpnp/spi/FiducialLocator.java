@@ -1,9 +1,12 @@
 package org.openpnp.spi;
 
+import java.util.List;
+
 import org.openpnp.gui.support.Wizard;
 import org.openpnp.model.BoardLocation;
 import org.openpnp.model.Location;
 import org.openpnp.model.Part;
+import org.openpnp.spi.JobProcessor.JobProcessorException;
 
 
 /**
@@ -16,6 +19,36 @@ public interface FiducialLocator extends PropertySheetHolder {
 
     public Location locateBoard(BoardLocation boardLocation, boolean checkPanel) throws Exception;
 
+    /**
+     * Locate the given boards, and optionally the panel, as one job-level fiducial pass. The
+     * default implementation locates them one after the other, implementations may visit all the
+     * fiducials in one tour.
+     * 
+     * @param panelBoardLocation The BoardLocation through which the panel fiducials are located, 
+     * as in locateBoard(panelBoardLocation, true), or null if the panel is not checked.
+     * @param boardLocations The BoardLocations to locate by their own fiducials.
+     * @throws JobProcessorException with the BoardLocation that failed as its source.
+     */
+    public default void locateBoards(BoardLocation panelBoardLocation, List<BoardLocation> boardLocations) 
+            throws Exception {
+        if (panelBoardLocation != null) {
+            try {
+                locateBoard(panelBoardLocation, true);
+            }
+            catch (Exception e) {
+                throw new JobProcessorException(panelBoardLocation, e);
+            }
+        }
+        for (BoardLocation boardLocation : boardLocations) {
+            try {
+                locateBoard(boardLocation);
+            }
+            catch (Exception e) {
+                throw new JobProcessorException(boardLocation, e);
+            }
+        }
+    }
+
     public Location getHomeFiducialLocation(Location location, Part part) throws Exception;
     
     /**
@@ -21,6 +21,7 @@
  package org.openpnp.spi.base;
 
 import java.awt.event.ActionEvent;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -56,6 +57,10 @@ public abstract class AbstractAxis extends AbstractModelObject implements Axis {
     @Attribute(required = false)
     protected Axis.Type type;
 
+    private static final AtomicInteger ordinals = new AtomicInteger();
+
+    private final int ordinal = ordinals.getAndIncrement();
+
     public AbstractAxis() {
         this.id = Configuration.createId("AXS");
         this.name = getClass().getSimpleName();
@@ -88,6 +93,11 @@ public abstract class AbstractAxis extends AbstractModelObject implements Axis {
         this.type = type;
     }
 
+    @Override
+    public int getOrdinal() {
+        return ordinal;
+    }
+
     /**
      * @param machine The Machine with the axes to be considered.
      * @return The set of ControllerAxes that are the ultimate input axes of the axis stack. 
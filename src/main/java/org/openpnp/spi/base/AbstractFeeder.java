@@ -1,5 +1,10 @@
 package org.openpnp.spi.base;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 import javax.swing.Icon;
 
 import org.openpnp.ConfigurationListener;
@@ -8,7 +13,13 @@ import org.openpnp.gui.support.PropertySheetWizardAdapter;
 import org.openpnp.model.AbstractModelObject;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.Part;
+import org.openpnp.spi.Actuator;
+import org.openpnp.spi.Axis;
+import org.openpnp.spi.ControllerAxis;
+import org.openpnp.spi.Driver;
 import org.openpnp.spi.Feeder;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Machine;
 import org.openpnp.spi.Nozzle;
 import org.simpleframework.xml.Attribute;
 
@@ -55,6 +66,12 @@ public abstract class AbstractFeeder extends AbstractModelObject implements Feed
 
     protected Part part;
 
+    /**
+     * Single background thread shared by all feeders for feed ahead, so feeder communication is
+     * never concurrent with itself.
+     */
+    private static ExecutorService feedAheadExecutor;
+
     public AbstractFeeder() {
         this.id = Configuration.createId("FDR");
         this.name = getClass().getSimpleName();
@@ -148,6 +165,67 @@ public abstract class AbstractFeeder extends AbstractModelObject implements Feed
     }
     
     public void postPick(Nozzle nozzle) throws Exception { }
+
+    /**
+     * Submit a feed ahead task that uses the given actuator, if the actuator can safely be used
+     * outside the machine task: It must not coordinate with the machine and its driver must not be 
+     * used by any axis or other actuator, as these are in use by the machine task while the feed
+     * ahead runs.
+     * 
+     * @param actuator
+     * @param task
+     * @return The Future of the task or null if the actuator cannot be used for feed ahead.
+     */
+    protected static Future<?> submitFeedAhead(Actuator actuator, Callable<Void> task) {
+        if (actuator == null
+                || actuator.isCoordinatedBeforeActuate()
+                || actuator.isCoordinatedAfterActuate()
+                || actuator.isCoordinatedBeforeRead()
+                || !isFeederExclusiveDriver(actuator)) {
+            return null;
+        }
+        synchronized (AbstractFeeder.class) {
+            if (feedAheadExecutor == null) {
+                feedAheadExecutor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "FeedAhead");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            return feedAheadExecutor.submit(task);
+        }
+    }
+
+    /**
+     * @param feederActuator
+     * @return True if the driver of the feeder actuator is not used by any axis, head actuator or 
+     * other machine actuator, such as pumps, valves or lights.
+     */
+    protected static boolean isFeederExclusiveDriver(Actuator feederActuator) {
+        Driver driver = feederActuator.getDriver();
+        if (driver == null) {
+            return false;
+        }
+        Machine machine = Configuration.get().getMachine();
+        for (Axis axis : machine.getAxes()) {
+            if (axis instanceof ControllerAxis && ((ControllerAxis) axis).getDriver() == driver) {
+                return false;
+            }
+        }
+        for (Head head : machine.getHeads()) {
+            for (Actuator actuator : head.getActuators()) {
+                if (actuator != feederActuator && actuator.getDriver() == driver) {
+                    return false;
+                }
+            }
+        }
+        for (Actuator actuator : machine.getActuators()) {
+            if (actuator != feederActuator && actuator.getDriver() == driver) {
+                return false;
+            }
+        }
+        return true;
+    }
     
     @Override
     public boolean canTakeBackPart() {
@@ -14,6 +14,7 @@ import java.util.TreeMap;
 import org.openpnp.Main;
 import org.openpnp.machine.reference.ReferenceMachine;
 import org.openpnp.machine.reference.SimulationModeMachine;
+import org.openpnp.machine.reference.driver.ReferenceDriverCommunications.LineReader;
 import org.openpnp.model.AxesLocation;
 import org.openpnp.model.Configuration;
 import org.openpnp.model.LengthUnit;
@@ -156,6 +157,7 @@ public class GcodeServer extends Thread {
     class Worker extends Thread {
         final Socket socket;
         final InputStream input;
+        final LineReader lineReader;
         final OutputStream output;
         private double feedRate;
         private double acceleration;
@@ -168,25 +170,12 @@ public class GcodeServer extends Thread {
         public Worker(Socket socket) throws Exception {
             this.socket = socket;
             input = socket.getInputStream();
+            lineReader = new LineReader(input::read, LineReader.defaultCapacity);
             output = socket.getOutputStream();
         }
 
         String read() throws Exception {
-            StringBuffer line = new StringBuffer();
-            while (true) {
-                int ch = input.read();
-                if (ch == -1) {
-                    return null;
-                }
-                else if (ch == '\n' || ch == '\r') {
-                    if (line.length() > 0) {
-                        return line.toString();
-                    }
-                }
-                else {
-                    line.append((char) ch);
-                }
-            }
+            return lineReader.readUntil("\r\n");
         }
 
         void write(String s) throws Exception {
@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+package org.openpnp.util;
+
+import java.util.Arrays;
+
+/**
+ * A fixed size latency histogram over nanosecond durations. Each power of two is divided into
+ * 8 linear sub-buckets, so the percentiles have a relative error of less than 12.5%, over the
+ * whole range of a long. Recording is a few arithmetic operations and an array increment, there
+ * is no allocation.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long count;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    /**
+     * Record a duration.
+     *
+     * @param nanos
+     */
+    public synchronized void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts[getBucket(nanos)]++;
+        count++;
+        sum += nanos;
+        min = Math.min(min, nanos);
+        max = Math.max(max, nanos);
+    }
+
+    /**
+     * Add all the recorded durations of the other histogram to this one.
+     *
+     * @param other
+     */
+    public synchronized void add(LatencyHistogram other) {
+        synchronized (other) {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            sum += other.sum;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+        }
+    }
+
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    static int getBucket(long nanos) {
+        if (nanos < SUB_BUCKETS) {
+            return (int) nanos;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        int shift = exponent - SUB_BUCKET_BITS;
+        int subBucket = (int) (nanos >>> shift) - SUB_BUCKETS;
+        return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+    }
+
+    static long getBucketLowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+        int subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+        return ((long) (SUB_BUCKETS + subBucket)) << shift;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return The total of the recorded durations in nanoseconds.
+     */
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    public synchronized long getMax() {
+        return max;
+    }
+
+    public synchronized double getMean() {
+        return count == 0 ? 0 : (double) sum / count;
+    }
+
+    /**
+     * @param percentile The percentile, 0 to 100.
+     * @return The duration in nanoseconds below which the given percentile of the recorded
+     * durations lie, approximated by the middle of the bucket and clamped to the minimum and
+     * maximum.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        rank = Math.max(1, Math.min(count, rank));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                long lower = getBucketLowerBound(i);
+                long upper = (i + 1 < BUCKETS) ? getBucketLowerBound(i + 1) : Long.MAX_VALUE;
+                long middle = lower + (upper - lower) / 2;
+                return Math.max(getMin(), Math.min(max, middle));
+            }
+        }
+        return max;
+    }
+}
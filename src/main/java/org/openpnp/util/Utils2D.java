@@ -99,7 +99,7 @@ public class Utils2D {
      * @param bl
      * @return
      */
-    private static AffineTransform getDefaultBoardPlacementLocationTransform(BoardLocation bl) {
+    public static AffineTransform getDefaultBoardPlacementLocationTransform(BoardLocation bl) {
         Location l = bl.getLocation().convertToUnits(LengthUnit.Millimeters);
         AffineTransform tx = new AffineTransform();
         tx.translate(l.getX(), l.getY());
@@ -200,38 +200,14 @@ public class Utils2D {
         return ret;
     }
 
+    /**
+     * Transform a placement location from board to machine coordinates. The transform is
+     * compiled and cached by the BoardLocation, see BoardLocation.getCompiledPlacementTransform()
+     * which also offers a batch form for transforming many placements.
+     */
     public static Location calculateBoardPlacementLocation(BoardLocation bl,
             Location placementLocation) {
-        AffineTransform tx = bl.getPlacementTransform();        
-        if (tx == null) {
-            tx = getDefaultBoardPlacementLocationTransform(bl);
-        }
-        
-        // The affine calculations are always done in millimeters, so we convert everything
-        // before we start calculating and then we'll convert it back to the original
-        // units at the end.
-        LengthUnit placementUnits = placementLocation.getUnits();
-        Location boardLocation = bl.getLocation().convertToUnits(LengthUnit.Millimeters);
-        placementLocation = placementLocation.convertToUnits(LengthUnit.Millimeters);
-
-        if (bl.getSide() == Side.Bottom) {
-        	placementLocation = placementLocation.invert(true, false, false, false);
-        }
-
-        double angle = getTransformAngle(tx);
-        
-        Point2D p = new Point2D.Double(placementLocation.getX(), placementLocation.getY());
-        p = tx.transform(p, null);
-        
-        // The final result is the transformed X,Y, the BoardLocation's Z, and the
-        // transform angle + placement angle.
-        Location l = new Location(LengthUnit.Millimeters, 
-                p.getX(), 
-                p.getY(), 
-                boardLocation.getZ(), 
-                angle + placementLocation.getRotation());
-        l = l.convertToUnits(placementUnits);
-        return l;
+        return bl.getCompiledPlacementTransform().transform(placementLocation);
     }
 
     public static Location calculateBoardPlacementLocationInverse(BoardLocation bl,
@@ -24,6 +24,12 @@ import org.simpleframework.xml.Element;
         description="Capture an image from the pipeline camera.")
 
 public class ImageCapture extends CvStage {
+    /**
+     * Pipeline property with an image that was captured ahead of processing. If set, the stage
+     * returns a copy of it instead of capturing from the camera.
+     */
+    public static final String CAPTURED_IMAGE = "capturedImage";
+
     @Attribute(required=false)
     @Property(description="Use the default camera lighting.")
     private boolean defaultLight = true;
@@ -77,40 +83,17 @@ public class ImageCapture extends CvStage {
     }
     @Override
     public Result process(CvPipeline pipeline) throws Exception {
+        Object capturedImage = pipeline.getProperty(CAPTURED_IMAGE);
+        if (capturedImage instanceof Mat) {
+            // The image was captured ahead of processing, see capture().
+            return new Result(((Mat) capturedImage).clone(), ColorSpace.Bgr);
+        }
         Camera camera = (Camera) pipeline.getProperty("camera");
         if (camera == null) {
             throw new Exception("No Camera set on pipeline.");
         }
         try {
-            // Light, settle and capture the image. Keep the lights on for possible averaging.
-            camera.actuateLightBeforeCapture((defaultLight ? null : getLight()));
-            try {
-                BufferedImage bufferedImage = (settleFirst ? camera.settleAndCapture() : camera.capture()); 
-                Mat image = OpenCvUtils.toMat(bufferedImage);
-                if (count <= 1) { 
-                    return new Result(image, ColorSpace.Bgr);
-                }
-                else {
-                    // Perform averaging in channel type double.
-                    image.convertTo(image, CvType.CV_64F);
-                    Mat avgImage = image;
-                    double beta = 1.0 / count;
-                    Core.addWeighted(avgImage, 0, image, beta, 0, avgImage); // avgImage = image/count
-                    for (int i = 1; i < count; i++) {
-                        image = OpenCvUtils.toMat(camera.capture());
-                        image.convertTo(image, CvType.CV_64F);
-                        Core.addWeighted(avgImage, 1, image, beta, 0, avgImage); // avgImage = avgImag + image/count
-                        // Release the additional image.
-                        image.release();
-                    }
-                    avgImage.convertTo(avgImage, CvType.CV_8U);
-                    return new Result(avgImage, ColorSpace.Bgr);
-                }
-            }
-            finally {
-                // Always switch off the light. 
-                camera.actuateLightAfterCapture();
-            }
+            return new Result(capture(camera), ColorSpace.Bgr);
         }
         catch (Exception e) {
             // These machine exceptions are terminal to the pipeline.
@@ -118,6 +101,47 @@ public class ImageCapture extends CvStage {
         }
     }
 
+    /**
+     * Light, settle and capture the image according to the settings of this stage. This can be
+     * used to capture the image ahead of processing the pipeline, by setting the result as the 
+     * CAPTURED_IMAGE pipeline property. Processing can then be done later, on another thread.
+     * 
+     * @param camera
+     * @return The captured image. The caller is responsible for releasing it.
+     * @throws Exception
+     */
+    public Mat capture(Camera camera) throws Exception {
+        // Light, settle and capture the image. Keep the lights on for possible averaging.
+        camera.actuateLightBeforeCapture((defaultLight ? null : getLight()));
+        try {
+            BufferedImage bufferedImage = (settleFirst ? camera.settleAndCapture() : camera.capture()); 
+            Mat image = OpenCvUtils.toMat(bufferedImage);
+            if (count <= 1) { 
+                return image;
+            }
+            else {
+                // Perform averaging in channel type double.
+                image.convertTo(image, CvType.CV_64F);
+                Mat avgImage = image;
+                double beta = 1.0 / count;
+                Core.addWeighted(avgImage, 0, image, beta, 0, avgImage); // avgImage = image/count
+                for (int i = 1; i < count; i++) {
+                    image = OpenCvUtils.toMat(camera.capture());
+                    image.convertTo(image, CvType.CV_64F);
+                    Core.addWeighted(avgImage, 1, image, beta, 0, avgImage); // avgImage = avgImag + image/count
+                    // Release the additional image.
+                    image.release();
+                }
+                avgImage.convertTo(avgImage, CvType.CV_8U);
+                return avgImage;
+            }
+        }
+        finally {
+            // Always switch off the light. 
+            camera.actuateLightAfterCapture();
+        }
+    }
+
     @Override
     public void customizePropertySheet(PipelinePropertySheetTable table, CvPipeline pipeline) {
         super.customizePropertySheet(table, pipeline);
@@ -0,0 +1,222 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.axis.ReferenceVirtualAxis;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Length;
+import org.openpnp.spi.Axis;
+
+public class AxesLocationTest {
+    private static List<Axis> createAxes(int count) {
+        List<Axis> axes = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ReferenceVirtualAxis axis = new ReferenceVirtualAxis(Axis.Type.X);
+            axis.setName("A" + i);
+            axes.add(axis);
+        }
+        return axes;
+    }
+
+    private static void assertLocation(Map<Axis, Double> expected, AxesLocation location) {
+        Assertions.assertEquals(new ArrayList<>(expected.keySet()),
+                new ArrayList<>(location.getAxes()));
+        for (Map.Entry<Axis, Double> entry : expected.entrySet()) {
+            Assertions.assertEquals((double) entry.getValue(), location.getCoordinate(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void testBuilder() {
+        List<Axis> axes = createAxes(4);
+        AxesLocation.Builder builder = new AxesLocation.Builder(1);
+        builder.put(axes.get(0), 1)
+            .put(axes.get(1), 2)
+            .put(null, 99)
+            .add(axes.get(0), 10)
+            .add(axes.get(2), 3)
+            .merge(axes.get(1), 5, Math::max)
+            .put(axes.get(3), 4)
+            .remove(axes.get(2));
+        Assertions.assertEquals(3, builder.size());
+        AxesLocation location = builder.build();
+
+        Map<Axis, Double> expected = new LinkedHashMap<>();
+        expected.put(axes.get(0), 11.0);
+        expected.put(axes.get(1), 5.0);
+        expected.put(axes.get(3), 4.0);
+        assertLocation(expected, location);
+        Assertions.assertFalse(location.contains(axes.get(2)));
+        Assertions.assertEquals(0.0, location.getCoordinate(axes.get(2)));
+
+        // Reusing the Builder does not change the AxesLocations built before.
+        builder.put(axes.get(0), 100);
+        assertLocation(expected, location);
+        builder.clear();
+        Assertions.assertEquals(0, builder.size());
+        Assertions.assertTrue(builder.build().isEmpty());
+        builder.putAll(location).remove(axes.get(1));
+        Assertions.assertEquals(Arrays.asList(axes.get(0), axes.get(3)),
+                new ArrayList<>(builder.build().getAxes()));
+        assertLocation(expected, location);
+    }
+
+    /**
+     * Compares merge, add, subtract, put and map with a LinkedHashMap, i.e. the former representation,
+     * on random axes and coordinates, including the fast path with the same axes in the same order.
+     */
+    @Test
+    public void testMerge() {
+        List<Axis> axes = createAxes(6);
+        Random random = new Random(1);
+        for (int trial = 0; trial < 1000; trial++) {
+            Map<Axis, Double> map0 = new LinkedHashMap<>();
+            Map<Axis, Double> map1 = new LinkedHashMap<>();
+            for (Axis axis : axes) {
+                if (random.nextBoolean()) {
+                    map0.put(axis, (double) random.nextInt(100));
+                }
+                if (random.nextBoolean()) {
+                    map1.put(axis, (double) random.nextInt(100));
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                map1 = new LinkedHashMap<>(map0);
+                map1.replaceAll((axis, coordinate) -> coordinate * 2);
+            }
+            AxesLocation location0 = new AxesLocation.Builder().putAll(map0.keySet(),
+                    (axis) -> new Length(map0.get(axis), AxesLocation.getUnits()))
+                    .build();
+            AxesLocation.Builder builder1 = new AxesLocation.Builder();
+            map1.forEach(builder1::put);
+            AxesLocation location1 = builder1.build();
+
+            Map<Axis, Double> sum = new LinkedHashMap<>(map0);
+            Map<Axis, Double> difference = new LinkedHashMap<>(map0);
+            Map<Axis, Double> put = new LinkedHashMap<>(map0);
+            for (Map.Entry<Axis, Double> entry : map1.entrySet()) {
+                sum.merge(entry.getKey(), entry.getValue(), (a, b) -> a + b);
+                difference.merge(entry.getKey(), entry.getValue(), (a, b) -> a - b);
+                put.put(entry.getKey(), entry.getValue());
+            }
+            assertLocation(sum, location0.add(location1));
+            assertLocation(difference, location0.subtract(location1));
+            assertLocation(put, location0.put(location1));
+            Map<Axis, Double> doubled = new LinkedHashMap<>(map0);
+            doubled.replaceAll((axis, coordinate) -> coordinate * 2);
+            assertLocation(doubled, location0.multiply(2));
+            assertLocation(map0, location0.merge(null, (a, b) -> b));
+            assertLocation(map0, location0.merge(AxesLocation.zero, (a, b) -> b));
+        }
+    }
+
+    @Test
+    public void testMatchesWithin() {
+        List<Axis> axes = createAxes(3);
+        AxesLocation location = new AxesLocation.Builder()
+                .put(axes.get(0), 1)
+                .put(axes.get(1), 2)
+                .build();
+        Assertions.assertTrue(location.matchesWithin(location, 0));
+        Assertions.assertTrue(location.matchesWithin(location.add(new AxesLocation(axes.get(0), 0.25)), 0.25));
+        Assertions.assertFalse(location.matchesWithin(location.add(new AxesLocation(axes.get(0), 0.5)), 0.25));
+        // Other order of the axes.
+        AxesLocation reversed = new AxesLocation.Builder()
+                .put(axes.get(1), 2.005)
+                .put(axes.get(0), 0.995)
+                .build();
+        Assertions.assertTrue(location.matchesWithin(reversed, 0.01));
+        Assertions.assertFalse(location.matchesWithin(reversed, 0.001));
+        // Asymmetric: more axes in the other are ignored, missing axes compare against 0.0.
+        Assertions.assertTrue(location.matchesWithin(location.put(axes.get(2), 50), 0));
+        Assertions.assertFalse(location.put(axes.get(2), 50).matchesWithin(location, 0));
+        Assertions.assertTrue(location.put(axes.get(2), 0).matchesWithin(location, 0));
+        Assertions.assertFalse(location.matchesWithin(new AxesLocation(axes.get(0), 1), 0.01));
+        // NaN never matches.
+        Assertions.assertFalse(location.put(axes.get(0), Double.NaN).matchesWithin(location, 1e9));
+    }
+
+    /**
+     * AxesLocation has identity equality, as before. The set of axes compares and hashes like any
+     * other Set of the same axes.
+     */
+    @Test
+    public void testEqualityAndHashing() {
+        List<Axis> axes = createAxes(5);
+        AxesLocation.Builder builder = new AxesLocation.Builder();
+        for (int i = 0; i < axes.size(); i++) {
+            builder.put(axes.get(i), i);
+        }
+        AxesLocation location = builder.build();
+        AxesLocation same = builder.build();
+        Assertions.assertNotSame(location, same);
+        Assertions.assertTrue(location.matchesWithin(same, 0));
+
+        Assertions.assertEquals(new LinkedHashSet<>(axes), location.getAxes());
+        Assertions.assertEquals(location.getAxes(), new HashSet<>(axes));
+        Assertions.assertEquals(new HashSet<>(axes).hashCode(), location.getAxes().hashCode());
+        Assertions.assertEquals(same.getAxes(), location.getAxes());
+        Assertions.assertSame(location.getAxes(), location.getAxes());
+
+        AxesLocation fewer = location.byType(Axis.Type.Y);
+        Assertions.assertTrue(fewer.getAxes().isEmpty());
+        Assertions.assertNotEquals(location.getAxes(), fewer.getAxes());
+        Assertions.assertFalse(location.getAxes().contains("A0"));
+        Assertions.assertTrue(location.getAxes().containsAll(axes));
+    }
+
+    /**
+     * Ordinals are unique and fixed for the life of an axis. AxesLocations stay valid when more axes are
+     * created, including when more than 64 axes share the bits of the ordinal mask.
+     */
+    @Test
+    public void testOrdinalStability() {
+        List<Axis> axes = createAxes(10);
+        AxesLocation.Builder builder = new AxesLocation.Builder();
+        for (int i = 0; i < axes.size(); i += 2) {
+            builder.put(axes.get(i), i);
+        }
+        AxesLocation location = builder.build();
+        int[] ordinals = axes.stream().mapToInt(Axis::getOrdinal).toArray();
+
+        List<Axis> moreAxes = createAxes(200);
+        Assertions.assertArrayEquals(ordinals, axes.stream().mapToInt(Axis::getOrdinal).toArray());
+        HashSet<Integer> unique = new HashSet<>();
+        for (Axis axis : axes) {
+            Assertions.assertTrue(unique.add(axis.getOrdinal()));
+        }
+        for (Axis axis : moreAxes) {
+            Assertions.assertTrue(unique.add(axis.getOrdinal()));
+        }
+
+        for (int i = 0; i < axes.size(); i++) {
+            Assertions.assertEquals(i % 2 == 0, location.contains(axes.get(i)));
+            Assertions.assertEquals(i % 2 == 0 ? i : 0.0, location.getCoordinate(axes.get(i)));
+        }
+        // Most of these share an ordinal bit with an axis of the location, but are not contained.
+        for (Axis axis : moreAxes) {
+            Assertions.assertFalse(location.contains(axis));
+            Assertions.assertEquals(0.0, location.getCoordinate(axis));
+        }
+
+        // A location with all of the axes.
+        AxesLocation.Builder allBuilder = new AxesLocation.Builder();
+        for (int i = 0; i < moreAxes.size(); i++) {
+            allBuilder.put(moreAxes.get(i), i);
+        }
+        AxesLocation all = allBuilder.build();
+        Assertions.assertEquals(moreAxes.size(), all.size());
+        for (int i = 0; i < moreAxes.size(); i++) {
+            Assertions.assertTrue(all.contains(moreAxes.get(i)));
+            Assertions.assertEquals(i, all.getCoordinate(moreAxes.get(i)));
+        }
+        Assertions.assertFalse(all.contains(axes.get(0)));
+    }
+}
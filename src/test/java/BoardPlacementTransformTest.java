@@ -0,0 +1,221 @@
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Point2D;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.Board;
+import org.openpnp.model.Board.Side;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.BoardPlacementTransform;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+import org.openpnp.util.Utils2D;
+
+/**
+ * Compares the compiled BoardPlacementTransform with the affine transform it was compiled from,
+ * i.e. the way Utils2D.calculateBoardPlacementLocation() calculated the placement locations
+ * before. The results must be bit for bit the same.
+ */
+public class BoardPlacementTransformTest {
+    static final LengthUnit [] units = {
+            LengthUnit.Millimeters, LengthUnit.Inches, LengthUnit.Centimeters
+    };
+
+    static Board createBoard() {
+        Board board = new Board();
+        board.setDimensions(new Location(LengthUnit.Inches, 1.45, 2.1, 0, 0));
+        return board;
+    }
+
+    static BoardLocation createBoardLocation(Side side, boolean withPlacementTransform) {
+        BoardLocation boardLocation = new BoardLocation(createBoard());
+        boardLocation.setSide(side);
+        boardLocation.setLocation(new Location(LengthUnit.Inches, 1.486, 3.975, -0.394, 74.628));
+        if (withPlacementTransform) {
+            boardLocation.setPlacementTransform(createPlacementTransform(12.5));
+        }
+        return boardLocation;
+    }
+
+    /**
+     * @return A transform, in Millimeters, as a fiducial check would find it, i.e. slightly scaled
+     * and sheared.
+     */
+    static AffineTransform createPlacementTransform(double angle) {
+        AffineTransform tx = new AffineTransform();
+        tx.translate(100.3, 50.7);
+        tx.rotate(Math.toRadians(angle));
+        tx.scale(1.001, 0.999);
+        tx.shear(0.002, 0);
+        return tx;
+    }
+
+    /**
+     * The board to machine transform of a placement, from the BoardLocation's current settings.
+     */
+    static Location calculateBoardPlacementLocation(BoardLocation bl, Location placementLocation) {
+        AffineTransform tx = bl.getPlacementTransform();
+        if (tx == null) {
+            Location l = bl.getLocation().convertToUnits(LengthUnit.Millimeters);
+            tx = new AffineTransform();
+            tx.translate(l.getX(), l.getY());
+            tx.rotate(Math.toRadians(l.getRotation()));
+            if (bl.getSide() == Side.Bottom) {
+                tx.translate(bl.getBoard().getDimensions().convertToUnits(LengthUnit.Millimeters).getX(), 0);
+            }
+        }
+        LengthUnit placementUnits = placementLocation.getUnits();
+        Location boardLocation = bl.getLocation().convertToUnits(LengthUnit.Millimeters);
+        placementLocation = placementLocation.convertToUnits(LengthUnit.Millimeters);
+        if (bl.getSide() == Side.Bottom) {
+            placementLocation = placementLocation.invert(true, false, false, false);
+        }
+        double angle = Utils2D.affineInfo(tx).rotationAngleDeg;
+        Point2D p = new Point2D.Double(placementLocation.getX(), placementLocation.getY());
+        p = tx.transform(p, null);
+        Location l = new Location(LengthUnit.Millimeters,
+                p.getX(),
+                p.getY(),
+                boardLocation.getZ(),
+                angle + placementLocation.getRotation());
+        return l.convertToUnits(placementUnits);
+    }
+
+    static Location randomPlacementLocation(Random random) {
+        LengthUnit unit = units[random.nextInt(units.length)];
+        double scale = 1/new Location(unit, 1, 0, 0, 0).convertToUnits(LengthUnit.Millimeters).getX();
+        return new Location(unit,
+                (random.nextDouble()*80 - 10)*scale,
+                (random.nextDouble()*60 - 10)*scale,
+                0,
+                random.nextInt(8)*45 + random.nextDouble() - 0.5);
+    }
+
+    static void assertSameLocation(Location expected, Location actual, String message) {
+        Assertions.assertEquals(expected.getUnits(), actual.getUnits(), message);
+        Assertions.assertEquals(expected.getX(), actual.getX(), message+" X");
+        Assertions.assertEquals(expected.getY(), actual.getY(), message+" Y");
+        Assertions.assertEquals(expected.getZ(), actual.getZ(), message+" Z");
+        Assertions.assertEquals(expected.getRotation(), actual.getRotation(), message+" rotation");
+    }
+
+    static void assertTransform(BoardLocation boardLocation, Random random) {
+        for (int i = 0; i < 200; i++) {
+            Location placementLocation = randomPlacementLocation(random);
+            Location expected = calculateBoardPlacementLocation(boardLocation, placementLocation);
+            String message = boardLocation.getSide()+" "+placementLocation;
+            assertSameLocation(expected,
+                    Utils2D.calculateBoardPlacementLocation(boardLocation, placementLocation), message);
+            assertSameLocation(expected,
+                    boardLocation.getCompiledPlacementTransform().transform(placementLocation), message);
+        }
+    }
+
+    @Test
+    public void testTransform() {
+        Random random = new Random(1);
+        for (Side side : Side.values()) {
+            for (boolean withPlacementTransform : new boolean [] { false, true }) {
+                assertTransform(createBoardLocation(side, withPlacementTransform), random);
+            }
+        }
+    }
+
+    /**
+     * The batch form transforms like the single form.
+     */
+    @Test
+    public void testBatch() {
+        Random random = new Random(2);
+        for (Side side : Side.values()) {
+            for (boolean withPlacementTransform : new boolean [] { false, true }) {
+                BoardLocation boardLocation = createBoardLocation(side, withPlacementTransform);
+                BoardPlacementTransform transform = boardLocation.getCompiledPlacementTransform();
+                int count = 100;
+                Location [] placementLocations = new Location[count];
+                double [] x = new double[count + 1];
+                double [] y = new double[count + 1];
+                double [] rotation = new double[count + 1];
+                for (int i = 0; i < count; i++) {
+                    placementLocations[i] = randomPlacementLocation(random).convertToUnits(LengthUnit.Millimeters);
+                    x[i] = placementLocations[i].getX();
+                    y[i] = placementLocations[i].getY();
+                    rotation[i] = placementLocations[i].getRotation();
+                }
+                // Beyond the count, must stay untouched.
+                x[count] = y[count] = rotation[count] = 1;
+                double [] xOnly = x.clone();
+                double [] yOnly = y.clone();
+                transform.transform(x, y, rotation, count);
+                transform.transform(xOnly, yOnly, null, count);
+                for (int i = 0; i < count; i++) {
+                    Location expected = transform.transform(placementLocations[i]);
+                    String message = side+" "+placementLocations[i];
+                    Assertions.assertEquals(expected.getX(), x[i], message+" X");
+                    Assertions.assertEquals(expected.getY(), y[i], message+" Y");
+                    Assertions.assertEquals(expected.getRotation(), rotation[i], message+" rotation");
+                    Assertions.assertEquals(expected.getZ(), transform.getZ(), message+" Z");
+                    Assertions.assertEquals(x[i], xOnly[i]);
+                    Assertions.assertEquals(y[i], yOnly[i]);
+                }
+                Assertions.assertEquals(1, x[count]);
+                Assertions.assertEquals(1, y[count]);
+                Assertions.assertEquals(1, rotation[count]);
+            }
+        }
+    }
+
+    /**
+     * The compiled transform is cached, until the location, side, board, board dimensions or
+     * placement transform change.
+     */
+    @Test
+    public void testInvalidation() {
+        Random random = new Random(3);
+        BoardLocation boardLocation = createBoardLocation(Side.Top, false);
+        BoardPlacementTransform transform = boardLocation.getCompiledPlacementTransform();
+        Assertions.assertSame(transform, boardLocation.getCompiledPlacementTransform());
+
+        boardLocation.setLocation(new Location(LengthUnit.Millimeters, 20, 30, -5, -90));
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        transform = boardLocation.getCompiledPlacementTransform();
+        boardLocation.setSide(Side.Bottom);
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        transform = boardLocation.getCompiledPlacementTransform();
+        Board board = createBoard();
+        board.setDimensions(new Location(LengthUnit.Millimeters, 80, 50, 0, 0));
+        boardLocation.setBoard(board);
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        transform = boardLocation.getCompiledPlacementTransform();
+        board.setDimensions(new Location(LengthUnit.Inches, 3, 2, 0, 0));
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        transform = boardLocation.getCompiledPlacementTransform();
+        boardLocation.setPlacementTransform(createPlacementTransform(-3));
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        transform = boardLocation.getCompiledPlacementTransform();
+        boardLocation.setPlacementTransform(createPlacementTransform(7));
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        // With a placement transform, the board dimensions are not used.
+        transform = boardLocation.getCompiledPlacementTransform();
+        board.setDimensions(new Location(LengthUnit.Inches, 4, 2, 0, 0));
+        Assertions.assertSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+
+        boardLocation.setPlacementTransform(null);
+        Assertions.assertNotSame(transform, boardLocation.getCompiledPlacementTransform());
+        assertTransform(boardLocation, random);
+    }
+}
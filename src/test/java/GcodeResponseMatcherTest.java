@@ -0,0 +1,116 @@
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.driver.GcodeResponseMatcher;
+
+/**
+ * Compares the GcodeResponseMatcher with String.matches(), i.e. the way the responses were
+ * matched before.
+ */
+public class GcodeResponseMatcherTest {
+    static final String [] regexes = {
+            // The default COMMAND_CONFIRM_REGEX and common firmware responses.
+            "^ok.*",
+            "^error:.*",
+            "^error.*",
+            "^!!.*",
+            "^echo:busy.*",
+            "^ALARM:.*",
+            "^\\[MSG:.*",
+            "<Idle.*",
+            "^ok T:.*",
+            "^ok C: X:(?<x>-?\\d+\\.\\d+) Y:(?<y>-?\\d+\\.\\d+).*",
+            "^read:a1:(?<Value>-?\\d+)",
+            // Plain literals, anchored or not.
+            "^ok",
+            "ok$",
+            "ok",
+            "^ok$",
+            ".*ok.*",
+            ".*error.*",
+            ".*ok",
+            "^OK.*",
+            "(?i)^ok.*",
+            "^ok.*|^error.*",
+            // Escaped endings that must not be taken for .* or $.
+            "^ok\\.*",
+            "ok\\$",
+            "\\$",
+            "^ok\\\\.*",
+            "^ok\\\\$",
+            "^ok.*$",
+            // Degenerate.
+            ".*",
+            "",
+            "^",
+            "$",
+    };
+
+    static final String [] lines = {
+            "ok", "ok ", "ok T:20.0 /0.0 B:21.3 /0.0", "OK", "okay", " ok", "ok.", "ok..", "ok$", "ok\\",
+            "ok\\..", "$", "", "error", "error:1", "Error: unknown command", "!!", "!! Halted",
+            "echo:busy: processing", "ALARM:1", "[MSG:Reset to continue]", "<Idle|MPos:0.000,0.000,0.000>",
+            "ok C: X:1.000 Y:-2.500 Z:0.000", "read:a1:497", "read:a1:x", "foo ok bar", "foo error",
+            "ok\r", "ok\n", "ok\nmore", "\nok", "ok\u0085", "ok\u2028", "ok\u2029", "ok\r\n", "more\nok",
+    };
+
+    static void assertEquivalent(String regex, String line) {
+        GcodeResponseMatcher matcher = GcodeResponseMatcher.compile(regex);
+        boolean expected = line.matches(regex);
+        String message = "regex \"" + regex + "\" line \"" + line + "\"";
+        Assertions.assertEquals(expected, matcher.matches(line), message);
+        Matcher match = matcher.match(line);
+        Assertions.assertEquals(expected, match != null, message);
+        if (match != null) {
+            Matcher reference = Pattern.compile(regex).matcher(line);
+            Assertions.assertTrue(reference.matches());
+            Assertions.assertEquals(reference.groupCount(), match.groupCount(), message);
+            for (int i = 0; i <= reference.groupCount(); i++) {
+                Assertions.assertEquals(reference.group(i), match.group(i), message);
+            }
+        }
+    }
+
+    @Test
+    public void testAgainstStringMatches() {
+        for (String regex : regexes) {
+            for (String line : lines) {
+                assertEquivalent(regex, line);
+            }
+        }
+    }
+
+    /**
+     * Random lines made of the characters that matter to the literal regexes.
+     */
+    @Test
+    public void testRandomLines() {
+        Random random = new Random(1);
+        String characters = "okOKer:!.$\\ \r\n\u0085";
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder line = new StringBuilder();
+            if (random.nextBoolean()) {
+                line.append("ok");
+            }
+            int length = random.nextInt(6);
+            for (int k = 0; k < length; k++) {
+                line.append(characters.charAt(random.nextInt(characters.length())));
+            }
+            for (String regex : regexes) {
+                assertEquivalent(regex, line.toString());
+            }
+        }
+    }
+
+    @Test
+    public void testCompile() {
+        Assertions.assertNull(GcodeResponseMatcher.compile(null));
+        GcodeResponseMatcher matcher = GcodeResponseMatcher.compile("^ok.*");
+        Assertions.assertEquals("^ok.*", matcher.getRegex());
+        Assertions.assertEquals("^ok.*", matcher.getPattern().pattern());
+        Assertions.assertEquals("^ok.*", matcher.toString());
+    }
+}
@@ -0,0 +1,153 @@
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.driver.GcodeTemplate;
+import org.openpnp.util.TextUtils;
+
+/**
+ * Compares the GcodeTemplate with TextUtils.substituteVar() applied one variable after the other,
+ * i.e. the way the commands were substituted before.
+ */
+public class GcodeTemplateTest {
+    static final String [] templates = {
+            "G1 {X:X%.4f} {Y:Y%.4f} {Z:Z%.4f} {Rotation:A%.4f} {FeedRate:F%.2f} ; Send standard Gcode move",
+            "M204 S{Acceleration:%.2f} ; Initialize acceleration",
+            "{Id}",
+            "T{Index:%d}",
+            "M{Name:%s} {Enabled}",
+            "{X:%f} {X:%.0f} {X:%.1f} {X:%.10f} {X}",
+            // Formats rendered through String.format().
+            "{X:%8.3f} {X:%+.3f} {X:%e} {X:%g} {X:%.3e} {X:%.100f} {X:%%%.2f} {X:%.2f%%}",
+            // Not variables, except for {X:}} with the format }.
+            "{} { X} {X:} {X:}} {X {X:%.2f\n} {-X}",
+    };
+
+    static String substituteVar(String template, Object... namesAndValues) {
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            template = TextUtils.substituteVar(template, (String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return template;
+    }
+
+    static String substitute(String template, Object... namesAndValues) {
+        GcodeTemplate.Substitution substitution = GcodeTemplate.compile(template).substitution();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            substitution.set((String) namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return substitution.toString();
+    }
+
+    static void assertEquivalent(String template, Object... namesAndValues) {
+        Assertions.assertEquals(substituteVar(template, namesAndValues), substitute(template, namesAndValues),
+                template);
+    }
+
+    @Test
+    public void testFormats() {
+        Object [] values = {
+                0.0, -0.0, 1.0, -1.0, 1.5, -2.25, 0.125, 2.675, 0.00005, -0.00005, 1e-7, -1e-7,
+                123456789.123456, 1e20, -1e20, 1e300, Double.MIN_VALUE, Double.MAX_VALUE,
+                Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+                0.0f, -0.0f, 1.1f, 3.3333333f, Float.MAX_VALUE,
+                0, -7, 42, Integer.MIN_VALUE, 0L, Long.MAX_VALUE, Long.MIN_VALUE,
+                "", "Text", "%s", "{X}", true, false,
+        };
+        for (String template : templates) {
+            for (Object value : values) {
+                if (template.contains("%d") && !(value instanceof Integer || value instanceof Long)) {
+                    // Would throw with String.format() as well.
+                    continue;
+                }
+                if ((template.contains("f}") || template.contains("e}") || template.contains("g}")
+                        || template.contains("f%"))
+                        && !(value instanceof Double || value instanceof Float)) {
+                    continue;
+                }
+                assertEquivalent(template, "X", value, "Y", value, "Z", value, "Rotation", value,
+                        "FeedRate", value, "Acceleration", value, "Id", value, "Index", value,
+                        "Name", value, "Enabled", value);
+            }
+        }
+    }
+
+    /**
+     * Random doubles over the whole exponent range, in all the directly rendered precisions.
+     */
+    @Test
+    public void testRandomDoubles() {
+        Random random = new Random(1);
+        String template = "{X:%.0f} {X:%.1f} {X:%.2f} {X:%.3f} {X:%.4f} {X:%.5f} {X:%f} {X:%.12f} {X}";
+        GcodeTemplate compiled = GcodeTemplate.compile(template);
+        for (int i = 0; i < 100000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = Double.longBitsToDouble(random.nextLong());
+                    break;
+                case 1:
+                    value = (random.nextDouble() - 0.5)*Math.pow(10, random.nextInt(20) - 8);
+                    break;
+                case 2:
+                    // Exactly halfway in a low precision, to test the rounding.
+                    value = (random.nextInt(2000000) - 1000000)/10000.0 + 0.00005;
+                    break;
+                default:
+                    value = Math.round((random.nextDouble() - 0.5)*1e6)/1000.0;
+                    break;
+            }
+            Assertions.assertEquals(TextUtils.substituteVar(template, "X", value),
+                    compiled.substitution().set("X", value).toString(), "value " + value);
+        }
+    }
+
+    @Test
+    public void testUnsetVariables() {
+        for (String template : templates) {
+            assertEquivalent(template);
+            assertEquivalent(template, "X", 1.5);
+            assertEquivalent(template, "Unknown", 1.5);
+        }
+    }
+
+    @Test
+    public void testNullRemovesVariable() {
+        for (String template : templates) {
+            assertEquivalent(template, "X", null, "Y", 2.0, "Id", null);
+        }
+        Assertions.assertEquals("G1  Y2.0000  ", substitute("G1 {X:X%.4f} {Y:Y%.4f} {Z:Z%.4f} {FeedRate}",
+                "X", null, "Y", 2.0, "Z", null, "FeedRate", null));
+    }
+
+    @Test
+    public void testFirstValueWins() {
+        for (String template : templates) {
+            assertEquivalent(template, "X", 1.0, "X", 2.0, "Y", null, "Y", 3.0, "Id", 4, "Id", null);
+        }
+        Assertions.assertEquals("X1.00 X1.00", substitute("X{X:%.2f} X{X:%.2f}", "X", 1.0, "X", 2.0));
+    }
+
+    /**
+     * TextUtils.substituteVar() takes $ and \ in values as group references and escapes. The
+     * GcodeTemplate inserts the values as they are.
+     */
+    @Test
+    public void testLiteralValues() {
+        Assertions.assertEquals("M117 $1 \\ {X} 1", substitute("M117 {Text} {X}", "Text", "$1 \\ {X}", "X", 1));
+    }
+
+    @Test
+    public void testHasVariable() {
+        GcodeTemplate template = GcodeTemplate.compile(templates[0]);
+        Assertions.assertTrue(template.hasVariable("X"));
+        Assertions.assertTrue(template.hasVariable("FeedRate"));
+        Assertions.assertFalse(template.hasVariable("Acceleration"));
+        Assertions.assertTrue(template.substitution().hasVariable("Rotation"));
+        template = GcodeTemplate.compile("{} { X} {X {-X} {X:%.2f\n}");
+        Assertions.assertFalse(template.hasVariable("X"));
+        Assertions.assertEquals("{} { X} {X {-X} {X:%.2f\n}", template.substitution().set("X", 1.0).toString());
+        // The format is anything up to the first closing brace, as in TextUtils.substituteVar().
+        Assertions.assertTrue(GcodeTemplate.compile("{X:}}").hasVariable("X"));
+        Assertions.assertNull(GcodeTemplate.compile(null));
+    }
+}
@@ -0,0 +1,129 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.axis.ReferenceControllerAxis;
+import org.openpnp.machine.reference.driver.GcodeAsyncDriver;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.InterpolationStepCache;
+import org.openpnp.model.Motion;
+import org.openpnp.model.Motion.MoveToCommand;
+import org.openpnp.spi.Axis;
+
+import com.google.common.io.Files;
+
+/**
+ * Compares the interpolated moveToCommands handed out one by one with the list of them. The
+ * commands must be the same, and re-timed over the whole move, although the iterator creates each
+ * command only when it is handed out.
+ */
+public class InterpolatedMoveToCommandsTest {
+    GcodeAsyncDriver driver;
+    ReferenceControllerAxis x;
+    ReferenceControllerAxis y;
+    InterpolationStepCache cache = InterpolationStepCache.getInstance();
+
+    @BeforeEach
+    public void before() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+        Configuration.get().load();
+
+        driver = InterpolationStepCacheTest.createDriver();
+        x = InterpolationStepCacheTest.createAxis(driver, "x", Axis.Type.X);
+        y = InterpolationStepCacheTest.createAxis(driver, "y", Axis.Type.Y);
+    }
+
+    @AfterEach
+    public void after() {
+        cache.setEnabled(true);
+        cache.clear();
+    }
+
+    List<Motion> createMoves() {
+        List<Motion> moves = new ArrayList<>();
+        for (double distance = 0.5; distance < 300; distance *= 1.7) {
+            AxesLocation location0 = new AxesLocation(x, 10).put(new AxesLocation(y, 20));
+            AxesLocation location1 = new AxesLocation(x, 10 + distance).put(new AxesLocation(y, 20 + distance*0.4));
+            moves.add(new Motion(null, location0, location1, 1.0));
+            moves.add(new Motion(null, location1, location0, 0.5));
+        }
+        return moves;
+    }
+
+    void assertSameLocation(AxesLocation expected, AxesLocation actual, String message) {
+        Assertions.assertEquals(expected.getCoordinate(x), actual.getCoordinate(x), message+" "+actual);
+        Assertions.assertEquals(expected.getCoordinate(y), actual.getCoordinate(y), message+" "+actual);
+    }
+
+    void assertSameCommand(MoveToCommand expected, MoveToCommand actual, String message) {
+        assertSameLocation(expected.getLocation0(), actual.getLocation0(), message);
+        assertSameLocation(expected.getLocation1(), actual.getLocation1(), message);
+        Assertions.assertEquals(expected.getFeedRatePerSecond(), actual.getFeedRatePerSecond(), message);
+        Assertions.assertEquals(expected.getAccelerationPerSecond2(), actual.getAccelerationPerSecond2(), message);
+        Assertions.assertEquals(expected.getJerkPerSecond3(), actual.getJerkPerSecond3(), message);
+        Assertions.assertEquals(expected.getTimeStart(), actual.getTimeStart(), message);
+        Assertions.assertEquals(expected.getTimeDuration(), actual.getTimeDuration(), message);
+        Assertions.assertEquals(expected.getV0(), actual.getV0(), message);
+        Assertions.assertEquals(expected.getV1(), actual.getV1(), message);
+    }
+
+    void assertIterator(boolean retiming) throws Exception {
+        for (Motion motion : createMoves()) {
+            String message = "Distance "+motion.getEuclideanDistance();
+            List<MoveToCommand> expected = motion.interpolatedMoveToCommands(driver, retiming);
+            Iterator<MoveToCommand> iterator = motion.interpolatedMoveToCommandIterator(driver, retiming);
+            double peakVelocity = expected.get(0).getFeedRatePerSecond();
+            double timeStart = 0;
+            for (int k = 0; k < expected.size(); k++) {
+                Assertions.assertTrue(iterator.hasNext(), message);
+                MoveToCommand command = iterator.next();
+                assertSameCommand(expected.get(k), command, message+" step "+k);
+                Assertions.assertEquals(timeStart, command.getTimeStart(), 1e-12, message+" step "+k);
+                timeStart += command.getTimeDuration();
+                // The first command sets the peak feed-rate of the whole move.
+                if (command.getV0() != null) {
+                    Assertions.assertTrue(Math.abs(command.getV0()) <= peakVelocity*(1 + 1e-9), message+" step "+k);
+                    Assertions.assertTrue(Math.abs(command.getV1()) <= peakVelocity*(1 + 1e-9), message+" step "+k);
+                }
+            }
+            if (retiming) {
+                Assertions.assertEquals(motion.getTime(), timeStart, 1e-9, message);
+            }
+            Assertions.assertFalse(iterator.hasNext(), message);
+            Assertions.assertThrows(NoSuchElementException.class, () -> iterator.next(), message);
+        }
+    }
+
+    @Test
+    public void testInterpolated() throws Exception {
+        cache.setEnabled(false);
+        assertIterator(true);
+        assertIterator(false);
+    }
+
+    /**
+     * With the step tables replayed from the InterpolationStepCache.
+     */
+    @Test
+    public void testReplayed() throws Exception {
+        cache.setEnabled(true);
+        // Record the step tables first, so both forms replay them.
+        for (Motion motion : createMoves()) {
+            motion.interpolatedMoveToCommands(driver, true);
+        }
+        long misses = cache.getMisses();
+        assertIterator(true);
+        assertIterator(false);
+        Assertions.assertTrue(cache.getHits() > 0);
+        Assertions.assertEquals(misses, cache.getMisses());
+    }
+}
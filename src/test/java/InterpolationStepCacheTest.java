@@ -0,0 +1,300 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.axis.ReferenceControllerAxis;
+import org.openpnp.machine.reference.driver.GcodeAsyncDriver;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.InterpolationStepCache;
+import org.openpnp.model.Length;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Motion;
+import org.openpnp.model.Motion.MoveToCommand;
+import org.openpnp.spi.Axis;
+import org.openpnp.spi.Driver.MotionControlType;
+
+import com.google.common.io.Files;
+
+public class InterpolationStepCacheTest {
+    GcodeAsyncDriver driver;
+    ReferenceControllerAxis x;
+    ReferenceControllerAxis y;
+    InterpolationStepCache cache = InterpolationStepCache.getInstance();
+
+    @BeforeEach
+    public void before() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+        Configuration.get().load();
+
+        driver = createDriver();
+        x = createAxis(driver, "x", Axis.Type.X);
+        y = createAxis(driver, "y", Axis.Type.Y);
+        cache.setEnabled(false);
+        cache.setEnabled(true);
+    }
+
+    @AfterEach
+    public void after() {
+        cache.setEnabled(true);
+        cache.clear();
+    }
+
+    static GcodeAsyncDriver createDriver() {
+        GcodeAsyncDriver driver = new GcodeAsyncDriver();
+        driver.setMotionControlType(MotionControlType.Simulated3rdOrderControl);
+        // Let the axes limit the feed-rate.
+        driver.setMaxFeedRate(60000);
+        return driver;
+    }
+
+    static ReferenceControllerAxis createAxis(GcodeAsyncDriver driver, String name, Axis.Type type) {
+        ReferenceControllerAxis axis = new ReferenceControllerAxis();
+        axis.setName(name);
+        axis.setType(type);
+        axis.setDriver(driver);
+        axis.setResolution(0.0001);
+        axis.setFeedratePerSecond(new Length(500, LengthUnit.Millimeters));
+        axis.setAccelerationPerSecond2(new Length(3000, LengthUnit.Millimeters));
+        axis.setJerkPerSecond3(new Length(40000, LengthUnit.Millimeters));
+        return axis;
+    }
+
+    /**
+     * The feeder to board moves and back are exact reversals of each other, the replayed step
+     * tables must hand out the same moves as the interpolation.
+     */
+    @Test
+    public void testReplayReversal() throws Exception {
+        List<Motion> moves = new ArrayList<>();
+        for (int f = 0; f < 4; f++) {
+            for (int p = 0; p < 2; p++) {
+                AxesLocation feeder = new AxesLocation(x, 20 + f*12).put(new AxesLocation(y, 10));
+                AxesLocation placement = new AxesLocation(x, 180 + p*7.5).put(new AxesLocation(y, 140 + p*3.5));
+                moves.add(new Motion(null, feeder, placement, 1.0));
+                moves.add(new Motion(null, placement, feeder, 1.0));
+            }
+        }
+        cache.setEnabled(false);
+        List<List<MoveToCommand>> expected = new ArrayList<>();
+        for (Motion motion : moves) {
+            expected.add(motion.interpolatedMoveToCommands(driver, true));
+        }
+        cache.setEnabled(true);
+        for (int i = 0; i < moves.size(); i++) {
+            assertSameCommands(expected.get(i), moves.get(i).interpolatedMoveToCommands(driver, true), "Move "+i);
+        }
+        Assertions.assertTrue(cache.getHits() >= moves.size()/2);
+        Assertions.assertEquals(0, cache.getRejects());
+    }
+
+    /**
+     * A step table of a long move is replayed onto another distance of the same distance class. Only
+     * the constant velocity segment differs, so the replayed moves must change the acceleration
+     * between their way-points exactly like the interpolated moves they were made from. They must
+     * end exactly at the other end point and take the time of the other motion.
+     */
+    @Test
+    public void testReplayOtherDistance() throws Exception {
+        double distance0 = 200;
+        double distance1 = 201;
+        Assertions.assertEquals(InterpolationStepCache.getDistanceClass(distance0),
+                InterpolationStepCache.getDistanceClass(distance1));
+        Motion motion0 = new Motion(null, new AxesLocation(x, 10), new AxesLocation(x, 10 + distance0), 1.0);
+        Motion motion1 = new Motion(null, new AxesLocation(x, 250), new AxesLocation(x, 250 - distance1), 1.0);
+
+        List<MoveToCommand> commands0 = motion0.interpolatedMoveToCommands(driver, true);
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+        Assertions.assertTrue(commands0.size() > 2);
+        List<MoveToCommand> commands1 = motion1.interpolatedMoveToCommands(driver, true);
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(0, cache.getRejects());
+
+        assertInterpolation(motion0, commands0);
+        assertInterpolation(motion1, commands1);
+        Assertions.assertArrayEquals(getAccelerationChanges(motion0, commands0),
+                getAccelerationChanges(motion1, commands1), 0.001);
+    }
+
+    /**
+     * A short move has no constant acceleration segment, its jerk segments get longer with the
+     * distance. The step table is rejected and the move is interpolated instead.
+     */
+    @Test
+    public void testRejectShortMove() throws Exception {
+        double distance0 = 20;
+        double distance1 = 20.05;
+        Assertions.assertEquals(InterpolationStepCache.getDistanceClass(distance0),
+                InterpolationStepCache.getDistanceClass(distance1));
+        Motion motion0 = new Motion(null, new AxesLocation(x, 10), new AxesLocation(x, 10 + distance0), 1.0);
+        Motion motion1 = new Motion(null, new AxesLocation(x, 10), new AxesLocation(x, 10 + distance1), 1.0);
+
+        cache.setEnabled(false);
+        List<MoveToCommand> expected = motion1.interpolatedMoveToCommands(driver, true);
+        cache.setEnabled(true);
+        motion0.interpolatedMoveToCommands(driver, true);
+        List<MoveToCommand> actual = motion1.interpolatedMoveToCommands(driver, true);
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(2, cache.getMisses());
+        Assertions.assertEquals(1, cache.getRejects());
+        assertSameCommands(expected, actual, "Move");
+
+        // The step table of the second move replaced the first.
+        motion1.interpolatedMoveToCommands(driver, true);
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getRejects());
+    }
+
+    /**
+     * Sweeps the distance over many distance classes in small steps, so many moves replay a step
+     * table made for another distance. The replayed moves must not change the acceleration between
+     * their way-points by more than the interpolated moves of the same distance class.
+     */
+    @Test
+    public void testReplayDistanceSweep() throws Exception {
+        List<Motion> moves = new ArrayList<>();
+        for (double distance = 20; distance < 300; distance += 0.37) {
+            moves.add(new Motion(null, new AxesLocation(x, 0), new AxesLocation(x, distance), 1.0));
+        }
+        Map<Integer, Double> maxAccelerationChanges = new HashMap<>();
+        cache.setEnabled(false);
+        for (Motion motion : moves) {
+            List<MoveToCommand> commands = motion.interpolatedMoveToCommands(driver, true);
+            for (double accelerationChange : getAccelerationChanges(motion, commands)) {
+                maxAccelerationChanges.merge(getDistanceClass(motion), accelerationChange, Math::max);
+            }
+        }
+        cache.setEnabled(true);
+        for (Motion motion : moves) {
+            List<MoveToCommand> commands = motion.interpolatedMoveToCommands(driver, true);
+            assertInterpolation(motion, commands);
+            for (double accelerationChange : getAccelerationChanges(motion, commands)) {
+                Assertions.assertTrue(accelerationChange
+                        <= maxAccelerationChanges.get(getDistanceClass(motion))*(1 + 1e-6),
+                        "Distance "+motion.getEuclideanDistance()+" acceleration change "+accelerationChange);
+            }
+        }
+        Assertions.assertTrue(cache.getHits() > 0);
+    }
+
+    /**
+     * The repeated feeder to board moves of a typical job, on a slightly rotated board. After the
+     * first round all the moves must be replayed, each as the interpolation would have handed it
+     * out.
+     */
+    @Test
+    public void testJobHitRatio() throws Exception {
+        List<Motion> moves = new ArrayList<>();
+        for (int f = 0; f < 8; f++) {
+            for (int p = 0; p < 4; p++) {
+                AxesLocation feeder = new AxesLocation(x, 20 + f*12).put(new AxesLocation(y, 10));
+                AxesLocation placement = new AxesLocation(x, 180 + p*7.5).put(new AxesLocation(y, 140 + p*3.5 + f*0.2));
+                moves.add(new Motion(null, feeder, placement, 1.0));
+                moves.add(new Motion(null, placement, feeder, 1.0));
+            }
+        }
+        cache.setEnabled(false);
+        List<List<MoveToCommand>> expected = new ArrayList<>();
+        for (Motion motion : moves) {
+            expected.add(motion.interpolatedMoveToCommands(driver, true));
+        }
+        cache.setEnabled(true);
+        for (Motion motion : moves) {
+            motion.interpolatedMoveToCommands(driver, true);
+        }
+        long misses = cache.getMisses();
+        // At least the reversals are replayed.
+        Assertions.assertTrue(misses <= moves.size()/2, "Misses "+misses);
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < moves.size(); i++) {
+                List<MoveToCommand> commands = moves.get(i).interpolatedMoveToCommands(driver, true);
+                assertInterpolation(moves.get(i), commands);
+                assertSameCommands(expected.get(i), commands, "Move "+i);
+            }
+        }
+        Assertions.assertEquals(misses, cache.getMisses());
+        Assertions.assertEquals(0, cache.getRejects());
+    }
+
+    void assertSameCommands(List<MoveToCommand> expected, List<MoveToCommand> actual, String move) {
+        Assertions.assertEquals(expected.size(), actual.size(), move+" step count differs");
+        for (int k = 0; k < expected.size(); k++) {
+            Assertions.assertTrue(expected.get(k).getLocation1()
+                    .matchesWithin(actual.get(k).getLocation1(), 0.001),
+                    move+" step "+k+" way-point differs");
+            Assertions.assertEquals(expected.get(k).getTimeDuration(),
+                    actual.get(k).getTimeDuration(), 1e-6,
+                    move+" step "+k+" duration differs");
+        }
+    }
+
+    /**
+     * Asserts that the interpolated moves of the single axis motion end at its end point and take
+     * its time.
+     */
+    void assertInterpolation(Motion motion, List<MoveToCommand> commands) {
+        MoveToCommand last = commands.get(commands.size() - 1);
+        Assertions.assertEquals(motion.getLocation1().getCoordinate(x), last.getLocation1().getCoordinate(x), 1e-9);
+        double duration = 0;
+        for (MoveToCommand command : commands) {
+            Assertions.assertTrue(command.getTimeDuration() > 0);
+            duration += command.getTimeDuration();
+        }
+        Assertions.assertEquals(motion.getTime(), duration, 1e-9);
+    }
+
+    int getDistanceClass(Motion motion) {
+        return InterpolationStepCache.getDistanceClass(
+                Math.abs(motion.getLocation1().getCoordinate(x) - motion.getLocation0().getCoordinate(x)));
+    }
+
+    /**
+     * @return The instant acceleration changes of the single axis motion from one way-point of the
+     * moves to the next.
+     */
+    double [] getAccelerationChanges(Motion motion, List<MoveToCommand> commands) {
+        double [] accelerationChanges = new double[commands.size()];
+        double acceleration0 = 0;
+        double t0 = 0;
+        for (int k = 0; k < commands.size(); k++) {
+            // The last way-point is the end, where the motion is too slow to find the time by the location.
+            double t = (k == commands.size() - 1 ? motion.getTime()
+                    : getTime(motion, commands.get(k).getLocation1().getCoordinate(x)));
+            Assertions.assertTrue(t > t0, "Way-point "+k+" not after the previous");
+            double acceleration = motion.getMomentaryAcceleration(t).getCoordinate(x);
+            accelerationChanges[k] = Math.abs(acceleration - acceleration0);
+            acceleration0 = acceleration;
+            t0 = t;
+        }
+        return accelerationChanges;
+    }
+
+    /**
+     * @return The time at which the single axis motion passes the coordinate.
+     */
+    double getTime(Motion motion, double coordinate) {
+        double start = motion.getLocation0().getCoordinate(x);
+        double distance = Math.abs(coordinate - start);
+        double t0 = 0;
+        double t1 = motion.getTime();
+        for (int i = 0; i < 100; i++) {
+            double t = (t0 + t1)/2;
+            if (Math.abs(motion.getMomentaryLocation(t).getCoordinate(x) - start) < distance) {
+                t0 = t;
+            }
+            else {
+                t1 = t;
+            }
+        }
+        return (t0 + t1)/2;
+    }
+}
@@ -0,0 +1,142 @@
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.Board;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Job;
+import org.openpnp.model.JobProgressJournal;
+import org.openpnp.model.Placement;
+
+public class JobProgressJournalTest {
+    private static Job createJob(File file) {
+        Job job = new Job();
+        Board board = new Board();
+        job.addBoardLocation(new BoardLocation(board));
+        job.addBoardLocation(new BoardLocation(board));
+        job.setFile(file);
+        return job;
+    }
+
+    private static File createJobFile() throws Exception {
+        File directory = Files.createTempDirectory("JobProgressJournalTest").toFile();
+        directory.deleteOnExit();
+        File file = new File(directory, "test.job.xml");
+        file.deleteOnExit();
+        JobProgressJournal.getJournalFile(file).deleteOnExit();
+        JobProgressJournal.getRotatedJournalFile(file).deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        File file = createJobFile();
+        Job job = createJob(file);
+        BoardLocation board0 = job.getBoardLocations().get(0);
+        BoardLocation board1 = job.getBoardLocations().get(1);
+        JobProgressJournal journal = new JobProgressJournal(job);
+        journal.placed(board0, new Placement("R1"));
+        journal.placed(board1, new Placement("R2"));
+        journal.errored(board1, new Placement("C1"), new Exception("Vacuum\tlost\nbadly"));
+        // Not in the job, not journaled.
+        journal.placed(new BoardLocation(new Board()), new Placement("R3"));
+        journal.flush();
+
+        Job loaded = createJob(file);
+        Assertions.assertEquals(2, JobProgressJournal.replay(loaded));
+        Assertions.assertTrue(loaded.getBoardLocations().get(0).getPlaced("R1"));
+        Assertions.assertFalse(loaded.getBoardLocations().get(0).getPlaced("R2"));
+        Assertions.assertTrue(loaded.getBoardLocations().get(1).getPlaced("R2"));
+        Assertions.assertFalse(loaded.getBoardLocations().get(1).getPlaced("C1"));
+
+        // Replaying again does not count the placements already placed.
+        Assertions.assertEquals(0, JobProgressJournal.replay(loaded));
+    }
+
+    @Test
+    public void testReplayWithoutJournal() throws Exception {
+        Assertions.assertEquals(0, JobProgressJournal.replay(createJob(createJobFile())));
+        Assertions.assertEquals(0, JobProgressJournal.replay(new Job()));
+    }
+
+    @Test
+    public void testTornLastLine() throws Exception {
+        File file = createJobFile();
+        File journalFile = JobProgressJournal.getJournalFile(file);
+        Files.write(journalFile.toPath(),
+                "P\t0\tR1\nX\tunknown\nP\tx\tR2\nP\t1\tR3".getBytes(StandardCharsets.UTF_8));
+
+        Job job = createJob(file);
+        Assertions.assertEquals(1, JobProgressJournal.replay(job));
+        Assertions.assertTrue(job.getBoardLocations().get(0).getPlaced("R1"));
+        Assertions.assertFalse(job.getBoardLocations().get(1).getPlaced("R3"));
+
+        // The torn line is cut off, so the next record starts on a line of its own.
+        JobProgressJournal journal = new JobProgressJournal(job);
+        journal.placed(job.getBoardLocations().get(1), new Placement("R4"));
+        journal.flush();
+        Job loaded = createJob(file);
+        Assertions.assertEquals(2, JobProgressJournal.replay(loaded));
+        Assertions.assertTrue(loaded.getBoardLocations().get(1).getPlaced("R4"));
+        Assertions.assertFalse(loaded.getBoardLocations().get(1).getPlaced("R3"));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        File file = createJobFile();
+        Job job = createJob(file);
+        BoardLocation board0 = job.getBoardLocations().get(0);
+        JobProgressJournal journal = new JobProgressJournal(job);
+        journal.placed(board0, new Placement("R1"));
+
+        // The save rotates the journal before it serializes the job, records appended during the
+        // save go to a new journal and survive the compaction.
+        File rotated = JobProgressJournal.rotate(file);
+        Assertions.assertEquals(JobProgressJournal.getRotatedJournalFile(file), rotated);
+        journal.placed(board0, new Placement("R2"));
+        JobProgressJournal.compact(rotated);
+        journal.flush();
+        Assertions.assertFalse(rotated.exists());
+
+        Job loaded = createJob(file);
+        Assertions.assertEquals(1, JobProgressJournal.replay(loaded));
+        Assertions.assertFalse(loaded.getBoardLocations().get(0).getPlaced("R1"));
+        Assertions.assertTrue(loaded.getBoardLocations().get(0).getPlaced("R2"));
+
+        // Nothing left after a save without new records.
+        JobProgressJournal.compact(JobProgressJournal.rotate(file));
+        Assertions.assertFalse(JobProgressJournal.getJournalFile(file).exists());
+        Assertions.assertNull(JobProgressJournal.rotate(file));
+        JobProgressJournal.compact(null);
+    }
+
+    @Test
+    public void testFailedSave() throws Exception {
+        File file = createJobFile();
+        Job job = createJob(file);
+        BoardLocation board0 = job.getBoardLocations().get(0);
+        JobProgressJournal journal = new JobProgressJournal(job);
+        journal.placed(board0, new Placement("R1"));
+
+        // A save that fails after the rotation leaves the rotated journal, it is replayed too.
+        JobProgressJournal.rotate(file);
+        journal.placed(board0, new Placement("R2"));
+        journal.flush();
+        Job loaded = createJob(file);
+        Assertions.assertEquals(2, JobProgressJournal.replay(loaded));
+
+        // The next save adds the new records to the left over rotated journal.
+        File rotated = JobProgressJournal.rotate(file);
+        journal.placed(board0, new Placement("R3"));
+        journal.flush();
+        loaded = createJob(file);
+        Assertions.assertEquals(3, JobProgressJournal.replay(loaded));
+
+        JobProgressJournal.compact(rotated);
+        loaded = createJob(file);
+        Assertions.assertEquals(1, JobProgressJournal.replay(loaded));
+        Assertions.assertTrue(loaded.getBoardLocations().get(0).getPlaced("R3"));
+    }
+}
@@ -0,0 +1,117 @@
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.util.LatencyHistogram;
+
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assertions.assertEquals(0, histogram.getCount());
+        Assertions.assertEquals(0, histogram.getSum());
+        Assertions.assertEquals(0, histogram.getMin());
+        Assertions.assertEquals(0, histogram.getMax());
+        Assertions.assertEquals(0.0, histogram.getMean());
+        Assertions.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    /**
+     * Durations below the number of sub-buckets have a bucket each, so they come out exactly.
+     */
+    @Test
+    public void testSmallDurationsAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 7; nanos++) {
+            histogram.record(nanos);
+        }
+        Assertions.assertEquals(7, histogram.getCount());
+        Assertions.assertEquals(28, histogram.getSum());
+        Assertions.assertEquals(4.0, histogram.getMean());
+        Assertions.assertEquals(1, histogram.getMin());
+        Assertions.assertEquals(7, histogram.getMax());
+        Assertions.assertEquals(1, histogram.getPercentile(0));
+        Assertions.assertEquals(4, histogram.getPercentile(50));
+        Assertions.assertEquals(6, histogram.getPercentile(80));
+        Assertions.assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void testNegativeDurationsCountAsZero() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        Assertions.assertEquals(1, histogram.getCount());
+        Assertions.assertEquals(0, histogram.getSum());
+        Assertions.assertEquals(0, histogram.getMin());
+        Assertions.assertEquals(0, histogram.getPercentile(50));
+    }
+
+    /**
+     * A single duration is always reported exactly, as the percentiles are clamped to the minimum
+     * and maximum, including at the top of the range.
+     */
+    @Test
+    public void testSingleDuration() {
+        for (long nanos : new long[] { 8, 9, 1000, 123456789, Long.MAX_VALUE / 3, Long.MAX_VALUE }) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            histogram.record(nanos);
+            Assertions.assertEquals(nanos, histogram.getPercentile(1), "nanos " + nanos);
+            Assertions.assertEquals(nanos, histogram.getPercentile(50), "nanos " + nanos);
+            Assertions.assertEquals(nanos, histogram.getPercentile(100), "nanos " + nanos);
+        }
+    }
+
+    /**
+     * The percentiles of random durations over many orders of magnitude must be within the
+     * relative error of the sub-buckets, i.e. 1/8, of the exact percentiles.
+     */
+    @Test
+    public void testPercentilesRelativeError() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 100; trial++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            int count = 1 + random.nextInt(2000);
+            long[] durations = new long[count];
+            for (int i = 0; i < count; i++) {
+                durations[i] = (long) Math.pow(10, random.nextDouble() * 12);
+                histogram.record(durations[i]);
+            }
+            Arrays.sort(durations);
+            Assertions.assertEquals(count, histogram.getCount());
+            Assertions.assertEquals(durations[0], histogram.getMin());
+            Assertions.assertEquals(durations[count - 1], histogram.getMax());
+            for (double percentile : new double[] { 1, 10, 50, 90, 99, 99.9, 100 }) {
+                int rank = (int) Math.max(1, Math.ceil(percentile / 100 * count));
+                long exact = durations[rank - 1];
+                long approximate = histogram.getPercentile(percentile);
+                Assertions.assertEquals(exact, approximate, exact / 8.0 + 1,
+                        "trial " + trial + " percentile " + percentile);
+            }
+        }
+    }
+
+    @Test
+    public void testAddAndReset() {
+        LatencyHistogram a = new LatencyHistogram();
+        LatencyHistogram b = new LatencyHistogram();
+        a.record(10);
+        a.record(20);
+        b.record(5);
+        b.record(1000);
+        a.add(b);
+        Assertions.assertEquals(4, a.getCount());
+        Assertions.assertEquals(1035, a.getSum());
+        Assertions.assertEquals(5, a.getMin());
+        Assertions.assertEquals(1000, a.getMax());
+        Assertions.assertEquals(2, b.getCount());
+
+        a.reset();
+        Assertions.assertEquals(0, a.getCount());
+        Assertions.assertEquals(0, a.getMin());
+        Assertions.assertEquals(0, a.getMax());
+        a.record(42);
+        Assertions.assertEquals(42, a.getMin());
+        Assertions.assertEquals(42, a.getPercentile(50));
+    }
+}
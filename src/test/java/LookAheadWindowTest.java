@@ -0,0 +1,229 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.axis.ReferenceControllerAxis;
+import org.openpnp.machine.reference.driver.GcodeAsyncDriver;
+import org.openpnp.machine.reference.driver.ReferenceAdvancedMotionPlanner;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Motion;
+import org.openpnp.model.Motion.MotionOption;
+import org.openpnp.model.MotionProfile;
+import org.openpnp.spi.Axis;
+import org.openpnp.spi.ControllerAxis;
+import org.openpnp.spi.MotionPlanner.CompletionType;
+
+import com.google.common.io.Files;
+
+/**
+ * Queues long chains of continuous motion without a corner, i.e. blended moves and Safe Zone travel,
+ * into the ReferenceAdvancedMotionPlanner with a limited look-ahead. The number of moves solved
+ * per queued move must stay bounded, however long the chain grows.
+ */
+public class LookAheadWindowTest {
+    static final int lookAheadMoves = 5;
+
+    GcodeAsyncDriver driver;
+    ReferenceControllerAxis x;
+    ReferenceControllerAxis y;
+
+    @BeforeEach
+    public void before() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+        Configuration.get().load();
+
+        driver = InterpolationStepCacheTest.createDriver();
+        x = InterpolationStepCacheTest.createAxis(driver, "x", Axis.Type.X);
+        y = InterpolationStepCacheTest.createAxis(driver, "y", Axis.Type.Y);
+    }
+
+    /**
+     * A planner that counts the solved moves and records the executed moves, instead of sending
+     * them to the drivers.
+     */
+    static class CountingPlanner extends ReferenceAdvancedMotionPlanner {
+        int solvedMoves;
+        List<Motion> executed = new ArrayList<>();
+        List<Long> fingerprints = new ArrayList<>();
+
+        @Override
+        protected void solveLookAheadWindow(List<Motion> window) throws Exception {
+            solvedMoves += window.size();
+            super.solveLookAheadWindow(window);
+        }
+
+        @Override
+        protected synchronized void executeMotionPlan(List<Motion> executionPlan,
+                CompletionType completionType) throws Exception {
+            optimizeExecutionPlan(executionPlan, completionType);
+            for (Motion motion : executionPlan) {
+                executed.add(motion);
+                fingerprints.add(fingerprint(motion));
+            }
+        }
+
+        /**
+         * Queues the motion like moveTo() does with continuous motion.
+         *
+         * @return The number of moves solved.
+         */
+        int queue(Motion motion) throws Exception {
+            solvedMoves = 0;
+            motionCommands.add(motion);
+            commitLookAheadWindows();
+            return solvedMoves;
+        }
+
+        /**
+         * Executes the pending moves, like waitForCompletion() does.
+         *
+         * @return The number of moves solved.
+         */
+        int flush() throws Exception {
+            solvedMoves = 0;
+            executeMotionPlan(CompletionType.CommandStillstand);
+            return solvedMoves;
+        }
+
+        int getPendingMoves() {
+            return motionCommands.size();
+        }
+    }
+
+    static long fingerprint(Motion motion) {
+        long h = 0;
+        for (MotionProfile profile : motion.getAxesProfiles()) {
+            h = 31*h + MotionProfileEquivalenceTest.fingerprint(profile);
+        }
+        return h;
+    }
+
+    /**
+     * Co-linear coordinated moves, as blended into one straight motion.
+     */
+    List<Motion> createBlendedChain(int count) {
+        List<Motion> chain = new ArrayList<>();
+        AxesLocation location = new AxesLocation(x, 0).put(new AxesLocation(y, 0));
+        for (int i = 0; i < count; i++) {
+            double distance = 2 + (i % 7);
+            AxesLocation next = location.add(new AxesLocation(x, distance).put(new AxesLocation(y, distance*0.5)));
+            chain.add(new Motion(null, location, next, 1.0));
+            location = next;
+        }
+        return chain;
+    }
+
+    /**
+     * Coordinated moves with uncoordinated travel in between, as in the Safe Zone.
+     */
+    List<Motion> createTravelChain(int count) {
+        List<Motion> chain = new ArrayList<>();
+        AxesLocation location = new AxesLocation(x, 0).put(new AxesLocation(y, 0));
+        for (int i = 0; i < count; i++) {
+            AxesLocation next;
+            if (i % 3 == 1) {
+                next = location.add(new AxesLocation(x, 30 + (i % 5)*4).put(new AxesLocation(y, (i % 2 == 0 ? 20 : -20))));
+                chain.add(new Motion(null, location, next, 1.0, MotionOption.UncoordinatedMotion));
+            }
+            else {
+                next = location.add(new AxesLocation(x, 3).put(new AxesLocation(y, 0)));
+                chain.add(new Motion(null, location, next, 1.0));
+            }
+            location = next;
+        }
+        return chain;
+    }
+
+    /**
+     * Queues the chain and flushes it.
+     *
+     * @return The maximum number of moves solved, per queued move or at the flush.
+     */
+    int queueChain(List<Motion> chain) throws Exception {
+        CountingPlanner planner = new CountingPlanner();
+        planner.setLookAheadMoves(lookAheadMoves);
+        int maxSolvedMoves = 0;
+        for (Motion motion : chain) {
+            maxSolvedMoves = Math.max(maxSolvedMoves, planner.queue(motion));
+            Assertions.assertTrue(planner.getPendingMoves() <= 2*lookAheadMoves + 1,
+                    "Pending "+planner.getPendingMoves());
+        }
+        maxSolvedMoves = Math.max(maxSolvedMoves, planner.flush());
+        Assertions.assertEquals(chain, planner.executed);
+
+        // Executed moves were not changed by later solving.
+        for (int i = 0; i < chain.size(); i++) {
+            Assertions.assertEquals((long) planner.fingerprints.get(i), fingerprint(chain.get(i)), "Move "+i+" changed");
+        }
+        // The motion is continuous across the junctions, and comes to still-stand at the ends.
+        assertStillstand(chain.get(0), 0);
+        for (int i = 1; i < chain.size(); i++) {
+            Motion prev = chain.get(i - 1);
+            Motion motion = chain.get(i);
+            String message = "Junction "+i;
+            assertSame(prev.getMomentaryVelocity(prev.getTime()), motion.getMomentaryVelocity(0), 1e-3, message);
+            assertSame(prev.getMomentaryAcceleration(prev.getTime()), motion.getMomentaryAcceleration(0), 1e-1, message);
+        }
+        Motion last = chain.get(chain.size() - 1);
+        assertStillstand(last, last.getTime());
+        return maxSolvedMoves;
+    }
+
+    void assertSame(AxesLocation expected, AxesLocation actual, double tolerance, String message) {
+        for (ControllerAxis axis : new ControllerAxis [] { x, y }) {
+            Assertions.assertEquals(expected.getCoordinate(axis), actual.getCoordinate(axis), tolerance,
+                    message+" "+axis.getName()+" "+expected+" vs "+actual);
+        }
+    }
+
+    void assertStillstand(Motion motion, double time) {
+        AxesLocation zero = new AxesLocation(x, 0).put(new AxesLocation(y, 0));
+        assertSame(zero, motion.getMomentaryVelocity(time), 1e-3, "Still-stand");
+        assertSame(zero, motion.getMomentaryAcceleration(time), 1e-1, "Still-stand");
+    }
+
+    /**
+     * The blended chain has no corner. Its moves are frozen and executed at the look-ahead limit,
+     * rather than solving the whole queue over and over.
+     */
+    @Test
+    public void testBlendedChain() throws Exception {
+        int maxSolvedMoves = queueChain(createBlendedChain(50));
+        Assertions.assertTrue(maxSolvedMoves <= 2*lookAheadMoves + 1, "Solved "+maxSolvedMoves);
+        Assertions.assertEquals(maxSolvedMoves, queueChain(createBlendedChain(500)));
+    }
+
+    /**
+     * Safe Zone travel has no corner either.
+     */
+    @Test
+    public void testTravelChain() throws Exception {
+        int maxSolvedMoves = queueChain(createTravelChain(50));
+        Assertions.assertTrue(maxSolvedMoves <= 2*lookAheadMoves + 1, "Solved "+maxSolvedMoves);
+        Assertions.assertEquals(maxSolvedMoves, queueChain(createTravelChain(500)));
+    }
+
+    /**
+     * The moves remaining after the frozen moves enter with velocity. Their spanning profile must
+     * still be cut anywhere, including in the first segment, where velocity and jerk have the same
+     * sign.
+     */
+    @Test
+    public void testCrossingWithEntryVelocity() throws Exception {
+        MotionProfile profile = new MotionProfile(20, 72, 266.72, 0, 299.1, 0,
+                Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY, 500, 3000, 3000, 40000,
+                0, Double.POSITIVE_INFINITY, 0);
+        profile.solve();
+        for (double s = 20; s <= 72; s += 0.5) {
+            Double t = profile.getForwardCrossingTime(s, false);
+            Assertions.assertNotNull(t, "Crossing "+s);
+            Assertions.assertEquals(s, profile.getMomentaryLocation(t), 1e-6, "Crossing "+s);
+        }
+    }
+}
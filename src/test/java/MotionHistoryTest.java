@@ -0,0 +1,103 @@
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Motion;
+import org.openpnp.model.MotionHistory;
+
+public class MotionHistoryTest {
+    private static Motion createMotion() {
+        return new Motion(null, AxesLocation.zero, AxesLocation.zero, 1.0);
+    }
+
+    /**
+     * Compares the MotionHistory with the TreeMap it replaced, for random sequences of put,
+     * lookup, clearOlderThan and clear, including same-time replacements and evictions by
+     * capacity.
+     */
+    @Test
+    public void testRandomAgainstTreeMap() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            int capacity = 1 + random.nextInt(random.nextBoolean() ? 8 : 200);
+            // The maximum age is in real-time, make it large enough to not evict anything here.
+            MotionHistory history = new MotionHistory(capacity, 1e9);
+            TreeMap<Double, Motion> reference = new TreeMap<>();
+            double time = 0;
+            for (int step = 0; step < 1000; step++) {
+                int operation = random.nextInt(100);
+                if (operation < 60) {
+                    if (reference.isEmpty() || random.nextInt(10) > 0) {
+                        time += random.nextInt(4) * 0.25;
+                    }
+                    Motion motion = createMotion();
+                    history.put(time, motion);
+                    reference.put(time, motion);
+                    while (reference.size() > capacity) {
+                        reference.pollFirstEntry();
+                    }
+                }
+                else if (operation < 95) {
+                    double lookup = time + (random.nextDouble() - 0.8) * 20;
+                    if (random.nextBoolean()) {
+                        // Hit the keys exactly.
+                        lookup = Math.round(lookup * 4) / 4.0;
+                    }
+                    Map.Entry<Double, Motion> expected = reference.higherEntry(lookup);
+                    Assertions.assertSame(expected == null ? null : expected.getValue(),
+                            history.getHigher(lookup), "trial " + trial + " step " + step);
+                }
+                else if (operation < 99) {
+                    double older = time - random.nextDouble() * 10;
+                    history.clearOlderThan(older);
+                    reference.headMap(older, false).clear();
+                }
+                else {
+                    history.clear();
+                    reference.clear();
+                }
+                Assertions.assertEquals(reference.size(), history.size());
+                Assertions.assertEquals(reference.isEmpty(), history.isEmpty());
+                if (!reference.isEmpty()) {
+                    Assertions.assertEquals((double) reference.lastKey(), history.getLastTime());
+                    Assertions.assertSame(reference.lastEntry().getValue(), history.getLast());
+                }
+                else {
+                    Assertions.assertNull(history.getLast());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPutBeforeLastTime() {
+        MotionHistory history = new MotionHistory(10, 1e9);
+        history.put(2.0, createMotion());
+        Assertions.assertThrows(IllegalArgumentException.class,
+                () -> history.put(1.0, createMotion()));
+        Assertions.assertEquals(1, history.size());
+    }
+
+    @Test
+    public void testEmpty() {
+        MotionHistory history = new MotionHistory(10, 1e9);
+        Assertions.assertTrue(history.isEmpty());
+        Assertions.assertNull(history.getLast());
+        Assertions.assertNull(history.getHigher(0));
+        Assertions.assertThrows(IllegalStateException.class, () -> history.getLastTime());
+    }
+
+    @Test
+    public void testMaximumAge() {
+        MotionHistory history = new MotionHistory(10, 0);
+        // Ended long ago, evicted by the next put.
+        history.put(-1e9, createMotion());
+        Motion motion = createMotion();
+        history.put(1e9, motion);
+        Assertions.assertEquals(1, history.size());
+        Assertions.assertSame(motion, history.getHigher(0));
+    }
+}
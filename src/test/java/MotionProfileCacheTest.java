@@ -0,0 +1,139 @@
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.MotionProfile;
+import org.openpnp.model.MotionProfile.ProfileOption;
+import org.openpnp.model.MotionProfileCache;
+
+public class MotionProfileCacheTest {
+    static MotionProfile profile(double s0, double s1) {
+        return new MotionProfile(s0, s1, 0, 0, 0, 0,
+                -1000, 1000, 500, 3000, 3000, 40000, 0, Double.POSITIVE_INFINITY, 0);
+    }
+
+    static MotionProfile solve(MotionProfileCache cache, MotionProfile template) {
+        MotionProfile profile = new MotionProfile(template);
+        cache.solve(profile);
+        Assertions.assertTrue(profile.hasOption(ProfileOption.Solved));
+        return profile;
+    }
+
+    /**
+     * A hit copies a solution that is bit for bit the same as solving the profile.
+     */
+    @Test
+    public void testHitEqualsSolve() {
+        MotionProfileCache cache = new MotionProfileCache(1000);
+        MotionProfileCache uncached = new MotionProfileCache(1000);
+        uncached.setEnabled(false);
+        Random random = new Random(1);
+        int cases = 300;
+        for (int i = 0; i < cases; i++) {
+            MotionProfile template = MotionProfileEquivalenceTest.randomProfile(random, random.nextInt(10) < 3);
+            long expected = MotionProfileEquivalenceTest.fingerprint(solve(uncached, template));
+            Assertions.assertEquals(expected, MotionProfileEquivalenceTest.fingerprint(solve(cache, template)),
+                    "Case "+i+" miss");
+            Assertions.assertEquals(expected, MotionProfileEquivalenceTest.fingerprint(solve(cache, template)),
+                    "Case "+i+" hit");
+        }
+        Assertions.assertEquals(cases, cache.getHits());
+        Assertions.assertEquals(cases, cache.getMisses());
+        Assertions.assertEquals(cases, cache.getSize());
+        Assertions.assertEquals(0.5, cache.getHitRatio());
+        Assertions.assertEquals(0, uncached.getSize());
+    }
+
+    /**
+     * Profiles are keyed on their absolute locations, not just the distance.
+     */
+    @Test
+    public void testKey() {
+        MotionProfileCache cache = new MotionProfileCache(100);
+        solve(cache, profile(0, 10));
+        solve(cache, profile(5, 15));
+        solve(cache, profile(0, 10));
+        MotionProfile template = profile(0, 10);
+        template.setOption(ProfileOption.SimplifiedSCurve);
+        solve(cache, template);
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(3, cache.getMisses());
+        // A template that is already solved is keyed like the unsolved one.
+        solve(cache, solve(cache, profile(5, 15)));
+        Assertions.assertEquals(3, cache.getHits());
+    }
+
+    /**
+     * At capacity the least recently used solution is evicted.
+     */
+    @Test
+    public void testEviction() {
+        MotionProfileCache cache = new MotionProfileCache(3);
+        solve(cache, profile(0, 1));
+        solve(cache, profile(0, 2));
+        solve(cache, profile(0, 3));
+        // Makes 1 the most recently used.
+        solve(cache, profile(0, 1));
+        Assertions.assertEquals(1, cache.getHits());
+        // Evicts 2.
+        solve(cache, profile(0, 4));
+        Assertions.assertEquals(3, cache.getSize());
+        solve(cache, profile(0, 1));
+        solve(cache, profile(0, 3));
+        solve(cache, profile(0, 4));
+        Assertions.assertEquals(4, cache.getHits());
+        Assertions.assertEquals(4, cache.getMisses());
+        solve(cache, profile(0, 2));
+        Assertions.assertEquals(5, cache.getMisses());
+
+        // Shrinking keeps the most recently used.
+        cache.setCapacity(1);
+        Assertions.assertEquals(1, cache.getSize());
+        solve(cache, profile(0, 2));
+        Assertions.assertEquals(5, cache.getHits());
+        solve(cache, profile(0, 4));
+        Assertions.assertEquals(6, cache.getMisses());
+        Assertions.assertEquals(1, cache.getSize());
+    }
+
+    /**
+     * Disabling clears the cache and the statistics, and bypasses it until enabled again. A capacity
+     * of 0 bypasses it too.
+     */
+    @Test
+    public void testDisable() {
+        MotionProfileCache cache = new MotionProfileCache(10);
+        solve(cache, profile(0, 1));
+        solve(cache, profile(0, 1));
+        Assertions.assertEquals(1, cache.getSize());
+
+        cache.setEnabled(false);
+        Assertions.assertFalse(cache.isEnabled());
+        Assertions.assertEquals(0, cache.getSize());
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(0, cache.getMisses());
+        Assertions.assertEquals(0, cache.getHitRatio());
+        solve(cache, profile(0, 1));
+        solve(cache, profile(0, 1));
+        Assertions.assertEquals(0, cache.getSize());
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(0, cache.getMisses());
+
+        cache.setEnabled(true);
+        solve(cache, profile(0, 1));
+        solve(cache, profile(0, 1));
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+
+        cache.setCapacity(0);
+        Assertions.assertEquals(0, cache.getSize());
+        solve(cache, profile(0, 1));
+        Assertions.assertEquals(0, cache.getSize());
+        Assertions.assertEquals(1, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+
+        cache.clear();
+        Assertions.assertEquals(0, cache.getHits());
+        Assertions.assertEquals(0, cache.getMisses());
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2011 Jason von Nieda <jason@vonnieda.org>
+ *
+ * This file is part of OpenPnP.
+ *
+ * OpenPnP is free software: you can redistribute it and/or modify it under the terms of the GNU
+ * General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * OpenPnP is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even
+ * the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the GNU General
+ * Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with OpenPnP. If not, see
+ * <http://www.gnu.org/licenses/>.
+ *
+ * For more information about OpenPnP visit http://openpnp.org
+ */
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.MotionProfile;
+import org.openpnp.model.MotionProfile.ProfileOption;
+
+/**
+ * Proves that the MotionProfile solver produces bit for bit the same profiles as the solver it
+ * replaced, which boxed its intermediate values. MotionProfileEquivalence.txt holds one
+ * fingerprint per randomized case, recorded with the previous solver. The cases are generated
+ * from a fixed seed, so they are the same on every run.
+ *
+ * Each fingerprint covers the solved segments, times and bounds, the momentary location, velocity
+ * and acceleration at a few points in time and the crossing times of the mid location. Synchronized
+ * and coordinated multi-axis moves are covered as well.
+ */
+public class MotionProfileEquivalenceTest {
+    static final long seed = 20201108;
+    static final int singleCases = 2000;
+    static final int multiAxisCases = 500;
+
+    @Test
+    public void testEquivalence() throws Exception {
+        List<String> expected = new ArrayList<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                getClass().getResourceAsStream("/MotionProfileEquivalence.txt"),
+                StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#")) {
+                    expected.add(line);
+                }
+            }
+        }
+        List<String> actual = fingerprints();
+        Assertions.assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertEquals(expected.get(i), actual.get(i), "Case "+i+" differs");
+        }
+    }
+
+    static List<String> fingerprints() {
+        List<String> fingerprints = new ArrayList<>();
+        Random random = new Random(seed);
+        for (int i = 0; i < singleCases; i++) {
+            MotionProfile profile = randomProfile(random, random.nextInt(10) < 3);
+            profile.solve();
+            fingerprints.add(i+" "+Long.toHexString(fingerprint(profile)));
+        }
+        for (int i = 0; i < multiAxisCases; i++) {
+            boolean coordinated = random.nextBoolean();
+            MotionProfile [] profiles = new MotionProfile[3];
+            for (int axis = 0; axis < profiles.length; axis++) {
+                profiles[axis] = randomProfile(random, false);
+                if (coordinated) {
+                    profiles[axis].setOption(ProfileOption.Coordinated);
+                }
+                else {
+                    if (random.nextBoolean()) {
+                        profiles[axis].setOption(ProfileOption.SynchronizeStraighten);
+                    }
+                    if (random.nextBoolean()) {
+                        profiles[axis].setOption(ProfileOption.SynchronizeEarlyBird);
+                    }
+                    if (random.nextBoolean()) {
+                        profiles[axis].setOption(ProfileOption.SynchronizeLastMinute);
+                    }
+                }
+            }
+            if (coordinated) {
+                MotionProfile.coordinateProfiles(profiles);
+            }
+            else {
+                MotionProfile.synchronizeProfiles(profiles);
+            }
+            long h = 0;
+            for (MotionProfile profile : profiles) {
+                h = h*31 + fingerprint(profile);
+            }
+            fingerprints.add((singleCases + i)+" "+Long.toHexString(h));
+        }
+        return fingerprints;
+    }
+
+    static MotionProfile randomProfile(Random random, boolean withEntryExit) {
+        double vMax = 50 + random.nextDouble()*950;
+        double aMaxEntry = 200 + random.nextDouble()*9800;
+        double aMaxExit = random.nextBoolean() ? aMaxEntry : 200 + random.nextDouble()*9800;
+        double jMax = random.nextInt(5) == 0 ? 0 : 1000 + random.nextDouble()*99000;
+        double s0 = random.nextDouble()*400 - 200;
+        double s1;
+        switch (random.nextInt(10)) {
+            case 0:
+                s1 = s0;
+                break;
+            case 1:
+                s1 = s0 + (random.nextDouble() - 0.5)*0.1;
+                break;
+            default:
+                s1 = random.nextDouble()*400 - 200;
+        }
+        double v0 = 0, v1 = 0, a0 = 0, a1 = 0;
+        if (withEntryExit) {
+            v0 = (random.nextDouble()*2 - 1)*vMax*0.8;
+            v1 = (random.nextDouble()*2 - 1)*vMax*0.8;
+            if (jMax != 0) {
+                a0 = (random.nextDouble()*2 - 1)*aMaxEntry*0.5;
+                a1 = (random.nextDouble()*2 - 1)*aMaxExit*0.5;
+            }
+        }
+        double tMin = random.nextInt(5) == 0 ? random.nextDouble()*2 : 0;
+        int options;
+        switch (random.nextInt(6)) {
+            case 0:
+                options = ProfileOption.UnconstrainedEntry.flag();
+                break;
+            case 1:
+                options = ProfileOption.UnconstrainedExit.flag();
+                break;
+            case 2:
+                options = ProfileOption.SimplifiedSCurve.flag();
+                break;
+            default:
+                options = 0;
+        }
+        return new MotionProfile(s0, s1, v0, v1, a0, a1,
+                -1000, 1000, vMax, aMaxEntry, aMaxExit, jMax, tMin, Double.POSITIVE_INFINITY,
+                options);
+    }
+
+    static long fingerprint(MotionProfile profile) {
+        long h = 0;
+        h = mix(h, profile.getTime());
+        for (int i = 0; i <= MotionProfile.segments; i++) {
+            h = mix(h, profile.getLocation(i));
+            h = mix(h, profile.getVelocity(i));
+            h = mix(h, profile.getAcceleration(i));
+            h = mix(h, profile.getJerk(i));
+            h = mix(h, profile.getSegmentBeginTime(i));
+        }
+        h = mix(h, profile.getLowerSBoundary());
+        h = mix(h, profile.getHigherSBoundary());
+        h = mix(h, profile.getLowerVBoundary());
+        h = mix(h, profile.getHigherVBoundary());
+        h = mix(h, profile.getLowerABoundary());
+        h = mix(h, profile.getHigherABoundary());
+        for (int k = -1; k <= 5; k++) {
+            double t = profile.getTime()*k/4;
+            h = mix(h, profile.getMomentaryLocation(t));
+            h = mix(h, profile.getMomentaryVelocity(t));
+            h = mix(h, profile.getMomentaryAcceleration(t));
+            h = mix(h, profile.getMomentaryJerk(t));
+        }
+        double sMid = (profile.getLocation(0) + profile.getLocation(MotionProfile.segments))*0.5;
+        for (boolean halfProfile : new boolean [] { false, true }) {
+            Double t0 = profile.getForwardCrossingTime(sMid, halfProfile);
+            Double t1 = profile.getBackwardCrossingTime(sMid, halfProfile);
+            h = mix(h, t0 == null ? Double.NaN : t0);
+            h = mix(h, t1 == null ? Double.NaN : t1);
+        }
+        return h;
+    }
+
+    static long mix(long h, double d) {
+        return h*31 + Double.doubleToLongBits(d);
+    }
+}
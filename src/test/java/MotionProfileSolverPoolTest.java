@@ -0,0 +1,140 @@
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpnp.model.MotionProfile;
+import org.openpnp.model.MotionProfile.ProfileOption;
+import org.openpnp.model.MotionProfileCache;
+import org.openpnp.model.MotionProfileSolverPool;
+
+public class MotionProfileSolverPoolTest {
+    MotionProfileSolverPool pool = MotionProfileSolverPool.getInstance();
+
+    @BeforeEach
+    public void before() {
+        // Solve every profile, rather than copying it from the cache.
+        MotionProfileCache.getInstance().setEnabled(false);
+        pool.setEnabled(true);
+        pool.setThreshold(2);
+        pool.setThreads(2);
+    }
+
+    @AfterEach
+    public void after() {
+        pool.setEnabled(false);
+        pool.setThreshold(MotionProfileSolverPool.defaultThreshold);
+        pool.setThreads(MotionProfileSolverPool.defaultThreads);
+        MotionProfileCache.getInstance().setEnabled(true);
+    }
+
+    /**
+     * A profile that records the thread that solved it. It takes a while, so the pool threads get
+     * their share of the batch.
+     */
+    static class RecordingProfile extends MotionProfile {
+        final Set<String> threads;
+
+        RecordingProfile(MotionProfile template, Set<String> threads) {
+            super(template);
+            this.threads = threads;
+        }
+
+        @Override
+        public void solve() {
+            threads.add(Thread.currentThread().getName());
+            try {
+                Thread.sleep(20);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.solve();
+        }
+    }
+
+    /**
+     * Profiles solved by the pool are bit for bit the same as solved one after another.
+     */
+    @Test
+    public void testConcurrentEqualsSerial() {
+        Random random = new Random(1);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        for (int i = 0; i < 20; i++) {
+            MotionProfile [] serial = new MotionProfile[6];
+            MotionProfile [] concurrent = new MotionProfile[serial.length];
+            for (int axis = 0; axis < serial.length; axis++) {
+                serial[axis] = MotionProfileEquivalenceTest.randomProfile(random, random.nextBoolean());
+                concurrent[axis] = new RecordingProfile(serial[axis], threads);
+                serial[axis].solve();
+            }
+            pool.solve(concurrent);
+            for (int axis = 0; axis < serial.length; axis++) {
+                Assertions.assertTrue(concurrent[axis].hasOption(ProfileOption.Solved));
+                Assertions.assertEquals(MotionProfileEquivalenceTest.fingerprint(serial[axis]),
+                        MotionProfileEquivalenceTest.fingerprint(concurrent[axis]),
+                        "Case "+i+" axis "+axis+" differs");
+            }
+        }
+        Assertions.assertTrue(threads.contains(Thread.currentThread().getName()));
+        Assertions.assertTrue(threads.stream().anyMatch(name -> name.startsWith("MotionProfileSolver-")),
+                "Solved on "+threads);
+    }
+
+    /**
+     * Synchronized multi-axis moves take the pool as well.
+     */
+    @Test
+    public void testSynchronizeProfiles() {
+        Random random = new Random(2);
+        for (int i = 0; i < 50; i++) {
+            MotionProfile [] serial = new MotionProfile[4];
+            MotionProfile [] concurrent = new MotionProfile[serial.length];
+            for (int axis = 0; axis < serial.length; axis++) {
+                serial[axis] = MotionProfileEquivalenceTest.randomProfile(random, false);
+                concurrent[axis] = new MotionProfile(serial[axis]);
+            }
+            pool.setEnabled(false);
+            MotionProfile.synchronizeProfiles(serial);
+            pool.setEnabled(true);
+            MotionProfile.synchronizeProfiles(concurrent);
+            for (int axis = 0; axis < serial.length; axis++) {
+                Assertions.assertEquals(MotionProfileEquivalenceTest.fingerprint(serial[axis]),
+                        MotionProfileEquivalenceTest.fingerprint(concurrent[axis]),
+                        "Case "+i+" axis "+axis+" differs");
+            }
+        }
+    }
+
+    /**
+     * An exception of the solver reaches the caller, after the other profiles were solved.
+     */
+    @Test
+    public void testSolverException() {
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        MotionProfile [] profiles = new MotionProfile[5];
+        for (int axis = 0; axis < profiles.length; axis++) {
+            MotionProfile template = MotionProfileCacheTest.profile(0, 10 + axis);
+            if (axis == 2) {
+                profiles[axis] = new MotionProfile(template) {
+                    @Override
+                    public void solve() {
+                        throw new IllegalStateException("Solver failed");
+                    }
+                };
+            }
+            else {
+                profiles[axis] = new RecordingProfile(template, threads);
+            }
+        }
+        IllegalStateException e = Assertions.assertThrows(IllegalStateException.class,
+                () -> pool.solve(profiles));
+        Assertions.assertEquals("Solver failed", e.getMessage());
+        for (int axis = 0; axis < profiles.length; axis++) {
+            Assertions.assertEquals(axis != 2, profiles[axis].hasOption(ProfileOption.Solved));
+        }
+    }
+}
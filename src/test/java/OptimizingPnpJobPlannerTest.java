@@ -0,0 +1,120 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.OptimizingPnpJobPlanner;
+import org.openpnp.machine.reference.PnpJobPlanningIndex;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.PnpJobPlanner.PlannedPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement.Status;
+
+/**
+ * Plans small fixed jobs, on the machine of the PnpJobPlanningIndexTest, with the
+ * OptimizingPnpJobPlanner.
+ */
+public class OptimizingPnpJobPlannerTest {
+    static OptimizingPnpJobPlanner createPlanner(long randomSeed) {
+        OptimizingPnpJobPlanner planner = new OptimizingPnpJobPlanner();
+        planner.setDeterministic(true);
+        planner.setRandomSeed(randomSeed);
+        // Smaller than the job, so the look-ahead window is exercised.
+        planner.setLookAhead(10);
+        return planner;
+    }
+
+    static void assertCompatible(PlannedPlacement plannedPlacement) {
+        String message = plannedPlacement.toString();
+        Assertions.assertTrue(plannedPlacement.nozzle.getCompatibleNozzleTips()
+                .contains(plannedPlacement.nozzleTip), message);
+        Assertions.assertTrue(plannedPlacement.jobPlacement.getPlacement().getPart().getPackage()
+                .getCompatibleNozzleTips().contains(plannedPlacement.nozzleTip), message);
+    }
+
+    /**
+     * Plan the whole job from the list of the pending placements.
+     *
+     * @return The cycles, each planned placement formatted as nozzle, nozzle tip and placement.
+     */
+    static List<String> planJob(long jobSeed, long randomSeed) throws Exception {
+        Head head = PnpJobPlanningIndexTest.createHead();
+        List<JobPlacement> jobPlacements = PnpJobPlanningIndexTest.createJobPlacements(
+                head.getMachine(), 40, new Random(jobSeed));
+        OptimizingPnpJobPlanner planner = createPlanner(randomSeed);
+        List<String> cycles = new ArrayList<>();
+        Set<JobPlacement> planned = new HashSet<>();
+        while (true) {
+            List<JobPlacement> pending = PnpJobPlanningIndexTest.getPendingJobPlacements(
+                    jobPlacements, PnpJobPlanningIndexTest.partHeightOrder);
+            if (pending.isEmpty()) {
+                break;
+            }
+            List<JobPlacement> remaining = new ArrayList<>(pending);
+            List<PlannedPlacement> plannedPlacements = planner.plan(head, remaining);
+            String message = "Cycle "+cycles.size()+" "+plannedPlacements;
+            Assertions.assertFalse(plannedPlacements.isEmpty(), message);
+            Assertions.assertTrue(plannedPlacements.size() <= head.getNozzles().size(), message);
+            Set<Object> nozzles = new HashSet<>();
+            Set<Object> nozzleTips = new HashSet<>();
+            for (PlannedPlacement plannedPlacement : plannedPlacements) {
+                assertCompatible(plannedPlacement);
+                Assertions.assertTrue(nozzles.add(plannedPlacement.nozzle), message);
+                Assertions.assertTrue(nozzleTips.add(plannedPlacement.nozzleTip), message);
+                Assertions.assertTrue(planned.add(plannedPlacement.jobPlacement), message);
+                Assertions.assertEquals(Status.Pending, plannedPlacement.jobPlacement.getStatus());
+                // The planned placements are removed from the list, the others are kept in order.
+                Assertions.assertFalse(remaining.contains(plannedPlacement.jobPlacement), message);
+                pending.remove(plannedPlacement.jobPlacement);
+            }
+            Assertions.assertEquals(pending, remaining, message);
+            cycles.add(plannedPlacements.toString());
+            PnpJobPlanningIndexTest.process(plannedPlacements);
+        }
+        Assertions.assertEquals(new HashSet<>(jobPlacements), planned);
+        return cycles;
+    }
+
+    /**
+     * Every placement is planned exactly once, with a nozzle tip that is compatible with the
+     * nozzle and the package.
+     */
+    @Test
+    public void testPlanJob() throws Exception {
+        for (long jobSeed = 1; jobSeed <= 5; jobSeed++) {
+            List<String> cycles = planJob(jobSeed, 0);
+            // Three nozzles.
+            Assertions.assertTrue(cycles.size() >= 40/3);
+        }
+    }
+
+    /**
+     * The same random seed plans the same cycles, from the list or from the index.
+     */
+    @Test
+    public void testDeterministic() throws Exception {
+        for (long randomSeed = 0; randomSeed < 3; randomSeed++) {
+            List<String> cycles = planJob(1, randomSeed);
+            Assertions.assertEquals(cycles, planJob(1, randomSeed));
+
+            Head head = PnpJobPlanningIndexTest.createHead();
+            List<JobPlacement> jobPlacements = PnpJobPlanningIndexTest.createJobPlacements(
+                    head.getMachine(), 40, new Random(1));
+            PnpJobPlanningIndex index = new PnpJobPlanningIndex(head, jobPlacements,
+                    PnpJobPlanningIndexTest.partHeightOrder);
+            OptimizingPnpJobPlanner planner = createPlanner(randomSeed);
+            List<String> indexCycles = new ArrayList<>();
+            while (!index.isEmpty()) {
+                List<PlannedPlacement> plannedPlacements = index.plan(planner, head);
+                Assertions.assertFalse(plannedPlacements.isEmpty());
+                indexCycles.add(plannedPlacements.toString());
+                PnpJobPlanningIndexTest.process(plannedPlacements);
+            }
+            index.dispose();
+            Assertions.assertEquals(cycles, indexCycles);
+        }
+    }
+}
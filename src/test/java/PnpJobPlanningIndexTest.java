@@ -0,0 +1,252 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.PnpJobPlanningIndex;
+import org.openpnp.machine.reference.ReferenceHead;
+import org.openpnp.machine.reference.ReferenceMachine;
+import org.openpnp.machine.reference.ReferenceNozzle;
+import org.openpnp.machine.reference.ReferenceNozzleTip;
+import org.openpnp.machine.reference.ReferencePnpJobProcessor.SimplePnpJobPlanner;
+import org.openpnp.model.Board;
+import org.openpnp.model.BoardLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Length;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.model.Location;
+import org.openpnp.model.Package;
+import org.openpnp.model.Part;
+import org.openpnp.model.Placement;
+import org.openpnp.spi.Head;
+import org.openpnp.spi.Machine;
+import org.openpnp.spi.PnpJobPlanner.PlannedPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement;
+import org.openpnp.spi.PnpJobProcessor.JobPlacement.Status;
+
+/**
+ * Compares the SimplePnpJobPlanner planning from the PnpJobPlanningIndex with the same planner
+ * planning from the list of the pending placements, i.e. the way the cycles were planned before.
+ * The cycles must be the same.
+ */
+public class PnpJobPlanningIndexTest {
+    /**
+     * The default job order of the ReferencePnpJobProcessor.
+     */
+    static final Comparator<JobPlacement> partHeightOrder = Comparator
+            .comparing(JobPlacement::getPartHeight)
+            .thenComparing(JobPlacement::getPartId);
+
+    /**
+     * A nozzle whose nozzle tip can be loaded without moving the machine.
+     */
+    static class PlanningNozzle extends ReferenceNozzle {
+        ReferenceNozzleTip loadedNozzleTip;
+
+        @Override
+        public ReferenceNozzleTip getNozzleTip() {
+            return loadedNozzleTip;
+        }
+    }
+
+    /**
+     * Create a machine with nozzle tips NT1, NT2, NT3 and a head with nozzles N1, N2, N3, each
+     * compatible with two of the nozzle tips. No nozzle tips are loaded.
+     */
+    static Head createHead() throws Exception {
+        Configuration.initialize();
+        ReferenceMachine machine = new ReferenceMachine();
+        Configuration.get().setMachine(machine);
+        ReferenceHead head = new ReferenceHead();
+        head.setName("H1");
+        machine.addHead(head);
+        for (String name : new String [] { "NT1", "NT2", "NT3" }) {
+            ReferenceNozzleTip nozzleTip = new ReferenceNozzleTip();
+            nozzleTip.setName(name);
+            machine.addNozzleTip(nozzleTip);
+        }
+        String [][] nozzles = {
+                { "N1", "NT1", "NT2" },
+                { "N2", "NT2", "NT3" },
+                { "N3", "NT1", "NT3" },
+        };
+        for (String [] names : nozzles) {
+            PlanningNozzle nozzle = new PlanningNozzle();
+            nozzle.setName(names[0]);
+            for (int i = 1; i < names.length; i++) {
+                nozzle.addCompatibleNozzleTip(machine.getNozzleTipByName(names[i]));
+            }
+            head.addNozzle(nozzle);
+        }
+        return head;
+    }
+
+    /**
+     * Create the JobPlacements of a board with count random placements, in board order. The
+     * parts use packages that are compatible with one or two of the nozzle tips, and have
+     * random heights.
+     */
+    static List<JobPlacement> createJobPlacements(Machine machine, int count, Random random) {
+        String [][] packages = {
+                { "P1", "NT1" },
+                { "P2", "NT2" },
+                { "P3", "NT3" },
+                { "P12", "NT1", "NT2" },
+                { "P23", "NT2", "NT3" },
+        };
+        List<Part> parts = new ArrayList<>();
+        for (String [] names : packages) {
+            Package pkg = new Package(names[0]);
+            for (int i = 1; i < names.length; i++) {
+                pkg.addCompatibleNozzleTip(machine.getNozzleTipByName(names[i]));
+            }
+            for (int i = 0; i < 2; i++) {
+                Part part = new Part(names[0]+"-"+i);
+                part.setPackage(pkg);
+                part.setHeight(new Length(0.5 + random.nextInt(6)*0.5, LengthUnit.Millimeters));
+                parts.add(part);
+            }
+        }
+        Board board = new Board();
+        board.setName("B1");
+        BoardLocation boardLocation = new BoardLocation(board);
+        boardLocation.setLocation(new Location(LengthUnit.Millimeters, 50, 40, -10, 0));
+        List<JobPlacement> jobPlacements = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Placement placement = new Placement("R"+(i + 1));
+            placement.setPart(parts.get(random.nextInt(parts.size())));
+            placement.setLocation(new Location(LengthUnit.Millimeters,
+                    random.nextDouble()*100, random.nextDouble()*80, 0, random.nextInt(4)*90));
+            board.addPlacement(placement);
+            jobPlacements.add(new JobPlacement(boardLocation, placement));
+        }
+        return jobPlacements;
+    }
+
+    /**
+     * @return The pending JobPlacements in job order, like the job processor lists them.
+     */
+    static List<JobPlacement> getPendingJobPlacements(List<JobPlacement> jobPlacements,
+            Comparator<JobPlacement> jobOrder) {
+        List<JobPlacement> pending = jobPlacements.stream()
+                .filter(jobPlacement -> jobPlacement.getStatus() == Status.Pending)
+                .collect(Collectors.toList());
+        if (jobOrder != null) {
+            pending.sort(jobOrder);
+        }
+        return pending;
+    }
+
+    /**
+     * Process the planned placements like the job processor would: load the nozzle tips and
+     * complete the placements.
+     */
+    static void process(List<PlannedPlacement> plannedPlacements) {
+        for (PlannedPlacement plannedPlacement : plannedPlacements) {
+            ((PlanningNozzle) plannedPlacement.nozzle).loadedNozzleTip =
+                    (ReferenceNozzleTip) plannedPlacement.nozzleTip;
+            plannedPlacement.jobPlacement.setStatus(Status.Complete);
+        }
+    }
+
+    static void assertSameCycle(List<PlannedPlacement> expected, List<PlannedPlacement> actual,
+            String message) {
+        Assertions.assertEquals(expected.size(), actual.size(), message+" "+expected+" vs "+actual);
+        for (int i = 0; i < expected.size(); i++) {
+            Assertions.assertSame(expected.get(i).nozzle, actual.get(i).nozzle, message);
+            Assertions.assertSame(expected.get(i).nozzleTip, actual.get(i).nozzleTip, message);
+            Assertions.assertSame(expected.get(i).jobPlacement, actual.get(i).jobPlacement, message);
+        }
+    }
+
+    /**
+     * Plan a whole job with both forms of the SimplePnpJobPlanner. Between the cycles placements
+     * error, are reset to pending for a retry, and part heights change, which sorts the index
+     * again.
+     */
+    static void assertSimplePlannerEquivalence(Comparator<JobPlacement> jobOrder, long seed)
+            throws Exception {
+        Random random = new Random(seed);
+        Head head = createHead();
+        List<JobPlacement> jobPlacements = createJobPlacements(head.getMachine(), 200, random);
+        PnpJobPlanningIndex index = new PnpJobPlanningIndex(head, jobPlacements, jobOrder);
+        SimplePnpJobPlanner planner = new SimplePnpJobPlanner();
+        int cycles = 0;
+        while (true) {
+            String message = "Cycle "+cycles;
+            if (cycles < 50) {
+                JobPlacement jobPlacement = jobPlacements.get(random.nextInt(jobPlacements.size()));
+                switch (random.nextInt(4)) {
+                    case 0:
+                        jobPlacement.setStatus(Status.Errored);
+                        break;
+                    case 1:
+                        jobPlacement.setStatus(Status.Pending);
+                        break;
+                    case 2:
+                        Part part = jobPlacement.getPlacement().getPart();
+                        part.setHeight(new Length(random.nextInt(8)*0.5, LengthUnit.Millimeters));
+                        break;
+                }
+            }
+            List<JobPlacement> pending = getPendingJobPlacements(jobPlacements, jobOrder);
+            List<PlannedPlacement> expected = planner.plan(head, new ArrayList<>(pending));
+            List<PlannedPlacement> actual = index.plan(planner, head);
+            assertSameCycle(expected, actual, message);
+            Assertions.assertEquals(pending, index.getPendingJobPlacements(), message);
+            Assertions.assertEquals(pending.size(), index.getPendingCount(), message);
+            if (pending.isEmpty()) {
+                break;
+            }
+            Assertions.assertFalse(actual.isEmpty(), message);
+            process(actual);
+            cycles++;
+        }
+        Assertions.assertTrue(index.isEmpty());
+        index.dispose();
+    }
+
+    @Test
+    public void testSimplePlannerPartHeightOrder() throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            assertSimplePlannerEquivalence(partHeightOrder, seed);
+        }
+    }
+
+    @Test
+    public void testSimplePlannerBoardOrder() throws Exception {
+        for (long seed = 1; seed <= 5; seed++) {
+            assertSimplePlannerEquivalence(null, seed);
+        }
+    }
+
+    /**
+     * The index is sorted again when a part height changed, and only then.
+     */
+    @Test
+    public void testSort() throws Exception {
+        Random random = new Random(6);
+        Head head = createHead();
+        List<JobPlacement> jobPlacements = createJobPlacements(head.getMachine(), 50, random);
+        PnpJobPlanningIndex index = new PnpJobPlanningIndex(head, jobPlacements, partHeightOrder);
+        Assertions.assertFalse(index.sort());
+        Assertions.assertEquals(getPendingJobPlacements(jobPlacements, partHeightOrder),
+                index.getPendingJobPlacements());
+
+        JobPlacement last = index.getJobPlacement(jobPlacements.size() - 1);
+        last.getPlacement().getPart().setHeight(new Length(0, LengthUnit.Millimeters));
+        Assertions.assertTrue(index.sort());
+        Assertions.assertFalse(index.sort());
+        Assertions.assertNotEquals(jobPlacements.size() - 1, index.getRank(last));
+        Assertions.assertEquals(getPendingJobPlacements(jobPlacements, partHeightOrder),
+                index.getPendingJobPlacements());
+
+        // After disposal the index no longer follows the JobPlacements and parts.
+        index.dispose();
+        last.getPlacement().getPart().setHeight(new Length(5, LengthUnit.Millimeters));
+        Assertions.assertFalse(index.sort());
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.openpnp.machine.reference.axis.ReferenceCamClockwiseAxis;
+import org.openpnp.machine.reference.axis.ReferenceCamCounterClockwiseAxis;
+import org.openpnp.machine.reference.axis.ReferenceControllerAxis;
+import org.openpnp.machine.reference.axis.ReferenceLinearTransformAxis;
+import org.openpnp.machine.reference.axis.ReferenceMappedAxis;
+import org.openpnp.model.AxesLocation;
+import org.openpnp.model.Configuration;
+import org.openpnp.model.Length;
+import org.openpnp.model.LengthUnit;
+import org.openpnp.spi.Axis;
+import org.openpnp.spi.Locatable.LocationOption;
+import org.openpnp.spi.base.AbstractAxis;
+import org.openpnp.util.Matrix;
+
+import com.google.common.io.Files;
+
+/**
+ * Compares the compiled kinematics of the transformed axes with the formulas they were compiled
+ * from, evaluated from the settings on every call. The results must be bit for bit the same, also
+ * after a setting was changed.
+ */
+public class TransformedAxisTest {
+    static final double ANGLE_CUTOFF = 89.99;
+    static final double SINUS_CUTOFF = Math.sin(Math.toRadians(ANGLE_CUTOFF));
+    static final double EXTENSION_SLOPE = 0.0001/180.0;
+
+    ReferenceControllerAxis x;
+    ReferenceControllerAxis y;
+    ReferenceControllerAxis z;
+    ReferenceControllerAxis c;
+
+    @BeforeEach
+    public void before() throws Exception {
+        File workingDirectory = Files.createTempDir();
+        workingDirectory = new File(workingDirectory, ".openpnp");
+        Configuration.initialize(workingDirectory);
+        Configuration.get().load();
+
+        x = createControllerAxis("x", Axis.Type.X);
+        y = createControllerAxis("y", Axis.Type.Y);
+        z = createControllerAxis("z", Axis.Type.Z);
+        c = createControllerAxis("c", Axis.Type.Rotation);
+    }
+
+    static ReferenceControllerAxis createControllerAxis(String name, Axis.Type type) {
+        ReferenceControllerAxis axis = new ReferenceControllerAxis();
+        axis.setName(name);
+        axis.setType(type);
+        return axis;
+    }
+
+    static ReferenceLinearTransformAxis createLinearAxis(String name, Axis.Type type,
+            AbstractAxis inputX, double factorX, AbstractAxis inputY, double factorY,
+            AbstractAxis inputRotation, double factorRotation, Length offset) {
+        ReferenceLinearTransformAxis axis = new ReferenceLinearTransformAxis();
+        axis.setName(name);
+        axis.setType(type);
+        axis.setInputAxisX(inputX);
+        axis.setFactorX(factorX);
+        axis.setInputAxisY(inputY);
+        axis.setFactorY(factorY);
+        axis.setInputAxisRotation(inputRotation);
+        axis.setFactorRotation(factorRotation);
+        axis.setOffset(offset);
+        axis.setCompensation(true);
+        return axis;
+    }
+
+    static ReferenceMappedAxis createNegatedAxis(String name, Axis.Type type, AbstractAxis input) {
+        ReferenceMappedAxis axis = new ReferenceMappedAxis();
+        axis.setName(name);
+        axis.setType(type);
+        axis.setInputAxis(input);
+        axis.setMapInput0(new Length(0, LengthUnit.Millimeters));
+        axis.setMapOutput0(new Length(0, LengthUnit.Millimeters));
+        axis.setMapInput1(new Length(1, LengthUnit.Millimeters));
+        axis.setMapOutput1(new Length(-1, LengthUnit.Millimeters));
+        return axis;
+    }
+
+    /**
+     * Non-squareness compensation of X and Y, with the offsets in mixed units.
+     */
+    @Test
+    public void testLinear() throws Exception {
+        ReferenceLinearTransformAxis tx = createLinearAxis("tx", Axis.Type.X, x, 1.0, y, 0.0123,
+                null, 0, new Length(0.05, LengthUnit.Inches));
+        ReferenceLinearTransformAxis ty = createLinearAxis("ty", Axis.Type.Y, x, -0.0021, y, 0.9987,
+                null, 0, new Length(-1.5, LengthUnit.Millimeters));
+        assertKinematics(tx, ty);
+
+        tx.setFactorY(-0.02);
+        assertKinematics(tx, ty);
+        ty.setOffset(new Length(0.3, LengthUnit.Centimeters));
+        assertKinematics(tx, ty);
+        tx.setCompensation(false);
+        assertKinematics(tx, ty);
+        ty.setFactorX(0);
+        ty.setInputAxisX(null);
+        assertKinematics(tx, ty);
+    }
+
+    /**
+     * X and Y rotated, with the rotation axis following.
+     */
+    @Test
+    public void testRotational() throws Exception {
+        double angle = Math.toRadians(2.5);
+        ReferenceLinearTransformAxis tx = createLinearAxis("tx", Axis.Type.X, x, Math.cos(angle), y, -Math.sin(angle),
+                null, 0, new Length(10, LengthUnit.Millimeters));
+        ReferenceLinearTransformAxis ty = createLinearAxis("ty", Axis.Type.Y, x, Math.sin(angle), y, Math.cos(angle),
+                null, 0, new Length(-20, LengthUnit.Millimeters));
+        ReferenceLinearTransformAxis tc = createLinearAxis("tc", Axis.Type.Rotation, null, 0, null, 0,
+                c, 1.0, new Length(2.5, LengthUnit.Millimeters));
+        assertKinematics(tx, ty, tc);
+
+        angle = Math.toRadians(-1);
+        tx.setFactorX(Math.cos(angle));
+        tx.setFactorY(-Math.sin(angle));
+        ty.setFactorX(Math.sin(angle));
+        ty.setFactorY(Math.cos(angle));
+        tc.setOffset(new Length(-1, LengthUnit.Millimeters));
+        assertKinematics(tx, ty, tc);
+    }
+
+    /**
+     * Negated Z and rotation axes, mapped and linear.
+     */
+    @Test
+    public void testNegated() throws Exception {
+        ReferenceMappedAxis tz = createNegatedAxis("tz", Axis.Type.Z, z);
+        ReferenceLinearTransformAxis tc = createLinearAxis("tc", Axis.Type.Rotation, null, 0, null, 0,
+                c, -1.0, new Length(0, LengthUnit.Millimeters));
+        assertKinematics(tz, tc);
+
+        tz.setMapOutput1(new Length(-0.5, LengthUnit.Inches));
+        assertKinematics(tz, tc);
+        tz.setMapInput1(new Length(0, LengthUnit.Millimeters));
+        tz.setMapOutput0(new Length(3, LengthUnit.Millimeters));
+        assertKinematics(tz, tc);
+        tc.setFactorRotation(-2);
+        assertKinematics(tz, tc);
+    }
+
+    /**
+     * A bottom camera counter-rotated nozzle, i.e. the negated rotation is compensated by the X
+     * location, and a pair of cam Z axes on the same motor.
+     */
+    @Test
+    public void testCameraCounterRotated() throws Exception {
+        ReferenceMappedAxis nc = createNegatedAxis("nc", Axis.Type.Rotation, c);
+        ReferenceLinearTransformAxis tx = createLinearAxis("tx", Axis.Type.X, x, 1.0, null, 0,
+                null, 0, new Length(0, LengthUnit.Millimeters));
+        ReferenceLinearTransformAxis tc = createLinearAxis("tc", Axis.Type.Rotation, x, 0.02, null, 0,
+                nc, 1.0, new Length(90, LengthUnit.Millimeters));
+        ReferenceCamCounterClockwiseAxis z1 = new ReferenceCamCounterClockwiseAxis();
+        z1.setName("z1");
+        z1.setType(Axis.Type.Z);
+        z1.setInputAxis(z);
+        z1.setCamWheelRadius(new Length(0.1, LengthUnit.Inches));
+        ReferenceCamClockwiseAxis z2 = new ReferenceCamClockwiseAxis();
+        z2.setName("z2");
+        z2.setType(Axis.Type.Z);
+        z2.setInputAxis(z1);
+        assertKinematics(tx, tc);
+        assertKinematics(z1);
+        assertKinematics(z2);
+
+        tc.setFactorX(-0.01);
+        assertKinematics(tx, tc);
+        nc.setMapOutput1(new Length(1, LengthUnit.Millimeters));
+        assertKinematics(tx, tc);
+        z1.setCamRadius(new Length(1, LengthUnit.Inches));
+        assertKinematics(z1);
+        assertKinematics(z2);
+        z1.setCamWheelGap(new Length(2, LengthUnit.Millimeters));
+        assertKinematics(z1);
+        assertKinematics(z2);
+    }
+
+    /**
+     * Asserts the transformed axes of one group transform to and from raw like the formulas, with
+     * and without static compensation, for random locations. Every location is transformed twice,
+     * so the second one is sure to take the compiled kinematics.
+     */
+    void assertKinematics(AbstractAxis... transformedAxes) throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < 100; i++) {
+            for (LocationOption [] options : new LocationOption [][] {
+                { }, { LocationOption.SuppressStaticCompensation } }) {
+                boolean suppress = options.length > 0;
+                AxesLocation raw = new AxesLocation.Builder()
+                        .put(x, random.nextDouble()*600 - 100)
+                        .put(y, random.nextDouble()*600 - 100)
+                        .put(z, random.nextDouble()*60 - 30)
+                        .put(c, random.nextDouble()*720 - 360)
+                        .build();
+                AxesLocation.Builder transformedBuilder = new AxesLocation.Builder();
+                for (AbstractAxis axis : transformedAxes) {
+                    transformedBuilder.put(axis, random.nextDouble()*40 - 20);
+                }
+                AxesLocation transformed = transformedBuilder.build();
+                for (int pass = 0; pass < 2; pass++) {
+                    for (AbstractAxis axis : transformedAxes) {
+                        Assertions.assertEquals(toTransformed(axis, raw, suppress),
+                                axis.toTransformed(raw, options).getCoordinate(axis),
+                                axis.getName()+" to transformed");
+                    }
+                    AxesLocation expected = transformed;
+                    AxesLocation actual = transformed;
+                    for (AbstractAxis axis : transformedAxes) {
+                        expected = toRaw(axis, expected, suppress);
+                        actual = axis.toRaw(actual, options);
+                    }
+                    for (Axis axis : new Axis [] { x, y, z, c }) {
+                        Assertions.assertEquals(expected.contains(axis), actual.contains(axis));
+                        Assertions.assertEquals(expected.getCoordinate(axis), actual.getCoordinate(axis),
+                                axis.getName()+" to raw");
+                    }
+                }
+            }
+        }
+    }
+
+    static double toUnits(Length length) {
+        return length.convertToUnits(AxesLocation.getUnits()).getValue();
+    }
+
+    static double getScale(ReferenceMappedAxis axis) {
+        double dividend = toUnits(axis.getMapOutput1()) - toUnits(axis.getMapOutput0());
+        double divisor = toUnits(axis.getMapInput1()) - toUnits(axis.getMapInput0());
+        if (divisor == 0.0 || dividend == 0.0) {
+            return 1.0;
+        }
+        return dividend / divisor;
+    }
+
+    static double toTransformed(AbstractAxis axis, AxesLocation raw, boolean suppress) {
+        if (axis == null) {
+            return 0;
+        }
+        if (axis instanceof ReferenceLinearTransformAxis) {
+            ReferenceLinearTransformAxis linearAxis = (ReferenceLinearTransformAxis) axis;
+            double x = toTransformed(linearAxis.getInputAxisX(), raw, suppress);
+            double y = toTransformed(linearAxis.getInputAxisY(), raw, suppress);
+            double z = toTransformed(linearAxis.getInputAxisZ(), raw, suppress);
+            double rotation = toTransformed(linearAxis.getInputAxisRotation(), raw, suppress);
+            if (!linearAxis.isCompensation() || !suppress) {
+                return x * linearAxis.getFactorX()
+                        + y * linearAxis.getFactorY()
+                        + z * linearAxis.getFactorZ()
+                        + rotation * linearAxis.getFactorRotation()
+                        + toUnits(linearAxis.getOffset());
+            }
+            switch (axis.getType()) {
+                case X:
+                    return x;
+                case Y:
+                    return y;
+                case Z:
+                    return z;
+                default:
+                    return rotation;
+            }
+        }
+        if (axis instanceof ReferenceMappedAxis) {
+            ReferenceMappedAxis mappedAxis = (ReferenceMappedAxis) axis;
+            double coordinate = toTransformed(mappedAxis.getInputAxis(), raw, suppress);
+            coordinate = coordinate - toUnits(mappedAxis.getMapInput0());
+            coordinate = coordinate * getScale(mappedAxis);
+            return coordinate + toUnits(mappedAxis.getMapOutput0());
+        }
+        if (axis instanceof ReferenceCamClockwiseAxis) {
+            ReferenceCamCounterClockwiseAxis camAxis = ((ReferenceCamClockwiseAxis) axis).getCounterClockwiseAxis();
+            return toTransformedCam(camAxis, raw.getCoordinate(camAxis.getInputAxis()), true);
+        }
+        if (axis instanceof ReferenceCamCounterClockwiseAxis) {
+            ReferenceCamCounterClockwiseAxis camAxis = (ReferenceCamCounterClockwiseAxis) axis;
+            return toTransformedCam(camAxis, raw.getCoordinate(camAxis.getInputAxis()), false);
+        }
+        return raw.getCoordinate(axis);
+    }
+
+    static double toTransformedCam(ReferenceCamCounterClockwiseAxis axis, double rawCoordinate, boolean clockwise) {
+        double transformedCoordinate = rawCoordinate;
+        if (clockwise) {
+            transformedCoordinate = -transformedCoordinate;
+        }
+        transformedCoordinate += 90.0 - axis.getCamArmsAngle()/2.0;
+        if (transformedCoordinate <= -ANGLE_CUTOFF) {
+            transformedCoordinate = (transformedCoordinate + ANGLE_CUTOFF)*EXTENSION_SLOPE - SINUS_CUTOFF;
+        }
+        else if (transformedCoordinate >= +ANGLE_CUTOFF) {
+            transformedCoordinate = (transformedCoordinate - ANGLE_CUTOFF)*EXTENSION_SLOPE + SINUS_CUTOFF;
+        }
+        else {
+            transformedCoordinate = Math.sin(Math.toRadians(transformedCoordinate));
+        }
+        transformedCoordinate *= toUnits(axis.getCamRadius());
+        transformedCoordinate += toUnits(axis.getCamWheelRadius()) + toUnits(axis.getCamWheelGap());
+        return transformedCoordinate;
+    }
+
+    static double toRawCam(ReferenceCamCounterClockwiseAxis axis, double transformedCoordinate, boolean clockwise) {
+        double rawCoordinate = (transformedCoordinate - toUnits(axis.getCamWheelRadius())
+                - toUnits(axis.getCamWheelGap())) / toUnits(axis.getCamRadius());
+        if (rawCoordinate <= -SINUS_CUTOFF) {
+            rawCoordinate = (rawCoordinate + SINUS_CUTOFF)/EXTENSION_SLOPE - ANGLE_CUTOFF;
+        }
+        else if (rawCoordinate >= +SINUS_CUTOFF) {
+            rawCoordinate = (rawCoordinate - SINUS_CUTOFF)/EXTENSION_SLOPE + ANGLE_CUTOFF;
+        }
+        else {
+            rawCoordinate = Math.toDegrees(Math.asin(rawCoordinate));
+        }
+        rawCoordinate -= 90.0 - axis.getCamArmsAngle()/2.0;
+        if (clockwise) {
+            rawCoordinate = -rawCoordinate;
+        }
+        double range = 180.0 - axis.getCamArmsAngle()/2.0;
+        return Math.max(-range,  Math.min(range, rawCoordinate));
+    }
+
+    static double [] getLinearTransform(ReferenceLinearTransformAxis axis, double [] unit, boolean suppress) {
+        if (axis == null || (axis.isCompensation() && suppress)) {
+            return unit;
+        }
+        return new double [] {
+                axis.getInputAxisX() != null ? axis.getFactorX() : 0.0,
+                axis.getInputAxisY() != null ? axis.getFactorY() : 0.0,
+                axis.getInputAxisZ() != null ? axis.getFactorZ() : 0.0,
+                axis.getInputAxisRotation() != null ? axis.getFactorRotation() : 0.0,
+                toUnits(axis.getOffset())
+        };
+    }
+
+    static AxesLocation toRaw(AbstractAxis axis, AxesLocation location, boolean suppress) {
+        if (axis instanceof ReferenceLinearTransformAxis) {
+            ReferenceLinearTransformAxis linearAxis = (ReferenceLinearTransformAxis) axis;
+            if (location.contains(linearAxis.getInputAxisX())
+                    && location.contains(linearAxis.getInputAxisY())
+                    && location.contains(linearAxis.getInputAxisZ())
+                    && location.contains(linearAxis.getInputAxisRotation())) {
+                return location;
+            }
+            ReferenceLinearTransformAxis [] linearAxes = new ReferenceLinearTransformAxis [4];
+            AbstractAxis [] inputAxes = new AbstractAxis [4];
+            for (Axis groupAxis : location.getAxes()) {
+                if (groupAxis instanceof ReferenceLinearTransformAxis) {
+                    ReferenceLinearTransformAxis groupLinearAxis = (ReferenceLinearTransformAxis) groupAxis;
+                    linearAxes[groupAxis.getType().ordinal()] = groupLinearAxis;
+                    List<AbstractAxis> groupInputAxes = new ArrayList<>();
+                    groupInputAxes.add(groupLinearAxis.getInputAxisX());
+                    groupInputAxes.add(groupLinearAxis.getInputAxisY());
+                    groupInputAxes.add(groupLinearAxis.getInputAxisZ());
+                    groupInputAxes.add(groupLinearAxis.getInputAxisRotation());
+                    for (int i = 0; i < 4; i++) {
+                        if (groupInputAxes.get(i) != null) {
+                            inputAxes[i] = groupInputAxes.get(i);
+                        }
+                    }
+                }
+            }
+            double [][] affineTransform = new double [][] {
+                getLinearTransform(linearAxes[0], new double [] { 1, 0, 0, 0, 0 }, suppress),
+                getLinearTransform(linearAxes[1], new double [] { 0, 1, 0, 0, 0 }, suppress),
+                getLinearTransform(linearAxes[2], new double [] { 0, 0, 1, 0, 0 }, suppress),
+                getLinearTransform(linearAxes[3], new double [] { 0, 0, 0, 1, 0 }, suppress),
+                { 0, 0, 0, 0, 1 }
+            };
+            double [][] transformedVector = new double [5][1];
+            for (int i = 0; i < 4; i++) {
+                transformedVector[i][0] = location.getCoordinate(linearAxes[i] != null ? linearAxes[i] : inputAxes[i]);
+            }
+            transformedVector[4][0] = 1;
+            double [][] rawVector = Matrix.multiply(Matrix.inverse(affineTransform), transformedVector);
+            for (int i = 0; i < 4; i++) {
+                location = location.put(inputAxes[i], rawVector[i][0]);
+            }
+            for (int i = 0; i < 4; i++) {
+                location = toRaw(inputAxes[i], location, suppress);
+            }
+            return location;
+        }
+        if (axis instanceof ReferenceMappedAxis) {
+            ReferenceMappedAxis mappedAxis = (ReferenceMappedAxis) axis;
+            double coordinate = location.getCoordinate(axis);
+            coordinate = coordinate - toUnits(mappedAxis.getMapOutput0());
+            coordinate = coordinate / getScale(mappedAxis);
+            coordinate = coordinate + toUnits(mappedAxis.getMapInput0());
+            location = location.put(mappedAxis.getInputAxis(), coordinate);
+            return toRaw(mappedAxis.getInputAxis(), location, suppress);
+        }
+        if (axis instanceof ReferenceCamClockwiseAxis) {
+            ReferenceCamCounterClockwiseAxis camAxis = ((ReferenceCamClockwiseAxis) axis).getCounterClockwiseAxis();
+            location = location.put(camAxis.getInputAxis(), toRawCam(camAxis, location.getCoordinate(axis), true));
+            return toRaw(camAxis.getInputAxis(), location, suppress);
+        }
+        if (axis instanceof ReferenceCamCounterClockwiseAxis) {
+            ReferenceCamCounterClockwiseAxis camAxis = (ReferenceCamCounterClockwiseAxis) axis;
+            location = location.put(camAxis.getInputAxis(), toRawCam(camAxis, location.getCoordinate(axis), false));
+            return toRaw(camAxis.getInputAxis(), location, suppress);
+        }
+        return location;
+    }
+}